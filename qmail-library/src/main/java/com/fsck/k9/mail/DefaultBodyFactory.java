@@ -5,10 +5,12 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
+import com.fsck.k9.mail.filter.DecodedSizeCountingOutputStream;
 import com.fsck.k9.mail.internet.BinaryTempFileBody;
 import com.fsck.k9.mail.internet.BinaryTempFileMessageBody;
 import com.fsck.k9.mail.internet.MimeUtility;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.TeeOutputStream;
 import org.apache.james.mime4j.util.MimeUtil;
 
 
@@ -29,7 +31,15 @@ public class DefaultBodyFactory implements BodyFactory {
 
         OutputStream outputStream = tempBody.getOutputStream();
         try {
-            copyData(inputStream, outputStream);
+            if (DecodedSizeCountingOutputStream.canCount(contentTransferEncoding)) {
+                // Count the decoded size while the data is written, so it doesn't have to be read again for that
+                DecodedSizeCountingOutputStream decodedSizeCounter =
+                        new DecodedSizeCountingOutputStream(contentTransferEncoding);
+                copyData(inputStream, new TeeOutputStream(outputStream, decodedSizeCounter));
+                tempBody.setDecodedSize(decodedSizeCounter.getCount());
+            } else {
+                copyData(inputStream, outputStream);
+            }
         } finally {
             outputStream.close();
         }
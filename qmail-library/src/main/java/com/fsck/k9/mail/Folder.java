@@ -200,6 +200,41 @@ public abstract class Folder<T extends Message> {
         return null;
     }
 
+    /**
+     * @return an opaque token describing the state of the open folder that can be saved and later passed to
+     *         {@link #fetchChangedFlags(List, String, MessageRetrievalListener)}, or {@code null} if the folder
+     *         doesn't support incremental flag synchronization
+     */
+    public String getSyncState() {
+        return null;
+    }
+
+    /**
+     * Fetch the flags of those of the given messages that changed since {@code syncState} was obtained from
+     * {@link #getSyncState()}. Messages that vanished from the server in the meantime are marked as
+     * {@link Flag#DELETED}. {@link MessageRetrievalListener#messageFinished(Message, int, int)} is only invoked for
+     * changed messages.
+     *
+     * @return {@code false} if changes can't be determined incrementally. The caller then has to fetch the flags of
+     *         all messages.
+     */
+    public boolean fetchChangedFlags(List<T> messages, String syncState, MessageRetrievalListener<T> listener)
+            throws MessagingException {
+        return false;
+    }
+
+    /**
+     * List the messages that were added, changed or removed since {@code syncState} was obtained from
+     * {@link #getSyncState()}. This allows synchronizing a folder without listing all of its messages.
+     *
+     * @return {@code null} if the changes can't be determined incrementally, e.g. because {@code syncState} is
+     *         {@code null} or expired. The caller then has to list the messages using
+     *         {@link #getMessages(int, int, Date, MessageRetrievalListener)}.
+     */
+    public FolderChanges<T> getChangesSince(String syncState) throws MessagingException {
+        return null;
+    }
+
     public boolean isFlagSupported(Flag flag) {
         return true;
     }
@@ -0,0 +1,36 @@
+package com.fsck.k9.mail;
+
+
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * The changes to a remote folder since a sync state was obtained from {@link Folder#getSyncState()}.
+ *
+ * @see Folder#getChangesSince(String)
+ */
+public class FolderChanges<T extends Message> {
+    private final List<T> changedMessages;
+    private final List<String> removedUids;
+
+
+    public FolderChanges(List<T> changedMessages, List<String> removedUids) {
+        this.changedMessages = Collections.unmodifiableList(changedMessages);
+        this.removedUids = Collections.unmodifiableList(removedUids);
+    }
+
+    /**
+     * @return Messages that were added to the folder or whose flags changed. Their flags are already populated.
+     */
+    public List<T> getChangedMessages() {
+        return changedMessages;
+    }
+
+    /**
+     * @return The UIDs of messages that were removed from the folder.
+     */
+    public List<String> getRemovedUids() {
+        return removedUids;
+    }
+}
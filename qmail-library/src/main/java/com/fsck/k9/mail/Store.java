@@ -83,6 +83,13 @@ public abstract class Store {
         return true;
     }
 
+    /**
+     * @return the number of folders of this store that can be synchronized at the same time.
+     */
+    public int getMaxConcurrentFolderSyncs() {
+        return 1;
+    }
+
     /**
      * Send a series of messages (network request expected).
      */
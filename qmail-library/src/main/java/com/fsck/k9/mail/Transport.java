@@ -21,4 +21,17 @@ public abstract class Transport {
     public abstract void sendMessage(Message message) throws MessagingException;
 
     public abstract void close();
+
+    /**
+     * Allows the transport to keep its connection open between calls to {@link #sendMessage(Message)} until
+     * {@link #endSession()} is called. Transports that can't reuse a connection ignore this.
+     */
+    public void beginSession() {
+    }
+
+    /**
+     * Ends a session started with {@link #beginSession()} and releases its connection.
+     */
+    public void endSession() {
+    }
 }
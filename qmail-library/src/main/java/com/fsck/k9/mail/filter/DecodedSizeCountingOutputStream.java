@@ -0,0 +1,85 @@
+package com.fsck.k9.mail.filter;
+
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.james.mime4j.util.MimeUtil;
+
+
+/**
+ * An OutputStream that counts how many bytes the encoded data written to it decodes to, without decoding it.
+ * <p>
+ * Supports base64 and all encodings that leave the data unchanged. The size of quoted-printable data can't be known
+ * without decoding it, so check {@link #canCount(String)} first.
+ * </p>
+ */
+public class DecodedSizeCountingOutputStream extends OutputStream {
+    private static final byte BASE64_PAD = '=';
+
+
+    private final boolean base64;
+    private long count;
+    private int base64Modulus;
+    private boolean base64Padded;
+
+
+    public static boolean canCount(String encoding) {
+        return !MimeUtil.ENC_QUOTED_PRINTABLE.equalsIgnoreCase(encoding);
+    }
+
+    public DecodedSizeCountingOutputStream(String encoding) {
+        if (!canCount(encoding)) {
+            throw new IllegalArgumentException("Can't count decoded size of encoding: " + encoding);
+        }
+
+        base64 = MimeUtil.ENC_BASE64.equalsIgnoreCase(encoding);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    @Override
+    public void write(int oneByte) throws IOException {
+        if (base64) {
+            countBase64((byte) oneByte);
+        } else {
+            count++;
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int offset, int len) throws IOException {
+        if (base64) {
+            for (int i = offset, end = offset + len; i < end; i++) {
+                countBase64(b[i]);
+            }
+        } else {
+            count += len;
+        }
+    }
+
+    /**
+     * Counts like {@link Base64} decodes: characters outside of the alphabet are ignored and padding ends the data.
+     */
+    private void countBase64(byte octet) {
+        if (base64Padded) {
+            return;
+        }
+
+        if (octet == BASE64_PAD) {
+            if (base64Modulus == 2) {
+                count += 1;
+            } else if (base64Modulus == 3) {
+                count += 2;
+            }
+            base64Padded = true;
+        } else if (Base64.isBase64(octet)) {
+            base64Modulus = (base64Modulus + 1) % 4;
+            if (base64Modulus == 0) {
+                count += 3;
+            }
+        }
+    }
+}
@@ -60,6 +60,15 @@ public class PeekableInputStream extends FilterInputStream {
         return read(buffer, 0, buffer.length);
     }
 
+    @Override
+    public int available() throws IOException {
+        if (!peeked || peekedByte == -1) {
+            return in.available();
+        } else {
+            return in.available() + 1;
+        }
+    }
+
     @Override
     public String toString() {
         return String.format(Locale.US, "PeekableInputStream(in=%s, peeked=%b, peekedByte=%d)",
@@ -24,10 +24,14 @@ import timber.log.Timber;
  * getInputStream is closed the file is deleted and the Body should be considered disposed of.
  */
 public class BinaryTempFileBody implements RawDataBody, SizeAware {
+    public static final long DECODED_SIZE_UNKNOWN = -1;
+
     private static File mTempDirectory;
 
     private File mFile;
 
+    private long mDecodedSize = DECODED_SIZE_UNKNOWN;
+
     String mEncoding = null;
 
     public static void setTempDirectory(File tempDirectory) {
@@ -93,6 +97,7 @@ public class BinaryTempFileBody implements RawDataBody, SizeAware {
     }
 
     public OutputStream getOutputStream() throws IOException {
+        mDecodedSize = DECODED_SIZE_UNKNOWN;
         mFile = File.createTempFile("body", null, mTempDirectory);
         mFile.deleteOnExit();
         return new FileOutputStream(mFile);
@@ -124,6 +129,18 @@ public class BinaryTempFileBody implements RawDataBody, SizeAware {
         return mFile;
     }
 
+    /**
+     * @return The size of the body data after decoding the transfer encoding, or {@link #DECODED_SIZE_UNKNOWN} if it
+     *         wasn't counted while the data was written.
+     */
+    public long getDecodedSize() {
+        return mDecodedSize;
+    }
+
+    public void setDecodedSize(long decodedSize) {
+        mDecodedSize = decodedSize;
+    }
+
     class BinaryTempFileBodyInputStream extends FilterInputStream {
         public BinaryTempFileBodyInputStream(InputStream in) {
             super(in);
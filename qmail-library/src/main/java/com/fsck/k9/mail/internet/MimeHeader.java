@@ -17,29 +17,51 @@ public class MimeHeader implements Cloneable {
     public static final String HEADER_CONTENT_DISPOSITION = "Content-Disposition";
     public static final String HEADER_CONTENT_ID = "Content-ID";
 
+    /**
+     * All fields in the order they will be written.
+     */
     private List<Field> mFields = new ArrayList<Field>();
+
+    /**
+     * The fields in {@link #mFields} grouped by their lower-case name, so looking up a header in a message with lots
+     * of trace headers doesn't have to compare the name of every field.
+     */
+    private Map<String, List<Field>> mFieldsByName = new HashMap<String, List<Field>>();
+
     private String mCharset = null;
 
     public void clear() {
         mFields.clear();
+        mFieldsByName.clear();
     }
 
     public String getFirstHeader(String name) {
-        String[] header = getHeader(name);
-        if (header.length == 0) {
+        List<Field> fields = mFieldsByName.get(toKey(name));
+        if (fields == null) {
             return null;
         }
-        return header[0];
+        return fields.get(0).getValue();
     }
 
     public void addHeader(String name, String value) {
         Field field = Field.newNameValueField(name, MimeUtility.foldAndEncode(value));
-        mFields.add(field);
+        addField(field);
     }
 
     void addRawHeader(String name, String raw) {
         Field field = Field.newRawField(name, raw);
+        addField(field);
+    }
+
+    private void addField(Field field) {
         mFields.add(field);
+
+        List<Field> fields = mFieldsByName.get(field.getKey());
+        if (fields == null) {
+            fields = new ArrayList<Field>(1);
+            mFieldsByName.put(field.getKey(), fields);
+        }
+        fields.add(field);
     }
 
     public void setHeader(String name, String value) {
@@ -61,23 +83,33 @@ public class MimeHeader implements Cloneable {
 
     @NonNull
     public String[] getHeader(String name) {
-        List<String> values = new ArrayList<String>();
-        for (Field field : mFields) {
-            if (field.getName().equalsIgnoreCase(name)) {
-                values.add(field.getValue());
-            }
+        List<Field> fields = mFieldsByName.get(toKey(name));
+        if (fields == null) {
+            return new String[0];
         }
-        return values.toArray(new String[values.size()]);
+
+        String[] values = new String[fields.size()];
+        for (int i = 0, size = fields.size(); i < size; i++) {
+            values[i] = fields.get(i).getValue();
+        }
+        return values;
     }
 
     public void removeHeader(String name) {
-        List<Field> removeFields = new ArrayList<Field>();
-        for (Field field : mFields) {
-            if (field.getName().equalsIgnoreCase(name)) {
-                removeFields.add(field);
+        String key = toKey(name);
+        if (mFieldsByName.remove(key) == null) {
+            return;
+        }
+
+        for (Iterator<Field> iterator = mFields.iterator(); iterator.hasNext(); ) {
+            if (iterator.next().getKey().equals(key)) {
+                iterator.remove();
             }
         }
-        mFields.removeAll(removeFields);
+    }
+
+    private static String toKey(String name) {
+        return (name != null) ? name.toLowerCase(Locale.US) : null;
     }
 
     public String toString() {
@@ -155,8 +187,9 @@ public class MimeHeader implements Cloneable {
 
     private static class Field {
         private final String name;
-        private final String value;
+        private final String key;
         private final String raw;
+        private String value;
 
         public static Field newNameValueField(String name, String value) {
             if (value == null) {
@@ -180,6 +213,7 @@ public class MimeHeader implements Cloneable {
             }
 
             this.name = name;
+            this.key = toKey(name);
             this.value = value;
             this.raw = raw;
         }
@@ -188,11 +222,23 @@ public class MimeHeader implements Cloneable {
             return name;
         }
 
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * The value of a raw field is only extracted when it is first asked for. Most fields of a received message
+         * are never looked at.
+         */
         public String getValue() {
-            if (value != null) {
-                return value;
+            if (value == null) {
+                value = extractValue(raw);
             }
 
+            return value;
+        }
+
+        private static String extractValue(String raw) {
             int delimiterIndex = raw.indexOf(':');
             if (delimiterIndex == raw.length() - 1) {
                 return "";
@@ -224,6 +270,10 @@ public class MimeHeader implements Cloneable {
         try {
             MimeHeader header = (MimeHeader) super.clone();
             header.mFields = new ArrayList<Field>(mFields);
+            header.mFieldsByName = new HashMap<String, List<Field>>(mFieldsByName.size());
+            for (Map.Entry<String, List<Field>> entry : mFieldsByName.entrySet()) {
+                header.mFieldsByName.put(entry.getKey(), new ArrayList<Field>(entry.getValue()));
+            }
             return header;
         } catch(CloneNotSupportedException e) {
             throw new AssertionError(e);
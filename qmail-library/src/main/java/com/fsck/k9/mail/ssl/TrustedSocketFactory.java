@@ -7,7 +7,16 @@ import java.net.Socket;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 
+import javax.net.ssl.SSLEngine;
+
 public interface TrustedSocketFactory {
     Socket createSocket(Socket socket, String host, int port, String clientCertificateAlias)
             throws NoSuchAlgorithmException, KeyManagementException, MessagingException, IOException;
+
+    /**
+     * Creates an {@link SSLEngine} in client mode that is configured like the sockets returned by
+     * {@link #createSocket(Socket, String, int, String)}. Used for connections that need to stay selectable.
+     */
+    SSLEngine createSslEngine(String host, int port, String clientCertificateAlias)
+            throws NoSuchAlgorithmException, KeyManagementException, MessagingException;
 }
@@ -1,6 +1,10 @@
 package com.fsck.k9.mail.store;
 
 
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -12,6 +16,7 @@ import com.fsck.k9.mail.QMailHttpClient.QMailHttpClientFactory;
 import com.fsck.k9.mail.ServerSettings;
 import com.fsck.k9.mail.ServerSettings.Type;
 import com.fsck.k9.mail.Store;
+import com.fsck.k9.mail.filter.Hex;
 import com.fsck.k9.mail.oauth.OAuth2TokenProvider;
 import com.fsck.k9.mail.ssl.DefaultTrustedSocketFactory;
 import com.fsck.k9.mail.ssl.TrustedSocketFactory;
@@ -59,7 +64,8 @@ public abstract class RemoteStore extends Store {
                         (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE),
                         oAuth2TokenProvider);
             } else if (uri.startsWith("pop3")) {
-                store = new Pop3Store(storeConfig, new DefaultTrustedSocketFactory(context));
+                store = new Pop3Store(storeConfig, new DefaultTrustedSocketFactory(context),
+                        getPop3UidIndexFile(context, uri));
             } else if (uri.startsWith("webdav")) {
                 store = new WebDavStore(storeConfig, new QMailHttpClientFactory());
             } else if (uri.startsWith("ews")) {
@@ -93,6 +99,18 @@ public abstract class RemoteStore extends Store {
         sStores.remove(uri);
     }
 
+    /**
+     * The file name is derived from the store URI so that the index is dropped whenever the server settings change.
+     */
+    private static File getPop3UidIndexFile(Context context, String uri) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(uri.getBytes("UTF-8"));
+            return new File(context.getCacheDir(), "pop3-uidl-" + Hex.encodeHex(digest));
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            return null;
+        }
+    }
+
     /**
      * Decodes the contents of store-specific URIs and puts them into a {@link com.fsck.k9.mail.ServerSettings}
      * object.
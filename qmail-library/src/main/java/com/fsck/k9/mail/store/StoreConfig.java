@@ -32,4 +32,19 @@ public interface StoreConfig {
     int getDisplayCount();
 
     int getIdleRefreshMinutes();
+
+    /**
+     * @return The maximum number of connections to the server used at the same time, not counting push connections.
+     */
+    int getMaxConnections();
+
+    /**
+     * @return How long a connection can be idle before it is checked for being still alive when it's reused.
+     */
+    int getConnectionValidationIdleSeconds();
+
+    /**
+     * @return How long an unused connection is kept open.
+     */
+    int getConnectionMaxIdleSeconds();
 }
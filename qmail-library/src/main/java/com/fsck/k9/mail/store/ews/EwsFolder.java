@@ -4,8 +4,10 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -14,19 +16,28 @@ import android.support.annotation.Nullable;
 
 import com.fsck.k9.mail.FetchProfile;
 import com.fsck.k9.mail.Flag;
+import com.fsck.k9.mail.FolderChanges;
 import com.fsck.k9.mail.Message;
 import com.fsck.k9.mail.MessageRetrievalListener;
 import com.fsck.k9.mail.MessagingException;
 
 import microsoft.exchange.webservices.data.core.ExchangeService;
 import microsoft.exchange.webservices.data.core.PropertySet;
+import microsoft.exchange.webservices.data.core.enumeration.misc.error.ServiceError;
 import microsoft.exchange.webservices.data.core.enumeration.property.BasePropertySet;
 import microsoft.exchange.webservices.data.core.enumeration.search.FolderTraversal;
 import microsoft.exchange.webservices.data.core.enumeration.search.SortDirection;
+import microsoft.exchange.webservices.data.core.enumeration.service.ServiceResult;
+import microsoft.exchange.webservices.data.core.enumeration.service.SyncFolderItemsScope;
+import microsoft.exchange.webservices.data.core.enumeration.sync.ChangeType;
 import microsoft.exchange.webservices.data.core.exception.service.local.ServiceLocalException;
+import microsoft.exchange.webservices.data.core.exception.service.remote.ServiceResponseException;
+import microsoft.exchange.webservices.data.core.response.GetItemResponse;
+import microsoft.exchange.webservices.data.core.response.ServiceResponseCollection;
 import microsoft.exchange.webservices.data.core.service.folder.Folder;
 import microsoft.exchange.webservices.data.core.service.item.EmailMessage;
 import microsoft.exchange.webservices.data.core.service.item.Item;
+import microsoft.exchange.webservices.data.core.service.schema.EmailMessageSchema;
 import microsoft.exchange.webservices.data.core.service.schema.ItemSchema;
 import microsoft.exchange.webservices.data.property.complex.FolderId;
 import microsoft.exchange.webservices.data.property.complex.ItemId;
@@ -34,10 +45,21 @@ import microsoft.exchange.webservices.data.property.definition.PropertyDefinitio
 import microsoft.exchange.webservices.data.search.FindItemsResults;
 import microsoft.exchange.webservices.data.search.FolderView;
 import microsoft.exchange.webservices.data.search.ItemView;
+import microsoft.exchange.webservices.data.sync.ChangeCollection;
+import microsoft.exchange.webservices.data.sync.ItemChange;
 import timber.log.Timber;
 
 
 class EwsFolder extends com.fsck.k9.mail.Folder<Message> {
+    /**
+     * Number of items requested with a single GetItem call.
+     */
+    static final int FETCH_BATCH_SIZE = 50;
+
+    /**
+     * Maximum number of changes returned by a single SyncFolderItems call.
+     */
+    private static final int SYNC_BATCH_SIZE = 512;
 
     private FolderId parentId;
     private FolderId folderId;
@@ -45,6 +67,9 @@ class EwsFolder extends com.fsck.k9.mail.Folder<Message> {
     private String displayName;
     private int messageCount;
     private Folder folder;
+    private String syncState;
+    private String changesBaseSyncState;
+    private Map<String, Boolean> changedReadStates = Collections.emptyMap();
 
     EwsFolder(EwsStore store, Folder folder)
             throws ServiceLocalException {
@@ -171,6 +196,14 @@ class EwsFolder extends com.fsck.k9.mail.Folder<Message> {
         
         ArrayList<Message> messages = new ArrayList<>();
         try {
+            // Without a sync state obtained from getChangesSince(), get one before listing the messages. Changes
+            // made in between are reported again by the next incremental sync instead of being lost.
+            if (syncState == null) {
+                syncState = skipToCurrentSyncState();
+                changesBaseSyncState = null;
+                changedReadStates = Collections.emptyMap();
+            }
+
             ItemView view = new ItemView(end - start, start);
             view.getOrderBy().add(ItemSchema.DateTimeReceived, SortDirection.Ascending);
             view.setPropertySet(new PropertySet(BasePropertySet.IdOnly));
@@ -225,39 +258,185 @@ class EwsFolder extends com.fsck.k9.mail.Folder<Message> {
     }
 
     @Override
-    public void fetch(List<Message> messages, FetchProfile fp, MessageRetrievalListener<Message> listener)
-            throws MessagingException {
+    public String getSyncState() {
+        return syncState;
+    }
+
+    /**
+     * Lists the changes since {@code syncState} using SyncFolderItems. Only the IDs, read states and receive dates of
+     * changed items are transferred.
+     */
+    @Override
+    public FolderChanges<Message> getChangesSince(String syncState) throws MessagingException {
+        this.syncState = null;
+        if (syncState == null) {
+            return null;
+        }
+
+        Map<String, Message> changedMessages = new LinkedHashMap<>();
+        Map<String, Boolean> readStates = new HashMap<>();
+        List<String> removedUids = new ArrayList<>();
+        PropertySet propertySet = new PropertySet(BasePropertySet.IdOnly, EmailMessageSchema.IsRead,
+                ItemSchema.DateTimeReceived);
         try {
-            if (messages.size() == 0) {
-                return;
-            }
-            ArrayList<PropertyDefinitionBase> requiredProperties = new ArrayList<>();
-            if (fp.contains(FetchProfile.Item.BODY) || fp.contains(FetchProfile.Item.BODY_SANE)
-                    || fp.contains(FetchProfile.Item.ENVELOPE)) {
-                requiredProperties.add(ItemSchema.MimeContent);
+            String currentSyncState = syncState;
+            ChangeCollection<ItemChange> changes;
+            do {
+                changes = store.getService().syncFolderItems(folderId, propertySet, null, SYNC_BATCH_SIZE,
+                        SyncFolderItemsScope.NormalItems, currentSyncState);
+
+                for (ItemChange change : changes) {
+                    String uid = change.getItemId().getUniqueId();
+                    if (change.getChangeType() == ChangeType.Delete) {
+                        changedMessages.remove(uid);
+                        readStates.remove(uid);
+                        removedUids.add(uid);
+                        continue;
+                    }
+
+                    EwsMessage message = new EwsMessage(uid, this);
+                    Boolean isRead = null;
+                    if (change.getChangeType() == ChangeType.ReadFlagChange) {
+                        isRead = change.getIsRead();
+                    } else if (change.getItem() instanceof EmailMessage) {
+                        EmailMessage item = (EmailMessage) change.getItem();
+                        isRead = item.getIsRead();
+                        message.setInternalDate(item.getDateTimeReceived());
+                    }
+
+                    if (isRead != null) {
+                        message.setFlag(Flag.SEEN, isRead);
+                        readStates.put(uid, isRead);
+                    }
+                    changedMessages.put(uid, message);
+                }
+
+                currentSyncState = changes.getSyncState();
+            } while (changes.getMoreChangesAvailable());
+
+            this.syncState = currentSyncState;
+        } catch (ServiceResponseException e) {
+            if (e.getErrorCode() == ServiceError.ErrorInvalidSyncStateData) {
+                Timber.i("Sync state of folder %s expired. Falling back to full sync.", getId());
+                return null;
             }
+            throw new MessagingException("Failed to list changes", e);
+        } catch (Exception e) {
+            throw new MessagingException("Failed to list changes", e);
+        }
+
+        changesBaseSyncState = syncState;
+        changedReadStates = readStates;
 
-            Map<String, EwsMessage> messageMap = new HashMap<>();
-            Map<String, Item> emails = new HashMap<>();
-            for (Message message : messages) {
-                messageMap.put(message.getUid(), (EwsMessage) message);
-                emails.put(message.getUid(), EmailMessage.bind(store.getService(), new ItemId(message.getUid())));
+        return new FolderChanges<>(new ArrayList<>(changedMessages.values()), removedUids);
+    }
+
+    /**
+     * The read states of messages changed since {@code syncState} are already known if it was just passed to
+     * {@link #getChangesSince(String)}, so no additional request is necessary.
+     */
+    @Override
+    public boolean fetchChangedFlags(List<Message> messages, String syncState,
+            MessageRetrievalListener<Message> listener) throws MessagingException {
+        if (syncState == null || !syncState.equals(changesBaseSyncState)) {
+            return false;
+        }
+
+        int messageNumber = 0;
+        for (Message message : messages) {
+            Boolean isRead = changedReadStates.get(message.getUid());
+            if (isRead != null) {
+                message.setFlag(Flag.SEEN, isRead);
+                if (listener != null) {
+                    listener.messageFinished(message, messageNumber++, changedReadStates.size());
+                }
             }
-            PropertySet propertySet = new PropertySet(requiredProperties.iterator());
-            store.getService().loadPropertiesForItems(emails.values(), propertySet);
+        }
+        return true;
+    }
 
+    /**
+     * Runs SyncFolderItems from scratch, only to obtain the sync state that represents the folder's current content.
+     */
+    private String skipToCurrentSyncState() throws Exception {
+        PropertySet propertySet = new PropertySet(BasePropertySet.IdOnly);
+        String currentSyncState = null;
+        ChangeCollection<ItemChange> changes;
+        do {
+            changes = store.getService().syncFolderItems(folderId, propertySet, null, SYNC_BATCH_SIZE,
+                    SyncFolderItemsScope.NormalItems, currentSyncState);
+            currentSyncState = changes.getSyncState();
+        } while (changes.getMoreChangesAvailable());
+
+        return currentSyncState;
+    }
+
+    /**
+     * Fetches the requested data using one GetItem call per {@link #FETCH_BATCH_SIZE} messages.
+     */
+    @Override
+    public void fetch(List<Message> messages, FetchProfile fp, MessageRetrievalListener<Message> listener)
+            throws MessagingException {
+        if (messages.isEmpty()) {
+            return;
+        }
+
+        boolean fetchContent = fp.contains(FetchProfile.Item.BODY) || fp.contains(FetchProfile.Item.BODY_SANE) ||
+                fp.contains(FetchProfile.Item.ENVELOPE);
+        boolean fetchFlags = fp.contains(FetchProfile.Item.FLAGS);
+        if (!fetchContent && !fetchFlags) {
+            return;
+        }
+
+        List<PropertyDefinitionBase> requiredProperties = new ArrayList<>();
+        if (fetchContent) {
+            requiredProperties.add(ItemSchema.MimeContent);
+        }
+        if (fetchFlags) {
+            requiredProperties.add(EmailMessageSchema.IsRead);
+        }
+        PropertySet propertySet = new PropertySet(BasePropertySet.IdOnly, requiredProperties.iterator());
+
+        try {
             int messageNumber = 0;
-            for (Item emailMessage : emails.values()) {
-                String uid = emailMessage.getId().getUniqueId();
-                if (listener != null) {
-                    listener.messageStarted(uid, messageNumber++, messages.size());
+            for (int start = 0; start < messages.size(); start += FETCH_BATCH_SIZE) {
+                List<Message> batch = messages.subList(start, Math.min(start + FETCH_BATCH_SIZE, messages.size()));
+                List<ItemId> itemIds = new ArrayList<>(batch.size());
+                for (Message message : batch) {
+                    itemIds.add(new ItemId(message.getUid()));
                 }
-                InputStream bodyStream = new ByteArrayInputStream(emailMessage.getMimeContent().getContent());
-                EwsMessage message = messageMap.get(uid);
-                message.parse(bodyStream);
 
-                if (listener != null) {
-                    listener.messageFinished(message, messageNumber, messageMap.size());
+                // Responses are returned in the same order as the requested item IDs
+                ServiceResponseCollection<GetItemResponse> responses =
+                        store.getService().bindToItems(itemIds, propertySet);
+                for (int i = 0; i < responses.getCount(); i++) {
+                    GetItemResponse response = responses.getResponseAtIndex(i);
+                    EwsMessage message = (EwsMessage) batch.get(i);
+                    if (response.getResult() != ServiceResult.Success) {
+                        Timber.w("Unable to fetch message %s: %s", message.getUid(), response.getErrorMessage());
+                        continue;
+                    }
+
+                    if (listener != null) {
+                        listener.messageStarted(message.getUid(), messageNumber, messages.size());
+                    }
+
+                    Item item = response.getItem();
+                    if (fetchContent) {
+                        InputStream bodyStream = new ByteArrayInputStream(item.getMimeContent().getContent());
+                        message.parse(bodyStream);
+                    }
+                    if (fetchFlags && item instanceof EmailMessage) {
+                        Boolean isRead = ((EmailMessage) item).getIsRead();
+                        if (isRead != null) {
+                            message.setFlag(Flag.SEEN, isRead);
+                        }
+                    }
+
+                    messageNumber++;
+                    if (listener != null) {
+                        listener.messageFinished(message, messageNumber, messages.size());
+                    }
                 }
             }
         } catch (Exception e) {
@@ -0,0 +1,75 @@
+package com.fsck.k9.mail.store.imap;
+
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Writes to a {@link SocketChannel} in blocking as well as in non-blocking mode.
+ * <p>
+ * While a connection is parked by {@link ImapPushEngine} its channel is in non-blocking mode. {@code DONE} can still
+ * be sent from another thread at that time, see {@link IdleStopper}. The output stream of {@link SocketChannel#socket()}
+ * can't be used for that because it throws when the channel isn't blocking.
+ * </p>
+ */
+class ChannelOutputStream extends OutputStream {
+    private static final long WRITE_RETRY_DELAY_MILLIS = 10;
+
+
+    private final SocketChannel channel;
+    private final int writeTimeout;
+
+
+    ChannelOutputStream(SocketChannel channel, int writeTimeout) {
+        this.channel = channel;
+        this.writeTimeout = writeTimeout;
+    }
+
+    @Override
+    public void write(int oneByte) throws IOException {
+        write(new byte[] { (byte) oneByte }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int count) throws IOException {
+        writeFully(channel, ByteBuffer.wrap(buffer, offset, count), writeTimeout);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Writes all remaining bytes of {@code buffer}.
+     * <p>
+     * In non-blocking mode the send buffer of the socket might be full. That's not expected to happen for the few
+     * bytes written while a connection is parked, so this simply retries until {@code timeoutMillis} have passed.
+     * </p>
+     */
+    static void writeFully(SocketChannel channel, ByteBuffer buffer, int timeoutMillis) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (buffer.hasRemaining()) {
+            if (channel.write(buffer) > 0) {
+                continue;
+            }
+
+            if (System.nanoTime() - deadline > 0) {
+                throw new SocketTimeoutException("Timeout while writing to " + channel);
+            }
+
+            try {
+                Thread.sleep(WRITE_RETRY_DELAY_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while writing to " + channel);
+            }
+        }
+    }
+}
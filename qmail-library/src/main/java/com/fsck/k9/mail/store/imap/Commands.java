@@ -14,4 +14,6 @@ class Commands {
     public static final String LOGIN = "LOGIN";
     public static final String LIST = "LIST";
     public static final String NOOP = "NOOP";
+    public static final String ENABLE_QRESYNC = "ENABLE QRESYNC";
+    public static final String NOTIFY_SET = "NOTIFY SET";
 }
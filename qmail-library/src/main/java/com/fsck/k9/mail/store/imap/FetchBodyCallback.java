@@ -9,6 +9,10 @@ import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.filter.FixedLengthInputStream;
 
 
+/**
+ * Streams {@code BODY[...]} literals of {@code FETCH} responses directly into the MIME parser of the respective
+ * message, instead of having the parser read them into a {@code String} first.
+ */
 class FetchBodyCallback implements ImapResponseCallback {
     private Map<String, Message> mMessageMap;
 
@@ -22,9 +26,17 @@ class FetchBodyCallback implements ImapResponseCallback {
         if (response.getTag() == null &&
                 ImapResponseParser.equalsIgnoreCase(response.get(1), "FETCH")) {
             ImapList fetchList = (ImapList)response.getKeyedValue("FETCH");
+            if (!isBodySectionLiteral(fetchList)) {
+                return null;
+            }
+
             String uid = fetchList.getKeyedString("UID");
 
             ImapMessage message = (ImapMessage) mMessageMap.get(uid);
+            if (message == null) {
+                return null;
+            }
+
             message.parse(literal);
 
             // Return placeholder object
@@ -32,4 +44,19 @@ class FetchBodyCallback implements ImapResponseCallback {
         }
         return null;
     }
+
+    /**
+     * Literals can also be part of e.g. {@code BODYSTRUCTURE}. Those end up in a nested list, so the fetch list
+     * itself only ends with {@code BODY [section]} or {@code BODY [section] <origin>} if the literal that was just
+     * found is the section's content.
+     */
+    private static boolean isBodySectionLiteral(ImapList fetchList) {
+        int size = fetchList.size();
+        if (size >= 2 && fetchList.isList(size - 1)) {
+            return ImapResponseParser.equalsIgnoreCase(fetchList.get(size - 2), "BODY");
+        }
+
+        return size >= 3 && fetchList.isString(size - 1) && fetchList.getString(size - 1).startsWith("<") &&
+                fetchList.isList(size - 2) && ImapResponseParser.equalsIgnoreCase(fetchList.get(size - 3), "BODY");
+    }
 }
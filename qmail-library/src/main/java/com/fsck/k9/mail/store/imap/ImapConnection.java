@@ -12,11 +12,14 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
 import java.security.GeneralSecurityException;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.security.Security;
 import java.security.cert.CertificateException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
@@ -44,6 +47,7 @@ import com.fsck.k9.mail.oauth.XOAuth2ChallengeParser;
 import com.fsck.k9.mail.ssl.TrustedSocketFactory;
 import com.jcraft.jzlib.JZlib;
 import com.jcraft.jzlib.ZOutputStream;
+import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLException;
 import org.apache.commons.io.IOUtils;
 import timber.log.Timber;
@@ -67,8 +71,11 @@ class ImapConnection {
     private final TrustedSocketFactory socketFactory;
     private final int socketConnectTimeout;
     private final int socketReadTimeout;
+    private final boolean selectable;
 
     private Socket socket;
+    private SocketChannel channel;
+    private SslEngineChannel sslEngineChannel;
     private PeekableInputStream inputStream;
     private OutputStream outputStream;
     private ImapResponseParser responseParser;
@@ -78,6 +85,7 @@ class ImapConnection {
     private Exception stacktraceForClose;
     private boolean open = false;
     private boolean retryXoauth2WithNewToken = true;
+    private boolean qresyncEnabled = false;
 
 
     public ImapConnection(ImapSettings settings, TrustedSocketFactory socketFactory,
@@ -88,17 +96,31 @@ class ImapConnection {
         this.oauthTokenProvider = oauthTokenProvider;
         this.socketConnectTimeout = SOCKET_CONNECT_TIMEOUT;
         this.socketReadTimeout = SOCKET_READ_TIMEOUT;
+        this.selectable = false;
     }
 
     ImapConnection(ImapSettings settings, TrustedSocketFactory socketFactory,
             ConnectivityManager connectivityManager, OAuth2TokenProvider oauthTokenProvider,
             int socketConnectTimeout, int socketReadTimeout) {
+        this(settings, socketFactory, connectivityManager, oauthTokenProvider, socketConnectTimeout,
+                socketReadTimeout, false);
+    }
+
+    /**
+     * @param selectable
+     *         {@code true} to connect using a {@link SocketChannel} that can be parked by {@link ImapPushEngine}. TLS
+     *         is done with an {@link SSLEngine} in that case.
+     */
+    ImapConnection(ImapSettings settings, TrustedSocketFactory socketFactory,
+            ConnectivityManager connectivityManager, OAuth2TokenProvider oauthTokenProvider,
+            int socketConnectTimeout, int socketReadTimeout, boolean selectable) {
         this.settings = settings;
         this.socketFactory = socketFactory;
         this.connectivityManager = connectivityManager;
         this.oauthTokenProvider = oauthTokenProvider;
         this.socketConnectTimeout = socketConnectTimeout;
         this.socketReadTimeout = socketReadTimeout;
+        this.selectable = selectable;
     }
 
     public void open() throws IOException, MessagingException {
@@ -112,12 +134,14 @@ class ImapConnection {
         open = true;
         boolean authSuccess = false;
         nextCommandTag = 1;
+        qresyncEnabled = false;
 
         adjustDNSCacheTTL();
 
         try {
             socket = connect();
             configureSocket();
+            startSslEngineIfNecessary();
             setUpStreamsAndParserFromSocket();
 
             readInitialResponse();
@@ -135,6 +159,8 @@ class ImapConnection {
             retrievePathPrefixIfNecessary();
             retrievePathDelimiterIfNecessary();
 
+            enableQresyncIfAvailable();
+
         } catch (SSLException e) {
             handleSslException(e);
         } catch (ConnectException e) {
@@ -218,6 +244,10 @@ class ImapConnection {
         SocketAddress socketAddress = new InetSocketAddress(address, port);
 
         TrafficStats.setThreadStatsTag(settings.hashCode());
+        if (selectable) {
+            return connectChannel(socketAddress);
+        }
+
         Socket socket;
         if (settings.getConnectionSecurity() == ConnectionSecurity.SSL_TLS_REQUIRED) {
             socket = socketFactory.createSocket(null, host, port, clientCertificateAlias);
@@ -230,12 +260,61 @@ class ImapConnection {
         return socket;
     }
 
+    private Socket connectChannel(SocketAddress socketAddress) throws IOException {
+        SocketChannel socketChannel = SocketChannel.open();
+        Socket socket = socketChannel.socket();
+        try {
+            TrafficStats.tagSocket(socket);
+            socket.connect(socketAddress, socketConnectTimeout);
+        } catch (IOException e) {
+            IOUtils.closeQuietly(socketChannel);
+            throw e;
+        }
+
+        channel = socketChannel;
+        return socket;
+    }
+
     private void configureSocket() throws SocketException {
         socket.setSoTimeout(socketReadTimeout);
     }
 
+    private void startSslEngineIfNecessary() throws IOException, MessagingException, GeneralSecurityException {
+        if (channel != null && settings.getConnectionSecurity() == ConnectionSecurity.SSL_TLS_REQUIRED) {
+            startSslEngine();
+        }
+    }
+
+    private void startSslEngine() throws IOException, MessagingException, GeneralSecurityException {
+        String host = settings.getHost();
+        int port = settings.getPort();
+        String clientCertificateAlias = settings.getClientCertificateAlias();
+
+        SSLEngine sslEngine = socketFactory.createSslEngine(host, port, clientCertificateAlias);
+        sslEngineChannel = new SslEngineChannel(channel, sslEngine, socketReadTimeout);
+        sslEngineChannel.startHandshake();
+    }
+
     private void setUpStreamsAndParserFromSocket() throws IOException {
-        setUpStreamsAndParser(socket.getInputStream(), socket.getOutputStream());
+        setUpStreamsAndParser(getSocketInputStream(), getSocketOutputStream());
+    }
+
+    private InputStream getSocketInputStream() throws IOException {
+        if (sslEngineChannel != null) {
+            return sslEngineChannel.getInputStream();
+        }
+
+        return socket.getInputStream();
+    }
+
+    private OutputStream getSocketOutputStream() throws IOException {
+        if (sslEngineChannel != null) {
+            return sslEngineChannel.getOutputStream();
+        } else if (channel != null) {
+            return new ChannelOutputStream(channel, socketReadTimeout);
+        }
+
+        return socket.getOutputStream();
     }
 
     private void setUpStreamsAndParser(InputStream input, OutputStream output) {
@@ -320,12 +399,16 @@ class ImapConnection {
     private void startTLS() throws IOException, MessagingException, GeneralSecurityException {
         executeSimpleCommand(Commands.STARTTLS);
 
-        String host = settings.getHost();
-        int port = settings.getPort();
-        String clientCertificateAlias = settings.getClientCertificateAlias();
+        if (channel != null) {
+            startSslEngine();
+        } else {
+            String host = settings.getHost();
+            int port = settings.getPort();
+            String clientCertificateAlias = settings.getClientCertificateAlias();
 
-        socket = socketFactory.createSocket(socket, host, port, clientCertificateAlias);
-        configureSocket();
+            socket = socketFactory.createSocket(socket, host, port, clientCertificateAlias);
+            configureSocket();
+        }
         setUpStreamsAndParserFromSocket();
 
         // Per RFC 2595 (3.1):  Once TLS has been started, reissue CAPABILITY command
@@ -588,8 +671,8 @@ class ImapConnection {
         }
 
         try {
-            InflaterInputStream input = new InflaterInputStream(socket.getInputStream(), new Inflater(true));
-            ZOutputStream output = new ZOutputStream(socket.getOutputStream(), JZlib.Z_BEST_SPEED, true);
+            InflaterInputStream input = new CompressedInputStream(getSocketInputStream());
+            ZOutputStream output = new ZOutputStream(getSocketOutputStream(), JZlib.Z_BEST_SPEED, true);
             output.setFlushMode(JZlib.Z_PARTIAL_FLUSH);
 
             setUpStreamsAndParser(input, output);
@@ -669,6 +752,34 @@ class ImapConnection {
         }
     }
 
+    private void enableQresyncIfAvailable() throws IOException, MessagingException {
+        if (!hasCapability(Capabilities.ENABLE) || !hasCapability(Capabilities.QRESYNC)) {
+            return;
+        }
+
+        List<ImapResponse> responses;
+        try {
+            responses = executeSimpleCommand(Commands.ENABLE_QRESYNC);
+        } catch (NegativeImapResponseException e) {
+            Timber.d(e, "Unable to enable QRESYNC for %s", getLogId());
+            return;
+        }
+
+        for (ImapResponse response : responses) {
+            if (!response.isTagged() && equalsIgnoreCase(response.get(0), Responses.ENABLED)) {
+                for (int i = 1, count = response.size(); i < count; i++) {
+                    if (equalsIgnoreCase(response.get(i), Capabilities.QRESYNC)) {
+                        qresyncEnabled = true;
+                    }
+                }
+            }
+        }
+
+        if (K9MailLib.isDebug()) {
+            Timber.d("QRESYNC enabled: %b for %s", qresyncEnabled, getLogId());
+        }
+    }
+
     private boolean isListResponse(ImapResponse response) {
         boolean responseTooShort = response.size() < 4;
         if (responseTooShort) {
@@ -693,6 +804,30 @@ class ImapConnection {
         return capabilities.contains(Capabilities.IDLE);
     }
 
+    /**
+     * @return {@code true} if mod-sequences (RFC 7162) can be used on this connection. Servers announcing QRESYNC
+     *         implicitly support CONDSTORE.
+     */
+    protected boolean isCondstoreCapable() {
+        return hasCapability(Capabilities.CONDSTORE) || hasCapability(Capabilities.QRESYNC);
+    }
+
+    /**
+     * @return {@code true} if the server supports watching several mailboxes at once using {@code NOTIFY}
+     *         (RFC 5465).
+     */
+    protected boolean isNotifyCapable() {
+        return hasCapability(Capabilities.NOTIFY);
+    }
+
+    /**
+     * @return {@code true} if {@code ENABLE QRESYNC} succeeded. In that case the server reports expunged messages
+     *         using untagged {@code VANISHED} responses instead of {@code EXPUNGE}.
+     */
+    protected boolean isQresyncEnabled() {
+        return qresyncEnabled;
+    }
+
     public void close() {
         open = false;
         stacktraceForClose = new Exception();
@@ -701,10 +836,13 @@ class ImapConnection {
         IOUtils.closeQuietly(inputStream);
         IOUtils.closeQuietly(outputStream);
         IOUtils.closeQuietly(socket);
+        IOUtils.closeQuietly(channel);
 
         inputStream = null;
         outputStream = null;
         socket = null;
+        channel = null;
+        sslEngineChannel = null;
     }
 
     private void untagQuietly(Socket socket) {
@@ -720,6 +858,49 @@ class ImapConnection {
         return outputStream;
     }
 
+    /**
+     * @return The channel to park this connection on, or {@code null} if the connection isn't selectable or was closed.
+     */
+    SocketChannel getSelectableChannel() {
+        return channel;
+    }
+
+    /**
+     * @return {@code true} if data was already read from the network but not consumed yet. A selector doesn't know
+     *         about that data, so the connection must not be parked.
+     */
+    boolean hasBufferedInput() throws IOException {
+        PeekableInputStream input = inputStream;
+        if (input == null) {
+            throw new IOException("Connection closed");
+        }
+
+        return input.available() > 0;
+    }
+
+    /**
+     * Waits up to {@code timeoutMillis} for the server to send something, without consuming it.
+     *
+     * @return {@code false} if nothing was received in time. The connection can still be used in that case.
+     */
+    boolean waitForInput(int timeoutMillis) throws IOException {
+        PeekableInputStream input = inputStream;
+        if (input == null) {
+            throw new IOException("Connection closed");
+        }
+
+        try {
+            setReadTimeout(timeoutMillis);
+            input.peek();
+            return true;
+        } catch (SocketTimeoutException e) {
+            return false;
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
     protected String getLogId() {
         return "conn" + hashCode();
     }
@@ -746,6 +927,28 @@ class ImapConnection {
         }
     }
 
+    /**
+     * Sends all commands back-to-back and then waits for their completion. This saves a round-trip per command on
+     * high-latency connections.
+     *
+     * @return The responses to each command, in the order of {@code commands}.
+     *
+     * @throws NegativeImapResponseException
+     *         if any of the commands didn't complete successfully. The responses to all commands have been consumed at
+     *         that point.
+     */
+    public List<List<ImapResponse>> executePipelinedCommands(List<String> commands) throws IOException,
+            MessagingException {
+        List<String> tags = sendPipelinedCommands(commands);
+
+        try {
+            return responseParser.readPipelinedStatusResponses(tags, commands, getLogId());
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
     public List<ImapResponse> readStatusResponse(String tag, String commandToLog, UntaggedHandler untaggedHandler)
             throws IOException, NegativeImapResponseException {
         return responseParser.readStatusResponse(tag, commandToLog, getLogId(), untaggedHandler);
@@ -800,6 +1003,38 @@ class ImapConnection {
         }
     }
 
+    /**
+     * Sends all commands without waiting for responses in between. The caller is responsible for reading a tagged
+     * response for every command.
+     *
+     * @return The tags of the commands, in the order they were sent.
+     */
+    public List<String> sendPipelinedCommands(List<String> commands) throws MessagingException, IOException {
+        try {
+            open();
+
+            List<String> tags = new ArrayList<>(commands.size());
+            StringBuilder commandsToSend = new StringBuilder();
+            for (String command : commands) {
+                String tag = Integer.toString(nextCommandTag++);
+                tags.add(tag);
+                commandsToSend.append(tag).append(' ').append(command).append("\r\n");
+
+                if (K9MailLib.isDebug() && DEBUG_PROTOCOL_IMAP) {
+                    Timber.v("%s>>> %s %s", getLogId(), tag, command);
+                }
+            }
+
+            outputStream.write(commandsToSend.toString().getBytes());
+            outputStream.flush();
+
+            return tags;
+        } catch (IOException | MessagingException e) {
+            close();
+            throw e;
+        }
+    }
+
     public void sendContinuation(String continuation) throws IOException {
         outputStream.write(continuation.getBytes());
         outputStream.write('\r');
@@ -855,4 +1090,20 @@ class ImapConnection {
 
         return response;
     }
+
+
+    /**
+     * {@link InflaterInputStream#available()} returns 1 until the end of the stream was reached. This only reports
+     * available data if there's compressed input that wasn't inflated yet.
+     */
+    private static class CompressedInputStream extends InflaterInputStream {
+        CompressedInputStream(InputStream input) {
+            super(input, new Inflater(true));
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (inf.needsInput() && in.available() == 0) ? 0 : 1;
+        }
+    }
 }
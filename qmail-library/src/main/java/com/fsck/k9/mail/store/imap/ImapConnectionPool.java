@@ -0,0 +1,313 @@
+package com.fsck.k9.mail.store.imap;
+
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.SystemClock;
+
+import com.fsck.k9.mail.K9MailLib;
+import com.fsck.k9.mail.MessagingException;
+import timber.log.Timber;
+
+
+/**
+ * Hands out the connections of an {@link ImapStore} and keeps idle ones around for reuse.
+ * <p>
+ * At most {@code maxSize} connections are open at a time, counting both borrowed and idle ones. When all of them are
+ * borrowed, {@link #borrow()} waits up to {@link #getBorrowTimeoutMillis()} for one to be released and then gives up.
+ * Connections that have been idle for longer than {@link #getMaxIdleTimeMillis()} are evicted. A connection that has
+ * been idle for longer than {@link #getValidationIdleThresholdMillis()} is checked with {@code NOOP} before it is
+ * handed out, so a connection that went stale, e.g. because the network changed, is replaced by a new one instead of
+ * failing the caller's first command.
+ * </p>
+ * <p>
+ * Eviction happens on the next access to the pool, i.e. in {@link #borrow()} and {@link #release(ImapConnection)}.
+ * There is no background sweep: the pool lives as long as its store and has no lifecycle to stop a timer. A
+ * connection left idle until the next access only holds a socket, and the server closes it on its own autologout
+ * timer (at least 30 minutes, see RFC 3501).
+ * </p>
+ */
+class ImapConnectionPool {
+    static final long DEFAULT_VALIDATION_IDLE_THRESHOLD_MILLIS = 30 * 1000L;
+    static final long DEFAULT_MAX_IDLE_TIME_MILLIS = 5 * 60 * 1000L;
+    static final long DEFAULT_BORROW_TIMEOUT_MILLIS = 60 * 1000L;
+
+
+    interface ConnectionFactory {
+        ImapConnection createConnection();
+    }
+
+
+    private final ConnectionFactory connectionFactory;
+    private final int maxSize;
+    private final long validationIdleThresholdMillis;
+    private final long maxIdleTimeMillis;
+    private final long borrowTimeoutMillis;
+    private final Deque<IdleConnection> idleConnections = new ArrayDeque<>();
+    private final Set<ImapConnection> borrowedConnections =
+            Collections.newSetFromMap(new IdentityHashMap<ImapConnection, Boolean>());
+    private int openingConnections = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong validationFailures = new AtomicLong();
+    private final AtomicLong borrowTimeouts = new AtomicLong();
+    private final AtomicLong connects = new AtomicLong();
+    private final AtomicLong totalConnectMillis = new AtomicLong();
+
+
+    ImapConnectionPool(ConnectionFactory connectionFactory, int maxSize, long validationIdleThresholdMillis,
+            long maxIdleTimeMillis, long borrowTimeoutMillis) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be at least 1");
+        }
+
+        this.connectionFactory = connectionFactory;
+        this.maxSize = maxSize;
+        this.validationIdleThresholdMillis = validationIdleThresholdMillis;
+        this.maxIdleTimeMillis = maxIdleTimeMillis;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+    }
+
+    /**
+     * @return An open connection. The caller has to hand it back using {@link #release(ImapConnection)}, even if the
+     *         connection was closed in the meantime.
+     *
+     * @throws MessagingException
+     *         if no connection could be opened, or if all {@code maxSize} connections stayed borrowed for longer than
+     *         {@link #getBorrowTimeoutMillis()}.
+     */
+    ImapConnection borrow() throws MessagingException {
+        evictIdleConnections();
+
+        while (true) {
+            IdleConnection idleConnection = pollIdleConnectionOrReserveNew();
+            if (idleConnection == null) {
+                break;
+            }
+
+            ImapConnection connection = idleConnection.connection;
+            if (isUsable(connection, now() - idleConnection.idleSince)) {
+                hits.incrementAndGet();
+                return connection;
+            }
+
+            synchronized (idleConnections) {
+                borrowedConnections.remove(connection);
+                idleConnections.notifyAll();
+            }
+        }
+
+        misses.incrementAndGet();
+        return openNewConnection();
+    }
+
+    /**
+     * Hands a connection obtained from {@link #borrow()} back to the pool. Connections that are no longer connected
+     * only free up their slot.
+     */
+    void release(ImapConnection connection) {
+        if (connection == null) {
+            return;
+        }
+
+        synchronized (idleConnections) {
+            if (!borrowedConnections.remove(connection)) {
+                return;
+            }
+
+            if (connection.isConnected()) {
+                idleConnections.addFirst(new IdleConnection(connection, now()));
+            }
+
+            idleConnections.notifyAll();
+        }
+
+        evictIdleConnections();
+    }
+
+    /**
+     * Closes all connections that have been idle for longer than {@link #getMaxIdleTimeMillis()}.
+     */
+    void evictIdleConnections() {
+        long evictBefore = now() - maxIdleTimeMillis;
+
+        List<ImapConnection> expiredConnections = new ArrayList<>();
+        synchronized (idleConnections) {
+            Iterator<IdleConnection> iterator = idleConnections.descendingIterator();
+            while (iterator.hasNext()) {
+                IdleConnection idleConnection = iterator.next();
+                if (idleConnection.idleSince > evictBefore) {
+                    break;
+                }
+
+                iterator.remove();
+                expiredConnections.add(idleConnection.connection);
+            }
+
+            if (!expiredConnections.isEmpty()) {
+                idleConnections.notifyAll();
+            }
+        }
+
+        closeEvicted(expiredConnections);
+    }
+
+    int getMaxSize() {
+        return maxSize;
+    }
+
+    long getValidationIdleThresholdMillis() {
+        return validationIdleThresholdMillis;
+    }
+
+    long getMaxIdleTimeMillis() {
+        return maxIdleTimeMillis;
+    }
+
+    long getBorrowTimeoutMillis() {
+        return borrowTimeoutMillis;
+    }
+
+    ImapConnectionPoolStats getStats() {
+        int idleCount;
+        int borrowedCount;
+        synchronized (idleConnections) {
+            idleCount = idleConnections.size();
+            borrowedCount = borrowedConnections.size() + openingConnections;
+        }
+
+        return new ImapConnectionPoolStats(maxSize, borrowedCount, idleCount, hits.get(), misses.get(),
+                evictions.get(), validationFailures.get(), borrowTimeouts.get(), connects.get(),
+                totalConnectMillis.get());
+    }
+
+    long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Takes the most recently used idle connection and marks it as borrowed. If there is none, reserves a slot for a
+     * new connection, waiting for one to become available if necessary.
+     *
+     * @return The idle connection, or {@code null} if a slot for a new connection was reserved.
+     */
+    private IdleConnection pollIdleConnectionOrReserveNew() throws MessagingException {
+        synchronized (idleConnections) {
+            long deadline = now() + borrowTimeoutMillis;
+            while (true) {
+                IdleConnection idleConnection = idleConnections.pollFirst();
+                if (idleConnection != null) {
+                    borrowedConnections.add(idleConnection.connection);
+                    return idleConnection;
+                }
+
+                if (borrowedConnections.size() + openingConnections < maxSize) {
+                    openingConnections++;
+                    return null;
+                }
+
+                long waitMillis = deadline - now();
+                if (waitMillis <= 0) {
+                    borrowTimeouts.incrementAndGet();
+                    throw new MessagingException("Timed out waiting for one of " + maxSize + " IMAP connections");
+                }
+
+                try {
+                    idleConnections.wait(waitMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new MessagingException("Interrupted while waiting for an IMAP connection", e);
+                }
+            }
+        }
+    }
+
+    private boolean isUsable(ImapConnection connection, long idleTimeMillis) {
+        if (!connection.isConnected()) {
+            validationFailures.incrementAndGet();
+            return false;
+        }
+
+        if (idleTimeMillis < validationIdleThresholdMillis) {
+            return true;
+        }
+
+        try {
+            connection.executeSimpleCommand(Commands.NOOP);
+            return true;
+        } catch (IOException | MessagingException e) {
+            if (K9MailLib.isDebug()) {
+                Timber.d(e, "Discarding stale IMAP connection that was idle for %d ms", idleTimeMillis);
+            }
+
+            validationFailures.incrementAndGet();
+            connection.close();
+            return false;
+        }
+    }
+
+    private ImapConnection openNewConnection() throws MessagingException {
+        boolean opened = false;
+        try {
+            ImapConnection connection = connectionFactory.createConnection();
+
+            long startTime = now();
+            try {
+                connection.open();
+            } catch (IOException e) {
+                throw new MessagingException("Unable to connect", e);
+            }
+
+            long connectMillis = now() - startTime;
+            connects.incrementAndGet();
+            totalConnectMillis.addAndGet(connectMillis);
+
+            synchronized (idleConnections) {
+                borrowedConnections.add(connection);
+            }
+            opened = true;
+
+            if (K9MailLib.isDebug()) {
+                Timber.d("Opened new IMAP connection in %d ms; %s", connectMillis, getStats());
+            }
+
+            return connection;
+        } finally {
+            synchronized (idleConnections) {
+                openingConnections--;
+                if (!opened) {
+                    idleConnections.notifyAll();
+                }
+            }
+        }
+    }
+
+    private void closeEvicted(List<ImapConnection> connections) {
+        for (ImapConnection connection : connections) {
+            evictions.incrementAndGet();
+            connection.close();
+        }
+    }
+
+
+    private static class IdleConnection {
+        final ImapConnection connection;
+        final long idleSince;
+
+        IdleConnection(ImapConnection connection, long idleSince) {
+            this.connection = connection;
+            this.idleSince = idleSince;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.fsck.k9.mail.store.imap;
+
+
+import java.util.Locale;
+
+
+/**
+ * A snapshot of the connection pool metrics of an {@link ImapStore}.
+ *
+ * @see ImapStore#getConnectionPoolStats()
+ */
+public class ImapConnectionPoolStats {
+    private final int maxConnections;
+    private final int borrowedConnections;
+    private final int idleConnections;
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final long validationFailures;
+    private final long borrowTimeouts;
+    private final long connects;
+    private final long totalConnectMillis;
+
+
+    ImapConnectionPoolStats(int maxConnections, int borrowedConnections, int idleConnections, long hits, long misses,
+            long evictions, long validationFailures, long borrowTimeouts, long connects, long totalConnectMillis) {
+        this.maxConnections = maxConnections;
+        this.borrowedConnections = borrowedConnections;
+        this.idleConnections = idleConnections;
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.validationFailures = validationFailures;
+        this.borrowTimeouts = borrowTimeouts;
+        this.connects = connects;
+        this.totalConnectMillis = totalConnectMillis;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public int getBorrowedConnections() {
+        return borrowedConnections;
+    }
+
+    public int getIdleConnections() {
+        return idleConnections;
+    }
+
+    /**
+     * @return The number of times an idle connection was handed out.
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return The number of times a new connection had to be opened.
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return The number of idle connections closed because they had been idle for too long.
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return The number of idle connections that turned out to be stale when they were about to be handed out.
+     */
+    public long getValidationFailures() {
+        return validationFailures;
+    }
+
+    /**
+     * @return The number of times no connection became available in time.
+     */
+    public long getBorrowTimeouts() {
+        return borrowTimeouts;
+    }
+
+    public long getConnects() {
+        return connects;
+    }
+
+    public long getAverageConnectMillis() {
+        return connects == 0 ? 0 : totalConnectMillis / connects;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "pool: borrowed=%d/%d, idle=%d, hits=%d, misses=%d, evictions=%d, " +
+                "validationFailures=%d, borrowTimeouts=%d, avgConnectMillis=%d", borrowedConnections,
+                maxConnections, idleConnections, hits, misses, evictions, validationFailures, borrowTimeouts,
+                getAverageConnectMillis());
+    }
+}
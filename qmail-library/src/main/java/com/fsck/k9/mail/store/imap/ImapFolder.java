@@ -6,6 +6,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
@@ -36,6 +37,7 @@ import com.fsck.k9.mail.internet.MimeMultipart;
 import com.fsck.k9.mail.internet.MimeUtility;
 import timber.log.Timber;
 
+import static com.fsck.k9.mail.store.imap.ImapResponseParser.equalsIgnoreCase;
 import static com.fsck.k9.mail.store.imap.ImapUtility.getLastResponse;
 
 
@@ -62,10 +64,15 @@ class ImapFolder extends Folder<ImapMessage> {
     };
     private static final int MORE_MESSAGES_WINDOW_SIZE = 500;
     private static final int FETCH_WINDOW_SIZE = 100;
+    private static final int MODIFY_WINDOW_SIZE = 500;
+    private static final String ALL_MESSAGES_UID_SET = "1:*";
+    private static final int MAX_PIPELINED_COMMANDS = 8;
 
 
     protected volatile int messageCount = -1;
     protected volatile long uidNext = -1L;
+    protected volatile long uidValidity = -1L;
+    protected volatile long highestModSeq = -1L;
     protected volatile ImapConnection connection;
     protected ImapStore store = null;
     protected Map<Long, String> msgSeqUidMap = new ConcurrentHashMap<Long, String>();
@@ -100,7 +107,7 @@ class ImapFolder extends Folder<ImapMessage> {
             ImapConnection connection;
             synchronized (this) {
                 if (this.connection == null) {
-                    connection = store.getConnection();
+                    connection = acquireConnection();
                 } else {
                     connection = this.connection;
                 }
@@ -112,7 +119,7 @@ class ImapFolder extends Folder<ImapMessage> {
                 throw new MessagingException("Unable to get IMAP prefix", ioe);
             } finally {
                 if (this.connection == null) {
-                    store.releaseConnection(connection);
+                    releaseConnection(connection);
                 }
             }
 
@@ -148,19 +155,24 @@ class ImapFolder extends Folder<ImapMessage> {
             }
         }
 
-        store.releaseConnection(connection);
+        releaseConnection(connection);
 
         synchronized (this) {
-            connection = store.getConnection();
+            connection = acquireConnection();
         }
 
         try {
             msgSeqUidMap.clear();
+            uidValidity = -1L;
+            highestModSeq = -1L;
 
             String openCommand = mode == OPEN_MODE_RW ? "SELECT" : "EXAMINE";
             String encodedFolderId = folderNameCodec.encode(getPrefixedId());
             String escapedFolderId = ImapUtility.encodeString(encodedFolderId);
             String command = String.format("%s %s", openCommand, escapedFolderId);
+            if (connection.isCondstoreCapable()) {
+                command += " (CONDSTORE)";
+            }
             List<ImapResponse> responses = executeSimpleCommand(command);
 
             /*
@@ -209,6 +221,18 @@ class ImapFolder extends Folder<ImapMessage> {
         }
     }
 
+    /**
+     * @return An open connection from the store's pool. It has to be handed back using
+     *         {@link #releaseConnection(ImapConnection)}.
+     */
+    ImapConnection acquireConnection() throws MessagingException {
+        return store.getConnection();
+    }
+
+    void releaseConnection(ImapConnection connection) {
+        store.releaseConnection(connection);
+    }
+
     @Override
     public boolean isOpen() {
         return connection != null;
@@ -232,8 +256,9 @@ class ImapFolder extends Folder<ImapMessage> {
             if (inSearch && connection != null) {
                 Timber.i("IMAP search was aborted, shutting down connection.");
                 connection.close();
+                releaseConnection(connection);
             } else {
-                store.releaseConnection(connection);
+                releaseConnection(connection);
             }
 
             connection = null;
@@ -283,7 +308,7 @@ class ImapFolder extends Folder<ImapMessage> {
         ImapConnection connection;
         synchronized (this) {
             if (this.connection == null) {
-                connection = store.getConnection();
+                connection = acquireConnection();
             } else {
                 connection = this.connection;
             }
@@ -303,11 +328,30 @@ class ImapFolder extends Folder<ImapMessage> {
             throw ioExceptionHandler(connection, ioe);
         } finally {
             if (this.connection == null) {
-                store.releaseConnection(connection);
+                releaseConnection(connection);
             }
         }
     }
 
+    /**
+     * Creates another folder using the connection of this folder.
+     * <p>
+     * Used instead of {@link #create(FolderType)} of the other folder while this folder holds on to a connection.
+     * Borrowing a second connection from the pool could wait for the borrow timeout when all connections are in use,
+     * or deadlock with another thread doing the same.
+     * </p>
+     */
+    private boolean create(String escapedFolderName) throws MessagingException {
+        try {
+            connection.executeSimpleCommand(String.format("CREATE %s", escapedFolderName));
+            return true;
+        } catch (IOException ioe) {
+            throw ioExceptionHandler(connection, ioe);
+        } catch (NegativeImapResponseException e) {
+            return false;
+        }
+    }
+
     @Override
     public boolean canHaveSubFolders() {
         //TODO: Use the output of LIST/LSUB to define this.
@@ -324,7 +368,7 @@ class ImapFolder extends Folder<ImapMessage> {
         ImapConnection connection;
         synchronized (this) {
             if (this.connection == null) {
-                connection = store.getConnection();
+                connection = acquireConnection();
             } else {
                 connection = this.connection;
             }
@@ -342,7 +386,7 @@ class ImapFolder extends Folder<ImapMessage> {
             throw ioExceptionHandler(this.connection, ioe);
         } finally {
             if (this.connection == null) {
-                store.releaseConnection(connection);
+                releaseConnection(connection);
             }
         }
     }
@@ -393,22 +437,31 @@ class ImapFolder extends Folder<ImapMessage> {
                             escapedDestinationFolderName, getLogId());
                 }
 
-                imapFolder.create(FolderType.HOLDS_MESSAGES);
+                create(escapedDestinationFolderName);
             }
 
-            //TODO: Split this into multiple commands if the command exceeds a certain length.
-            List<ImapResponse> responses = executeSimpleCommand(String.format("UID COPY %s %s",
-                    combine(uids, ','), escapedDestinationFolderName));
+            List<String> commands = new ArrayList<>();
+            for (String uidSet : createUidSets(Arrays.asList(uids), MODIFY_WINDOW_SIZE)) {
+                commands.add(String.format("UID COPY %s %s", uidSet, escapedDestinationFolderName));
+            }
 
-            // Get the tagged response for the UID COPY command
-            ImapResponse response = getLastResponse(responses);
+            Map<String, String> uidMapping = null;
+            for (List<ImapResponse> responses : executeCommands(commands)) {
+                // Get the tagged response for the UID COPY command
+                ImapResponse response = getLastResponse(responses);
 
-            CopyUidResponse copyUidResponse = CopyUidResponse.parse(response);
-            if (copyUidResponse == null) {
-                return null;
+                CopyUidResponse copyUidResponse = CopyUidResponse.parse(response);
+                if (copyUidResponse == null) {
+                    continue;
+                }
+
+                if (uidMapping == null) {
+                    uidMapping = new HashMap<>();
+                }
+                uidMapping.putAll(copyUidResponse.getUidMapping());
             }
 
-            return copyUidResponse.getUidMapping();
+            return uidMapping;
         } catch (IOException ioe) {
             throw ioExceptionHandler(connection, ioe);
         }
@@ -445,7 +498,7 @@ class ImapFolder extends Folder<ImapMessage> {
                     Timber.i("IMAPMessage.delete: attempting to create remote '%s' folder for %s",
                             trashFolderName, getLogId());
                 }
-                remoteTrashFolder.create(FolderType.HOLDS_MESSAGES);
+                create(escapedTrashFolderName);
             }
 
             if (exists(escapedTrashFolderName)) {
@@ -687,6 +740,66 @@ class ImapFolder extends Folder<ImapMessage> {
     @Override
     public void fetch(List<ImapMessage> messages, FetchProfile fetchProfile,
             MessageRetrievalListener<ImapMessage> listener) throws MessagingException {
+        fetch(messages, fetchProfile, null, "", listener);
+    }
+
+    @Override
+    public String getSyncState() {
+        if (uidValidity == -1L || highestModSeq == -1L) {
+            return null;
+        }
+
+        return new ImapSyncState(uidValidity, highestModSeq).toString();
+    }
+
+    /**
+     * Uses {@code CHANGEDSINCE} (RFC 7162) to only fetch the flags of messages that were modified since the saved
+     * mod-sequence. If QRESYNC is enabled, messages in the given set that were expunged in the meantime are reported
+     * via {@code VANISHED (EARLIER)} and marked as {@link Flag#DELETED}.
+     */
+    @Override
+    public boolean fetchChangedFlags(List<ImapMessage> messages, String syncState,
+            MessageRetrievalListener<ImapMessage> listener) throws MessagingException {
+        checkOpen();
+
+        ImapSyncState oldSyncState = ImapSyncState.parse(syncState);
+        if (oldSyncState == null || highestModSeq == -1L || !connection.isCondstoreCapable()) {
+            return false;
+        }
+
+        if (oldSyncState.uidValidity != uidValidity) {
+            if (K9MailLib.isDebug()) {
+                Timber.d("UIDVALIDITY changed from %d to %d, can't sync flags incrementally for %s",
+                        oldSyncState.uidValidity, uidValidity, getLogId());
+            }
+
+            return false;
+        }
+
+        if (K9MailLib.isDebug()) {
+            Timber.d("Fetching flags changed since mod-sequence %d (highest: %d) for %s",
+                    oldSyncState.highestModSeq, highestModSeq, getLogId());
+        }
+
+        FetchProfile fetchProfile = new FetchProfile();
+        fetchProfile.add(FetchProfile.Item.FLAGS);
+
+        // The server only returns the changed messages, so a single command for the whole folder is enough. Responses
+        // for messages that aren't in the given list are ignored.
+        String fetchModifiers = String.format(Locale.US, " (CHANGEDSINCE %d%s)", oldSyncState.highestModSeq,
+                connection.isQresyncEnabled() ? " VANISHED" : "");
+        fetch(messages, fetchProfile, ALL_MESSAGES_UID_SET, fetchModifiers, listener);
+
+        return true;
+    }
+
+    /**
+     * @param uidSet
+     *         The UID set to fetch, or {@code null} to fetch the UIDs of {@code messages} in windows of
+     *         {@link #FETCH_WINDOW_SIZE}.
+     */
+    private void fetch(List<ImapMessage> messages, FetchProfile fetchProfile, String uidSet, String fetchModifiers,
+            MessageRetrievalListener<ImapMessage> listener) throws MessagingException {
         if (messages == null || messages.isEmpty()) {
             return;
         }
@@ -734,27 +847,39 @@ class ImapFolder extends Folder<ImapMessage> {
 
         String spaceSeparatedFetchFields = combine(fetchFields.toArray(new String[fetchFields.size()]), ' ');
 
-        for (int windowStart = 0; windowStart < messages.size(); windowStart += (FETCH_WINDOW_SIZE)) {
-            int windowEnd = Math.min(windowStart + FETCH_WINDOW_SIZE, messages.size());
-            List<String> uidWindow = uids.subList(windowStart, windowEnd);
+        List<String> uidSets = (uidSet != null) ? Collections.singletonList(uidSet) :
+                createUidSets(uids, FETCH_WINDOW_SIZE);
+
+        List<String> commands = new ArrayList<>();
+        for (String set : uidSets) {
+            commands.add(String.format("UID FETCH %s (%s)%s", set, spaceSeparatedFetchFields, fetchModifiers));
+        }
+
+        // Header and body literals are streamed straight into the message parser
+        ImapResponseCallback callback = null;
+        if (fetchProfile.contains(FetchProfile.Item.ENVELOPE) || fetchProfile.contains(FetchProfile.Item.BODY) ||
+                fetchProfile.contains(FetchProfile.Item.BODY_SANE)) {
+            callback = new FetchBodyCallback(messageMap);
+        }
+
+        int messageNumber = 0;
+        for (int commandStart = 0; commandStart < commands.size(); commandStart += MAX_PIPELINED_COMMANDS) {
+            int commandEnd = Math.min(commandStart + MAX_PIPELINED_COMMANDS, commands.size());
+            List<String> pipelinedCommands = commands.subList(commandStart, commandEnd);
 
             try {
-                String commaSeparatedUids = combine(uidWindow.toArray(new String[uidWindow.size()]), ',');
-                String command = String.format("UID FETCH %s (%s)", commaSeparatedUids, spaceSeparatedFetchFields);
-                connection.sendCommand(command, false);
+                sendCommands(pipelinedCommands);
 
                 ImapResponse response;
-                int messageNumber = 0;
-
-                ImapResponseCallback callback = null;
-                if (fetchProfile.contains(FetchProfile.Item.BODY) ||
-                        fetchProfile.contains(FetchProfile.Item.BODY_SANE)) {
-                    callback = new FetchBodyCallback(messageMap);
-                }
+                int pendingCommands = pipelinedCommands.size();
 
                 do {
                     response = connection.readResponse(callback);
 
+                    if (response.getTag() != null) {
+                        pendingCommands--;
+                    }
+
                     if (response.getTag() == null && ImapResponseParser.equalsIgnoreCase(response.get(1), "FETCH")) {
                         ImapList fetchList = (ImapList) response.getKeyedValue("FETCH");
                         String uid = fetchList.getKeyedString("UID");
@@ -803,17 +928,46 @@ class ImapFolder extends Folder<ImapMessage> {
                         if (listener != null) {
                             listener.messageFinished(imapMessage, messageNumber, messageMap.size());
                         }
+                    } else if (isVanishedEarlierResponse(response)) {
+                        handleVanishedEarlierResponse(response, messageMap, listener);
                     } else {
                         handleUntaggedResponse(response);
                     }
 
-                } while (response.getTag() == null);
+                } while (pendingCommands > 0);
             } catch (IOException ioe) {
                 throw ioExceptionHandler(connection, ioe);
             }
         }
     }
 
+    private boolean isVanishedEarlierResponse(ImapResponse response) {
+        return !response.isTagged() && response.size() == 3 && equalsIgnoreCase(response.get(0), Responses.VANISHED) &&
+                response.isList(1) && !response.getList(1).isEmpty() &&
+                equalsIgnoreCase(response.getList(1).get(0), Responses.EARLIER);
+    }
+
+    private void handleVanishedEarlierResponse(ImapResponse response, Map<String, Message> messageMap,
+            MessageRetrievalListener<ImapMessage> listener) throws MessagingException {
+        List<String> vanishedUids = ImapUtility.getImapSequenceValues(response.getString(2));
+        for (String uid : vanishedUids) {
+            ImapMessage message = (ImapMessage) messageMap.get(uid);
+            if (message == null) {
+                continue;
+            }
+
+            if (K9MailLib.isDebug()) {
+                Timber.d("Message with UID %s vanished from %s", uid, getLogId());
+            }
+
+            message.setFlagInternal(Flag.DELETED, true);
+
+            if (listener != null) {
+                listener.messageFinished(message, 0, messageMap.size());
+            }
+        }
+    }
+
     @Override
     public void fetchPart(Message message, Part part, MessageRetrievalListener<Message> listener,
             BodyFactory bodyFactory) throws MessagingException {
@@ -992,6 +1146,46 @@ class ImapFolder extends Folder<ImapMessage> {
         }
     }
 
+    protected void handlePossibleSyncState(ImapResponse response) {
+        if (response.isTagged() || response.isEmpty() || !equalsIgnoreCase(response.get(0), Responses.OK) ||
+                !response.isList(1)) {
+            return;
+        }
+
+        ImapList responseTextList = response.getList(1);
+        if (responseTextList.isEmpty()) {
+            return;
+        }
+
+        Object responseCode = responseTextList.get(0);
+        if (equalsIgnoreCase(responseCode, Responses.UIDVALIDITY) && responseTextList.size() > 1) {
+            uidValidity = responseTextList.getLong(1);
+            if (K9MailLib.isDebug()) {
+                Timber.d("Got UidValidity = %d for %s", uidValidity, getLogId());
+            }
+        } else if (equalsIgnoreCase(responseCode, Responses.HIGHESTMODSEQ) && responseTextList.size() > 1) {
+            highestModSeq = responseTextList.getLong(1);
+            if (K9MailLib.isDebug()) {
+                Timber.d("Got HighestModSeq = %d for %s", highestModSeq, getLogId());
+            }
+        } else if (equalsIgnoreCase(responseCode, Responses.NOMODSEQ)) {
+            highestModSeq = -1L;
+        }
+    }
+
+    /**
+     * @return The UIDs contained in an untagged {@code VANISHED} response that is not {@code (EARLIER)}, i.e. messages
+     *         that were just expunged. {@code null} if this is not such a response.
+     */
+    protected static List<String> getVanishedUids(ImapResponse response) {
+        if (response.isTagged() || response.size() != 2 || !equalsIgnoreCase(response.get(0), Responses.VANISHED) ||
+                !response.isString(1)) {
+            return null;
+        }
+
+        return ImapUtility.getImapSequenceValues(response.getString(1));
+    }
+
     /**
      * Handle an untagged response that the caller doesn't care to handle themselves.
      */
@@ -1005,6 +1199,7 @@ class ImapFolder extends Folder<ImapMessage> {
             }
 
             handlePossibleUidNext(response);
+            handlePossibleSyncState(response);
 
             if (ImapResponseParser.equalsIgnoreCase(response.get(1), "EXPUNGE") && messageCount > 0) {
                 messageCount--;
@@ -1012,6 +1207,14 @@ class ImapFolder extends Folder<ImapMessage> {
                     Timber.d("Got untagged EXPUNGE with messageCount %d for %s", messageCount, getLogId());
                 }
             }
+
+            List<String> vanishedUids = getVanishedUids(response);
+            if (vanishedUids != null && messageCount > 0) {
+                messageCount = Math.max(0, messageCount - vanishedUids.size());
+                if (K9MailLib.isDebug()) {
+                    Timber.d("Got untagged VANISHED with messageCount %d for %s", messageCount, getLogId());
+                }
+            }
         }
     }
 
@@ -1374,14 +1577,65 @@ class ImapFolder extends Folder<ImapMessage> {
         }
 
         try {
-            String command = String.format("UID STORE %s %sFLAGS.SILENT (%s)", combine(uids, ','), value ? "+" : "-",
-                    combineFlags(flags));
-            executeSimpleCommand(command);
+            String flagNames = combineFlags(flags);
+            List<String> commands = new ArrayList<>();
+            for (String uidSet : createUidSets(Arrays.asList(uids), MODIFY_WINDOW_SIZE)) {
+                commands.add(String.format("UID STORE %s %sFLAGS.SILENT (%s)", uidSet, value ? "+" : "-", flagNames));
+            }
+
+            executeCommands(commands);
         } catch (IOException ioe) {
             throw ioExceptionHandler(connection, ioe);
         }
     }
 
+    /**
+     * Splits {@code uids} into comma-separated UID sets of at most {@code windowSize} UIDs each, so commands don't
+     * exceed the line length limits of servers.
+     */
+    private static List<String> createUidSets(List<String> uids, int windowSize) {
+        List<String> uidSets = new ArrayList<>();
+        for (int windowStart = 0; windowStart < uids.size(); windowStart += windowSize) {
+            int windowEnd = Math.min(windowStart + windowSize, uids.size());
+            List<String> uidWindow = uids.subList(windowStart, windowEnd);
+            uidSets.add(combine(uidWindow.toArray(new String[uidWindow.size()]), ','));
+        }
+
+        return uidSets;
+    }
+
+    private void sendCommands(List<String> commands) throws MessagingException, IOException {
+        // A single command gains nothing from pipelining
+        if (commands.size() == 1) {
+            connection.sendCommand(commands.get(0), false);
+        } else {
+            connection.sendPipelinedCommands(commands);
+        }
+    }
+
+    /**
+     * Executes the commands, pipelining up to {@link #MAX_PIPELINED_COMMANDS} of them at a time.
+     *
+     * @return The responses to each command, in the order of {@code commands}.
+     */
+    private List<List<ImapResponse>> executeCommands(List<String> commands) throws MessagingException, IOException {
+        if (commands.size() == 1) {
+            return Collections.singletonList(executeSimpleCommand(commands.get(0)));
+        }
+
+        List<List<ImapResponse>> responsesByCommand = new ArrayList<>(commands.size());
+        for (int commandStart = 0; commandStart < commands.size(); commandStart += MAX_PIPELINED_COMMANDS) {
+            int commandEnd = Math.min(commandStart + MAX_PIPELINED_COMMANDS, commands.size());
+            List<String> pipelinedCommands = commands.subList(commandStart, commandEnd);
+
+            for (List<ImapResponse> responses : connection.executePipelinedCommands(pipelinedCommands)) {
+                responsesByCommand.add(handleUntaggedResponses(responses));
+            }
+        }
+
+        return responsesByCommand;
+    }
+
     private void checkOpen() throws MessagingException {
         if (!isOpen()) {
             throw new MessagingException("Folder " + getPrefixedId() + " is not open.");
@@ -2,7 +2,6 @@ package com.fsck.k9.mail.store.imap;
 
 
 import java.io.IOException;
-import java.net.SocketException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
@@ -12,7 +11,6 @@ import java.util.List;
 import android.content.Context;
 import android.os.PowerManager;
 
-import com.fsck.k9.mail.AuthenticationFailedException;
 import com.fsck.k9.mail.Flag;
 import com.fsck.k9.mail.K9MailLib;
 import com.fsck.k9.mail.Message;
@@ -20,7 +18,6 @@ import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.PushReceiver;
 import com.fsck.k9.mail.power.TracingPowerManager;
 import com.fsck.k9.mail.power.TracingPowerManager.TracingWakeLock;
-import com.fsck.k9.mail.store.RemoteStore;
 import timber.log.Timber;
 
 import static com.fsck.k9.mail.K9MailLib.PUSH_WAKE_LOCK_TIMEOUT;
@@ -28,20 +25,12 @@ import static com.fsck.k9.mail.store.imap.ImapResponseParser.equalsIgnoreCase;
 
 
 class ImapFolderPusher extends ImapFolder {
-    private static final int IDLE_READ_TIMEOUT_INCREMENT = 5 * 60 * 1000;
-    private static final int IDLE_FAILURE_COUNT_LIMIT = 10;
-    private static final int MAX_DELAY_TIME = 5 * 60 * 1000; // 5 minutes
-    private static final int NORMAL_DELAY_TIME = 5000;
-
-
     private final PushReceiver pushReceiver;
     private final Object threadLock = new Object();
     private final IdleStopper idleStopper = new IdleStopper();
     private final TracingWakeLock wakeLock;
     private final List<ImapResponse> storedUntaggedResponses = new ArrayList<ImapResponse>();
-    private Thread listeningThread;
-    private volatile boolean stop = false;
-    private volatile boolean idling = false;
+    private PushLoop pushLoop;
 
 
     public ImapFolderPusher(ImapStore store, String name, PushReceiver pushReceiver) {
@@ -57,32 +46,34 @@ class ImapFolderPusher extends ImapFolder {
 
     public void start() {
         synchronized (threadLock) {
-            if (listeningThread != null) {
+            if (pushLoop != null) {
                 throw new IllegalStateException("start() called twice");
             }
 
-            listeningThread = new Thread(new PushRunnable());
-            listeningThread.start();
+            pushLoop = new PushLoop();
+            pushLoop.start();
         }
     }
 
     public void refresh() throws IOException, MessagingException {
-        if (idling) {
-            wakeLock.acquire(PUSH_WAKE_LOCK_TIMEOUT);
-            idleStopper.stopIdle();
+        PushLoop loop;
+        synchronized (threadLock) {
+            loop = pushLoop;
+        }
+
+        if (loop != null) {
+            loop.refresh();
         }
     }
 
     public void stop() {
         synchronized (threadLock) {
-            if (listeningThread == null) {
+            if (pushLoop == null) {
                 throw new IllegalStateException("stop() called twice");
             }
 
-            stop = true;
-
-            listeningThread.interrupt();
-            listeningThread = null;
+            pushLoop.stop();
+            pushLoop = null;
         }
 
         ImapConnection conn = connection;
@@ -97,12 +88,35 @@ class ImapFolderPusher extends ImapFolder {
         }
     }
 
+    /**
+     * A pushing folder holds on to its connection for as long as it is pushed. So it uses a connection of its own
+     * instead of taking one of the pool's connections away from synchronization.
+     */
+    @Override
+    ImapConnection acquireConnection() throws MessagingException {
+        ImapConnection connection = store.createImapPushConnection();
+        try {
+            connection.open();
+        } catch (IOException e) {
+            throw new MessagingException("Unable to connect", e);
+        }
+
+        return connection;
+    }
+
+    @Override
+    void releaseConnection(ImapConnection connection) {
+        if (connection != null) {
+            connection.close();
+        }
+    }
+
     @Override
     protected void handleUntaggedResponse(ImapResponse response) {
         if (response.getTag() == null && response.size() > 1) {
             Object responseType = response.get(1);
             if (equalsIgnoreCase(responseType, "FETCH") || equalsIgnoreCase(responseType, "EXPUNGE") ||
-                    equalsIgnoreCase(responseType, "EXISTS")) {
+                    equalsIgnoreCase(responseType, "EXISTS") || getVanishedUids(response) != null) {
 
                 if (K9MailLib.isDebug()) {
                     Timber.d("Storing response %s for later processing", response);
@@ -114,6 +128,7 @@ class ImapFolderPusher extends ImapFolder {
             }
 
             handlePossibleUidNext(response);
+            handlePossibleSyncState(response);
         }
     }
 
@@ -122,133 +137,94 @@ class ImapFolderPusher extends ImapFolder {
     }
 
 
-    private class PushRunnable implements Runnable, UntaggedHandler {
-        private int delayTime = NORMAL_DELAY_TIME;
-        private int idleFailureCount = 0;
+    private class PushLoop extends ImapPushLoop {
+        private long lastUidNext = -1L;
         private boolean needsPoll = false;
 
+        PushLoop() {
+            super(store, pushReceiver, wakeLock, idleStopper, getId());
+        }
+
         @Override
-        public void run() {
-            wakeLock.acquire(PUSH_WAKE_LOCK_TIMEOUT);
+        ImapConnection prepareIdle() throws MessagingException {
+            long oldUidNext = getOldUidNext();
 
-            if (K9MailLib.isDebug()) {
-                Timber.i("Pusher starting for %s", getLogId());
+                /*
+                 * This makes sure 'oldUidNext' is never smaller than 'UIDNEXT' from
+                 * the last loop iteration. This way we avoid looping endlessly causing
+                 * the battery to drain.
+                 *
+                 * See issue 4907
+                 */
+            if (oldUidNext < lastUidNext) {
+                oldUidNext = lastUidNext;
             }
 
-            long lastUidNext = -1L;
-            while (!stop) {
-                try {
-                    long oldUidNext = getOldUidNext();
-
-                        /*
-                         * This makes sure 'oldUidNext' is never smaller than 'UIDNEXT' from
-                         * the last loop iteration. This way we avoid looping endlessly causing
-                         * the battery to drain.
-                         *
-                         * See issue 4907
-                         */
-                    if (oldUidNext < lastUidNext) {
-                        oldUidNext = lastUidNext;
-                    }
-
-                    boolean openedNewConnection = openConnectionIfNecessary();
+            boolean openedNewConnection = openConnectionIfNecessary();
 
-                    if (stop) {
-                        break;
-                    }
-
-                    boolean pushPollOnConnect = store.getStoreConfig().isPushPollOnConnect();
-                    if (pushPollOnConnect && (openedNewConnection || needsPoll)) {
-                        needsPoll = false;
-                        syncFolderOnConnect();
-                    }
-
-                    if (stop) {
-                        break;
-                    }
-
-                    long newUidNext = getNewUidNext();
-                    lastUidNext = newUidNext;
-                    long startUid = getStartUid(oldUidNext, newUidNext);
+            if (isStopped()) {
+                return null;
+            }
 
-                    if (newUidNext > startUid) {
-                        notifyMessagesArrived(startUid, newUidNext);
-                    } else {
-                        processStoredUntaggedResponses();
+            boolean pushPollOnConnect = store.getStoreConfig().isPushPollOnConnect();
+            if (pushPollOnConnect && (openedNewConnection || needsPoll)) {
+                needsPoll = false;
+                syncFolderOnConnect();
+            }
 
-                        if (K9MailLib.isDebug()) {
-                            Timber.i("About to IDLE for %s", getLogId());
-                        }
+            if (isStopped()) {
+                return null;
+            }
 
-                        prepareForIdle();
+            long newUidNext = getNewUidNext();
+            lastUidNext = newUidNext;
+            long startUid = getStartUid(oldUidNext, newUidNext);
 
-                        ImapConnection conn = connection;
-                        setReadTimeoutForIdle(conn);
-                        sendIdle(conn);
+            if (newUidNext > startUid) {
+                notifyMessagesArrived(startUid, newUidNext);
+                return null;
+            }
 
-                        returnFromIdle();
-                    }
-                } catch (AuthenticationFailedException e) {
-                    reacquireWakeLockAndCleanUp();
+            processStoredUntaggedResponses();
 
-                    if (K9MailLib.isDebug()) {
-                        Timber.e(e, "Authentication failed. Stopping ImapFolderPusher.");
-                    }
+            if (K9MailLib.isDebug()) {
+                Timber.i("About to IDLE for %s", getLogId());
+            }
 
-                    pushReceiver.authenticationFailed();
-                    stop = true;
-                } catch (Exception e) {
-                    reacquireWakeLockAndCleanUp();
+            pushReceiver.setPushActive(getId(), getName(), true);
 
-                    if (stop) {
-                        Timber.i("Got exception while idling, but stop is set for %s", getLogId());
-                    } else {
-                        pushReceiver.pushError("Push error for " + getId(), e);
-                        Timber.e("Got exception while idling for %s", getLogId());
+            return connection;
+        }
 
-                        pushReceiver.sleep(wakeLock, delayTime);
+        @Override
+        void idleCompleted(List<ImapResponse> responses) {
+            handleUntaggedResponses(responses);
+        }
 
-                        delayTime *= 2;
-                        if (delayTime > MAX_DELAY_TIME) {
-                            delayTime = MAX_DELAY_TIME;
-                        }
+        @Override
+        void cleanUp() {
+            clearStoredUntaggedResponses();
+            pushReceiver.setPushActive(getId(), getName(), false);
 
-                        idleFailureCount++;
-                        if (idleFailureCount > IDLE_FAILURE_COUNT_LIMIT) {
-                            Timber.e("Disabling pusher for %s after %d consecutive errors", getLogId(), idleFailureCount);
-                            pushReceiver.pushError("Push disabled for " + getId() + " after " + idleFailureCount +
-                                    " consecutive errors", e);
-                            stop = true;
-                        }
-                    }
-                }
-            }
+            if (connection != null)
+                connection.close();
+            connection = null;
+        }
 
+        @Override
+        void finish() {
             pushReceiver.setPushActive(getId(), getName(), false);
 
             try {
-                if (K9MailLib.isDebug()) {
-                    Timber.i("Pusher for %s is exiting", getLogId());
-                }
-
                 close();
             } catch (Exception me) {
                 Timber.e(me, "Got exception while closing for %s", getLogId());
-            } finally {
-                wakeLock.release();
             }
         }
 
-        private void reacquireWakeLockAndCleanUp() {
-            wakeLock.acquire(PUSH_WAKE_LOCK_TIMEOUT);
-
-            clearStoredUntaggedResponses();
-            idling = false;
-            pushReceiver.setPushActive(getId(), getName(), false);
-
-            if (connection != null)
-                connection.close();
-            connection = null;
+        @Override
+        String getLogId() {
+            return ImapFolderPusher.this.getLogId();
         }
 
         private long getNewUidNext() throws MessagingException {
@@ -290,35 +266,6 @@ class ImapFolderPusher extends ImapFolder {
             return startUid;
         }
 
-        private void prepareForIdle() {
-            pushReceiver.setPushActive(getId(), getName(), true);
-            idling = true;
-        }
-
-        private void sendIdle(ImapConnection conn) throws MessagingException, IOException {
-            String tag = conn.sendCommand(Commands.IDLE, false);
-
-            List<ImapResponse> responses;
-            try {
-                try {
-                    responses = conn.readStatusResponse(tag, Commands.IDLE, this);
-                } finally {
-                    idleStopper.stopAcceptingDoneContinuation();
-                }
-            } catch (IOException e) {
-                conn.close();
-                throw e;
-            }
-
-            handleUntaggedResponses(responses);
-        }
-
-        private void returnFromIdle() {
-            idling = false;
-            delayTime = NORMAL_DELAY_TIME;
-            idleFailureCount = 0;
-        }
-
         private boolean openConnectionIfNecessary() throws MessagingException {
             ImapConnection oldConnection = connection;
             internalOpen(OPEN_MODE_RO);
@@ -342,7 +289,7 @@ class ImapFolderPusher extends ImapFolder {
 
         private void checkConnectionIdleCapable(ImapConnection conn) throws MessagingException {
             if (!conn.isIdleCapable()) {
-                stop = true;
+                stop();
 
                 String message = "IMAP server is not IDLE capable: " + conn.toString();
                 pushReceiver.pushError(message, null);
@@ -351,18 +298,13 @@ class ImapFolderPusher extends ImapFolder {
             }
         }
 
-        private void setReadTimeoutForIdle(ImapConnection conn) throws SocketException {
-            int idleRefreshTimeout = store.getStoreConfig().getIdleRefreshMinutes() * 60 * 1000;
-            conn.setReadTimeout(idleRefreshTimeout + IDLE_READ_TIMEOUT_INCREMENT);
-        }
-
         @Override
         public void handleAsyncUntaggedResponse(ImapResponse response) {
             if (K9MailLib.isDebug()) {
                 Timber.v("Got async response: %s", response);
             }
 
-            if (stop) {
+            if (isStopped()) {
                 if (K9MailLib.isDebug()) {
                     Timber.d("Got async untagged response: %s, but stop is set for %s", response, getLogId());
                 }
@@ -373,7 +315,7 @@ class ImapFolderPusher extends ImapFolder {
                     if (response.size() > 1) {
                         Object responseType = response.get(1);
                         if (equalsIgnoreCase(responseType, "EXISTS") || equalsIgnoreCase(responseType, "EXPUNGE") ||
-                                equalsIgnoreCase(responseType, "FETCH")) {
+                                equalsIgnoreCase(responseType, "FETCH") || getVanishedUids(response) != null) {
 
                             wakeLock.acquire(PUSH_WAKE_LOCK_TIMEOUT);
 
@@ -439,10 +381,12 @@ class ImapFolderPusher extends ImapFolder {
             }
 
             List<Long> flagSyncMsgSeqs = new ArrayList<Long>();
+            List<String> flagSyncUids = new ArrayList<String>();
             List<String> removeMsgUids = new LinkedList<String>();
 
             for (ImapResponse response : responses) {
-                oldMessageCount += processUntaggedResponse(oldMessageCount, response, flagSyncMsgSeqs, removeMsgUids);
+                oldMessageCount += processUntaggedResponse(oldMessageCount, response, flagSyncMsgSeqs, flagSyncUids,
+                        removeMsgUids);
             }
 
             if (!skipSync) {
@@ -463,13 +407,17 @@ class ImapFolderPusher extends ImapFolder {
                 syncMessages(flagSyncMsgSeqs);
             }
 
+            if (!flagSyncUids.isEmpty()) {
+                syncMessagesByUid(flagSyncUids);
+            }
+
             if (!removeMsgUids.isEmpty()) {
                 removeMessages(removeMsgUids);
             }
         }
 
         private int processUntaggedResponse(long oldMessageCount, ImapResponse response, List<Long> flagSyncMsgSeqs,
-                List<String> removeMsgUids) {
+                List<String> flagSyncUids, List<String> removeMsgUids) {
             superHandleUntaggedResponse(response);
 
             int messageCountDelta = 0;
@@ -480,16 +428,37 @@ class ImapFolderPusher extends ImapFolder {
                         Timber.i("Got FETCH %s", response);
 
                         long msgSeq = response.getLong(0);
+                        String uid = getUidFromFetchResponse(response);
 
                         if (K9MailLib.isDebug()) {
-                            Timber.d("Got untagged FETCH for msgseq %d for %s", msgSeq, getLogId());
+                            Timber.d("Got untagged FETCH for msgseq %d (UID %s) for %s", msgSeq, uid, getLogId());
                         }
 
-                        if (!flagSyncMsgSeqs.contains(msgSeq)) {
+                        // Servers with CONDSTORE/QRESYNC enabled usually include the UID, so we can skip the
+                        // UID SEARCH otherwise necessary to map the sequence number.
+                        if (uid != null) {
+                            if (!flagSyncUids.contains(uid)) {
+                                flagSyncUids.add(uid);
+                            }
+                        } else if (!flagSyncMsgSeqs.contains(msgSeq)) {
                             flagSyncMsgSeqs.add(msgSeq);
                         }
                     }
 
+                    List<String> vanishedUids = getVanishedUids(response);
+                    if (vanishedUids != null) {
+                        if (K9MailLib.isDebug()) {
+                            Timber.d("Got untagged VANISHED for UIDs %s for %s", vanishedUids, getLogId());
+                        }
+
+                        messageCountDelta = -vanishedUids.size();
+                        removeMsgUids.addAll(vanishedUids);
+                        flagSyncUids.removeAll(vanishedUids);
+
+                        // We can't tell which sequence numbers were affected, so the mapping is no longer reliable
+                        msgSeqUidMap.clear();
+                    }
+
                     if (equalsIgnoreCase(responseType, "EXPUNGE")) {
                         long msgSeq = response.getLong(0);
                         if (msgSeq <= oldMessageCount) {
@@ -602,6 +571,24 @@ class ImapFolderPusher extends ImapFolder {
             }
         }
 
+        private void syncMessagesByUid(List<String> flagSyncUids) {
+            List<Message> messages = new ArrayList<Message>(flagSyncUids.size());
+            for (String uid : flagSyncUids) {
+                messages.add(new ImapMessage(uid, ImapFolderPusher.this));
+            }
+
+            pushReceiver.messagesFlagsChanged(ImapFolderPusher.this, messages);
+        }
+
+        private String getUidFromFetchResponse(ImapResponse response) {
+            if (!response.isList(2)) {
+                return null;
+            }
+
+            ImapList fetchList = response.getList(2);
+            return fetchList.containsKey("UID") ? fetchList.getKeyedString("UID") : null;
+        }
+
         private void removeMessages(List<String> removeUids) {
             List<Message> messages = new ArrayList<Message>(removeUids.size());
 
@@ -678,43 +665,4 @@ class ImapFolderPusher extends ImapFolder {
             return oldUidNext;
         }
     }
-
-    /**
-     * Ensure the DONE continuation is only sent when the IDLE command was sent and hasn't completed yet.
-     */
-    private static class IdleStopper {
-        private boolean acceptDoneContinuation = false;
-        private ImapConnection imapConnection;
-
-
-        public synchronized void startAcceptingDoneContinuation(ImapConnection connection) {
-            if (connection == null) {
-                throw new NullPointerException("connection must not be null");
-            }
-
-            acceptDoneContinuation = true;
-            imapConnection = connection;
-        }
-
-        public synchronized void stopAcceptingDoneContinuation() {
-            acceptDoneContinuation = false;
-            imapConnection = null;
-        }
-
-        public synchronized void stopIdle() {
-            if (acceptDoneContinuation) {
-                acceptDoneContinuation = false;
-                sendDone();
-            }
-        }
-
-        private void sendDone() {
-            try {
-                imapConnection.setReadTimeout(RemoteStore.SOCKET_READ_TIMEOUT);
-                imapConnection.sendContinuation("DONE");
-            } catch (IOException e) {
-                imapConnection.close();
-            }
-        }
-    }
 }
@@ -0,0 +1,392 @@
+package com.fsck.k9.mail.store.imap;
+
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import android.content.Context;
+import android.os.PowerManager;
+
+import com.fsck.k9.mail.K9MailLib;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.PushReceiver;
+import com.fsck.k9.mail.power.TracingPowerManager;
+import com.fsck.k9.mail.power.TracingPowerManager.TracingWakeLock;
+import timber.log.Timber;
+
+import static com.fsck.k9.mail.K9MailLib.PUSH_WAKE_LOCK_TIMEOUT;
+import static com.fsck.k9.mail.store.imap.ImapResponseParser.equalsIgnoreCase;
+
+
+/**
+ * Watches several folders over a single connection using the NOTIFY extension (RFC 5465).
+ * <p>
+ * While the connection is idling the server reports changes to the watched folders as untagged {@code STATUS}
+ * responses. Each changed folder is then synchronized using {@link PushReceiver#syncFolder(com.fsck.k9.mail.Folder)}.
+ * If the server doesn't support NOTIFY, {@link ImapPusher} is asked to watch every folder with an
+ * {@link ImapFolderPusher} of its own instead.
+ * </p>
+ */
+class ImapNotifyPusher {
+    private static final String NOTIFY_EVENTS = "(MessageNew MessageExpunge FlagChange)";
+
+
+    private final ImapStore store;
+    private final ImapPusher imapPusher;
+    private final PushReceiver pushReceiver;
+    private final List<String> folderIds;
+    private final Object threadLock = new Object();
+    private final IdleStopper idleStopper = new IdleStopper();
+    private final TracingWakeLock wakeLock;
+    private final Map<String, String> folderIdByMailboxName = new HashMap<String, String>();
+    private final Set<String> changedFolderIds = new LinkedHashSet<String>();
+    private PushLoop pushLoop;
+    private volatile ImapConnection connection;
+
+
+    public ImapNotifyPusher(ImapStore store, ImapPusher imapPusher, List<String> folderIds,
+            PushReceiver pushReceiver) {
+        this.store = store;
+        this.imapPusher = imapPusher;
+        this.folderIds = folderIds;
+        this.pushReceiver = pushReceiver;
+
+        Context context = pushReceiver.getContext();
+        TracingPowerManager powerManager = TracingPowerManager.getPowerManager(context);
+        String tag = "ImapNotifyPusher " + store.getStoreConfig().toString();
+        wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, tag);
+        wakeLock.setReferenceCounted(false);
+    }
+
+    public void start() {
+        synchronized (threadLock) {
+            if (pushLoop != null) {
+                throw new IllegalStateException("start() called twice");
+            }
+
+            pushLoop = new PushLoop();
+            pushLoop.start();
+        }
+    }
+
+    public void refresh() {
+        PushLoop loop;
+        synchronized (threadLock) {
+            loop = pushLoop;
+        }
+
+        if (loop != null) {
+            loop.refresh();
+        }
+    }
+
+    public void stop() {
+        synchronized (threadLock) {
+            if (pushLoop == null) {
+                throw new IllegalStateException("stop() called twice");
+            }
+
+            pushLoop.stop();
+            pushLoop = null;
+        }
+
+        ImapConnection conn = connection;
+        if (conn != null) {
+            if (K9MailLib.isDebug()) {
+                Timber.v("Closing connection to stop pushing for %s", getLogId());
+            }
+
+            conn.close();
+        }
+    }
+
+    List<String> getFolderIds() {
+        return folderIds;
+    }
+
+    private String getLogId() {
+        return store.getStoreConfig().toString() + ":NOTIFY";
+    }
+
+
+    private class PushLoop extends ImapPushLoop {
+        private boolean notifyUnavailable = false;
+        private boolean reconnecting = false;
+
+        PushLoop() {
+            super(store, pushReceiver, wakeLock, idleStopper, store.getStoreConfig().toString());
+        }
+
+        @Override
+        ImapConnection prepareIdle() throws IOException, MessagingException {
+            boolean openedNewConnection = openConnectionIfNecessary();
+
+            if (isStopped()) {
+                return null;
+            }
+
+            ImapConnection conn = connection;
+            if (openedNewConnection) {
+                if (!enableNotify(conn)) {
+                    notifyUnavailable = true;
+                    stop();
+                    return null;
+                }
+
+                setPushActive(true);
+
+                boolean pushPollOnConnect = store.getStoreConfig().isPushPollOnConnect();
+                if (pushPollOnConnect || reconnecting) {
+                    markAllFoldersChanged();
+                }
+            }
+
+            syncChangedFolders();
+
+            if (isStopped()) {
+                return null;
+            }
+
+            if (K9MailLib.isDebug()) {
+                Timber.i("About to IDLE for %s watching %s", getLogId(), folderIds);
+            }
+
+            return conn;
+        }
+
+        @Override
+        void idleCompleted(List<ImapResponse> responses) {
+            // Notifications were already handled as they came in
+        }
+
+        @Override
+        void cleanUp() {
+            reconnecting = true;
+            setPushActive(false);
+            closeConnection();
+        }
+
+        @Override
+        void finish() {
+            setPushActive(false);
+            closeConnection();
+
+            boolean stoppedByImapPusher;
+            synchronized (threadLock) {
+                stoppedByImapPusher = pushLoop != this;
+            }
+
+            if (notifyUnavailable && !stoppedByImapPusher) {
+                Timber.i("Server doesn't support NOTIFY, pushing every folder separately for %s", getLogId());
+
+                store.setNotifyUnavailable();
+                imapPusher.startFolderPushersInsteadOf(ImapNotifyPusher.this);
+            }
+        }
+
+        @Override
+        String getLogId() {
+            return ImapNotifyPusher.this.getLogId();
+        }
+
+        private boolean openConnectionIfNecessary() throws IOException, MessagingException {
+            ImapConnection conn = connection;
+            if (conn != null && conn.isConnected()) {
+                return false;
+            }
+
+            conn = store.createImapPushConnection();
+            connection = conn;
+            conn.open();
+
+            return true;
+        }
+
+        private void closeConnection() {
+            ImapConnection conn = connection;
+            if (conn != null) {
+                conn.close();
+            }
+            connection = null;
+        }
+
+        /**
+         * @return {@code false} if the server can't watch the folders using NOTIFY.
+         */
+        private boolean enableNotify(ImapConnection conn) throws IOException, MessagingException {
+            if (!conn.isNotifyCapable() || !conn.isIdleCapable()) {
+                return false;
+            }
+
+            StringBuilder mailboxes = new StringBuilder();
+            synchronized (folderIdByMailboxName) {
+                folderIdByMailboxName.clear();
+                for (String folderId : folderIds) {
+                    String mailboxName = getMailboxName(folderId);
+                    folderIdByMailboxName.put(mailboxName, folderId);
+
+                    if (mailboxes.length() > 0) {
+                        mailboxes.append(' ');
+                    }
+                    mailboxes.append(ImapUtility.encodeString(mailboxName));
+                }
+            }
+
+            String command = String.format("%s (MAILBOXES (%s) %s)", Commands.NOTIFY_SET, mailboxes, NOTIFY_EVENTS);
+            List<ImapResponse> responses;
+            try {
+                responses = conn.executeSimpleCommand(command);
+            } catch (NegativeImapResponseException e) {
+                Timber.w(e, "NOTIFY was rejected for %s", getLogId());
+                return false;
+            }
+
+            for (ImapResponse response : responses) {
+                handleNotification(response);
+            }
+
+            return true;
+        }
+
+        private String getMailboxName(String folderId) {
+            String prefixedId = folderId;
+            if (!store.getStoreConfig().getInboxFolderId().equalsIgnoreCase(folderId)) {
+                prefixedId = store.getCombinedPrefix() + folderId;
+            }
+
+            return store.getFolderNameCodec().encode(prefixedId);
+        }
+
+        private void setPushActive(boolean enabled) {
+            for (String folderId : folderIds) {
+                pushReceiver.setPushActive(folderId, store.getFolderName(folderId), enabled);
+            }
+        }
+
+        @Override
+        public void handleAsyncUntaggedResponse(ImapResponse response) {
+            if (K9MailLib.isDebug()) {
+                Timber.v("Got async response: %s", response);
+            }
+
+            if (isStopped()) {
+                if (K9MailLib.isDebug()) {
+                    Timber.d("Got async untagged response: %s, but stop is set for %s", response, getLogId());
+                }
+
+                idleStopper.stopIdle();
+            } else if (response.getTag() == null) {
+                if (response.isContinuationRequested()) {
+                    if (K9MailLib.isDebug()) {
+                        Timber.d("Idling %s", getLogId());
+                    }
+
+                    idleStopper.startAcceptingDoneContinuation(connection);
+
+                    // Notifications received before the server accepted IDLE still need to be handled
+                    if (hasChangedFolders()) {
+                        idleStopper.stopIdle();
+                    } else {
+                        wakeLock.release();
+                    }
+                } else if (handleNotification(response)) {
+                    wakeLock.acquire(PUSH_WAKE_LOCK_TIMEOUT);
+
+                    if (K9MailLib.isDebug()) {
+                        Timber.d("Got useful async untagged response: %s for %s", response, getLogId());
+                    }
+
+                    idleStopper.stopIdle();
+                }
+            }
+        }
+
+        /**
+         * @return {@code true} if {@code response} means that at least one of the watched folders needs to be
+         *         synchronized.
+         */
+        private boolean handleNotification(ImapResponse response) {
+            if (response.getTag() != null || response.size() < 2) {
+                return false;
+            }
+
+            if (equalsIgnoreCase(response.get(0), Responses.STATUS) && response.isString(1)) {
+                String folderId = getFolderIdForMailbox(response.getString(1));
+                if (folderId == null) {
+                    return false;
+                }
+
+                synchronized (changedFolderIds) {
+                    changedFolderIds.add(folderId);
+                }
+                return true;
+            }
+
+            // The server dropped notifications. We can't tell which folders have changed.
+            if (equalsIgnoreCase(response.get(0), Responses.OK) &&
+                    Responses.NOTIFICATIONOVERFLOW.equalsIgnoreCase(ResponseCodeExtractor.getResponseCode(response))) {
+                markAllFoldersChanged();
+                return true;
+            }
+
+            return false;
+        }
+
+        private String getFolderIdForMailbox(String mailboxName) {
+            synchronized (folderIdByMailboxName) {
+                String folderId = folderIdByMailboxName.get(mailboxName);
+                if (folderId == null && "INBOX".equalsIgnoreCase(mailboxName)) {
+                    folderId = folderIdByMailboxName.get(getMailboxName(store.getStoreConfig().getInboxFolderId()));
+                }
+
+                return folderId;
+            }
+        }
+
+        private void markAllFoldersChanged() {
+            synchronized (changedFolderIds) {
+                changedFolderIds.addAll(folderIds);
+            }
+        }
+
+        private boolean hasChangedFolders() {
+            synchronized (changedFolderIds) {
+                return !changedFolderIds.isEmpty();
+            }
+        }
+
+        private String takeChangedFolderId() {
+            synchronized (changedFolderIds) {
+                Iterator<String> iterator = changedFolderIds.iterator();
+                if (!iterator.hasNext()) {
+                    return null;
+                }
+
+                String folderId = iterator.next();
+                iterator.remove();
+                return folderId;
+            }
+        }
+
+        private void syncChangedFolders() {
+            String folderId;
+            while (!isStopped() && (folderId = takeChangedFolderId()) != null) {
+                if (K9MailLib.isDebug()) {
+                    Timber.i("Synchronizing changed folder %s for %s", folderId, getLogId());
+                }
+
+                ImapFolder folder = new ImapFolder(store, folderId);
+                try {
+                    pushReceiver.syncFolder(folder);
+                } finally {
+                    folder.close();
+                }
+            }
+        }
+    }
+}
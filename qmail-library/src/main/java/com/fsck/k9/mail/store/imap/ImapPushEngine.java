@@ -0,0 +1,348 @@
+package com.fsck.k9.mail.store.imap;
+
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import timber.log.Timber;
+
+
+/**
+ * Runs the IMAP pushers of all accounts, using a fixed number of threads while they are idling.
+ * <p>
+ * Instead of blocking a thread in a read for as long as it's idling, a connection is parked on a single
+ * {@link Selector}. When the server sends something the pusher continues on one of a few worker threads.
+ * </p>
+ * <p>
+ * The rest of the pushers' work, like connecting and synchronizing, uses blocking I/O that can take long. So it runs on
+ * connect threads instead, which are started as needed and end again once all pushers are idling.
+ * </p>
+ */
+class ImapPushEngine {
+    static final int WORKER_THREAD_COUNT = 4;
+
+    private static final long THREAD_KEEP_ALIVE_SECONDS = 60;
+
+    private static ImapPushEngine instance;
+
+
+    private final ThreadGroup threadGroup = new ThreadGroup("ImapPush");
+    private final ThreadGroup connectThreadGroup = new ThreadGroup("ImapPushConnect");
+    private final AtomicInteger parkedConnectionCount = new AtomicInteger();
+    private final Queue<Registration> pendingRegistrations = new ConcurrentLinkedQueue<>();
+    private final Queue<Registration> pendingWakeUps = new ConcurrentLinkedQueue<>();
+    private final Selector selector;
+    private final ThreadPoolExecutor workers;
+    private final ThreadPoolExecutor connectExecutor;
+
+    // Only accessed by the selector thread
+    private final Set<Registration> registrations = new HashSet<>();
+
+
+    static synchronized ImapPushEngine getInstance() {
+        if (instance == null) {
+            try {
+                instance = new ImapPushEngine();
+            } catch (IOException e) {
+                throw new RuntimeException("Couldn't open selector", e);
+            }
+        }
+
+        return instance;
+    }
+
+    private ImapPushEngine() throws IOException {
+        selector = Selector.open();
+
+        workers = new ThreadPoolExecutor(WORKER_THREAD_COUNT, WORKER_THREAD_COUNT,
+                THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                createThreadFactory(threadGroup, "ImapPushWorker-"));
+        workers.allowCoreThreadTimeOut(true);
+
+        connectExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+                THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                createThreadFactory(connectThreadGroup, "ImapPushConnect-"));
+
+        Thread selectorThread = new Thread(threadGroup, new Runnable() {
+            @Override
+            public void run() {
+                selectLoop();
+            }
+        }, "ImapPushSelector");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+
+    private static ThreadFactory createThreadFactory(final ThreadGroup threadGroup, final String namePrefix) {
+        final AtomicInteger threadNumber = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(threadGroup, runnable, namePrefix + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Runs {@code task} on a worker thread. Only meant for reading the responses of idling connections, which the
+     * server already sent.
+     */
+    void execute(Runnable task) {
+        workers.execute(task);
+    }
+
+    /**
+     * Runs {@code task} on a connect thread, starting a new one if all are busy. For work that may block for long,
+     * like connecting and synchronizing.
+     */
+    void executeBlocking(Runnable task) {
+        connectExecutor.execute(task);
+    }
+
+    /**
+     * Parks {@code channel} until the server sends something, the channel is closed, or {@code timeoutMillis} passed.
+     * <p>
+     * The channel is in non-blocking mode until then. It's back in blocking mode when the listener is called on a
+     * worker thread.
+     * </p>
+     */
+    Registration park(SocketChannel channel, long timeoutMillis, Listener listener) throws IOException {
+        channel.configureBlocking(false);
+        return register(new Registration(channel, timeoutMillis, listener));
+    }
+
+    /**
+     * Calls {@link Listener#onTimeout()} on a worker thread after {@code delayMillis}. Or {@link Listener#onReady()}
+     * if {@link #wakeUp(Registration)} is called before that.
+     */
+    Registration schedule(long delayMillis, Listener listener) {
+        return register(new Registration(null, delayMillis, listener));
+    }
+
+    /**
+     * Calls {@link Listener#onReady()} now, unless the listener of {@code registration} was called already.
+     */
+    void wakeUp(Registration registration) {
+        pendingWakeUps.add(registration);
+        selector.wakeup();
+    }
+
+    /**
+     * @return An estimate of the number of threads used by the engine, not counting the connect threads.
+     */
+    int getActiveThreadCount() {
+        return threadGroup.activeCount();
+    }
+
+    /**
+     * @return An estimate of the number of connect threads.
+     */
+    int getConnectThreadCount() {
+        return connectThreadGroup.activeCount();
+    }
+
+    int getParkedConnectionCount() {
+        return parkedConnectionCount.get();
+    }
+
+    private Registration register(Registration registration) {
+        pendingRegistrations.add(registration);
+        selector.wakeup();
+
+        return registration;
+    }
+
+    private void selectLoop() {
+        List<Registration> ready = new ArrayList<>();
+        List<Registration> timedOut = new ArrayList<>();
+        while (true) {
+            try {
+                if (selector.selectedKeys().isEmpty()) {
+                    selector.select(getSelectTimeout());
+                } else {
+                    selector.selectNow();
+                }
+
+                takeSelectedKeys(ready);
+                addPendingRegistrations(ready);
+                takeWakeUps(ready);
+                takeExpiredRegistrations(ready, timedOut);
+
+                if (!ready.isEmpty() || !timedOut.isEmpty()) {
+                    // Deregisters the cancelled keys, so the channels can be switched back to blocking mode
+                    selector.selectNow();
+
+                    dispatch(ready, true);
+                    dispatch(timedOut, false);
+                    ready.clear();
+                    timedOut.clear();
+                }
+            } catch (IOException e) {
+                Timber.e(e, "Error while waiting for IMAP push connections");
+            }
+        }
+    }
+
+    private long getSelectTimeout() {
+        if (registrations.isEmpty()) {
+            // Wait until woken up
+            return 0;
+        }
+
+        long now = System.nanoTime();
+        long earliestTimeout = Long.MAX_VALUE;
+        for (Registration registration : registrations) {
+            earliestTimeout = Math.min(earliestTimeout, registration.deadline - now);
+        }
+
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(earliestTimeout) + 1);
+    }
+
+    private void takeSelectedKeys(List<Registration> ready) {
+        Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+        while (iterator.hasNext()) {
+            SelectionKey selectionKey = iterator.next();
+            iterator.remove();
+
+            Registration registration = (Registration) selectionKey.attachment();
+            if (remove(registration)) {
+                ready.add(registration);
+            }
+        }
+    }
+
+    private void addPendingRegistrations(List<Registration> ready) {
+        Registration registration;
+        while ((registration = pendingRegistrations.poll()) != null) {
+            if (registration.channel != null) {
+                try {
+                    registration.selectionKey = registration.channel.register(selector, SelectionKey.OP_READ,
+                            registration);
+                } catch (ClosedChannelException e) {
+                    // The listener will find out the connection was closed
+                    ready.add(registration);
+                    continue;
+                }
+
+                parkedConnectionCount.incrementAndGet();
+            }
+
+            registrations.add(registration);
+        }
+    }
+
+    private void takeWakeUps(List<Registration> ready) {
+        Registration registration;
+        while ((registration = pendingWakeUps.poll()) != null) {
+            if (remove(registration)) {
+                ready.add(registration);
+            }
+        }
+    }
+
+    private void takeExpiredRegistrations(List<Registration> ready, List<Registration> timedOut) {
+        long now = System.nanoTime();
+
+        List<Registration> closed = new ArrayList<>();
+        List<Registration> expired = new ArrayList<>();
+        for (Registration registration : registrations) {
+            if (registration.selectionKey != null && !registration.selectionKey.isValid()) {
+                closed.add(registration);
+            } else if (now - registration.deadline >= 0) {
+                expired.add(registration);
+            }
+        }
+
+        for (Registration registration : closed) {
+            remove(registration);
+            ready.add(registration);
+        }
+
+        for (Registration registration : expired) {
+            remove(registration);
+            timedOut.add(registration);
+        }
+    }
+
+    private boolean remove(Registration registration) {
+        if (!registrations.remove(registration)) {
+            return false;
+        }
+
+        if (registration.selectionKey != null) {
+            registration.selectionKey.cancel();
+            parkedConnectionCount.decrementAndGet();
+        }
+
+        return true;
+    }
+
+    private void dispatch(List<Registration> registrations, final boolean ready) {
+        for (final Registration registration : registrations) {
+            if (registration.channel != null) {
+                try {
+                    registration.channel.configureBlocking(true);
+                } catch (IOException e) {
+                    // The channel was closed. The listener will find out when using the connection.
+                }
+            }
+
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (ready) {
+                        registration.listener.onReady();
+                    } else {
+                        registration.listener.onTimeout();
+                    }
+                }
+            });
+        }
+    }
+
+
+    interface Listener {
+        /**
+         * Called when the parked connection can be read from or was closed, or when
+         * {@link ImapPushEngine#wakeUp(Registration)} was called.
+         */
+        void onReady();
+
+        /**
+         * Called when the timeout passed first.
+         */
+        void onTimeout();
+    }
+
+    static class Registration {
+        private final SocketChannel channel;
+        private final long deadline;
+        private final Listener listener;
+        private SelectionKey selectionKey;
+
+
+        private Registration(SocketChannel channel, long timeoutMillis, Listener listener) {
+            this.channel = channel;
+            this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            this.listener = listener;
+        }
+    }
+}
@@ -0,0 +1,428 @@
+package com.fsck.k9.mail.store.imap;
+
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import com.fsck.k9.mail.AuthenticationFailedException;
+import com.fsck.k9.mail.K9MailLib;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.PushReceiver;
+import com.fsck.k9.mail.power.TracingPowerManager.TracingWakeLock;
+import timber.log.Timber;
+
+import static com.fsck.k9.mail.K9MailLib.PUSH_WAKE_LOCK_TIMEOUT;
+import static com.fsck.k9.mail.store.imap.ImapResponseParser.equalsIgnoreCase;
+
+
+/**
+ * Keeps a connection in IDLE using {@link ImapPushEngine}, and reconnects with an increasing delay after errors.
+ * <p>
+ * Subclasses do the work before each {@code IDLE} in {@link #prepareIdle()} and get the untagged responses received
+ * while idling passed to {@link #handleAsyncUntaggedResponse(ImapResponse)}. That work may block for long, so it runs
+ * on the engine's connect threads. Only the responses to {@code IDLE} are read on its worker threads. The loop never
+ * runs on more than one thread at a time. While the server doesn't send anything the connection is parked and no
+ * thread is used at all.
+ * </p>
+ */
+abstract class ImapPushLoop implements UntaggedHandler {
+    private static final int IDLE_READ_TIMEOUT_INCREMENT = 5 * 60 * 1000;
+    private static final int IDLE_FAILURE_COUNT_LIMIT = 10;
+    private static final int MAX_DELAY_TIME = 5 * 60 * 1000; // 5 minutes
+    private static final int NORMAL_DELAY_TIME = 5000;
+    private static final int WAIT_FOR_INPUT_TIMEOUT = 1000;
+
+
+    private final ImapPushEngine engine = ImapPushEngine.getInstance();
+    private final ImapStore store;
+    private final PushReceiver pushReceiver;
+    private final TracingWakeLock wakeLock;
+    private final IdleStopper idleStopper;
+    private final String pushName;
+    private final Object registrationLock = new Object();
+    private volatile boolean stop = false;
+    private volatile boolean idling = false;
+
+    // Guarded by registrationLock
+    private ImapPushEngine.Registration parkedConnection;
+    private ImapPushEngine.Registration pendingRetry;
+
+    // Only used by the thread currently running the loop
+    private int delayTime = NORMAL_DELAY_TIME;
+    private int idleFailureCount = 0;
+    private ImapConnection idleConnection;
+    private String idleTag;
+    private List<ImapResponse> idleResponses;
+
+    private final ImapPushEngine.Listener idleListener = new ImapPushEngine.Listener() {
+        @Override
+        public void onReady() {
+            synchronized (registrationLock) {
+                parkedConnection = null;
+            }
+
+            continueIdle(true);
+        }
+
+        @Override
+        public void onTimeout() {
+            synchronized (registrationLock) {
+                parkedConnection = null;
+            }
+
+            if (!retryAfterError(new SocketTimeoutException("Timeout while idling"))) {
+                finishLoop();
+            }
+        }
+    };
+
+    private final ImapPushEngine.Listener retryListener = new ImapPushEngine.Listener() {
+        @Override
+        public void onReady() {
+            retry();
+        }
+
+        @Override
+        public void onTimeout() {
+            retry();
+        }
+
+        private void retry() {
+            synchronized (registrationLock) {
+                pendingRetry = null;
+            }
+
+            wakeLock.acquire(PUSH_WAKE_LOCK_TIMEOUT);
+            continueOnConnectThread(null);
+        }
+    };
+
+
+    ImapPushLoop(ImapStore store, PushReceiver pushReceiver, TracingWakeLock wakeLock, IdleStopper idleStopper,
+            String pushName) {
+        this.store = store;
+        this.pushReceiver = pushReceiver;
+        this.wakeLock = wakeLock;
+        this.idleStopper = idleStopper;
+        this.pushName = pushName;
+    }
+
+    final void start() {
+        wakeLock.acquire(PUSH_WAKE_LOCK_TIMEOUT);
+
+        if (K9MailLib.isDebug()) {
+            Timber.i("Pusher starting for %s", getLogId());
+        }
+
+        continueOnConnectThread(null);
+    }
+
+    /**
+     * Ends the loop. When called from another thread, the caller has to close the connection to abort what the loop
+     * is currently doing.
+     */
+    final void stop() {
+        ImapPushEngine.Registration registration;
+        synchronized (registrationLock) {
+            stop = true;
+            registration = (parkedConnection != null) ? parkedConnection : pendingRetry;
+        }
+
+        if (registration != null) {
+            engine.wakeUp(registration);
+        }
+    }
+
+    final void refresh() {
+        if (idling) {
+            wakeLock.acquire(PUSH_WAKE_LOCK_TIMEOUT);
+            idleStopper.stopIdle();
+            return;
+        }
+
+        // Unlike the alarms used by the periodic refresh, the engine's timers don't wake up the device. So don't
+        // rely on them to retry after an error.
+        ImapPushEngine.Registration retry;
+        synchronized (registrationLock) {
+            retry = pendingRetry;
+        }
+
+        if (retry != null) {
+            engine.wakeUp(retry);
+        }
+    }
+
+    final boolean isStopped() {
+        return stop;
+    }
+
+    /**
+     * Does the work necessary before the next {@code IDLE}.
+     *
+     * @return The connection to send {@code IDLE} on, or {@code null} to start over right away.
+     */
+    abstract ImapConnection prepareIdle() throws IOException, MessagingException;
+
+    /**
+     * Called with all responses after {@code IDLE} completed successfully.
+     */
+    abstract void idleCompleted(List<ImapResponse> responses) throws MessagingException;
+
+    /**
+     * Resets the state of the pusher after an error, e.g. by closing the connection.
+     */
+    abstract void cleanUp();
+
+    /**
+     * Called once when the loop ends.
+     */
+    abstract void finish();
+
+    abstract String getLogId();
+
+    private void continueOnConnectThread(final ImapResponse idleCompletedResponse) {
+        engine.executeBlocking(new Runnable() {
+            @Override
+            public void run() {
+                prepareAndSendIdle(idleCompletedResponse);
+            }
+        });
+    }
+
+    /**
+     * Does the work up to sending the next {@code IDLE} on a connect thread, then leaves reading the responses to a
+     * worker.
+     *
+     * @param idleCompletedResponse
+     *         The tagged response of the previous {@code IDLE}, or {@code null}.
+     */
+    private void prepareAndSendIdle(ImapResponse idleCompletedResponse) {
+        try {
+            if (idleCompletedResponse != null) {
+                completeIdle(idleCompletedResponse);
+            }
+
+            while (!stop) {
+                ImapConnection connection = prepareIdle();
+                if (connection != null && !stop) {
+                    sendIdle(connection);
+                    continueOnWorker();
+                    return;
+                }
+            }
+        } catch (Exception e) {
+            if (retryAfterError(e)) {
+                return;
+            }
+        }
+
+        finishLoop();
+    }
+
+    private void continueOnWorker() {
+        engine.execute(new Runnable() {
+            @Override
+            public void run() {
+                // The server usually didn't answer yet, so park the connection right away
+                continueIdle(false);
+            }
+        });
+    }
+
+    private void continueIdle(boolean expectInput) {
+        try {
+            if (readIdleResponses(expectInput)) {
+                return;
+            }
+        } catch (Exception e) {
+            if (retryAfterError(e)) {
+                return;
+            }
+        }
+
+        finishLoop();
+    }
+
+    private void sendIdle(ImapConnection connection) throws IOException, MessagingException {
+        idling = true;
+
+        connection.setReadTimeout(getIdleReadTimeout());
+        idleTag = connection.sendCommand(Commands.IDLE, false);
+        idleConnection = connection;
+        idleResponses = new ArrayList<>();
+    }
+
+    /**
+     * Reads the responses to {@code IDLE} as long as the server keeps sending them.
+     *
+     * @param expectInput
+     *         {@code true} if the server is expected to have sent something. Otherwise the connection is parked right
+     *         away unless there's buffered input.
+     *
+     * @return {@code true} if the connection was parked to wait for the server, or {@code IDLE} completed and the
+     *         loop continues on a connect thread. {@code false} if the loop was stopped.
+     */
+    private boolean readIdleResponses(boolean expectInput) throws IOException, MessagingException {
+        ImapConnection connection = idleConnection;
+        while (!stop) {
+            boolean inputAvailable = (expectInput || connection.hasBufferedInput()) &&
+                    connection.waitForInput(WAIT_FOR_INPUT_TIMEOUT);
+            if (!inputAvailable) {
+                return park(connection);
+            }
+
+            expectInput = false;
+
+            connection.setReadTimeout(getIdleReadTimeout());
+            ImapResponse response = connection.readResponse();
+
+            String tag = response.getTag();
+            if (tag == null) {
+                handleAsyncUntaggedResponse(response);
+                idleResponses.add(response);
+            } else if (tag.equalsIgnoreCase(idleTag)) {
+                continueOnConnectThread(response);
+                return true;
+            } else {
+                Timber.w("After sending tag %s, got tag response from previous command %s for %s",
+                        idleTag, response, getLogId());
+                removeResponsesOfPreviousCommand();
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Same as {@link ImapResponseParser#readStatusResponse(String, String, String, UntaggedHandler)} does when it
+     * gets the tagged response of a previous command.
+     */
+    private void removeResponsesOfPreviousCommand() {
+        Iterator<ImapResponse> iterator = idleResponses.iterator();
+        while (iterator.hasNext()) {
+            ImapResponse response = iterator.next();
+            if (response.size() < 2 || (!equalsIgnoreCase(response.get(1), Responses.EXISTS) &&
+                    !equalsIgnoreCase(response.get(1), Responses.EXPUNGE))) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private boolean park(ImapConnection connection) throws IOException {
+        SocketChannel channel = connection.getSelectableChannel();
+        if (channel == null) {
+            throw new IOException("Connection was closed");
+        }
+
+        synchronized (registrationLock) {
+            if (stop) {
+                return false;
+            }
+
+            parkedConnection = engine.park(channel, getIdleReadTimeout(), idleListener);
+        }
+
+        if (K9MailLib.isDebug()) {
+            Timber.v("Parked connection for %s, %d connections parked", getLogId(),
+                    engine.getParkedConnectionCount());
+        }
+
+        return true;
+    }
+
+    private void completeIdle(ImapResponse response) throws MessagingException {
+        List<ImapResponse> responses = idleResponses;
+        responses.add(response);
+        resetIdleState();
+
+        if (response.size() < 1 || !equalsIgnoreCase(response.get(0), Responses.OK)) {
+            String message = "Command: " + Commands.IDLE + "; response: " + response.toString();
+            throw new NegativeImapResponseException(message, responses);
+        }
+
+        idleCompleted(responses);
+
+        delayTime = NORMAL_DELAY_TIME;
+        idleFailureCount = 0;
+    }
+
+    private void resetIdleState() {
+        idleStopper.stopAcceptingDoneContinuation();
+        idling = false;
+        idleConnection = null;
+        idleTag = null;
+        idleResponses = null;
+    }
+
+    /**
+     * @return {@code true} if another attempt was scheduled. {@code false} if the loop ends.
+     */
+    private boolean retryAfterError(Exception e) {
+        wakeLock.acquire(PUSH_WAKE_LOCK_TIMEOUT);
+        resetIdleState();
+        cleanUp();
+
+        if (e instanceof AuthenticationFailedException) {
+            if (K9MailLib.isDebug()) {
+                Timber.e(e, "Authentication failed. Stopping pusher for %s", getLogId());
+            }
+
+            pushReceiver.authenticationFailed();
+            stop = true;
+            return false;
+        }
+
+        if (stop) {
+            Timber.i("Got exception while idling, but stop is set for %s", getLogId());
+            return false;
+        }
+
+        pushReceiver.pushError("Push error for " + pushName, e);
+        Timber.e(e, "Got exception while idling for %s", getLogId());
+
+        idleFailureCount++;
+        if (idleFailureCount > IDLE_FAILURE_COUNT_LIMIT) {
+            Timber.e("Disabling pusher for %s after %d consecutive errors", getLogId(), idleFailureCount);
+            pushReceiver.pushError("Push disabled for " + pushName + " after " + idleFailureCount +
+                    " consecutive errors", e);
+            stop = true;
+            return false;
+        }
+
+        synchronized (registrationLock) {
+            if (stop) {
+                return false;
+            }
+
+            pendingRetry = engine.schedule(delayTime, retryListener);
+        }
+
+        delayTime = Math.min(delayTime * 2, MAX_DELAY_TIME);
+        wakeLock.release();
+
+        return true;
+    }
+
+    private void finishLoop() {
+        resetIdleState();
+
+        if (K9MailLib.isDebug()) {
+            Timber.i("Pusher for %s is exiting", getLogId());
+        }
+
+        try {
+            finish();
+        } finally {
+            wakeLock.release();
+        }
+    }
+
+    private int getIdleReadTimeout() {
+        int idleRefreshTimeout = store.getStoreConfig().getIdleRefreshMinutes() * 60 * 1000;
+        return idleRefreshTimeout + IDLE_READ_TIMEOUT_INCREMENT;
+    }
+}
@@ -10,11 +10,16 @@ import com.fsck.k9.mail.Pusher;
 import timber.log.Timber;
 
 
+/**
+ * Pushes several folders over a single connection using {@link ImapNotifyPusher} when possible. Otherwise every folder
+ * gets an {@link ImapFolderPusher} with a connection of its own.
+ */
 class ImapPusher implements Pusher {
     private final ImapStore store;
     private final PushReceiver pushReceiver;
 
     private final List<ImapFolderPusher> folderPushers = new ArrayList<>();
+    private ImapNotifyPusher notifyPusher;
 
     private long lastRefresh = -1;
 
@@ -31,18 +36,46 @@ class ImapPusher implements Pusher {
 
             setLastRefresh(currentTimeMillis());
 
-            for (String folderName : folderNames) {
-                ImapFolderPusher pusher = createImapFolderPusher(folderName);
-                folderPushers.add(pusher);
+            if (folderNames.size() > 1 && !store.isNotifyUnavailable()) {
+                notifyPusher = createImapNotifyPusher(folderNames);
+                notifyPusher.start();
+            } else {
+                startFolderPushers(folderNames);
+            }
+        }
+    }
 
-                pusher.start();
+    /**
+     * Called by {@code pusher} when the server turned out not to support NOTIFY.
+     */
+    void startFolderPushersInsteadOf(ImapNotifyPusher pusher) {
+        synchronized (folderPushers) {
+            if (notifyPusher != pusher) {
+                // Pushing was stopped or restarted in the meantime
+                return;
             }
+
+            notifyPusher = null;
+            startFolderPushers(pusher.getFolderIds());
+        }
+    }
+
+    private void startFolderPushers(List<String> folderNames) {
+        for (String folderName : folderNames) {
+            ImapFolderPusher pusher = createImapFolderPusher(folderName);
+            folderPushers.add(pusher);
+
+            pusher.start();
         }
     }
 
     @Override
     public void refresh() {
         synchronized (folderPushers) {
+            if (notifyPusher != null) {
+                notifyPusher.refresh();
+            }
+
             for (ImapFolderPusher folderPusher : folderPushers) {
                 try {
                     folderPusher.refresh();
@@ -60,6 +93,16 @@ class ImapPusher implements Pusher {
         }
 
         synchronized (folderPushers) {
+            if (notifyPusher != null) {
+                try {
+                    notifyPusher.stop();
+                } catch (Exception e) {
+                    Timber.e(e, "Got exception while stopping NOTIFY pusher");
+                }
+
+                notifyPusher = null;
+            }
+
             for (ImapFolderPusher folderPusher : folderPushers) {
                 try {
                     if (K9MailLib.isDebug()) {
@@ -95,6 +138,10 @@ class ImapPusher implements Pusher {
         return new ImapFolderPusher(store, folderName, pushReceiver);
     }
 
+    ImapNotifyPusher createImapNotifyPusher(List<String> folderNames) {
+        return new ImapNotifyPusher(store, this, folderNames, pushReceiver);
+    }
+
     long currentTimeMillis() {
         return System.currentTimeMillis();
     }
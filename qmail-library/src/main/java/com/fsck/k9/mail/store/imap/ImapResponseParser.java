@@ -3,8 +3,10 @@ package com.fsck.k9.mail.store.imap;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import com.fsck.k9.mail.K9MailLib;
 import com.fsck.k9.mail.filter.FixedLengthInputStream;
@@ -15,9 +17,17 @@ import static com.fsck.k9.mail.K9MailLib.DEBUG_PROTOCOL_IMAP;
 
 
 class ImapResponseParser {
+    /**
+     * Literals up to this size are read using {@link #literalBuffer}. Larger ones are rare (callbacks handle message
+     * bodies) and get a buffer of their own, so a single huge literal doesn't pin memory for the parser's lifetime.
+     */
+    private static final int MAX_RECYCLED_LITERAL_BUFFER_SIZE = 64 * 1024;
+
+
     private PeekableInputStream inputStream;
     private ImapResponse response;
     private Exception exception;
+    private byte[] literalBuffer;
 
 
     public ImapResponseParser(PeekableInputStream in) {
@@ -121,6 +131,76 @@ class ImapResponseParser {
         return responses;
     }
 
+    /**
+     * Reads the responses to a number of pipelined commands.
+     *
+     * <p>
+     * Untagged responses can't be associated with a command unambiguously. They are attributed to the oldest command
+     * that hasn't completed yet. All tagged responses are read before a failure is reported so the stream stays in
+     * sync.
+     * </p>
+     *
+     * @return The responses to each command, in the order of {@code tags}. The last response of every list is the
+     *         tagged status response.
+     */
+    List<List<ImapResponse>> readPipelinedStatusResponses(List<String> tags, List<String> commandsToLog, String logId)
+            throws IOException, NegativeImapResponseException {
+
+        int commandCount = tags.size();
+        List<List<ImapResponse>> responsesByCommand = new ArrayList<>(commandCount);
+        Map<String, Integer> commandIndexByTag = new HashMap<>();
+        for (int i = 0; i < commandCount; i++) {
+            responsesByCommand.add(new ArrayList<ImapResponse>());
+            commandIndexByTag.put(tags.get(i), i);
+        }
+
+        boolean[] completed = new boolean[commandCount];
+        int pendingCommands = commandCount;
+        int oldestPendingCommand = 0;
+        NegativeImapResponseException negativeResponse = null;
+
+        while (pendingCommands > 0) {
+            ImapResponse response = readResponse();
+
+            if (K9MailLib.isDebug() && DEBUG_PROTOCOL_IMAP) {
+                Timber.v("%s<<<%s", logId, response);
+            }
+
+            String tag = response.getTag();
+            if (tag == null) {
+                responsesByCommand.get(oldestPendingCommand).add(response);
+                continue;
+            }
+
+            Integer commandIndex = commandIndexByTag.get(tag);
+            if (commandIndex == null || completed[commandIndex]) {
+                Timber.w("After sending tags %s, got tag response from previous command %s for %s",
+                        tags, response, logId);
+                continue;
+            }
+
+            List<ImapResponse> responses = responsesByCommand.get(commandIndex);
+            responses.add(response);
+            completed[commandIndex] = true;
+            pendingCommands--;
+
+            while (oldestPendingCommand < commandCount - 1 && completed[oldestPendingCommand]) {
+                oldestPendingCommand++;
+            }
+
+            if (negativeResponse == null && (response.size() < 1 || !equalsIgnoreCase(response.get(0), Responses.OK))) {
+                String message = "Command: " + commandsToLog.get(commandIndex) + "; response: " + response.toString();
+                negativeResponse = new NegativeImapResponseException(message, responses);
+            }
+        }
+
+        if (negativeResponse != null) {
+            throw negativeResponse;
+        }
+
+        return responsesByCommand;
+    }
+
     private void readTokens(ImapResponse response) throws IOException {
         response.clear();
 
@@ -380,7 +460,7 @@ class ImapResponseParser {
             }
         }
 
-        byte[] data = new byte[size];
+        byte[] data = getLiteralBuffer(size);
         int read = 0;
         while (read != size) {
             int count = inputStream.read(data, read, size - read);
@@ -390,7 +470,23 @@ class ImapResponseParser {
             read += count;
         }
 
-        return new String(data, "US-ASCII");
+        return new String(data, 0, size, "US-ASCII");
+    }
+
+    private byte[] getLiteralBuffer(int size) {
+        if (size > MAX_RECYCLED_LITERAL_BUFFER_SIZE) {
+            return new byte[size];
+        }
+
+        if (literalBuffer == null || literalBuffer.length < size) {
+            int bufferSize = literalBuffer == null ? 1024 : literalBuffer.length;
+            while (bufferSize < size) {
+                bufferSize *= 2;
+            }
+            literalBuffer = new byte[Math.min(bufferSize, MAX_RECYCLED_LITERAL_BUFFER_SIZE)];
+        }
+
+        return literalBuffer;
     }
 
     private String parseQuoted() throws IOException {
@@ -5,13 +5,9 @@ import java.io.IOException;
 import java.nio.charset.CharacterCodingException;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Deque;
 import java.util.EnumSet;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 
 import android.net.ConnectivityManager;
@@ -54,16 +50,10 @@ public class ImapStore extends RemoteStore {
     private String pathPrefix;
     private String combinedPrefix = null;
     private String pathDelimiter = null;
-    private final Deque<ImapConnection> connections = new LinkedList<ImapConnection>();
+    private final ImapConnectionPool connectionPool;
     private FolderNameCodec folderNameCodec;
 
-    /**
-     * Cache of ImapFolder objects. ImapFolders are attached to a given folder on the server
-     * and as long as their associated connection remains open they are reusable between
-     * requests. This cache lets us make sure we always reuse, if possible, for a given
-     * folder name.
-     */
-    private final Map<String, ImapFolder> folderCache = new HashMap<String, ImapFolder>();
+    private volatile boolean notifyUnavailable = false;
 
 
     public static ImapStoreSettings decodeUri(String uri) {
@@ -101,20 +91,32 @@ public class ImapStore extends RemoteStore {
         pathPrefix = (settings.autoDetectNamespace) ? null : settings.pathPrefix;
 
         folderNameCodec = FolderNameCodec.newInstance();
+
+        connectionPool = new ImapConnectionPool(
+                new ImapConnectionPool.ConnectionFactory() {
+                    @Override
+                    public ImapConnection createConnection() {
+                        return createImapConnection();
+                    }
+                },
+                storeConfig.getMaxConnections(),
+                storeConfig.getConnectionValidationIdleSeconds() * 1000L,
+                storeConfig.getConnectionMaxIdleSeconds() * 1000L,
+                ImapConnectionPool.DEFAULT_BORROW_TIMEOUT_MILLIS);
     }
 
+    /**
+     * Returns a new {@link ImapFolder} instance on every call.
+     * <p>
+     * Folders may be synchronized concurrently, see {@link #getMaxConcurrentFolderSyncs()}, and pending commands for
+     * a folder may run while that folder is being synchronized. An open {@code ImapFolder} holds on to its connection,
+     * so sharing one instance would let one caller close the folder and release the connection the other is still
+     * using.
+     * </p>
+     */
     @Override
     @NonNull public ImapFolder getFolder(String folderId) {
-        ImapFolder folder;
-        synchronized (folderCache) {
-            folder = folderCache.get(folderId);
-            if (folder == null) {
-                folder = new ImapFolder(this, folderId);
-                folderCache.put(folderId, folder);
-            }
-        }
-
-        return folder;
+        return new ImapFolder(this, folderId);
     }
 
     String getCombinedPrefix() {
@@ -335,35 +337,18 @@ public class ImapStore extends RemoteStore {
     }
 
     ImapConnection getConnection() throws MessagingException {
-        ImapConnection connection;
-        while ((connection = pollConnection()) != null) {
-            try {
-                connection.executeSimpleCommand(Commands.NOOP);
-                break;
-            } catch (IOException ioe) {
-                connection.close();
-            }
-        }
-
-        if (connection == null) {
-            connection = createImapConnection();
-        }
-
-        return connection;
+        return connectionPool.borrow();
     }
 
-    private ImapConnection pollConnection() {
-        synchronized (connections) {
-            return connections.poll();
-        }
+    void releaseConnection(ImapConnection connection) {
+        connectionPool.release(connection);
     }
 
-    void releaseConnection(ImapConnection connection) {
-        if (connection != null && connection.isConnected()) {
-            synchronized (connections) {
-                connections.offer(connection);
-            }
-        }
+    /**
+     * @return Hit, miss, eviction and connect latency metrics of the connections used by this store.
+     */
+    public ImapConnectionPoolStats getConnectionPoolStats() {
+        return connectionPool.getStats();
     }
 
     ImapConnection createImapConnection() {
@@ -374,6 +359,20 @@ public class ImapStore extends RemoteStore {
                 oauthTokenProvider);
     }
 
+    /**
+     * @return A connection that can be parked by {@link ImapPushEngine} while idling.
+     */
+    ImapConnection createImapPushConnection() {
+        return new ImapConnection(
+                new StoreImapSettings(),
+                mTrustedSocketFactory,
+                connectivityManager,
+                oauthTokenProvider,
+                SOCKET_CONNECT_TIMEOUT,
+                SOCKET_READ_TIMEOUT,
+                true);
+    }
+
     FolderNameCodec getFolderNameCodec() {
         return folderNameCodec;
     }
@@ -409,6 +408,15 @@ public class ImapStore extends RemoteStore {
         return true;
     }
 
+    /**
+     * Every folder being synchronized holds on to a connection of its own. Leave one of the pool's connections for
+     * everything else, e.g. displaying a message while folders are being synchronized.
+     */
+    @Override
+    public int getMaxConcurrentFolderSyncs() {
+        return Math.max(1, connectionPool.getMaxSize() - 1);
+    }
+
     StoreConfig getStoreConfig() {
         return mStoreConfig;
     }
@@ -417,6 +425,18 @@ public class ImapStore extends RemoteStore {
         return permanentFlagsIndex;
     }
 
+    /**
+     * @return {@code true} if an earlier attempt showed that the server can't be used to watch several folders over
+     *         a single connection.
+     */
+    boolean isNotifyUnavailable() {
+        return notifyUnavailable;
+    }
+
+    void setNotifyUnavailable() {
+        notifyUnavailable = true;
+    }
+
     @Override
     public Pusher getPusher(PushReceiver receiver) {
         return new ImapPusher(this, receiver);
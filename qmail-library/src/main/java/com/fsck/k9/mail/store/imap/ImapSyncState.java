@@ -0,0 +1,58 @@
+package com.fsck.k9.mail.store.imap;
+
+
+import timber.log.Timber;
+
+
+/**
+ * The mod-sequence state of a mailbox as reported by a CONDSTORE capable server (RFC 7162).
+ *
+ * <p>
+ * A saved {@code highestModSeq} is only meaningful as long as the mailbox's {@code UIDVALIDITY} doesn't change.
+ * </p>
+ */
+class ImapSyncState {
+    private static final String UID_VALIDITY_PREFIX = "uidValidity=";
+    private static final String HIGHEST_MOD_SEQ_PREFIX = "highestModSeq=";
+    private static final String SEPARATOR = ";";
+
+
+    public final long uidValidity;
+    public final long highestModSeq;
+
+    /**
+     * @return The parsed sync state or {@code null} if {@code syncState} is missing or invalid.
+     */
+    public static ImapSyncState parse(String syncState) {
+        if (syncState == null) {
+            return null;
+        }
+
+        String[] parts = syncState.split(SEPARATOR);
+        if (parts.length != 2 || !parts[0].startsWith(UID_VALIDITY_PREFIX) ||
+                !parts[1].startsWith(HIGHEST_MOD_SEQ_PREFIX)) {
+            return null;
+        }
+
+        try {
+            long uidValidity = Long.parseLong(parts[0].substring(UID_VALIDITY_PREFIX.length()));
+            long highestModSeq = Long.parseLong(parts[1].substring(HIGHEST_MOD_SEQ_PREFIX.length()));
+
+            return new ImapSyncState(uidValidity, highestModSeq);
+        } catch (NumberFormatException e) {
+            Timber.e(e, "Unable to parse sync state %s", syncState);
+        }
+
+        return null;
+    }
+
+    public ImapSyncState(long uidValidity, long highestModSeq) {
+        this.uidValidity = uidValidity;
+        this.highestModSeq = highestModSeq;
+    }
+
+    @Override
+    public String toString() {
+        return UID_VALIDITY_PREFIX + uidValidity + SEPARATOR + HIGHEST_MOD_SEQ_PREFIX + highestModSeq;
+    }
+}
@@ -0,0 +1,346 @@
+package com.fsck.k9.mail.store.imap;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLEngineResult.Status;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLHandshakeException;
+import javax.net.ssl.SSLSession;
+
+
+/**
+ * TLS for a {@link SocketChannel} using an {@link SSLEngine}.
+ * <p>
+ * An {@link javax.net.ssl.SSLSocket} can't be registered with a {@link java.nio.channels.Selector}. This keeps the
+ * channel selectable so an idling connection can be parked by {@link ImapPushEngine}. Reads go through the input stream
+ * of {@link SocketChannel#socket()}, so they need the channel to be in blocking mode and respect the socket's read
+ * timeout. Writes work in both modes, see {@link ChannelOutputStream#writeFully(SocketChannel, ByteBuffer, int)}.
+ * </p>
+ */
+class SslEngineChannel {
+    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final int writeTimeout;
+    private final InputStream networkInputStream;
+    private final InputStream inputStream = new SslInputStream();
+    private final OutputStream outputStream = new SslOutputStream();
+    private final Object readLock = new Object();
+    private final Object writeLock = new Object();
+
+    // Guarded by readLock. Both buffers are kept ready for writing, i.e. the data is in [0, position).
+    private ByteBuffer networkInput;
+    private ByteBuffer applicationInput;
+    private boolean inputClosed = false;
+
+    // Guarded by writeLock
+    private ByteBuffer networkOutput;
+
+
+    SslEngineChannel(SocketChannel channel, SSLEngine engine, int writeTimeout) throws IOException {
+        this.channel = channel;
+        this.engine = engine;
+        this.writeTimeout = writeTimeout;
+        networkInputStream = channel.socket().getInputStream();
+
+        SSLSession session = engine.getSession();
+        networkInput = ByteBuffer.allocate(session.getPacketBufferSize());
+        applicationInput = ByteBuffer.allocate(session.getApplicationBufferSize());
+        networkOutput = ByteBuffer.allocate(session.getPacketBufferSize());
+    }
+
+    void startHandshake() throws IOException {
+        synchronized (readLock) {
+            engine.beginHandshake();
+
+            HandshakeStatus handshakeStatus = engine.getHandshakeStatus();
+            while (handshakeStatus != HandshakeStatus.FINISHED &&
+                    handshakeStatus != HandshakeStatus.NOT_HANDSHAKING) {
+                switch (handshakeStatus) {
+                    case NEED_TASK: {
+                        runDelegatedTasks();
+                        break;
+                    }
+                    case NEED_WRAP: {
+                        if (wrap(EMPTY_BUFFER).getStatus() == Status.CLOSED) {
+                            throw new SSLHandshakeException("Connection closed during handshake");
+                        }
+                        break;
+                    }
+                    case NEED_UNWRAP: {
+                        receiveHandshakeData();
+                        break;
+                    }
+                    default: {
+                        throw new SSLHandshakeException("Unexpected handshake status: " + handshakeStatus);
+                    }
+                }
+
+                handshakeStatus = engine.getHandshakeStatus();
+            }
+        }
+    }
+
+    InputStream getInputStream() {
+        return inputStream;
+    }
+
+    OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    private void receiveHandshakeData() throws IOException {
+        SSLEngineResult result = unwrap();
+        if (result.getStatus() == Status.CLOSED ||
+                result.getStatus() == Status.BUFFER_UNDERFLOW && readFromNetwork() == -1) {
+            throw new SSLHandshakeException("Connection closed during handshake");
+        }
+    }
+
+    private int readApplicationData(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+
+        synchronized (readLock) {
+            while (applicationInput.position() == 0) {
+                if (inputClosed) {
+                    return -1;
+                }
+
+                if (!unwrapReceivedData() && readFromNetwork() == -1) {
+                    closeInbound();
+                }
+            }
+
+            applicationInput.flip();
+            int count = Math.min(length, applicationInput.remaining());
+            applicationInput.get(buffer, offset, count);
+            applicationInput.compact();
+
+            return count;
+        }
+    }
+
+    private int availableApplicationData() throws IOException {
+        synchronized (readLock) {
+            if (applicationInput.position() == 0 && !inputClosed) {
+                unwrapReceivedData();
+            }
+
+            return applicationInput.position();
+        }
+    }
+
+    /**
+     * Unwraps the TLS records that were already received from the network.
+     *
+     * @return {@code true} if there's application data now or the peer closed the connection.
+     */
+    private boolean unwrapReceivedData() throws IOException {
+        while (networkInput.position() > 0) {
+            SSLEngineResult result = unwrap();
+            if (result.getStatus() == Status.CLOSED) {
+                inputClosed = true;
+                return true;
+            } else if (result.getStatus() == Status.BUFFER_UNDERFLOW) {
+                break;
+            }
+
+            continueHandshake(result.getHandshakeStatus());
+
+            if (applicationInput.position() > 0) {
+                return true;
+            } else if (result.bytesConsumed() == 0) {
+                break;
+            }
+        }
+
+        return applicationInput.position() > 0;
+    }
+
+    /**
+     * Unwraps one TLS record, growing the buffers as necessary.
+     */
+    private SSLEngineResult unwrap() throws SSLException {
+        while (true) {
+            SSLEngineResult result;
+            networkInput.flip();
+            try {
+                result = engine.unwrap(networkInput, applicationInput);
+            } finally {
+                networkInput.compact();
+            }
+
+            switch (result.getStatus()) {
+                case BUFFER_OVERFLOW: {
+                    int applicationBufferSize = engine.getSession().getApplicationBufferSize();
+                    applicationInput = ensureRemaining(applicationInput, applicationBufferSize);
+                    break;
+                }
+                case BUFFER_UNDERFLOW: {
+                    int packetBufferSize = engine.getSession().getPacketBufferSize();
+                    networkInput = ensureRemaining(networkInput, packetBufferSize - networkInput.position());
+                    return result;
+                }
+                default: {
+                    return result;
+                }
+            }
+        }
+    }
+
+    private int readFromNetwork() throws IOException {
+        if (!networkInput.hasRemaining()) {
+            networkInput = ensureRemaining(networkInput, engine.getSession().getPacketBufferSize());
+        }
+
+        // A SocketTimeoutException leaves the buffer untouched, so reading can simply be retried
+        int count = networkInputStream.read(networkInput.array(), networkInput.arrayOffset() + networkInput.position(),
+                networkInput.remaining());
+        if (count > 0) {
+            networkInput.position(networkInput.position() + count);
+        }
+
+        return count;
+    }
+
+    private void closeInbound() {
+        inputClosed = true;
+        try {
+            engine.closeInbound();
+        } catch (SSLException e) {
+            // The server didn't send close_notify. IMAP doesn't rely on that, so just treat this as end of stream.
+        }
+    }
+
+    private void writeApplicationData(byte[] buffer, int offset, int length) throws IOException {
+        ByteBuffer source = ByteBuffer.wrap(buffer, offset, length);
+        synchronized (writeLock) {
+            while (source.hasRemaining()) {
+                SSLEngineResult result = wrap(source);
+                if (result.getStatus() == Status.CLOSED) {
+                    throw new SSLException("Connection closed");
+                } else if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+                    runDelegatedTasks();
+                } else if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+                    throw new SSLException("Unexpected handshake while writing: " + result.getHandshakeStatus());
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends the handshake messages the engine produces after receiving post-handshake messages like a key update.
+     */
+    private void continueHandshake(HandshakeStatus handshakeStatus) throws IOException {
+        while (true) {
+            if (handshakeStatus == HandshakeStatus.NEED_TASK) {
+                runDelegatedTasks();
+                handshakeStatus = engine.getHandshakeStatus();
+            } else if (handshakeStatus == HandshakeStatus.NEED_WRAP) {
+                SSLEngineResult result = wrap(EMPTY_BUFFER);
+                if (result.getStatus() == Status.CLOSED) {
+                    return;
+                }
+                handshakeStatus = result.getHandshakeStatus();
+            } else {
+                return;
+            }
+        }
+    }
+
+    private SSLEngineResult wrap(ByteBuffer source) throws IOException {
+        synchronized (writeLock) {
+            while (true) {
+                networkOutput.clear();
+                SSLEngineResult result = engine.wrap(source, networkOutput);
+                if (result.getStatus() == Status.BUFFER_OVERFLOW) {
+                    int packetBufferSize = engine.getSession().getPacketBufferSize();
+                    networkOutput = ByteBuffer.allocate(Math.max(networkOutput.capacity() * 2, packetBufferSize));
+                    continue;
+                }
+
+                networkOutput.flip();
+                ChannelOutputStream.writeFully(channel, networkOutput, writeTimeout);
+
+                return result;
+            }
+        }
+    }
+
+    private void runDelegatedTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * Returns a buffer with the data of {@code buffer} and at least {@code remaining} bytes of space left.
+     */
+    private static ByteBuffer ensureRemaining(ByteBuffer buffer, int remaining) {
+        if (buffer.remaining() >= remaining) {
+            return buffer;
+        }
+
+        ByteBuffer newBuffer = ByteBuffer.allocate(buffer.position() + remaining);
+        buffer.flip();
+        newBuffer.put(buffer);
+
+        return newBuffer;
+    }
+
+
+    private class SslInputStream extends InputStream {
+        @Override
+        public int read() throws IOException {
+            byte[] buffer = new byte[1];
+            int count = readApplicationData(buffer, 0, 1);
+
+            return (count == -1) ? -1 : buffer[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            return readApplicationData(buffer, offset, length);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return availableApplicationData();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    private class SslOutputStream extends OutputStream {
+        @Override
+        public void write(int oneByte) throws IOException {
+            writeApplicationData(new byte[] { (byte) oneByte }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            writeApplicationData(buffer, offset, length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
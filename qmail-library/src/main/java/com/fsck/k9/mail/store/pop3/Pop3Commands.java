@@ -19,6 +19,7 @@ class Pop3Commands {
     static final String STLS_CAPABILITY = "STLS";
     static final String UIDL_CAPABILITY = "UIDL";
     static final String TOP_CAPABILITY = "TOP";
+    static final String PIPELINING_CAPABILITY = "PIPELINING";
     static final String SASL_CAPABILITY = "SASL";
     static final String AUTH_PLAIN_CAPABILITY = "PLAIN";
     static final String AUTH_CRAM_MD5_CAPABILITY = "CRAM-MD5";
@@ -216,6 +216,8 @@ class Pop3Connection {
                     capabilities.uidl = true;
                 } else if (response.equals(TOP_CAPABILITY)) {
                     capabilities.top = true;
+                } else if (response.equals(PIPELINING_CAPABILITY)) {
+                    capabilities.pipelining = true;
                 } else if (response.startsWith(SASL_CAPABILITY)) {
                     List<String> saslAuthMechanisms = Arrays.asList(response.split(" "));
                     if (saslAuthMechanisms.contains(AUTH_PLAIN_CAPABILITY)) {
@@ -333,6 +335,31 @@ class Pop3Connection {
         return executeSimpleCommand(command, false);
     }
 
+    /**
+     * Sends all commands in one go without waiting for the responses (RFC 2449, section 6.6).
+     * <p>
+     * The caller has to read one response per command, e.g. by calling {@code executeSimpleCommand(null)}. Only use
+     * this if {@link #supportsPipelining()} returns {@code true}.
+     * </p>
+     */
+    void sendPipelinedCommands(List<String> commands) throws MessagingException {
+        try {
+            for (String command : commands) {
+                if (K9MailLib.isDebug() && DEBUG_PROTOCOL_POP3) {
+                    Timber.d(">>> %s", command);
+                }
+
+                out.write(command.getBytes());
+                out.write('\r');
+                out.write('\n');
+            }
+            out.flush();
+        } catch (IOException e) {
+            close();
+            throw new MessagingException("Unable to execute POP3 command", e);
+        }
+    }
+
     private String executeSimpleCommand(String command, boolean sensitive) throws MessagingException {
         try {
             if (command != null) {
@@ -427,6 +454,10 @@ class Pop3Connection {
         this.topNotAdvertised = topNotAdvertised;
     }
 
+    boolean supportsPipelining() {
+        return capabilities.pipelining;
+    }
+
     boolean supportsUidl() {
         return this.capabilities.uidl;
     }
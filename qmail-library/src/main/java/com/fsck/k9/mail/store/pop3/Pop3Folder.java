@@ -31,11 +31,17 @@ import static com.fsck.k9.mail.store.pop3.Pop3Commands.*;
  * POP3 only supports one folder, "Inbox". So the folder name is the ID here.
  */
 class Pop3Folder extends Folder<Pop3Message> {
+    /**
+     * The maximum number of commands sent to the server before reading the responses when pipelining.
+     */
+    private static final int PIPELINE_WINDOW_SIZE = 50;
+
     private Pop3Store pop3Store;
     private Map<String, Pop3Message> uidToMsgMap = new HashMap<>();
     @SuppressLint("UseSparseArrays")
     private Map<Integer, Pop3Message> msgNumToMsgMap = new HashMap<>();
     private Map<String, Integer> uidToMsgNumMap = new HashMap<>();
+    private Set<String> deletedUids = new HashSet<>();
     private String name;
     private int messageCount;
     private Pop3Connection connection;
@@ -74,6 +80,76 @@ class Pop3Folder extends Folder<Pop3Message> {
         uidToMsgMap.clear();
         msgNumToMsgMap.clear();
         uidToMsgNumMap.clear();
+        deletedUids.clear();
+
+        restoreUidIndex();
+    }
+
+    /**
+     * Pre-fills the message number index with the unique-id listing saved at the end of the last session.
+     * <p>
+     * Only the UID of the last saved message is checked with the server. If it still has the same message number, no
+     * message before it was removed and the whole saved listing is still valid. Messages that arrived since then have
+     * higher message numbers and are indexed on demand. If the check fails we fall back to the full listing.
+     * </p>
+     */
+    private void restoreUidIndex() throws MessagingException {
+        Pop3UidIndex uidIndex = pop3Store.getUidIndex();
+        if (uidIndex == null) {
+            return;
+        }
+
+        List<String> uids = uidIndex.load();
+        int savedMessageCount = uids.size();
+        if (savedMessageCount == 0 || savedMessageCount > messageCount) {
+            return;
+        }
+
+        String lastUid = uids.get(savedMessageCount - 1);
+        try {
+            String response = connection.executeSimpleCommand(UIDL_COMMAND + " " + savedMessageCount);
+            // response = "+OK msgNum msgUid"
+            String[] uidParts = response.split(" +");
+            if (uidParts.length < 3 || !lastUid.equals(uidParts[2])) {
+                if (K9MailLib.isDebug() && DEBUG_PROTOCOL_POP3) {
+                    Timber.d("Saved UID index is outdated, expected %s for msgNum %d", lastUid, savedMessageCount);
+                }
+                return;
+            }
+        } catch (Pop3ErrorResponse e) {
+            Timber.w(e, "Unable to verify saved UID index");
+            return;
+        }
+
+        for (int i = 0; i < savedMessageCount; i++) {
+            indexMessage(i + 1, new Pop3Message(uids.get(i), this));
+        }
+    }
+
+    /**
+     * Saves the indexed messages with consecutive message numbers starting at 1, minus the messages that were deleted
+     * in this session. Must only be called after the server confirmed {@code QUIT}, i.e. after the deletions took
+     * effect and the remaining messages were renumbered.
+     */
+    private void saveUidIndex() {
+        Pop3UidIndex uidIndex = pop3Store.getUidIndex();
+        if (uidIndex == null || msgNumToMsgMap.get(1) == null) {
+            return;
+        }
+
+        List<String> uids = new ArrayList<>();
+        for (int msgNum = 1; msgNum <= messageCount; msgNum++) {
+            Pop3Message message = msgNumToMsgMap.get(msgNum);
+            if (message == null) {
+                break;
+            }
+
+            if (!deletedUids.contains(message.getUid())) {
+                uids.add(message.getUid());
+            }
+        }
+
+        uidIndex.save(uids);
     }
 
     @Override
@@ -91,6 +167,7 @@ class Pop3Folder extends Folder<Pop3Message> {
         try {
             if (isOpen()) {
                 connection.executeSimpleCommand(QUIT_COMMAND);
+                saveUidIndex();
             }
         } catch (Exception e) {
             /*
@@ -214,62 +291,120 @@ class Pop3Folder extends Folder<Pop3Message> {
              * In extreme cases we'll do a UIDL command per message instead of a bulk
              * download.
              */
+            if (connection.supportsPipelining()) {
+                indexMsgNumsPipelined(start, end);
+                return;
+            }
+
             for (int msgNum = start; msgNum <= end; msgNum++) {
                 Pop3Message message = msgNumToMsgMap.get(msgNum);
                 if (message == null) {
                     String response = connection.executeSimpleCommand(UIDL_COMMAND + " " + msgNum);
-                    // response = "+OK msgNum msgUid"
-                    String[] uidParts = response.split(" +");
-                    if (uidParts.length < 3 || !"+OK".equals(uidParts[0])) {
+                    if (!indexUidlResponse(response)) {
                         Timber.e("ERR response: %s", response);
                         return;
                     }
-                    String msgUid = uidParts[2];
-                    message = new Pop3Message(msgUid, this);
-                    indexMessage(msgNum, message);
                 }
             }
         } else {
-            connection.executeSimpleCommand(UIDL_COMMAND);
-            String response;
-            while ((response = connection.readLine()) != null) {
-                if (response.equals(".")) {
-                    break;
+            indexAllMessages();
+        }
+    }
+
+    private void indexMsgNumsPipelined(int start, int end) throws MessagingException {
+        List<String> commands = new ArrayList<>();
+        for (int msgNum = start; msgNum <= end; msgNum++) {
+            if (msgNumToMsgMap.get(msgNum) == null) {
+                commands.add(UIDL_COMMAND + " " + msgNum);
+            }
+        }
+
+        connection.sendPipelinedCommands(commands);
+
+        // Read all responses, even after an error response, so the connection stays usable
+        Pop3ErrorResponse errorResponse = null;
+        for (int i = 0, count = commands.size(); i < count; i++) {
+            try {
+                String response = connection.executeSimpleCommand(null);
+                if (!indexUidlResponse(response)) {
+                    Timber.e("ERR response: %s", response);
                 }
+            } catch (Pop3ErrorResponse e) {
+                if (errorResponse == null) {
+                    errorResponse = e;
+                }
+            }
+        }
+
+        if (errorResponse != null) {
+            throw errorResponse;
+        }
+    }
 
+    /**
+     * Indexes the message from a response to a {@code UIDL msgNum} command.
+     *
+     * @return {@code false} if the response is malformed.
+     */
+    private boolean indexUidlResponse(String response) {
+        // response = "+OK msgNum msgUid"
+        String[] uidParts = response.split(" +");
+        if (uidParts.length < 3 || !"+OK".equals(uidParts[0])) {
+            return false;
+        }
+
+        int msgNum = Integer.parseInt(uidParts[1]);
+        String msgUid = uidParts[2];
+        indexMessage(msgNum, new Pop3Message(msgUid, this));
+        return true;
+    }
+
+    /**
+     * Indexes all messages in the maildrop using a full unique-id listing.
+     */
+    private void indexAllMessages() throws MessagingException, IOException {
+        connection.executeSimpleCommand(UIDL_COMMAND);
+        String response;
+        while ((response = connection.readLine()) != null) {
+            if (response.equals(".")) {
+                break;
+            }
+
+            /*
+             * Yet another work-around for buggy server software:
+             * split the response into message number and unique identifier, no matter how many spaces it has
+             *
+             * Example for a malformed response:
+             * 1   2011071307115510400ae3e9e00bmu9
+             *
+             * Note the three spaces between message number and unique identifier.
+             * See issue 3546
+             */
+
+            String[] uidParts = response.split(" +");
+            if ((uidParts.length >= 3) && "+OK".equals(uidParts[0])) {
                 /*
-                 * Yet another work-around for buggy server software:
-                 * split the response into message number and unique identifier, no matter how many spaces it has
-                 *
-                 * Example for a malformed response:
-                 * 1   2011071307115510400ae3e9e00bmu9
+                 * At least one server software places a "+OK" in
+                 * front of every line in the unique-id listing.
                  *
-                 * Note the three spaces between message number and unique identifier.
-                 * See issue 3546
+                 * Fix up the array if we detected this behavior.
+                 * See Issue 1237
                  */
+                uidParts[0] = uidParts[1];
+                uidParts[1] = uidParts[2];
+            }
 
-                String[] uidParts = response.split(" +");
-                if ((uidParts.length >= 3) && "+OK".equals(uidParts[0])) {
-                    /*
-                     * At least one server software places a "+OK" in
-                     * front of every line in the unique-id listing.
-                     *
-                     * Fix up the array if we detected this behavior.
-                     * See Issue 1237
-                     */
-                    uidParts[0] = uidParts[1];
-                    uidParts[1] = uidParts[2];
-                }
-                if (uidParts.length >= 2) {
-                    Integer msgNum = Integer.valueOf(uidParts[0]);
-                    String msgUid = uidParts[1];
-                    if (msgNum >= start && msgNum <= end) {
-                        Pop3Message message = msgNumToMsgMap.get(msgNum);
-                        if (message == null) {
-                            message = new Pop3Message(msgUid, this);
-                            indexMessage(msgNum, message);
-                        }
+            // Ignore messages without a unique-id
+            if (uidParts.length >= 2) {
+                Integer msgNum = Integer.valueOf(uidParts[0]);
+                String msgUid = uidParts[1];
+                Pop3Message message = msgNumToMsgMap.get(msgNum);
+                if (message == null || !message.getUid().equals(msgUid)) {
+                    message = uidToMsgMap.get(msgUid);
+                    if (message == null) {
+                        message = new Pop3Message(msgUid, this);
                     }
+                    indexMessage(msgNum, message);
                 }
             }
         }
@@ -294,31 +429,7 @@ class Pop3Folder extends Folder<Pop3Message> {
          * get them is to do a full UIDL list. A possible optimization
          * would be trying UIDL for the latest X messages and praying.
          */
-        connection.executeSimpleCommand(UIDL_COMMAND);
-        String response;
-        while ((response = connection.readLine()) != null) {
-            if (response.equals(".")) {
-                break;
-            }
-            String[] uidParts = response.split(" +");
-
-            // Ignore messages without a unique-id
-            if (uidParts.length >= 2) {
-                Integer msgNum = Integer.valueOf(uidParts[0]);
-                String msgUid = uidParts[1];
-                if (unindexedUids.contains(msgUid)) {
-                    if (K9MailLib.isDebug() && DEBUG_PROTOCOL_POP3) {
-                        Timber.d("Got msgNum %d for UID %s", msgNum, msgUid);
-                    }
-
-                    Pop3Message message = uidToMsgMap.get(msgUid);
-                    if (message == null) {
-                        message = new Pop3Message(msgUid, this);
-                    }
-                    indexMessage(msgNum, message);
-                }
-            }
-        }
+        indexAllMessages();
     }
 
     private void indexMessage(int msgNum, Pop3Message message) {
@@ -365,6 +476,16 @@ class Pop3Folder extends Folder<Pop3Message> {
         } catch (IOException ioe) {
             throw new MessagingException("fetch", ioe);
         }
+        boolean fetchBodies = fp.contains(FetchProfile.Item.BODY) || fp.contains(FetchProfile.Item.BODY_SANE);
+        if (fetchBodies && messages.size() > 1 && connection.supportsPipelining()) {
+            int lines = fp.contains(FetchProfile.Item.BODY) ? -1 : getSaneBodyLines();
+
+            // If we still have to find out whether TOP works, we have to send the commands one by one
+            if (lines == -1 || connection.supportsTop() || connection.isTopNotAdvertised()) {
+                fetchBodiesPipelined(messages, lines, fp, listener);
+                return;
+            }
+        }
         for (int i = 0, count = messages.size(); i < count; i++) {
             Pop3Message pop3Message = messages.get(i);
             try {
@@ -374,16 +495,7 @@ class Pop3Folder extends Folder<Pop3Message> {
                 if (fp.contains(FetchProfile.Item.BODY)) {
                     fetchBody(pop3Message, -1);
                 } else if (fp.contains(FetchProfile.Item.BODY_SANE)) {
-                    /*
-                     * To convert the suggested download size we take the size
-                     * divided by the maximum line size (76).
-                     */
-                    if (pop3Store.getConfig().getMaximumAutoDownloadMessageSize() > 0) {
-                        fetchBody(pop3Message,
-                                  (pop3Store.getConfig().getMaximumAutoDownloadMessageSize() / 76));
-                    } else {
-                        fetchBody(pop3Message, -1);
-                    }
+                    fetchBody(pop3Message, getSaneBodyLines());
                 } else if (fp.contains(FetchProfile.Item.STRUCTURE)) {
                     /*
                      * If the user is requesting STRUCTURE we are required to set the body
@@ -400,6 +512,68 @@ class Pop3Folder extends Folder<Pop3Message> {
         }
     }
 
+    private int getSaneBodyLines() {
+        /*
+         * To convert the suggested download size we take the size
+         * divided by the maximum line size (76).
+         */
+        int maximumAutoDownloadMessageSize = pop3Store.getConfig().getMaximumAutoDownloadMessageSize();
+        return (maximumAutoDownloadMessageSize > 0) ? maximumAutoDownloadMessageSize / 76 : -1;
+    }
+
+    /**
+     * Fetches the bodies of the given messages by sending the {@code RETR} or {@code TOP} commands for up to
+     * {@link #PIPELINE_WINDOW_SIZE} messages at once and then reading the responses back-to-back.
+     * <p>
+     * Must only be used if the server supports pipelining and we already know whether it supports TOP.
+     * </p>
+     */
+    private void fetchBodiesPipelined(List<Pop3Message> messages, int lines, FetchProfile fp,
+            MessageRetrievalListener<Pop3Message> listener) throws MessagingException {
+        boolean useTop = lines != -1 && connection.supportsTop();
+        for (int windowStart = 0, count = messages.size(); windowStart < count; windowStart += PIPELINE_WINDOW_SIZE) {
+            int windowEnd = Math.min(count, windowStart + PIPELINE_WINDOW_SIZE);
+
+            List<String> commands = new ArrayList<>(windowEnd - windowStart);
+            for (int i = windowStart; i < windowEnd; i++) {
+                Integer msgNum = uidToMsgNumMap.get(messages.get(i).getUid());
+                if (useTop) {
+                    commands.add(String.format(Locale.US, TOP_COMMAND + " %d %d", msgNum, lines));
+                } else {
+                    commands.add(String.format(Locale.US, RETR_COMMAND + " %d", msgNum));
+                }
+            }
+
+            connection.sendPipelinedCommands(commands);
+
+            try {
+                for (int i = windowStart; i < windowEnd; i++) {
+                    Pop3Message pop3Message = messages.get(i);
+                    if (listener != null && !fp.contains(FetchProfile.Item.ENVELOPE)) {
+                        listener.messageStarted(pop3Message.getUid(), i, count);
+                    }
+
+                    connection.executeSimpleCommand(null);
+                    parseBody(pop3Message, lines);
+
+                    if (listener != null && !(fp.contains(FetchProfile.Item.ENVELOPE) && fp.size() == 1)) {
+                        listener.messageFinished(pop3Message, i, count);
+                    }
+                }
+            } catch (IOException | MessagingException e) {
+                /*
+                 * The responses to the remaining commands of this window are still on their way. Rather than trying
+                 * to skip them we drop the connection. The folder will reconnect the next time it is opened.
+                 */
+                connection.close();
+                if (e instanceof MessagingException) {
+                    throw (MessagingException) e;
+                }
+                throw new MessagingException("Unable to fetch message", e);
+            }
+        }
+    }
+
     private void fetchEnvelope(List<Pop3Message> messages,
                                MessageRetrievalListener<Pop3Message> listener)  throws IOException, MessagingException {
         int unsizedMessages = 0;
@@ -508,8 +682,13 @@ class Pop3Folder extends Folder<Pop3Message> {
                                  uidToMsgNumMap.get(message.getUid())));
         }
 
+        parseBody(message, lines);
+    }
+
+    private void parseBody(Pop3Message message, int lines) throws IOException, MessagingException {
+        Pop3ResponseInputStream in = new Pop3ResponseInputStream(connection.getInputStream());
         try {
-            message.parse(new Pop3ResponseInputStream(connection.getInputStream()));
+            message.parse(in);
 
             // TODO: if we've received fewer lines than requested we also have the complete message.
             if (lines == -1 || !connection.supportsTop()) {
@@ -526,6 +705,9 @@ class Pop3Folder extends Folder<Pop3Message> {
                 throw me;
             }
         }
+
+        // Skip what the parser left unread, e.g. after a broken message, before reading the next response
+        in.skipRemaining();
     }
 
     @Override
@@ -582,6 +764,7 @@ class Pop3Folder extends Folder<Pop3Message> {
             }
             open(Folder.OPEN_MODE_RW);
             connection.executeSimpleCommand(String.format(DELE_COMMAND + " %s", msgNum));
+            deletedUids.add(message.getUid());
         }
     }
 
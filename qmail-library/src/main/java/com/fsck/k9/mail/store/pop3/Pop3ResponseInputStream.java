@@ -33,4 +33,13 @@ class Pop3ResponseInputStream extends InputStream {
 
         return d;
     }
+
+    /**
+     * Skips what is left of the response, so the next response starts at the beginning of a line.
+     */
+    void skipRemaining() throws IOException {
+        while (read() != -1) {
+            // Do nothing
+        }
+    }
 }
@@ -9,6 +9,7 @@ import com.fsck.k9.mail.ssl.TrustedSocketFactory;
 import com.fsck.k9.mail.store.RemoteStore;
 import com.fsck.k9.mail.store.StoreConfig;
 
+import java.io.File;
 import java.net.*;
 import java.util.ArrayList;
 import java.util.LinkedList;
@@ -167,10 +168,21 @@ public class Pop3Store extends RemoteStore {
     private final String clientCertificateAlias;
     private final AuthType authType;
     private final ConnectionSecurity connectionSecurity;
+    private final Pop3UidIndex uidIndex;
 
     private Map<String, Pop3Folder> mFolders = new HashMap<String, Pop3Folder>();
 
     public Pop3Store(StoreConfig storeConfig, TrustedSocketFactory socketFactory) throws MessagingException {
+        this(storeConfig, socketFactory, null);
+    }
+
+    /**
+     * @param uidIndexFile
+     *         The file used to remember the server's unique-id listing between sessions. {@code null} to always
+     *         download the full listing.
+     */
+    public Pop3Store(StoreConfig storeConfig, TrustedSocketFactory socketFactory, File uidIndexFile)
+            throws MessagingException {
         super(storeConfig, socketFactory);
 
         ServerSettings settings;
@@ -187,6 +199,7 @@ public class Pop3Store extends RemoteStore {
         password = settings.password;
         clientCertificateAlias = settings.clientCertificateAlias;
         authType = settings.authenticationType;
+        uidIndex = (uidIndexFile != null) ? new Pop3UidIndex(uidIndexFile) : null;
     }
 
     @Override
@@ -234,6 +247,10 @@ public class Pop3Store extends RemoteStore {
         return mStoreConfig;
     }
 
+    Pop3UidIndex getUidIndex() {
+        return uidIndex;
+    }
+
     public Pop3Connection createConnection() throws MessagingException {
         return new Pop3Connection(new StorePop3Settings(), mTrustedSocketFactory);
     }
@@ -0,0 +1,112 @@
+package com.fsck.k9.mail.store.pop3;
+
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.fsck.k9.mail.K9MailLib;
+import org.apache.commons.io.IOUtils;
+import timber.log.Timber;
+
+import static com.fsck.k9.mail.K9MailLib.DEBUG_PROTOCOL_POP3;
+
+
+/**
+ * Remembers the unique-id listing of a POP3 mailbox between sessions.
+ * <p>
+ * The UID at list index {@code i} belongs to message number {@code i + 1}. POP3 servers number the messages in a
+ * maildrop in the order they arrived and renumber them without gaps after messages were deleted. So as long as no
+ * other client removed messages, the saved listing is still a prefix of the listing the server would return in the
+ * next session.
+ * </p>
+ */
+class Pop3UidIndex {
+    private static final String HEADER = "POP3-UIDL-INDEX 1";
+    private static final String CHARSET = "UTF-8";
+
+
+    private final File file;
+
+
+    Pop3UidIndex(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @return The saved UIDs ordered by message number. An empty list if nothing was saved or the file is unusable.
+     */
+    synchronized List<String> load() {
+        if (!file.exists()) {
+            return Collections.emptyList();
+        }
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), CHARSET));
+            if (!HEADER.equals(reader.readLine())) {
+                Timber.w("Ignoring POP3 UID index with unknown format: %s", file);
+                return Collections.emptyList();
+            }
+
+            List<String> uids = new ArrayList<>();
+            String uid;
+            while ((uid = reader.readLine()) != null) {
+                if (uid.isEmpty()) {
+                    Timber.w("Ignoring corrupt POP3 UID index: %s", file);
+                    return Collections.emptyList();
+                }
+                uids.add(uid);
+            }
+            return uids;
+        } catch (IOException e) {
+            Timber.w(e, "Unable to read POP3 UID index: %s", file);
+            return Collections.emptyList();
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+    }
+
+    /**
+     * Replaces the saved UIDs. The file is written to a temporary file first, so a crash can't leave a truncated
+     * listing behind.
+     */
+    synchronized void save(List<String> uids) {
+        File tempFile = new File(file.getPath() + ".tmp");
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), CHARSET));
+            writer.write(HEADER);
+            writer.write('\n');
+            for (String uid : uids) {
+                writer.write(uid);
+                writer.write('\n');
+            }
+            writer.close();
+            writer = null;
+
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Unable to rename " + tempFile + " to " + file);
+            }
+
+            if (K9MailLib.isDebug() && DEBUG_PROTOCOL_POP3) {
+                Timber.d("Saved POP3 UID index with %d entries", uids.size());
+            }
+        } catch (IOException e) {
+            Timber.w(e, "Unable to write POP3 UID index: %s", file);
+            IOUtils.closeQuietly(writer);
+            if (tempFile.exists() && !tempFile.delete()) {
+                Timber.w("Unable to delete %s", tempFile);
+            }
+        }
+    }
+}
@@ -4,6 +4,7 @@ package com.fsck.k9.mail.transport.smtp;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.Inet6Address;
@@ -59,6 +60,7 @@ import static com.fsck.k9.mail.K9MailLib.DEBUG_PROTOCOL_SMTP;
 public class SmtpTransport extends Transport {
     private static final int SMTP_CONTINUE_REQUEST = 334;
     private static final int SMTP_AUTHENTICATION_FAILURE_ERROR_CODE = 535;
+    private static final int BDAT_CHUNK_SIZE = 64 * 1024;
 
 
     private final TrustedSocketFactory trustedSocketFactory;
@@ -81,6 +83,9 @@ public class SmtpTransport extends Transport {
     private int largestAcceptableMessage;
     private boolean retryXoauthWithNewToken;
     private boolean isPipeliningSupported;
+    private boolean isChunkingSupported;
+    private boolean isSessionActive;
+    private int savedHandshakeCount;
 
 
     public SmtpTransport(StoreConfig storeConfig, TrustedSocketFactory trustedSocketFactory,
@@ -169,6 +174,7 @@ public class SmtpTransport extends Transport {
             is8bitEncodingAllowed = extensions.containsKey("8BITMIME");
             isEnhancedStatusCodesProvided = extensions.containsKey("ENHANCEDSTATUSCODES");
             isPipeliningSupported = extensions.containsKey("PIPELINING");
+            isChunkingSupported = extensions.containsKey("CHUNKING");
 
             if (connectionSecurity == ConnectionSecurity.STARTTLS_REQUIRED) {
                 if (extensions.containsKey("STARTTLS")) {
@@ -418,20 +424,64 @@ public class SmtpTransport extends Transport {
         }
     }
 
-    private void sendMessageTo(List<String> addresses, Message message)
-            throws MessagingException {
+    /**
+     * Keeps the authenticated connection open between messages until {@link #endSession()} is called.
+     * <p>
+     * Instead of reconnecting, each further transaction starts with {@code RSET}. If that fails, e.g. because the
+     * server closed an idle connection, a new connection is opened.
+     * </p>
+     */
+    @Override
+    public void beginSession() {
+        isSessionActive = true;
+        savedHandshakeCount = 0;
+    }
+
+    @Override
+    public void endSession() {
+        isSessionActive = false;
         close();
-        open();
 
-        // If the message has attachments and our server has told us about a limit on
-        // the size of messages, count the message's size before sending it
-        if (largestAcceptableMessage > 0 && message.hasAttachments()) {
-            if (message.calculateSize() > largestAcceptableMessage) {
-                throw new MessagingException("Message too large for server", true);
+        if (K9MailLib.isDebug() && savedHandshakeCount > 0) {
+            Timber.d("Reused SMTP connection to %s %d times", host, savedHandshakeCount);
+        }
+    }
+
+    /**
+     * @return The number of connection setups (TCP, TLS and authentication) avoided by reusing the connection in the
+     * current or last session.
+     */
+    public int getSavedHandshakeCount() {
+        return savedHandshakeCount;
+    }
+
+    private void openOrResetConnection() throws MessagingException {
+        if (isSessionActive && socket != null) {
+            try {
+                executeCommand("RSET");
+                savedHandshakeCount++;
+                return;
+            } catch (IOException | MessagingException e) {
+                Timber.i(e, "Unable to reuse SMTP connection. Reconnecting.");
             }
         }
 
+        close();
+        open();
+    }
+
+    private void sendMessageTo(List<String> addresses, Message message)
+            throws MessagingException {
+        openOrResetConnection();
+
+        // Only use a size that is already known. Calculating it would mean encoding the message twice. Otherwise
+        // the size limit is enforced while the message is being sent.
+        if (largestAcceptableMessage > 0 && message.getSize() > largestAcceptableMessage) {
+            throw new MessagingException("Message too large for server", true);
+        }
+
         boolean entireMessageSent = false;
+        boolean transactionCompleted = false;
 
         try {
             String mailFrom = constructSmtpMailFromCommand(message.getFrom(), is8bitEncodingAllowed);
@@ -444,7 +494,9 @@ public class SmtpTransport extends Transport {
                     pipelinedCommands.add(String.format("RCPT TO:<%s>", address));
                 }
 
-                pipelinedCommands.add("DATA");
+                if (!isChunkingSupported) {
+                    pipelinedCommands.add("DATA");
+                }
                 executePipelinedCommands(pipelinedCommands);
                 readPipelinedResponse(pipelinedCommands);
             } else {
@@ -454,30 +506,57 @@ public class SmtpTransport extends Transport {
                     executeCommand("RCPT TO:<%s>", address);
                 }
 
-                executeCommand("DATA");
+                if (!isChunkingSupported) {
+                    executeCommand("DATA");
+                }
             }
 
-            EOLConvertingOutputStream msgOut = new EOLConvertingOutputStream(
-                    new LineWrapOutputStream(new SmtpDataStuffing(outputStream), 1000));
+            if (isChunkingSupported) {
+                BdatOutputStream bdatOut = new BdatOutputStream();
+                writeMessage(message, bdatOut);
 
-            message.writeTo(msgOut);
-            msgOut.endWithCrLfAndFlush();
+                entireMessageSent = true; // After "BDAT <size> LAST" is attempted, we may have sent the message
+                bdatOut.sendLastChunk();
+            } else {
+                writeMessage(message, new SmtpDataStuffing(outputStream));
 
-            entireMessageSent = true; // After the "\r\n." is attempted, we may have sent the message
-            executeCommand(".");
+                entireMessageSent = true; // After the "\r\n." is attempted, we may have sent the message
+                executeCommand(".");
+            }
+            transactionCompleted = true;
         } catch (NegativeSmtpReplyException e) {
             throw e;
+        } catch (BdatChunkRejectedException e) {
+            throw e.negativeReply;
+        } catch (MessageTooLargeException e) {
+            throw new MessagingException("Message too large for server", true);
         } catch (Exception e) {
             MessagingException me = new MessagingException("Unable to send message", e);
             me.setPermanentFailure(entireMessageSent);
 
             throw me;
         } finally {
-            close();
+            // After a failed transaction we don't know what state the server is in, so don't reuse the connection
+            if (!isSessionActive || !transactionCompleted) {
+                close();
+            }
         }
 
     }
 
+    /**
+     * Writes the message in a single pass, enforcing the server's size limit along the way.
+     */
+    private void writeMessage(Message message, OutputStream out) throws IOException, MessagingException {
+        if (largestAcceptableMessage > 0) {
+            out = new SizeLimitingOutputStream(out, largestAcceptableMessage);
+        }
+
+        EOLConvertingOutputStream msgOut = new EOLConvertingOutputStream(new LineWrapOutputStream(out, 1000));
+        message.writeTo(msgOut);
+        msgOut.endWithCrLfAndFlush();
+    }
+
     private static String constructSmtpMailFromCommand(Address[] from, boolean is8bitEncodingAllowed) {
         String fromAddress = from[0].getAddress();
         if (is8bitEncodingAllowed) {
@@ -544,6 +623,129 @@ public class SmtpTransport extends Transport {
         outputStream.flush();
     }
 
+    /**
+     * Sends the message using {@code BDAT} commands (RFC 3030) in chunks of {@link #BDAT_CHUNK_SIZE} bytes.
+     * <p>
+     * Unlike {@code DATA} the message doesn't need to be dot-stuffed, because the size of each chunk is announced up
+     * front. If the server supports {@code PIPELINING}, the chunks are sent without waiting for the server's replies.
+     * Those are all read after the last chunk.
+     * </p>
+     */
+    private class BdatOutputStream extends OutputStream {
+        private final byte[] buffer = new byte[BDAT_CHUNK_SIZE];
+        private int count;
+        private int pendingReplies;
+
+
+        @Override
+        public void write(int oneByte) throws IOException {
+            if (count == buffer.length) {
+                sendChunk(false);
+            }
+            buffer[count++] = (byte) oneByte;
+        }
+
+        @Override
+        public void write(byte[] b, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (count == buffer.length) {
+                    sendChunk(false);
+                }
+
+                int bytesToCopy = Math.min(length, buffer.length - count);
+                System.arraycopy(b, offset, buffer, count, bytesToCopy);
+                count += bytesToCopy;
+                offset += bytesToCopy;
+                length -= bytesToCopy;
+            }
+        }
+
+        void sendLastChunk() throws IOException {
+            sendChunk(true);
+        }
+
+        private void sendChunk(boolean last) throws IOException {
+            String command = last ? "BDAT " + count + " LAST" : "BDAT " + count;
+            if (K9MailLib.isDebug() && DEBUG_PROTOCOL_SMTP) {
+                Timber.d("SMTP >>> %s", command);
+            }
+
+            outputStream.write(command.concat("\r\n").getBytes());
+            outputStream.write(buffer, 0, count);
+            outputStream.flush();
+            count = 0;
+            pendingReplies++;
+
+            if (isPipeliningSupported && !last) {
+                return;
+            }
+
+            // Once a chunk has been rejected, the server rejects all following chunks. Read those replies, too, so the
+            // connection is in a known state, but report the first rejection.
+            NegativeSmtpReplyException negativeReply = null;
+            try {
+                while (pendingReplies > 0) {
+                    pendingReplies--;
+                    try {
+                        executeCommand(null);
+                    } catch (NegativeSmtpReplyException e) {
+                        if (negativeReply == null) {
+                            negativeReply = e;
+                        }
+                    }
+                }
+            } catch (MessagingException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+
+            if (negativeReply != null) {
+                throw new BdatChunkRejectedException(negativeReply);
+            }
+        }
+    }
+
+    private static class BdatChunkRejectedException extends IOException {
+        private final NegativeSmtpReplyException negativeReply;
+
+        BdatChunkRejectedException(NegativeSmtpReplyException negativeReply) {
+            super(negativeReply.getMessage());
+            this.negativeReply = negativeReply;
+        }
+    }
+
+    private static class SizeLimitingOutputStream extends FilterOutputStream {
+        private final long limit;
+        private long count;
+
+
+        SizeLimitingOutputStream(OutputStream out, long limit) {
+            super(out);
+            this.limit = limit;
+        }
+
+        @Override
+        public void write(int oneByte) throws IOException {
+            checkLimit(1);
+            out.write(oneByte);
+        }
+
+        @Override
+        public void write(byte[] b, int offset, int length) throws IOException {
+            checkLimit(length);
+            out.write(b, offset, length);
+        }
+
+        private void checkLimit(int length) throws MessageTooLargeException {
+            count += length;
+            if (count > limit) {
+                throw new MessageTooLargeException();
+            }
+        }
+    }
+
+    private static class MessageTooLargeException extends IOException {
+    }
+
     private static class CommandResponse {
 
         private final int replyCode;
@@ -670,6 +872,10 @@ public class SmtpTransport extends Transport {
         }
 
         if (negativeRecipient != null) {
+            if (!pipelinedCommands.contains("DATA")) {
+                throw negativeRecipient;
+            }
+
             try {
                 executeCommand(".");
                 throw negativeRecipient;
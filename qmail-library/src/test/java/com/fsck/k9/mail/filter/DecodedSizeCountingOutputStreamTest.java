@@ -0,0 +1,78 @@
+package com.fsck.k9.mail.filter;
+
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class DecodedSizeCountingOutputStreamTest {
+    @Test
+    public void canCount_withQuotedPrintable_shouldReturnFalse() {
+        assertFalse(DecodedSizeCountingOutputStream.canCount("Quoted-Printable"));
+    }
+
+    @Test
+    public void canCount_withBase64AndIdentityEncodings_shouldReturnTrue() {
+        assertTrue(DecodedSizeCountingOutputStream.canCount("base64"));
+        assertTrue(DecodedSizeCountingOutputStream.canCount("7bit"));
+        assertTrue(DecodedSizeCountingOutputStream.canCount(null));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_withQuotedPrintable_shouldThrow() {
+        new DecodedSizeCountingOutputStream("quoted-printable");
+    }
+
+    @Test
+    public void write_with8bit_shouldCountAllBytes() throws IOException {
+        DecodedSizeCountingOutputStream outputStream = new DecodedSizeCountingOutputStream("8bit");
+
+        outputStream.write("Grüße\r\n".getBytes("UTF-8"));
+        outputStream.write('x');
+
+        assertEquals(10, outputStream.getCount());
+    }
+
+    @Test
+    public void write_withBase64_shouldCountDecodedBytes() throws IOException {
+        assertDecodedSize("", 0);
+        assertDecodedSize("YQ==", 1);
+        assertDecodedSize("YWI=", 2);
+        assertDecodedSize("YWJj", 3);
+        assertDecodedSize("YWJjZGVmZ2hpamtsbW5vcHFyc3R1dnd4eXo=", 26);
+    }
+
+    @Test
+    public void write_withBase64LineBreaks_shouldIgnoreThem() throws IOException {
+        assertDecodedSize("YWJj\r\nZGVm\r\nZw==\r\n", 7);
+    }
+
+    @Test
+    public void write_withBase64DataAfterPadding_shouldIgnoreIt() throws IOException {
+        assertDecodedSize("YQ==YWJj", 1);
+    }
+
+    @Test
+    public void write_withBase64WrittenByteByByte_shouldCountDecodedBytes() throws IOException {
+        DecodedSizeCountingOutputStream outputStream = new DecodedSizeCountingOutputStream("BASE64");
+
+        for (byte octet : Base64.encode("Hello, world!").getBytes("US-ASCII")) {
+            outputStream.write(octet);
+        }
+
+        assertEquals(13, outputStream.getCount());
+    }
+
+    private void assertDecodedSize(String base64, long expectedSize) throws IOException {
+        DecodedSizeCountingOutputStream outputStream = new DecodedSizeCountingOutputStream("base64");
+
+        outputStream.write(base64.getBytes("US-ASCII"));
+
+        assertEquals(expectedSize, outputStream.getCount());
+    }
+}
@@ -49,6 +49,11 @@ class TestMessage extends MimeMessage {
         return hasAttachments;
     }
 
+    @Override
+    public long getSize() {
+        return messageSize;
+    }
+
     @Override
     public long calculateSize() {
         return messageSize;
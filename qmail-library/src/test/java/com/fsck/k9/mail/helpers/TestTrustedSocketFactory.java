@@ -10,6 +10,7 @@ import java.security.cert.X509Certificate;
 import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.ssl.TrustedSocketFactory;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
 
@@ -31,10 +32,7 @@ public class TestTrustedSocketFactory implements TrustedSocketFactory {
     public Socket createSocket(Socket socket, String host, int port, String clientCertificateAlias)
             throws NoSuchAlgorithmException, KeyManagementException, MessagingException, IOException {
 
-        TrustManager[] trustManagers = new TrustManager[] { new VeryTrustingTrustManager(serverCertificate) };
-
-        SSLContext sslContext = SSLContext.getInstance("TLS");
-        sslContext.init(null, trustManagers, null);
+        SSLContext sslContext = createSslContext();
 
         SSLSocketFactory sslSocketFactory = sslContext.getSocketFactory();
         return sslSocketFactory.createSocket(
@@ -43,4 +41,23 @@ public class TestTrustedSocketFactory implements TrustedSocketFactory {
                 socket.getPort(),
                 true);
     }
+
+    @Override
+    public SSLEngine createSslEngine(String host, int port, String clientCertificateAlias)
+            throws NoSuchAlgorithmException, KeyManagementException, MessagingException {
+
+        SSLEngine sslEngine = createSslContext().createSSLEngine(host, port);
+        sslEngine.setUseClientMode(true);
+
+        return sslEngine;
+    }
+
+    private SSLContext createSslContext() throws NoSuchAlgorithmException, KeyManagementException {
+        TrustManager[] trustManagers = new TrustManager[] { new VeryTrustingTrustManager(serverCertificate) };
+
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(null, trustManagers, null);
+
+        return sslContext;
+    }
 }
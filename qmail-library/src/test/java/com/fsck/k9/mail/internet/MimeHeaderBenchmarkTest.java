@@ -0,0 +1,135 @@
+package com.fsck.k9.mail.internet;
+
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.util.Log;
+
+import com.fsck.k9.mail.K9LibRobolectricTestRunner;
+import com.fsck.k9.mail.Message.RecipientType;
+import com.fsck.k9.mail.message.MessageHeaderParser;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.shadows.ShadowLog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+
+/**
+ * Measures parsing a header block and reading the fields the envelope code looks at, for header blocks shaped like
+ * those of a direct message, a newsletter and a mailing list post with a long trace.
+ * <p>
+ * Excluded from the unit tests by the build. Run it with
+ * {@code ./gradlew :qmail-library:testDebugUnitTest -PrunBenchmarks
+ * --tests com.fsck.k9.mail.internet.MimeHeaderBenchmarkTest}.
+ * </p>
+ */
+@RunWith(K9LibRobolectricTestRunner.class)
+public class MimeHeaderBenchmarkTest {
+    private static final String LOG_TAG = "MimeHeaderBenchmark";
+    private static final int WARMUP_ITERATIONS = 500;
+    private static final int ITERATIONS = 5000;
+
+
+    private List<byte[]> corpus;
+
+
+    @Before
+    public void setUp() throws Exception {
+        ShadowLog.stream = System.out;
+        corpus = new ArrayList<>();
+        corpus.add(createHeaderBlock(3, 0, false));
+        corpus.add(createHeaderBlock(12, 2, false));
+        corpus.add(createHeaderBlock(40, 6, true));
+        corpus.add(createHeaderBlock(80, 12, true));
+    }
+
+    @Test
+    public void parseAndReadEnvelope() throws Exception {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            for (byte[] headerBlock : corpus) {
+                parseAndReadEnvelope(headerBlock);
+            }
+        }
+
+        for (byte[] headerBlock : corpus) {
+            long start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                parseAndReadEnvelope(headerBlock);
+            }
+            long nanosPerBlock = (System.nanoTime() - start) / ITERATIONS;
+
+            MimeMessage message = parseAndReadEnvelope(headerBlock);
+            Log.i(LOG_TAG, "Header block with " + message.getHeader("Received").length + " Received fields (" +
+                    headerBlock.length + " bytes): " + nanosPerBlock + " ns");
+        }
+    }
+
+    private static MimeMessage parseAndReadEnvelope(byte[] headerBlock) throws Exception {
+        MimeMessage message = new MimeMessage();
+        MessageHeaderParser.parse(message, new ByteArrayInputStream(headerBlock));
+
+        assertNotNull(message.getSubject());
+        assertEquals(1, message.getFrom().length);
+        message.getRecipients(RecipientType.TO);
+        message.getRecipients(RecipientType.CC);
+        message.getRecipients(RecipientType.BCC);
+        message.getReplyTo();
+        message.getSentDate();
+        message.getMessageId();
+        message.getReferences();
+        message.getMimeType();
+        message.getHeader("List-Post");
+        message.getHeader("List-Unsubscribe");
+        message.getHeader("Autocrypt");
+        message.getHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING);
+
+        return message;
+    }
+
+    private static byte[] createHeaderBlock(int receivedCount, int signatureCount, boolean mailingList) {
+        StringBuilder headers = new StringBuilder();
+        for (int i = 0; i < receivedCount; i++) {
+            headers.append("Received: from mx").append(i).append(".example.net (mx").append(i)
+                    .append(".example.net [192.0.2.").append(i % 250).append("])\r\n")
+                    .append("\tby relay").append(i + 1).append(".example.org with ESMTPS id x").append(i)
+                    .append("si123456qkb.").append(i).append("\r\n")
+                    .append("\tfor <list@example.org>; Tue, 12 Sep 2017 03:1").append(i % 10).append(":00 -0700\r\n");
+        }
+        for (int i = 0; i < signatureCount; i++) {
+            headers.append("ARC-Seal: i=").append(i + 1).append("; a=rsa-sha256; t=1505210400; cv=pass;\r\n")
+                    .append("\td=example.org; s=arc-20160816;\r\n")
+                    .append("\tb=YWJjZGVmZ2hpamtsbW5vcHFyc3R1dnd4eXphYmNkZWZnaGlqa2xtbm9wcXJzdHV2d3h5\r\n");
+            headers.append("ARC-Authentication-Results: i=").append(i + 1).append("; mx.example.org;\r\n")
+                    .append("\tdkim=pass header.i=@example.net header.s=s1 header.b=abcdef12;\r\n")
+                    .append("\tspf=pass smtp.mailfrom=list-bounces@example.net\r\n");
+            headers.append("DKIM-Signature: v=1; a=rsa-sha256; c=relaxed/relaxed; d=example.net; s=s").append(i)
+                    .append(";\r\n")
+                    .append("\th=from:to:subject:date:message-id:list-id;\r\n")
+                    .append("\tbh=MTIzNDU2Nzg5MDEyMzQ1Njc4OTAxMjM0NTY3ODkwMTI=;\r\n")
+                    .append("\tb=YWJjZGVmZ2hpamtsbW5vcHFyc3R1dnd4eXphYmNkZWZnaGlqa2xtbm9wcXJzdHV2d3h5\r\n");
+        }
+        headers.append("From: Alice <alice@example.net>\r\n");
+        headers.append("To: list@example.org\r\n");
+        headers.append("Subject: Re: [list] Benchmark\r\n");
+        headers.append("Date: Tue, 12 Sep 2017 12:00:00 +0200\r\n");
+        headers.append("Message-ID: <1234567890@example.net>\r\n");
+        headers.append("In-Reply-To: <1234567889@example.net>\r\n");
+        headers.append("References: <1234567880@example.net> <1234567889@example.net>\r\n");
+        headers.append("MIME-Version: 1.0\r\n");
+        headers.append("Content-Type: text/plain; charset=utf-8\r\n");
+        if (mailingList) {
+            headers.append("List-Id: Example list <list.example.org>\r\n");
+            headers.append("List-Post: <mailto:list@example.org>\r\n");
+            headers.append("List-Unsubscribe: <mailto:list-request@example.org?subject=unsubscribe>\r\n");
+            headers.append("Precedence: list\r\n");
+        }
+        headers.append("\r\n");
+
+        return headers.toString().getBytes();
+    }
+}
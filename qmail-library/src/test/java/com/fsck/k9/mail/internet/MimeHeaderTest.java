@@ -0,0 +1,70 @@
+package com.fsck.k9.mail.internet;
+
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+
+public class MimeHeaderTest {
+    @Test
+    public void getHeader_shouldIgnoreCaseOfName() {
+        MimeHeader header = new MimeHeader();
+        header.addRawHeader("Received", "Received: from a");
+        header.addHeader("Subject", "Hello");
+        header.addRawHeader("received", "received: from b");
+
+        assertArrayEquals(new String[] { "from a", "from b" }, header.getHeader("RECEIVED"));
+        assertEquals("Hello", header.getFirstHeader("subject"));
+    }
+
+    @Test
+    public void getFirstHeader_withMissingHeader_shouldReturnNull() {
+        MimeHeader header = new MimeHeader();
+        header.addHeader("Subject", "Hello");
+
+        assertNull(header.getFirstHeader("From"));
+        assertEquals(0, header.getHeader("From").length);
+    }
+
+    @Test
+    public void removeHeader_shouldKeepOrderOfRemainingFields() {
+        MimeHeader header = new MimeHeader();
+        header.addRawHeader("Received", "Received: from a");
+        header.addHeader("Subject", "Hello");
+        header.addRawHeader("RECEIVED", "RECEIVED: from b");
+        header.addHeader("To", "alice@example.com");
+
+        header.removeHeader("received");
+
+        assertEquals("Subject: Hello\r\nTo: alice@example.com\r\n", header.toString());
+        assertEquals(0, header.getHeader("Received").length);
+    }
+
+    @Test
+    public void setHeader_shouldReplaceAllFieldsWithName() {
+        MimeHeader header = new MimeHeader();
+        header.addHeader("Subject", "One");
+        header.addHeader("subject", "Two");
+
+        header.setHeader("SUBJECT", "Three");
+
+        assertArrayEquals(new String[] { "Three" }, header.getHeader("Subject"));
+    }
+
+    @Test
+    public void clone_shouldNotShareFields() {
+        MimeHeader header = new MimeHeader();
+        header.addHeader("Subject", "Hello");
+        MimeHeader clone = header.clone();
+
+        clone.removeHeader("Subject");
+        clone.addHeader("To", "alice@example.com");
+
+        assertEquals("Hello", header.getFirstHeader("Subject"));
+        assertNull(header.getFirstHeader("To"));
+        assertEquals("To: alice@example.com\r\n", clone.toString());
+    }
+}
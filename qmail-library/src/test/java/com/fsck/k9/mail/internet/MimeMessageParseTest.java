@@ -332,5 +332,38 @@ public class MimeMessageParseTest {
         assertEquals(new Address("<test@mail.com>"), xEnvelopeToAddresses[0]);
     }
 
+    @Test
+    public void parse_withBase64Body_shouldCountDecodedSize() throws Exception {
+        MimeMessage msg = parseWithoutRecurse(toStream(
+                "From: <adam@example.org>\r\n" +
+                        "Subject: Testmail\r\n" +
+                        "MIME-Version: 1.0\r\n" +
+                        "Content-type: application/octet-stream\r\n" +
+                        "Content-Transfer-Encoding: base64\r\n" +
+                        "\r\n" +
+                        "dGhpcyBpcyBzb21lIG1v\r\n" +
+                        "cmUgdGVzdCB0ZXh0Lg==\r\n"));
+
+        BinaryTempFileBody body = (BinaryTempFileBody) msg.getBody();
+
+        assertEquals("this is some more test text.".length(), body.getDecodedSize());
+    }
+
+    @Test
+    public void parse_withQuotedPrintableBody_shouldNotCountDecodedSize() throws Exception {
+        MimeMessage msg = parseWithoutRecurse(toStream(
+                "From: <adam@example.org>\r\n" +
+                        "Subject: Testmail\r\n" +
+                        "MIME-Version: 1.0\r\n" +
+                        "Content-type: text/plain\r\n" +
+                        "Content-Transfer-Encoding: quoted-printable\r\n" +
+                        "\r\n" +
+                        "gef=E4hrliche Umlaute"));
+
+        BinaryTempFileBody body = (BinaryTempFileBody) msg.getBody();
+
+        assertEquals(BinaryTempFileBody.DECODED_SIZE_UNKNOWN, body.getDecodedSize());
+    }
+
 
 }
@@ -0,0 +1,218 @@
+package com.fsck.k9.mail.store.ews;
+
+
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import com.fsck.k9.mail.Flag;
+import com.fsck.k9.mail.FolderChanges;
+import com.fsck.k9.mail.Message;
+import microsoft.exchange.webservices.data.core.ExchangeService;
+import microsoft.exchange.webservices.data.core.PropertySet;
+import microsoft.exchange.webservices.data.core.enumeration.misc.error.ServiceError;
+import microsoft.exchange.webservices.data.core.enumeration.service.SyncFolderItemsScope;
+import microsoft.exchange.webservices.data.core.enumeration.sync.ChangeType;
+import microsoft.exchange.webservices.data.core.exception.service.remote.ServiceResponseException;
+import microsoft.exchange.webservices.data.core.response.ServiceResponse;
+import microsoft.exchange.webservices.data.core.service.folder.Folder;
+import microsoft.exchange.webservices.data.core.service.item.EmailMessage;
+import microsoft.exchange.webservices.data.core.service.item.Item;
+import microsoft.exchange.webservices.data.property.complex.FolderId;
+import microsoft.exchange.webservices.data.property.complex.ItemId;
+import microsoft.exchange.webservices.data.search.FindItemsResults;
+import microsoft.exchange.webservices.data.search.ItemView;
+import microsoft.exchange.webservices.data.sync.ChangeCollection;
+import microsoft.exchange.webservices.data.sync.ItemChange;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.stubbing.OngoingStubbing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+
+public class EwsFolderTest {
+    private static final String FOLDER_ID = "AAMkADFolder";
+
+
+    private ExchangeService service;
+    private EwsFolder folder;
+
+
+    @Before
+    public void setUp() throws Exception {
+        service = mock(ExchangeService.class);
+        EwsStore store = mock(EwsStore.class);
+        when(store.getService()).thenReturn(service);
+
+        folder = new EwsFolder(store, FOLDER_ID);
+    }
+
+    @Test
+    public void getChangesSince_withoutSyncState_shouldReturnNull() throws Exception {
+        FolderChanges<Message> changes = folder.getChangesSince(null);
+
+        assertNull(changes);
+        verify(service, never()).syncFolderItems(any(FolderId.class), any(PropertySet.class),
+                any(Iterable.class), anyInt(), any(SyncFolderItemsScope.class), anyString());
+    }
+
+    @Test
+    public void getChangesSince_shouldReturnChangedAndRemovedMessages() throws Exception {
+        Date received = new Date(1500000000000L);
+        ChangeCollection<ItemChange> changes = changeCollection("state2", false,
+                createChange("new", received, false),
+                readFlagChange("read", true),
+                change(ChangeType.Delete, "deleted"));
+        whenSyncFolderItems("state1").thenReturn(changes);
+
+        FolderChanges<Message> folderChanges = folder.getChangesSince("state1");
+
+        List<Message> changedMessages = folderChanges.getChangedMessages();
+        assertEquals(2, changedMessages.size());
+        assertEquals("new", changedMessages.get(0).getUid());
+        assertFalse(changedMessages.get(0).isSet(Flag.SEEN));
+        assertEquals(received, changedMessages.get(0).getInternalDate());
+        assertEquals("read", changedMessages.get(1).getUid());
+        assertTrue(changedMessages.get(1).isSet(Flag.SEEN));
+        assertEquals(Collections.singletonList("deleted"), folderChanges.getRemovedUids());
+        assertEquals("state2", folder.getSyncState());
+    }
+
+    @Test
+    public void getChangesSince_withItemDeletedAfterChange_shouldOnlyReportRemoval() throws Exception {
+        whenSyncFolderItems("state1").thenReturn(changeCollection("state2", true,
+                readFlagChange("message", true)));
+        whenSyncFolderItems("state2").thenReturn(changeCollection("state3", false,
+                change(ChangeType.Delete, "message")));
+
+        FolderChanges<Message> folderChanges = folder.getChangesSince("state1");
+
+        assertTrue(folderChanges.getChangedMessages().isEmpty());
+        assertEquals(Collections.singletonList("message"), folderChanges.getRemovedUids());
+        assertEquals("state3", folder.getSyncState());
+    }
+
+    @Test
+    public void getChangesSince_withExpiredSyncState_shouldReturnNull() throws Exception {
+        ServiceResponse response = mock(ServiceResponse.class);
+        when(response.getErrorCode()).thenReturn(ServiceError.ErrorInvalidSyncStateData);
+        whenSyncFolderItems("expired").thenThrow(new ServiceResponseException(response));
+
+        FolderChanges<Message> changes = folder.getChangesSince("expired");
+
+        assertNull(changes);
+        assertNull(folder.getSyncState());
+    }
+
+    @Test
+    public void getMessages_afterGetChangesSince_shouldKeepSyncState() throws Exception {
+        whenSyncFolderItems("state1").thenReturn(changeCollection("state2", false));
+        openWithFolder(new FindItemsResults<Item>());
+        folder.getChangesSince("state1");
+
+        folder.getMessages(1, 10, null, null);
+
+        assertEquals("state2", folder.getSyncState());
+        verify(service, never()).syncFolderItems(any(FolderId.class), any(PropertySet.class),
+                any(Iterable.class), anyInt(), any(SyncFolderItemsScope.class), (String) isNull());
+    }
+
+    @Test
+    public void getMessages_withoutSyncState_shouldObtainCurrentSyncState() throws Exception {
+        whenSyncFolderItems(null).thenReturn(changeCollection("current", false));
+        openWithFolder(new FindItemsResults<Item>());
+
+        folder.getMessages(1, 10, null, null);
+
+        assertEquals("current", folder.getSyncState());
+    }
+
+    @Test
+    public void fetchChangedFlags_withBaseSyncStateOfLastChanges_shouldUseKnownReadStates() throws Exception {
+        whenSyncFolderItems("state1").thenReturn(changeCollection("state2", false, readFlagChange("read", true)));
+        folder.getChangesSince("state1");
+        EwsMessage message = new EwsMessage("read", folder);
+        EwsMessage unchangedMessage = new EwsMessage("unchanged", folder);
+
+        boolean result = folder.fetchChangedFlags(Arrays.<Message>asList(message, unchangedMessage),
+                "state1", null);
+
+        assertTrue(result);
+        assertTrue(message.isSet(Flag.SEEN));
+        assertFalse(unchangedMessage.isSet(Flag.SEEN));
+    }
+
+    @Test
+    public void fetchChangedFlags_withOtherSyncState_shouldReturnFalse() throws Exception {
+        whenSyncFolderItems("state1").thenReturn(changeCollection("state2", false));
+        folder.getChangesSince("state1");
+
+        boolean result = folder.fetchChangedFlags(Collections.<Message>emptyList(), "other", null);
+
+        assertFalse(result);
+    }
+
+    private OngoingStubbing<ChangeCollection<ItemChange>> whenSyncFolderItems(
+            String syncState) throws Exception {
+        return when(service.syncFolderItems(any(FolderId.class), any(PropertySet.class), any(Iterable.class),
+                anyInt(), any(SyncFolderItemsScope.class), eq(syncState)));
+    }
+
+    private void openWithFolder(FindItemsResults<Item> results) throws Exception {
+        Folder remoteFolder = mock(Folder.class);
+        when(remoteFolder.findItems(any(ItemView.class))).thenReturn(results);
+
+        Field field = EwsFolder.class.getDeclaredField("folder");
+        field.setAccessible(true);
+        field.set(folder, remoteFolder);
+    }
+
+    private static ChangeCollection<ItemChange> changeCollection(String syncState, boolean moreChangesAvailable,
+            ItemChange... changes) {
+        ChangeCollection<ItemChange> collection = new ChangeCollection<>();
+        for (ItemChange change : changes) {
+            collection.add(change);
+        }
+        collection.setSyncState(syncState);
+        collection.setMoreChangesAvailable(moreChangesAvailable);
+        return collection;
+    }
+
+    private static ItemChange createChange(String uid, Date received, boolean isRead) throws Exception {
+        EmailMessage item = mock(EmailMessage.class);
+        when(item.getIsRead()).thenReturn(isRead);
+        when(item.getDateTimeReceived()).thenReturn(received);
+
+        ItemChange change = change(ChangeType.Create, uid);
+        change.setServiceObject(item);
+        return change;
+    }
+
+    private static ItemChange readFlagChange(String uid, boolean isRead) throws Exception {
+        ItemChange change = change(ChangeType.ReadFlagChange, uid);
+        change.setIsRead(isRead);
+        return change;
+    }
+
+    private static ItemChange change(ChangeType changeType, String uid) throws Exception {
+        ItemChange change = new ItemChange();
+        change.setChangeType(changeType);
+        change.setId(new ItemId(uid));
+        return change;
+    }
+}
@@ -0,0 +1,68 @@
+package com.fsck.k9.mail.store.imap;
+
+
+import java.io.ByteArrayInputStream;
+import java.util.Collections;
+import java.util.Map;
+
+import com.fsck.k9.mail.K9LibRobolectricTestRunner;
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.filter.PeekableInputStream;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+
+
+@RunWith(K9LibRobolectricTestRunner.class)
+public class FetchBodyCallbackTest {
+    private ImapMessage message;
+    private FetchBodyCallback callback;
+
+
+    @Before
+    public void setUp() throws Exception {
+        message = new ImapMessage("1", null);
+        Map<String, Message> messageMap = Collections.<String, Message>singletonMap("1", message);
+        callback = new FetchBodyCallback(messageMap);
+    }
+
+    @Test
+    public void foundLiteral_withHeaderSection_shouldParseIntoMessage() throws Exception {
+        ImapResponseParser parser = createParser("* 1 FETCH (UID 1 BODY[HEADER.FIELDS (subject)] {18}\r\n" +
+                "Subject: Hello\r\n\r\n)\r\n");
+
+        ImapResponse response = parser.readResponse(callback);
+
+        ImapList fetchList = (ImapList) response.getKeyedValue("FETCH");
+        assertEquals(1, fetchList.getObject(fetchList.getKeyIndex("BODY") + 2));
+        assertEquals("Hello", message.getSubject());
+    }
+
+    @Test
+    public void foundLiteral_withOriginOctet_shouldParseIntoMessage() throws Exception {
+        ImapResponseParser parser = createParser("* 1 FETCH (UID 1 BODY[]<0> {18}\r\n" +
+                "Subject: Hello\r\n\r\n)\r\n");
+
+        parser.readResponse(callback);
+
+        assertEquals("Hello", message.getSubject());
+    }
+
+    @Test
+    public void foundLiteral_insideBodyStructure_shouldNotConsumeLiteral() throws Exception {
+        ImapResponseParser parser = createParser("* 1 FETCH (UID 1 BODYSTRUCTURE (\"TEXT\" \"PLAIN\" " +
+                "(\"NAME\" {8}\r\nfile.txt) NIL NIL \"7BIT\" 0 0))\r\n");
+
+        ImapResponse response = parser.readResponse(callback);
+
+        ImapList bodyStructure = ((ImapList) response.getKeyedValue("FETCH")).getKeyedList("BODYSTRUCTURE");
+        assertEquals("file.txt", bodyStructure.getList(2).getString(1));
+    }
+
+    private ImapResponseParser createParser(String response) {
+        ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(response.getBytes());
+        return new ImapResponseParser(new PeekableInputStream(byteArrayInputStream));
+    }
+}
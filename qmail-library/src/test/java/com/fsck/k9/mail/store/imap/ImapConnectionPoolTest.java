@@ -0,0 +1,238 @@
+package com.fsck.k9.mail.store.imap;
+
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import com.fsck.k9.mail.K9LibRobolectricTestRunner;
+import com.fsck.k9.mail.MessagingException;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+
+@RunWith(K9LibRobolectricTestRunner.class)
+public class ImapConnectionPoolTest {
+    private static final int MAX_SIZE = 2;
+
+
+    private Deque<ImapConnection> newConnections = new ArrayDeque<>();
+    private long now = 1000L;
+    private ImapConnectionPool pool;
+
+
+    @Before
+    public void setUp() throws Exception {
+        pool = new ImapConnectionPool(new ImapConnectionPool.ConnectionFactory() {
+            @Override
+            public ImapConnection createConnection() {
+                if (newConnections.isEmpty()) {
+                    throw new AssertionError("Unexpectedly tried to create an ImapConnection instance");
+                }
+                return newConnections.pop();
+            }
+        }, MAX_SIZE, ImapConnectionPool.DEFAULT_VALIDATION_IDLE_THRESHOLD_MILLIS,
+                ImapConnectionPool.DEFAULT_MAX_IDLE_TIME_MILLIS, 0L) {
+            @Override
+            long now() {
+                return now;
+            }
+        };
+    }
+
+    @Test
+    public void borrow_withEmptyPool_shouldOpenNewConnection() throws Exception {
+        ImapConnection connection = createConnection();
+
+        ImapConnection result = pool.borrow();
+
+        assertSame(connection, result);
+        verify(connection).open();
+        assertEquals(1, pool.getStats().getMisses());
+        assertEquals(1, pool.getStats().getConnects());
+    }
+
+    @Test
+    public void borrow_withRecentlyReleasedConnection_shouldNotValidate() throws Exception {
+        ImapConnection connection = createConnection();
+        pool.release(pool.borrow());
+        now += ImapConnectionPool.DEFAULT_VALIDATION_IDLE_THRESHOLD_MILLIS - 1;
+
+        ImapConnection result = pool.borrow();
+
+        assertSame(connection, result);
+        verify(connection, never()).executeSimpleCommand(Commands.NOOP);
+        assertEquals(1, pool.getStats().getHits());
+    }
+
+    @Test
+    public void borrow_withConnectionIdleForLongerThanThreshold_shouldValidateWithNoop() throws Exception {
+        ImapConnection connection = createConnection();
+        pool.release(pool.borrow());
+        now += ImapConnectionPool.DEFAULT_VALIDATION_IDLE_THRESHOLD_MILLIS;
+
+        ImapConnection result = pool.borrow();
+
+        assertSame(connection, result);
+        verify(connection).executeSimpleCommand(Commands.NOOP);
+    }
+
+    @Test
+    public void borrow_withStaleConnection_shouldCloseItAndOpenNewConnection() throws Exception {
+        ImapConnection staleConnection = createConnection();
+        ImapConnection newConnection = createConnection();
+        pool.release(pool.borrow());
+        doThrow(IOException.class).when(staleConnection).executeSimpleCommand(Commands.NOOP);
+        now += ImapConnectionPool.DEFAULT_VALIDATION_IDLE_THRESHOLD_MILLIS;
+
+        ImapConnection result = pool.borrow();
+
+        assertSame(newConnection, result);
+        verify(staleConnection).close();
+        assertEquals(1, pool.getStats().getValidationFailures());
+    }
+
+    @Test
+    public void borrow_withAllConnectionsBorrowed_shouldFailWithoutOpeningAnotherConnection() throws Exception {
+        createConnection();
+        createConnection();
+        createConnection();
+        pool.borrow();
+        pool.borrow();
+
+        try {
+            pool.borrow();
+            fail("Expected exception");
+        } catch (MessagingException e) {
+            assertEquals(1, newConnections.size());
+            assertEquals(1, pool.getStats().getBorrowTimeouts());
+            assertEquals(MAX_SIZE, pool.getStats().getBorrowedConnections());
+        }
+    }
+
+    @Test
+    public void borrow_afterClosedConnectionWasReleased_shouldOpenNewConnection() throws Exception {
+        ImapConnection closedConnection = createConnection();
+        createConnection();
+        ImapConnection newConnection = createConnection();
+        pool.borrow();
+        pool.borrow();
+        when(closedConnection.isConnected()).thenReturn(false);
+        pool.release(closedConnection);
+
+        ImapConnection result = pool.borrow();
+
+        assertSame(newConnection, result);
+        assertEquals(MAX_SIZE, pool.getStats().getBorrowedConnections());
+    }
+
+    @Test
+    public void borrow_afterOpeningConnectionFailed_shouldNotCountFailedConnection() throws Exception {
+        createConnection();
+        ImapConnection failingConnection = createConnection();
+        ImapConnection connection = createConnection();
+        doThrow(IOException.class).when(failingConnection).open();
+        pool.borrow();
+
+        try {
+            pool.borrow();
+            fail("Expected exception");
+        } catch (MessagingException e) {
+            assertEquals(1, pool.getStats().getBorrowedConnections());
+        }
+
+        ImapConnection result = pool.borrow();
+        assertSame(connection, result);
+    }
+
+    @Test
+    public void release_withConnectionNotBorrowedFromPool_shouldIgnoreConnection() throws Exception {
+        ImapConnection connection = mock(ImapConnection.class);
+        when(connection.isConnected()).thenReturn(true);
+
+        pool.release(connection);
+
+        assertEquals(0, pool.getStats().getIdleConnections());
+        assertEquals(0, pool.getStats().getBorrowedConnections());
+    }
+
+    @Test
+    public void release_withClosedConnection_shouldNotPoolConnection() throws Exception {
+        ImapConnection connection = createConnection();
+        pool.borrow();
+        when(connection.isConnected()).thenReturn(false);
+
+        pool.release(connection);
+
+        assertEquals(0, pool.getStats().getIdleConnections());
+    }
+
+    @Test
+    public void evictIdleConnections_shouldCloseConnectionsIdleForLongerThanMaxIdleTime() throws Exception {
+        ImapConnection connectionOne = createConnection();
+        ImapConnection connectionTwo = createConnection();
+        pool.borrow();
+        pool.borrow();
+        pool.release(connectionOne);
+        now += 1000L;
+        pool.release(connectionTwo);
+        now += ImapConnectionPool.DEFAULT_MAX_IDLE_TIME_MILLIS - 500L;
+
+        pool.evictIdleConnections();
+
+        verify(connectionOne).close();
+        verify(connectionTwo, never()).close();
+        assertEquals(1, pool.getStats().getIdleConnections());
+    }
+
+    @Test
+    public void borrow_withConnectionIdleForLongerThanMaxIdleTime_shouldCloseItAndOpenNewConnection()
+            throws Exception {
+        ImapConnection expiredConnection = createConnection();
+        ImapConnection newConnection = createConnection();
+        pool.release(pool.borrow());
+        now += ImapConnectionPool.DEFAULT_MAX_IDLE_TIME_MILLIS;
+
+        ImapConnection result = pool.borrow();
+
+        assertSame(newConnection, result);
+        verify(expiredConnection).close();
+        verify(expiredConnection, never()).executeSimpleCommand(Commands.NOOP);
+        assertEquals(1, pool.getStats().getEvictions());
+        assertEquals(1, pool.getStats().getMisses());
+    }
+
+    @Test
+    public void release_shouldCloseOtherConnectionsIdleForLongerThanMaxIdleTime() throws Exception {
+        ImapConnection expiredConnection = createConnection();
+        ImapConnection connection = createConnection();
+        pool.borrow();
+        pool.borrow();
+        pool.release(expiredConnection);
+        now += ImapConnectionPool.DEFAULT_MAX_IDLE_TIME_MILLIS;
+
+        pool.release(connection);
+
+        verify(expiredConnection).close();
+        verify(connection, never()).close();
+        assertEquals(1, pool.getStats().getIdleConnections());
+    }
+
+    private ImapConnection createConnection() {
+        ImapConnection connection = mock(ImapConnection.class);
+        when(connection.isConnected()).thenReturn(true);
+        newConnections.add(connection);
+
+        return connection;
+    }
+}
@@ -27,9 +27,11 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.shadows.ShadowLog;
 
+import static java.util.Arrays.asList;
 import static org.hamcrest.core.StringContains.containsString;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
@@ -901,6 +903,124 @@ public class ImapConnectionTest {
         server.verifyInteractionCompleted();
     }
 
+    @Test
+    public void open_selectableWithSslTlsRequired_shouldLogInOverSslEngine() throws Exception {
+        settings.setConnectionSecurity(ConnectionSecurity.SSL_TLS_REQUIRED);
+        MockImapServer server = new MockImapServer();
+        server.startTls();
+        simpleOpenDialog(server, "");
+        ImapConnection imapConnection = startServerAndCreateSelectableImapConnection(server);
+
+        imapConnection.open();
+
+        assertNotNull(imapConnection.getSelectableChannel());
+        server.verifyConnectionStillOpen();
+        server.verifyInteractionCompleted();
+    }
+
+    @Test
+    public void open_selectableWithStartTlsCapability_shouldLogInOverSslEngine() throws Exception {
+        settings.setAuthType(AuthType.PLAIN);
+        settings.setConnectionSecurity(ConnectionSecurity.STARTTLS_REQUIRED);
+        MockImapServer server = new MockImapServer();
+        preAuthenticationDialog(server, "STARTTLS LOGINDISABLED");
+        server.expect("2 STARTTLS");
+        server.output("2 OK [CAPABILITY IMAP4REV1 NAMESPACE]");
+        server.startTls();
+        server.expect("3 CAPABILITY");
+        server.output("* CAPABILITY IMAP4 IMAP4REV1");
+        server.output("3 OK");
+        server.expect("4 LOGIN \"" + USERNAME + "\" \"" + PASSWORD + "\"");
+        server.output("4 OK [CAPABILITY NAMESPACE] LOGIN completed");
+        server.expect("5 NAMESPACE");
+        server.output("* NAMESPACE ((\"\" \"/\")) NIL NIL");
+        server.output("5 OK command completed");
+        ImapConnection imapConnection = startServerAndCreateSelectableImapConnection(server);
+
+        imapConnection.open();
+
+        assertNotNull(imapConnection.getSelectableChannel());
+        server.verifyConnectionStillOpen();
+        server.verifyInteractionCompleted();
+    }
+
+    @Test
+    public void executeSimpleCommand_selectableWithResponseSpanningSeveralTlsRecords_shouldReturnResult()
+            throws Exception {
+        settings.setConnectionSecurity(ConnectionSecurity.SSL_TLS_REQUIRED);
+        MockImapServer server = new MockImapServer();
+        server.startTls();
+        simpleOpenDialog(server, "");
+        server.expect("4 UID SEARCH ALL");
+        server.output("* SEARCH " + createUidList(5000));
+        server.output("* 5000 EXISTS");
+        server.output("4 OK SEARCH completed");
+        ImapConnection imapConnection = startServerAndCreateSelectableImapConnection(server);
+        imapConnection.open();
+
+        List<ImapResponse> result = imapConnection.executeSimpleCommand("UID SEARCH ALL");
+
+        assertEquals(3, result.size());
+        assertEquals(5001, result.get(0).size());
+        assertEquals("5000", result.get(0).getString(5000));
+        assertEquals("5000", result.get(1).getString(0));
+        server.verifyConnectionStillOpen();
+        server.verifyInteractionCompleted();
+    }
+
+    @Test
+    public void hasBufferedInput_selectableAfterReadingPartOfTlsRecord_shouldReturnTrue() throws Exception {
+        settings.setConnectionSecurity(ConnectionSecurity.SSL_TLS_REQUIRED);
+        MockImapServer server = new MockImapServer();
+        server.startTls();
+        simpleOpenDialog(server, "IDLE");
+        server.expect("4 IDLE");
+        server.output("+ idling\r\n* 1 EXISTS");
+        server.expect("DONE");
+        server.output("4 OK IDLE completed");
+        ImapConnection imapConnection = startServerAndCreateSelectableImapConnection(server);
+        imapConnection.open();
+        imapConnection.sendCommand("IDLE", false);
+
+        assertTrue(imapConnection.readResponse().isContinuationRequested());
+
+        assertTrue(imapConnection.hasBufferedInput());
+        assertTrue(imapConnection.waitForInput(SOCKET_READ_TIMEOUT));
+        assertEquals("EXISTS", imapConnection.readResponse().getString(1));
+        assertFalse(imapConnection.hasBufferedInput());
+        imapConnection.sendContinuation("DONE");
+        assertTrue(imapConnection.waitForInput(SOCKET_READ_TIMEOUT));
+        assertEquals("4", imapConnection.readResponse().getTag());
+        server.verifyConnectionStillOpen();
+        server.verifyInteractionCompleted();
+    }
+
+    @Test
+    public void waitForInput_selectableWithoutDataFromServer_shouldReturnFalseAndKeepConnectionUsable()
+            throws Exception {
+        settings.setConnectionSecurity(ConnectionSecurity.SSL_TLS_REQUIRED);
+        MockImapServer server = new MockImapServer();
+        server.startTls();
+        simpleOpenDialog(server, "IDLE");
+        server.expect("4 IDLE");
+        server.output("+ idling");
+        server.expect("DONE");
+        server.output("4 OK IDLE completed");
+        ImapConnection imapConnection = startServerAndCreateSelectableImapConnection(server);
+        imapConnection.open();
+        imapConnection.sendCommand("IDLE", false);
+        imapConnection.readResponse();
+
+        boolean result = imapConnection.waitForInput(100);
+
+        assertFalse(result);
+        imapConnection.setReadTimeout(SOCKET_READ_TIMEOUT);
+        imapConnection.sendContinuation("DONE");
+        assertEquals("4", imapConnection.readResponse().getTag());
+        server.verifyConnectionStillOpen();
+        server.verifyInteractionCompleted();
+    }
+
     @Test
     public void executeSingleCommand_withOkResponse_shouldReturnResult() throws Exception {
         MockImapServer server = new MockImapServer();
@@ -935,6 +1055,73 @@ public class ImapConnectionTest {
         server.verifyInteractionCompleted();
     }
 
+    @Test
+    public void executePipelinedCommands_shouldReturnResponsesInCommandOrder() throws Exception {
+        MockImapServer server = new MockImapServer();
+        simpleOpenDialog(server, "");
+        server.expect("4 UID STORE 1 +FLAGS.SILENT (\\Seen)");
+        server.expect("5 UID STORE 2 +FLAGS.SILENT (\\Seen)");
+        server.output("* 1 FETCH (FLAGS (\\Seen))");
+        server.output("4 OK Store completed");
+        server.output("5 OK Store completed");
+        ImapConnection imapConnection = startServerAndCreateImapConnection(server);
+
+        List<List<ImapResponse>> result = imapConnection.executePipelinedCommands(asList(
+                "UID STORE 1 +FLAGS.SILENT (\\Seen)", "UID STORE 2 +FLAGS.SILENT (\\Seen)"));
+
+        assertEquals(2, result.size());
+        assertEquals(2, result.get(0).size());
+        assertEquals("4", result.get(0).get(1).getTag());
+        assertEquals(1, result.get(1).size());
+        assertEquals("5", result.get(1).get(0).getTag());
+        server.verifyConnectionStillOpen();
+        server.verifyInteractionCompleted();
+    }
+
+    @Test
+    public void executePipelinedCommands_withOutOfOrderCompletion_shouldDemultiplexByTag() throws Exception {
+        MockImapServer server = new MockImapServer();
+        simpleOpenDialog(server, "");
+        server.expect("4 NOOP");
+        server.expect("5 CHECK");
+        server.output("5 OK Check completed");
+        server.output("4 OK Noop completed");
+        ImapConnection imapConnection = startServerAndCreateImapConnection(server);
+
+        List<List<ImapResponse>> result = imapConnection.executePipelinedCommands(asList("NOOP", "CHECK"));
+
+        assertEquals("Noop completed", result.get(0).get(0).getString(1));
+        assertEquals("Check completed", result.get(1).get(0).getString(1));
+        server.verifyConnectionStillOpen();
+        server.verifyInteractionCompleted();
+    }
+
+    @Test
+    public void executePipelinedCommands_withNoResponse_shouldConsumeAllResponsesAndThrow() throws Exception {
+        MockImapServer server = new MockImapServer();
+        simpleOpenDialog(server, "");
+        server.expect("4 CREATE Folder");
+        server.expect("5 NOOP");
+        server.output("4 NO Folder exists");
+        server.output("5 OK Noop completed");
+        server.expect("6 NOOP");
+        server.output("6 OK Noop completed");
+        ImapConnection imapConnection = startServerAndCreateImapConnection(server);
+
+        try {
+            imapConnection.executePipelinedCommands(asList("CREATE Folder", "NOOP"));
+
+            fail("Expected exception");
+        } catch (NegativeImapResponseException e) {
+            assertEquals("Folder exists", e.getLastResponse().getString(1));
+        }
+        List<ImapResponse> result = imapConnection.executeSimpleCommand("NOOP");
+
+        assertEquals("6", result.get(0).getTag());
+        server.verifyConnectionStillOpen();
+        server.verifyInteractionCompleted();
+    }
+
     private ImapConnection createImapConnection(ImapSettings settings, TrustedSocketFactory socketFactory,
             ConnectivityManager connectivityManager, OAuth2TokenProvider oAuth2TokenProvider) {
         return new ImapConnection(settings, socketFactory, connectivityManager, oAuth2TokenProvider,
@@ -948,6 +1135,14 @@ public class ImapConnectionTest {
         return createImapConnection(settings, socketFactory, connectivityManager, oAuth2TokenProvider);
     }
 
+    private ImapConnection startServerAndCreateSelectableImapConnection(MockImapServer server) throws IOException {
+        server.start();
+        settings.setHost(server.getHost());
+        settings.setPort(server.getPort());
+        return new ImapConnection(settings, socketFactory, connectivityManager, oAuth2TokenProvider,
+                SOCKET_CONNECT_TIMEOUT, SOCKET_READ_TIMEOUT, true);
+    }
+
     private ImapConnection simpleOpen(MockImapServer server) throws Exception {
         return simpleOpenWithCapabilities(server, "");
     }
@@ -1008,6 +1203,18 @@ public class ImapConnectionTest {
         server.output("2 OK [CAPABILITY " + postAuthCapabilities + "] LOGIN completed");
     }
 
+    private String createUidList(int count) {
+        StringBuilder uids = new StringBuilder();
+        for (int uid = 1; uid <= count; uid++) {
+            if (uid > 1) {
+                uids.append(' ');
+            }
+            uids.append(uid);
+        }
+
+        return uids.toString();
+    }
+
     private OAuth2TokenProvider createOAuth2TokenProvider() throws AuthenticationFailedException {
         return new OAuth2TokenProvider() {
             private int invalidationCount = 0;
@@ -48,9 +48,13 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.startsWith;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
@@ -339,6 +343,34 @@ public class ImapFolderTest {
         assertEquals("101", uidMapping.get("1"));
     }
 
+    @Test
+    public void copyMessages_withoutDestinationFolderAndPoolExhausted_shouldCreateFolderOnSourceConnection()
+            throws Exception {
+        ImapConnectionPool pool = new ImapConnectionPool(new ImapConnectionPool.ConnectionFactory() {
+            @Override
+            public ImapConnection createConnection() {
+                return imapConnection;
+            }
+        }, 1, ImapConnectionPool.DEFAULT_VALIDATION_IDLE_THRESHOLD_MILLIS,
+                ImapConnectionPool.DEFAULT_MAX_IDLE_TIME_MILLIS, 100L);
+        prepareImapFolderForOpen(OPEN_MODE_RW);
+        useConnectionPool(pool);
+        ImapFolder sourceFolder = createFolder("Folder");
+        ImapFolder destinationFolder = createFolder("Destination");
+        List<ImapMessage> messages = singletonList(createImapMessage("1"));
+        doThrow(NegativeImapResponseException.class)
+                .when(imapConnection).executeSimpleCommand("STATUS \"Destination\" (RECENT)");
+        when(imapConnection.executeSimpleCommand("UID COPY 1 \"Destination\""))
+                .thenReturn(singletonList(createImapResponse("x OK [COPYUID 23 1 101] Success")));
+        sourceFolder.open(OPEN_MODE_RW);
+
+        Map<String, String> uidMapping = sourceFolder.copyMessages(messages, destinationFolder);
+
+        verify(imapConnection).executeSimpleCommand("CREATE \"Destination\"");
+        assertEquals("101", uidMapping.get("1"));
+        assertEquals(0, pool.getStats().getBorrowTimeouts());
+    }
+
     @Test
     public void moveMessages_shouldCopyMessages() throws Exception {
         ImapFolder sourceFolder = createFolder("Folder");
@@ -908,6 +940,25 @@ public class ImapFolderTest {
         verify(imapConnection).sendCommand("UID FETCH 1 (UID BODY.PEEK[])", false);
     }
 
+    @Test
+    public void fetch_withMoreThanOneWindow_shouldPipelineCommands() throws Exception {
+        ImapFolder folder = createFolder("Folder");
+        prepareImapFolderForOpen(OPEN_MODE_RO);
+        folder.open(OPEN_MODE_RO);
+        when(imapConnection.readResponse(any(ImapResponseCallback.class)))
+                .thenReturn(createImapResponse("x OK"))
+                .thenReturn(createImapResponse("y OK"));
+        List<ImapMessage> messages = createImapMessages(createUids(101));
+        FetchProfile fetchProfile = createFetchProfile(Item.FLAGS);
+
+        folder.fetch(messages, fetchProfile, null);
+
+        verify(imapConnection).sendPipelinedCommands(asList(
+                "UID FETCH " + combineUids(1, 100) + " (UID FLAGS)",
+                "UID FETCH 101 (UID FLAGS)"));
+        verify(imapConnection, times(2)).readResponse(any(ImapResponseCallback.class));
+    }
+
     @Test
     public void fetch_withFlagsFetchProfile_shouldSetFlags() throws Exception {
         ImapFolder folder = createFolder("Folder");
@@ -925,6 +976,126 @@ public class ImapFolderTest {
         verify(imapMessage).setFlagInternal(Flag.SEEN, true);
     }
 
+    @Test
+    public void open_withCondstoreCapability_shouldIssueSelectWithCondstoreParameter() throws Exception {
+        ImapFolder folder = createFolder("Folder");
+        when(imapConnection.isCondstoreCapable()).thenReturn(true);
+        prepareImapFolderForCondstoreOpen();
+
+        folder.open(OPEN_MODE_RW);
+
+        verify(imapConnection).executeSimpleCommand("SELECT \"Folder\" (CONDSTORE)");
+        assertEquals("uidValidity=1125022061;highestModSeq=715194045007", folder.getSyncState());
+    }
+
+    @Test
+    public void getSyncState_withoutCondstoreCapability_shouldReturnNull() throws Exception {
+        ImapFolder folder = createFolder("Folder");
+        prepareImapFolderForOpen(OPEN_MODE_RW);
+        folder.open(OPEN_MODE_RW);
+
+        String result = folder.getSyncState();
+
+        assertNull(result);
+    }
+
+    @Test
+    public void fetchChangedFlags_withValidSyncState_shouldIssueChangedSinceCommand() throws Exception {
+        ImapFolder folder = createFolder("Folder");
+        when(imapConnection.isCondstoreCapable()).thenReturn(true);
+        prepareImapFolderForCondstoreOpen();
+        folder.open(OPEN_MODE_RW);
+        when(imapConnection.readResponse(any(ImapResponseCallback.class))).thenReturn(createImapResponse("x OK"));
+        List<ImapMessage> messages = createImapMessages("1");
+
+        boolean result = folder.fetchChangedFlags(messages, "uidValidity=1125022061;highestModSeq=715194045000", null);
+
+        assertTrue(result);
+        verify(imapConnection).sendCommand("UID FETCH 1:* (UID FLAGS) (CHANGEDSINCE 715194045000)", false);
+    }
+
+    @Test
+    public void fetchChangedFlags_withQresyncEnabled_shouldRequestVanishedMessages() throws Exception {
+        ImapFolder folder = createFolder("Folder");
+        when(imapConnection.isCondstoreCapable()).thenReturn(true);
+        when(imapConnection.isQresyncEnabled()).thenReturn(true);
+        prepareImapFolderForCondstoreOpen();
+        folder.open(OPEN_MODE_RW);
+        when(imapConnection.readResponse(any(ImapResponseCallback.class))).thenReturn(createImapResponse("x OK"));
+        List<ImapMessage> messages = createImapMessages("1");
+
+        folder.fetchChangedFlags(messages, "uidValidity=1125022061;highestModSeq=715194045000", null);
+
+        verify(imapConnection).sendCommand("UID FETCH 1:* (UID FLAGS) (CHANGEDSINCE 715194045000 VANISHED)", false);
+    }
+
+    @Test
+    public void fetchChangedFlags_withVanishedEarlierResponse_shouldMarkMessageAsDeleted() throws Exception {
+        ImapFolder folder = createFolder("Folder");
+        when(imapConnection.isCondstoreCapable()).thenReturn(true);
+        when(imapConnection.isQresyncEnabled()).thenReturn(true);
+        prepareImapFolderForCondstoreOpen();
+        folder.open(OPEN_MODE_RW);
+        when(imapConnection.readResponse(any(ImapResponseCallback.class)))
+                .thenReturn(createImapResponse("* VANISHED (EARLIER) 2"))
+                .thenReturn(createImapResponse("x OK"));
+        List<ImapMessage> messages = createImapMessages("1", "2");
+        MessageRetrievalListener<ImapMessage> listener = createMessageRetrievalListener();
+
+        folder.fetchChangedFlags(messages, "uidValidity=1125022061;highestModSeq=715194045000", listener);
+
+        verify(messages.get(1)).setFlagInternal(Flag.DELETED, true);
+        verify(listener).messageFinished(messages.get(1), 0, 2);
+        verifyNoMoreInteractions(listener);
+    }
+
+    @Test
+    public void fetchChangedFlags_withManyMessages_shouldIssueSingleCommandAndIgnoreUnknownMessages()
+            throws Exception {
+        ImapFolder folder = createFolder("Folder");
+        when(imapConnection.isCondstoreCapable()).thenReturn(true);
+        prepareImapFolderForCondstoreOpen();
+        folder.open(OPEN_MODE_RW);
+        when(imapConnection.readResponse(any(ImapResponseCallback.class)))
+                .thenReturn(createImapResponse("* 150 FETCH (FLAGS (\\Seen) UID 150)"))
+                .thenReturn(createImapResponse("* 300 FETCH (FLAGS (\\Seen) UID 300)"))
+                .thenReturn(createImapResponse("x OK"));
+        List<ImapMessage> messages = createImapMessages(createUids(250));
+
+        folder.fetchChangedFlags(messages, "uidValidity=1125022061;highestModSeq=715194045000", null);
+
+        verify(imapConnection).sendCommand("UID FETCH 1:* (UID FLAGS) (CHANGEDSINCE 715194045000)", false);
+        verify(imapConnection, times(1)).sendCommand(startsWith("UID FETCH"), anyBoolean());
+        verify(messages.get(149)).setFlagInternal(Flag.SEEN, true);
+    }
+
+    @Test
+    public void fetchChangedFlags_withChangedUidValidity_shouldReturnFalse() throws Exception {
+        ImapFolder folder = createFolder("Folder");
+        when(imapConnection.isCondstoreCapable()).thenReturn(true);
+        prepareImapFolderForCondstoreOpen();
+        folder.open(OPEN_MODE_RW);
+        List<ImapMessage> messages = createImapMessages("1");
+
+        boolean result = folder.fetchChangedFlags(messages, "uidValidity=23;highestModSeq=715194045000", null);
+
+        assertFalse(result);
+        verify(imapConnection, never()).sendCommand(anyString(), anyBoolean());
+    }
+
+    @Test
+    public void fetchChangedFlags_withoutSyncState_shouldReturnFalse() throws Exception {
+        ImapFolder folder = createFolder("Folder");
+        when(imapConnection.isCondstoreCapable()).thenReturn(true);
+        prepareImapFolderForCondstoreOpen();
+        folder.open(OPEN_MODE_RW);
+        List<ImapMessage> messages = createImapMessages("1");
+
+        boolean result = folder.fetchChangedFlags(messages, null, null);
+
+        assertFalse(result);
+    }
+
     @Test
     public void fetchPart_withTextSection_shouldIssueRespectiveCommand() throws Exception {
         ImapFolder folder = createFolder("Folder");
@@ -1045,6 +1216,19 @@ public class ImapFolderTest {
         verify(imapConnection).executeSimpleCommand("UID STORE 1:* +FLAGS.SILENT (\\Seen)");
     }
 
+    @Test
+    public void setFlags_withManyMessages_shouldPipelineUidStoreCommands() throws Exception {
+        ImapFolder folder = createFolder("Folder");
+        prepareImapFolderForOpen(OPEN_MODE_RW);
+        List<ImapMessage> messages = createImapMessages(createUids(501));
+
+        folder.setFlags(messages, newSet(Flag.SEEN), true);
+
+        verify(imapConnection).executePipelinedCommands(asList(
+                "UID STORE " + combineUids(1, 500) + " +FLAGS.SILENT (\\Seen)",
+                "UID STORE 501 +FLAGS.SILENT (\\Seen)"));
+    }
+
     @Test
     public void getNewPushState_withNewerUid_shouldReturnNewPushState() throws Exception {
         ImapFolder folder = createFolder("Folder");
@@ -1195,6 +1379,27 @@ public class ImapFolderTest {
         return imapMessages;
     }
 
+    private String[] createUids(int count) {
+        String[] uids = new String[count];
+        for (int i = 0; i < count; i++) {
+            uids[i] = Integer.toString(i + 1);
+        }
+
+        return uids;
+    }
+
+    private String combineUids(int start, int end) {
+        StringBuilder sb = new StringBuilder();
+        for (int uid = start; uid <= end; uid++) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(uid);
+        }
+
+        return sb.toString();
+    }
+
     private Part createPart(String serverExtra) {
         Part part = mock(Part.class);
         when(part.getServerExtra()).thenReturn(serverExtra);
@@ -1214,6 +1419,22 @@ public class ImapFolderTest {
         return mock(MessageRetrievalListener.class);
     }
 
+    private void useConnectionPool(final ImapConnectionPool pool) throws MessagingException {
+        when(imapStore.getConnection()).thenAnswer(new Answer<ImapConnection>() {
+            @Override
+            public ImapConnection answer(InvocationOnMock invocation) throws Throwable {
+                return pool.borrow();
+            }
+        });
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                pool.release((ImapConnection) invocation.getArguments()[0]);
+                return null;
+            }
+        }).when(imapStore).releaseConnection(any(ImapConnection.class));
+    }
+
     private void prepareImapFolderForOpen(int openMode) throws MessagingException, IOException {
         when(imapStore.getConnection()).thenReturn(imapConnection);
         List<ImapResponse> imapResponses = asList(
@@ -1236,6 +1457,20 @@ public class ImapFolderTest {
         }
     }
 
+    private void prepareImapFolderForCondstoreOpen() throws MessagingException, IOException {
+        when(imapStore.getConnection()).thenReturn(imapConnection);
+        List<ImapResponse> imapResponses = asList(
+                createImapResponse("* FLAGS (\\Answered \\Flagged \\Deleted \\Seen \\Draft)"),
+                createImapResponse("* 23 EXISTS"),
+                createImapResponse("* OK [UIDVALIDITY 1125022061] UIDs valid"),
+                createImapResponse("* OK [UIDNEXT 57576] Predicted next UID"),
+                createImapResponse("* OK [HIGHESTMODSEQ 715194045007] Highest"),
+                createImapResponse("2 OK [READ-WRITE] Select completed.")
+        );
+
+        when(imapConnection.executeSimpleCommand("SELECT \"Folder\" (CONDSTORE)")).thenReturn(imapResponses);
+    }
+
     private void assertCheckOpenErrorMessage(String folderName, MessagingException e) {
         assertEquals("Folder " + folderName + " is not open.", e.getMessage());
     }
@@ -0,0 +1,178 @@
+package com.fsck.k9.mail.store.imap;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.net.ConnectivityManager;
+import android.util.Log;
+
+import com.fsck.k9.mail.AuthType;
+import com.fsck.k9.mail.K9LibRobolectricTestRunner;
+import com.fsck.k9.mail.PushReceiver;
+import com.fsck.k9.mail.helpers.TestTrustedSocketFactory;
+import com.fsck.k9.mail.oauth.OAuth2TokenProvider;
+import com.fsck.k9.mail.ssl.TrustedSocketFactory;
+import com.fsck.k9.mail.store.StoreConfig;
+import com.fsck.k9.mail.store.imap.mockserver.MockImapServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowLog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+
+/**
+ * Measures the threads and memory used to keep 100 folders in IDLE, each with an {@link ImapFolderPusher} and a
+ * connection of its own.
+ * <p>
+ * Excluded from the unit tests by the build. Run it with
+ * {@code ./gradlew :qmail-library:testDebugUnitTest -PrunBenchmarks
+ * --tests com.fsck.k9.mail.store.imap.ImapIdleBenchmarkTest}.
+ * </p>
+ */
+@RunWith(K9LibRobolectricTestRunner.class)
+public class ImapIdleBenchmarkTest {
+    private static final String LOG_TAG = "ImapIdleBenchmark";
+    private static final int FOLDER_COUNT = 100;
+    private static final String USERNAME = "user";
+    private static final String PASSWORD = "123456";
+    private static final int SOCKET_CONNECT_TIMEOUT = 10000;
+    private static final int SOCKET_READ_TIMEOUT = 60000;
+    private static final long PARK_TIMEOUT = 60000L;
+
+
+    private final List<MockImapServer> servers = new ArrayList<>();
+    private final List<ImapFolderPusher> pushers = new ArrayList<>();
+    private TrustedSocketFactory socketFactory;
+    private ConnectivityManager connectivityManager;
+    private PushReceiver pushReceiver;
+
+
+    @Before
+    public void setUp() throws Exception {
+        ShadowLog.stream = System.out;
+        socketFactory = TestTrustedSocketFactory.newInstance();
+        connectivityManager = mock(ConnectivityManager.class);
+        pushReceiver = mock(PushReceiver.class);
+        when(pushReceiver.getContext()).thenReturn(RuntimeEnvironment.application);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (ImapFolderPusher pusher : pushers) {
+            pusher.stop();
+        }
+        for (MockImapServer server : servers) {
+            server.shutdown();
+        }
+    }
+
+    @Test
+    public void idle_with100Folders() throws Exception {
+        for (int i = 0; i < FOLDER_COUNT; i++) {
+            servers.add(startIdleServer());
+        }
+
+        ImapPushEngine engine = ImapPushEngine.getInstance();
+        int parkedBefore = engine.getParkedConnectionCount();
+        long heapBefore = usedHeap();
+
+        for (int i = 0; i < FOLDER_COUNT; i++) {
+            ImapFolderPusher pusher = new ImapFolderPusher(createImapStore(servers.get(i)), "INBOX", pushReceiver);
+            pushers.add(pusher);
+
+            pusher.start();
+        }
+
+        for (MockImapServer server : servers) {
+            server.waitForInteractionToComplete();
+        }
+        assertTrue(waitForParkedConnections(engine, parkedBefore + FOLDER_COUNT));
+
+        int threads = engine.getActiveThreadCount();
+        int connectThreads = engine.getConnectThreadCount();
+        long heapPerFolder = (usedHeap() - heapBefore) / FOLDER_COUNT;
+
+        Log.i(LOG_TAG, FOLDER_COUNT + " idle folders: " + threads + " push threads, " + connectThreads +
+                " connect threads not timed out yet, " + (heapPerFolder / 1024) +
+                " KB retained heap per folder (including the mock server's side)");
+        assertEquals(1 + ImapPushEngine.WORKER_THREAD_COUNT, threads);
+    }
+
+    private MockImapServer startIdleServer() throws IOException {
+        MockImapServer server = new MockImapServer();
+        server.output("* OK IMAP4rev1 Service Ready");
+        server.expect("1 CAPABILITY");
+        server.output("* CAPABILITY IMAP4 IMAP4REV1 ");
+        server.output("1 OK CAPABILITY");
+        server.expect("2 LOGIN \"" + USERNAME + "\" \"" + PASSWORD + "\"");
+        server.output("2 OK [CAPABILITY IMAP4REV1 IDLE] LOGIN completed");
+        server.expect("3 LIST \"\" \"\"");
+        server.output("* LIST () \"/\" foo/bar");
+        server.output("3 OK");
+        server.expect("4 EXAMINE \"INBOX\"");
+        server.output("* 0 EXISTS");
+        server.output("* OK [UIDNEXT 1] Predicted next UID");
+        server.output("4 OK [READ-ONLY] EXAMINE completed");
+        server.expect("5 IDLE");
+        server.output("+ idling");
+        server.start();
+
+        return server;
+    }
+
+    private ImapStore createImapStore(MockImapServer server) {
+        ImapConnection connection = createImapConnection(server);
+
+        StoreConfig storeConfig = mock(StoreConfig.class);
+        when(storeConfig.getInboxFolderId()).thenReturn("INBOX");
+        when(storeConfig.getIdleRefreshMinutes()).thenReturn(24);
+
+        ImapStore store = mock(ImapStore.class);
+        when(store.getStoreConfig()).thenReturn(storeConfig);
+        when(store.getFolderNameCodec()).thenReturn(FolderNameCodec.newInstance());
+        when(store.createImapPushConnection()).thenReturn(connection);
+
+        return store;
+    }
+
+    private ImapConnection createImapConnection(MockImapServer server) {
+        SimpleImapSettings settings = new SimpleImapSettings();
+        settings.setHost(server.getHost());
+        settings.setPort(server.getPort());
+        settings.setAuthType(AuthType.PLAIN);
+        settings.setUsername(USERNAME);
+        settings.setPassword(PASSWORD);
+
+        return new ImapConnection(settings, socketFactory, connectivityManager, mock(OAuth2TokenProvider.class),
+                SOCKET_CONNECT_TIMEOUT, SOCKET_READ_TIMEOUT, true);
+    }
+
+    private static boolean waitForParkedConnections(ImapPushEngine engine, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + PARK_TIMEOUT;
+        while (engine.getParkedConnectionCount() < count) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+
+        return true;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,122 @@
+package com.fsck.k9.mail.store.imap;
+
+
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+
+import android.util.Log;
+
+import com.fsck.k9.mail.K9LibRobolectricTestRunner;
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.filter.PeekableInputStream;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.shadows.ShadowLog;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+
+/**
+ * Compares the bytes allocated per fetched message when a header literal is read into a {@code String} and then
+ * re-parsed, and when it is streamed into the message parser by {@link FetchBodyCallback}.
+ * <p>
+ * Excluded from the unit tests by the build. Run it with
+ * {@code ./gradlew :qmail-library:testDebugUnitTest -PrunBenchmarks
+ * --tests com.fsck.k9.mail.store.imap.ImapLiteralAllocationBenchmarkTest}.
+ * </p>
+ */
+@RunWith(K9LibRobolectricTestRunner.class)
+public class ImapLiteralAllocationBenchmarkTest {
+    private static final String LOG_TAG = "ImapLiteralAllocationBenchmark";
+    private static final int WARMUP_ITERATIONS = 50;
+    private static final int ITERATIONS = 200;
+    private static final String UID = "1";
+
+
+    private com.sun.management.ThreadMXBean threadMXBean;
+    private byte[] fetchResponse;
+
+
+    @Before
+    public void setUp() throws Exception {
+        ShadowLog.stream = System.out;
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threadMXBean.isThreadAllocatedMemorySupported());
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+
+        fetchResponse = createFetchResponse(16 * 1024);
+    }
+
+    @Test
+    public void fetchHeaders_streamingLiteral_shouldAllocateLessThanBufferedLiteral() throws Exception {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            fetchBuffered();
+            fetchStreaming();
+        }
+
+        long bufferedBytesPerMessage = measureBytesPerMessage(false);
+        long streamingBytesPerMessage = measureBytesPerMessage(true);
+
+        Log.i(LOG_TAG, "Bytes allocated per fetched message: buffered=" + bufferedBytesPerMessage +
+                ", streaming=" + streamingBytesPerMessage);
+        assertTrue(streamingBytesPerMessage < bufferedBytesPerMessage);
+    }
+
+    private long measureBytesPerMessage(boolean streaming) throws Exception {
+        long threadId = Thread.currentThread().getId();
+        long start = threadMXBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < ITERATIONS; i++) {
+            if (streaming) {
+                fetchStreaming();
+            } else {
+                fetchBuffered();
+            }
+        }
+        long end = threadMXBean.getThreadAllocatedBytes(threadId);
+
+        return (end - start) / ITERATIONS;
+    }
+
+    private void fetchBuffered() throws Exception {
+        ImapMessage message = new ImapMessage(UID, null);
+        ImapResponse response = createParser().readResponse();
+
+        ImapList fetchList = (ImapList) response.getKeyedValue("FETCH");
+        String literal = (String) fetchList.getObject(fetchList.getKeyIndex("BODY") + 2);
+        message.parse(new ByteArrayInputStream(literal.getBytes()));
+    }
+
+    private void fetchStreaming() throws Exception {
+        ImapMessage message = new ImapMessage(UID, null);
+        Map<String, Message> messageMap = Collections.<String, Message>singletonMap(UID, message);
+
+        createParser().readResponse(new FetchBodyCallback(messageMap));
+    }
+
+    private ImapResponseParser createParser() {
+        return new ImapResponseParser(new PeekableInputStream(new ByteArrayInputStream(fetchResponse)));
+    }
+
+    private static byte[] createFetchResponse(int headerSize) {
+        StringBuilder headers = new StringBuilder();
+        headers.append("From: alice@example.org\r\n");
+        headers.append("To: bob@example.org\r\n");
+        headers.append("Subject: Benchmark\r\n");
+        int i = 0;
+        while (headers.length() < headerSize) {
+            headers.append("X-Filler-").append(i++).append(": lorem ipsum dolor sit amet\r\n");
+        }
+        headers.append("\r\n");
+
+        String literal = headers.toString();
+        String response = "* 1 FETCH (UID " + UID + " BODY[HEADER.FIELDS (date subject from to)] {" +
+                literal.length() + "}\r\n" + literal + ")\r\n";
+
+        return response.getBytes();
+    }
+}
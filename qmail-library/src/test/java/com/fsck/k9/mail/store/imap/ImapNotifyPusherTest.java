@@ -0,0 +1,248 @@
+package com.fsck.k9.mail.store.imap;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import android.net.ConnectivityManager;
+
+import com.fsck.k9.mail.AuthType;
+import com.fsck.k9.mail.Folder;
+import com.fsck.k9.mail.K9LibRobolectricTestRunner;
+import com.fsck.k9.mail.PushReceiver;
+import com.fsck.k9.mail.helpers.TestTrustedSocketFactory;
+import com.fsck.k9.mail.oauth.OAuth2TokenProvider;
+import com.fsck.k9.mail.store.StoreConfig;
+import com.fsck.k9.mail.store.imap.mockserver.MockImapServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.robolectric.RuntimeEnvironment;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+
+@RunWith(K9LibRobolectricTestRunner.class)
+public class ImapNotifyPusherTest {
+    private static final String USERNAME = "user";
+    private static final String PASSWORD = "123456";
+    private static final int SOCKET_CONNECT_TIMEOUT = 10000;
+    private static final int SOCKET_READ_TIMEOUT = 10000;
+    private static final long VERIFY_TIMEOUT = 1000L;
+    private static final String NOTIFY_EVENTS = "(MessageNew MessageExpunge FlagChange)";
+
+
+    private MockImapServer server;
+    private StoreConfig storeConfig;
+    private ImapStore store;
+    private ImapPusher imapPusher;
+    private PushReceiver pushReceiver;
+    private ImapNotifyPusher notifyPusher;
+
+
+    @Before
+    public void setUp() throws Exception {
+        server = new MockImapServer();
+
+        storeConfig = mock(StoreConfig.class);
+        when(storeConfig.getInboxFolderId()).thenReturn("INBOX");
+        when(storeConfig.getIdleRefreshMinutes()).thenReturn(24);
+
+        store = mock(ImapStore.class);
+        when(store.getStoreConfig()).thenReturn(storeConfig);
+        when(store.getCombinedPrefix()).thenReturn("");
+        when(store.getFolderNameCodec()).thenReturn(FolderNameCodec.newInstance());
+
+        imapPusher = mock(ImapPusher.class);
+        pushReceiver = mock(PushReceiver.class);
+        when(pushReceiver.getContext()).thenReturn(RuntimeEnvironment.application);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (notifyPusher != null) {
+            notifyPusher.stop();
+        }
+    }
+
+    @Test
+    public void start_shouldSendNotifySetForAllFolders() throws Exception {
+        when(store.getCombinedPrefix()).thenReturn("INBOX.");
+        openDialog("IDLE NOTIFY");
+        server.expect("4 NOTIFY SET (MAILBOXES (\"INBOX\" \"INBOX.Drafts\") " + NOTIFY_EVENTS + ")");
+        server.output("4 OK NOTIFY completed");
+        server.expect("5 IDLE");
+        server.output("+ idling");
+
+        startPusher("INBOX", "Drafts");
+
+        stopPusherAndVerifyInteractionCompleted();
+        verify(pushReceiver, never()).syncFolder(any(Folder.class));
+    }
+
+    @Test
+    public void statusWhileIdling_shouldSyncChangedFolder() throws Exception {
+        notifyDialog("INBOX", "Drafts");
+        server.output("* STATUS Drafts (MESSAGES 3 UIDNEXT 12)");
+        idleAgainDialog();
+
+        startPusher("INBOX", "Drafts");
+
+        assertEquals(Arrays.asList("Drafts"), getSyncedFolderIds(1));
+        stopPusherAndVerifyInteractionCompleted();
+    }
+
+    @Test
+    public void statusForInboxWhileIdling_shouldSyncInboxFolder() throws Exception {
+        notifyDialog("Inbox", "Drafts");
+        server.output("* STATUS inbox (MESSAGES 7)");
+        idleAgainDialog();
+
+        when(storeConfig.getInboxFolderId()).thenReturn("Inbox");
+        startPusher("Inbox", "Drafts");
+
+        assertEquals(Arrays.asList("Inbox"), getSyncedFolderIds(1));
+        stopPusherAndVerifyInteractionCompleted();
+    }
+
+    @Test
+    public void notificationOverflowWhileIdling_shouldSyncAllFolders() throws Exception {
+        notifyDialog("INBOX", "Drafts");
+        server.output("* OK [NOTIFICATIONOVERFLOW] Too many notifications");
+        idleAgainDialog();
+
+        startPusher("INBOX", "Drafts");
+
+        assertEquals(Arrays.asList("INBOX", "Drafts"), getSyncedFolderIds(2));
+        stopPusherAndVerifyInteractionCompleted();
+    }
+
+    @Test
+    public void statusBeforeIdleContinuation_shouldEndIdleAndSyncFolder() throws Exception {
+        openDialog("IDLE NOTIFY");
+        server.expect("4 NOTIFY SET (MAILBOXES (\"INBOX\" \"Drafts\") " + NOTIFY_EVENTS + ")");
+        server.output("4 OK NOTIFY completed");
+        server.expect("5 IDLE");
+        server.output("* STATUS Drafts (MESSAGES 3)");
+        server.output("+ idling");
+        idleAgainDialog();
+
+        startPusher("INBOX", "Drafts");
+
+        assertEquals(Arrays.asList("Drafts"), getSyncedFolderIds(1));
+        stopPusherAndVerifyInteractionCompleted();
+    }
+
+    @Test
+    public void notifyRejected_shouldStartFolderPushersInstead() throws Exception {
+        openDialog("IDLE NOTIFY");
+        server.expect("4 NOTIFY SET (MAILBOXES (\"INBOX\" \"Drafts\") " + NOTIFY_EVENTS + ")");
+        server.output("4 NO NOTIFY not allowed");
+
+        startPusher("INBOX", "Drafts");
+
+        verify(imapPusher, timeout(VERIFY_TIMEOUT)).startFolderPushersInsteadOf(notifyPusher);
+        verify(store).setNotifyUnavailable();
+        server.verifyConnectionClosed();
+        server.verifyInteractionCompleted();
+    }
+
+    @Test
+    public void withoutNotifyCapability_shouldStartFolderPushersInsteadWithoutSendingNotify() throws Exception {
+        openDialog("IDLE");
+
+        startPusher("INBOX", "Drafts");
+
+        verify(imapPusher, timeout(VERIFY_TIMEOUT)).startFolderPushersInsteadOf(notifyPusher);
+        verify(store).setNotifyUnavailable();
+        verify(pushReceiver, never()).setPushActive(anyString(), anyString(), anyBoolean());
+        server.verifyConnectionClosed();
+        server.verifyInteractionCompleted();
+    }
+
+    private void startPusher(String... folderIds) throws IOException {
+        server.start();
+        when(store.createImapPushConnection()).thenReturn(createImapConnection());
+
+        notifyPusher = new ImapNotifyPusher(store, imapPusher, Arrays.asList(folderIds), pushReceiver);
+        notifyPusher.start();
+    }
+
+    private void stopPusherAndVerifyInteractionCompleted() {
+        server.waitForInteractionToComplete();
+        notifyPusher.stop();
+        notifyPusher = null;
+        server.verifyInteractionCompleted();
+    }
+
+    private List<String> getSyncedFolderIds(int count) {
+        ArgumentCaptor<Folder> folderCaptor = ArgumentCaptor.forClass(Folder.class);
+        verify(pushReceiver, timeout(VERIFY_TIMEOUT).times(count)).syncFolder(folderCaptor.capture());
+
+        List<String> folderIds = new ArrayList<>();
+        for (Folder folder : folderCaptor.getAllValues()) {
+            folderIds.add(folder.getId());
+        }
+        return folderIds;
+    }
+
+    private void notifyDialog(String... mailboxes) {
+        openDialog("IDLE NOTIFY");
+
+        StringBuilder encodedMailboxes = new StringBuilder();
+        for (String mailbox : mailboxes) {
+            if (encodedMailboxes.length() > 0) {
+                encodedMailboxes.append(' ');
+            }
+            encodedMailboxes.append('"').append(mailbox).append('"');
+        }
+
+        server.expect("4 NOTIFY SET (MAILBOXES (" + encodedMailboxes + ") " + NOTIFY_EVENTS + ")");
+        server.output("4 OK NOTIFY completed");
+        server.expect("5 IDLE");
+        server.output("+ idling");
+    }
+
+    private void idleAgainDialog() {
+        server.expect("DONE");
+        server.output("5 OK IDLE terminated");
+        server.expect("6 IDLE");
+        server.output("+ idling");
+    }
+
+    private void openDialog(String postAuthCapabilities) {
+        server.output("* OK IMAP4rev1 Service Ready");
+        server.expect("1 CAPABILITY");
+        server.output("* CAPABILITY IMAP4 IMAP4REV1 ");
+        server.output("1 OK CAPABILITY");
+        server.expect("2 LOGIN \"" + USERNAME + "\" \"" + PASSWORD + "\"");
+        server.output("2 OK [CAPABILITY " + postAuthCapabilities + "] LOGIN completed");
+        server.expect("3 LIST \"\" \"\"");
+        server.output("* LIST () \"/\" foo/bar");
+        server.output("3 OK");
+    }
+
+    private ImapConnection createImapConnection() throws IOException {
+        SimpleImapSettings settings = new SimpleImapSettings();
+        settings.setHost(server.getHost());
+        settings.setPort(server.getPort());
+        settings.setAuthType(AuthType.PLAIN);
+        settings.setUsername(USERNAME);
+        settings.setPassword(PASSWORD);
+
+        return new ImapConnection(settings, TestTrustedSocketFactory.newInstance(), mock(ConnectivityManager.class),
+                mock(OAuth2TokenProvider.class), SOCKET_CONNECT_TIMEOUT, SOCKET_READ_TIMEOUT, true);
+    }
+}
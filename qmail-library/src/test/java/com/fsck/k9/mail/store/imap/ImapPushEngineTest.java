@@ -0,0 +1,237 @@
+package com.fsck.k9.mail.store.imap;
+
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class ImapPushEngineTest {
+    private static final long LONG_TIMEOUT_MILLIS = 60000L;
+    private static final long SHORT_TIMEOUT_MILLIS = 200L;
+    private static final long WAIT_SECONDS = 10L;
+
+
+    private final ImapPushEngine engine = ImapPushEngine.getInstance();
+    private ServerSocketChannel serverChannel;
+    private SocketChannel clientChannel;
+    private SocketChannel serverSideChannel;
+
+
+    @Before
+    public void setUp() throws Exception {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        clientChannel = SocketChannel.open(serverChannel.socket().getLocalSocketAddress());
+        serverSideChannel = serverChannel.accept();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        clientChannel.close();
+        serverSideChannel.close();
+        serverChannel.close();
+    }
+
+    @Test
+    public void park_withDataFromServer_shouldCallOnReadyWithChannelInBlockingMode() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        engine.park(clientChannel, LONG_TIMEOUT_MILLIS, listener);
+
+        serverSideChannel.write(ByteBuffer.wrap("* 1 EXISTS\r\n".getBytes("US-ASCII")));
+
+        assertTrue(listener.awaitCall());
+        assertEquals(1, listener.readyCount.get());
+        assertEquals(0, listener.timeoutCount.get());
+        assertTrue(listener.channelBlocking);
+    }
+
+    @Test
+    public void park_withoutDataFromServer_shouldNotCallListener() throws Exception {
+        RecordingListener listener = new RecordingListener();
+
+        engine.park(clientChannel, LONG_TIMEOUT_MILLIS, listener);
+
+        assertFalse(listener.awaitCall(SHORT_TIMEOUT_MILLIS));
+    }
+
+    @Test
+    public void park_withChannelClosedByServer_shouldCallOnReady() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        engine.park(clientChannel, LONG_TIMEOUT_MILLIS, listener);
+
+        serverSideChannel.close();
+
+        assertTrue(listener.awaitCall());
+        assertEquals(1, listener.readyCount.get());
+        assertEquals(0, listener.timeoutCount.get());
+    }
+
+    @Test
+    public void park_withChannelClosedWhileParked_shouldCallOnReadyInsteadOfOnTimeout() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        engine.park(clientChannel, SHORT_TIMEOUT_MILLIS, listener);
+
+        clientChannel.close();
+
+        assertTrue(listener.awaitCall());
+        assertEquals(1, listener.readyCount.get());
+        assertEquals(0, listener.timeoutCount.get());
+    }
+
+    @Test
+    public void park_withoutDataBeforeTimeout_shouldCallOnTimeout() throws Exception {
+        RecordingListener listener = new RecordingListener();
+
+        engine.park(clientChannel, SHORT_TIMEOUT_MILLIS, listener);
+
+        assertTrue(listener.awaitCall());
+        assertEquals(0, listener.readyCount.get());
+        assertEquals(1, listener.timeoutCount.get());
+        assertTrue(listener.channelBlocking);
+    }
+
+    @Test
+    public void wakeUp_withParkedRegistration_shouldCallOnReadyOnce() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        ImapPushEngine.Registration registration = engine.park(clientChannel, LONG_TIMEOUT_MILLIS, listener);
+
+        engine.wakeUp(registration);
+        engine.wakeUp(registration);
+
+        assertTrue(listener.awaitCall());
+        assertFalse(listener.awaitSecondCall());
+        assertEquals(1, listener.readyCount.get());
+        assertEquals(0, listener.timeoutCount.get());
+        assertTrue(listener.channelBlocking);
+    }
+
+    @Test
+    public void schedule_withoutWakeUp_shouldCallOnTimeoutAfterDelay() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        long start = System.nanoTime();
+
+        engine.schedule(SHORT_TIMEOUT_MILLIS, listener);
+
+        assertTrue(listener.awaitCall());
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue(elapsedMillis >= SHORT_TIMEOUT_MILLIS);
+        assertEquals(0, listener.readyCount.get());
+        assertEquals(1, listener.timeoutCount.get());
+    }
+
+    @Test
+    public void schedule_withWakeUpBeforeDelay_shouldCallOnReady() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        ImapPushEngine.Registration registration = engine.schedule(LONG_TIMEOUT_MILLIS, listener);
+
+        engine.wakeUp(registration);
+
+        assertTrue(listener.awaitCall());
+        assertEquals(1, listener.readyCount.get());
+        assertEquals(0, listener.timeoutCount.get());
+    }
+
+    @Test
+    public void wakeUp_afterTimeout_shouldNotCallOnReady() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        ImapPushEngine.Registration registration = engine.schedule(SHORT_TIMEOUT_MILLIS, listener);
+        assertTrue(listener.awaitCall());
+
+        engine.wakeUp(registration);
+
+        assertFalse(listener.awaitSecondCall());
+        assertEquals(0, listener.readyCount.get());
+        assertEquals(1, listener.timeoutCount.get());
+    }
+
+    @Test
+    public void executeBlocking_withBusyConnectThread_shouldRunTaskOnAnotherThread() throws Exception {
+        final CountDownLatch blockingTaskStarted = new CountDownLatch(1);
+        final CountDownLatch releaseBlockingTask = new CountDownLatch(1);
+        final CountDownLatch secondTaskRan = new CountDownLatch(1);
+        engine.executeBlocking(new Runnable() {
+            @Override
+            public void run() {
+                blockingTaskStarted.countDown();
+                awaitQuietly(releaseBlockingTask);
+            }
+        });
+        assertTrue(blockingTaskStarted.await(WAIT_SECONDS, TimeUnit.SECONDS));
+
+        try {
+            engine.executeBlocking(new Runnable() {
+                @Override
+                public void run() {
+                    secondTaskRan.countDown();
+                }
+            });
+
+            assertTrue(secondTaskRan.await(WAIT_SECONDS, TimeUnit.SECONDS));
+        } finally {
+            releaseBlockingTask.countDown();
+        }
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await(WAIT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    private class RecordingListener implements ImapPushEngine.Listener {
+        final AtomicInteger readyCount = new AtomicInteger();
+        final AtomicInteger timeoutCount = new AtomicInteger();
+        final CountDownLatch firstCall = new CountDownLatch(1);
+        final CountDownLatch secondCall = new CountDownLatch(2);
+        volatile boolean channelBlocking;
+
+
+        @Override
+        public void onReady() {
+            readyCount.incrementAndGet();
+            called();
+        }
+
+        @Override
+        public void onTimeout() {
+            timeoutCount.incrementAndGet();
+            called();
+        }
+
+        private void called() {
+            channelBlocking = clientChannel.isBlocking();
+            firstCall.countDown();
+            secondCall.countDown();
+        }
+
+        boolean awaitCall() throws InterruptedException {
+            return firstCall.await(WAIT_SECONDS, TimeUnit.SECONDS);
+        }
+
+        boolean awaitCall(long timeoutMillis) throws InterruptedException {
+            return firstCall.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
+        boolean awaitSecondCall() throws InterruptedException {
+            return secondCall.await(SHORT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -66,7 +66,21 @@ public class ImapPusherTest {
     }
 
     @Test
-    public void start_withTwoFolderNames_shouldCreateTwoImapFolderPushersAndCallStart() throws Exception {
+    public void start_withTwoFolderNames_shouldCreateImapNotifyPusherAndCallStart() throws Exception {
+        List<String> folderNames = Arrays.asList("Important", "Drafts");
+
+        imapPusher.start(folderNames);
+
+        assertEquals(0, imapPusher.getImapFolderPushers().size());
+        List<ImapNotifyPusher> imapNotifyPushers = imapPusher.getImapNotifyPushers();
+        assertEquals(1, imapNotifyPushers.size());
+        verify(imapNotifyPushers.get(0)).start();
+    }
+
+    @Test
+    public void start_withTwoFolderNamesAndNotifyUnavailable_shouldCreateTwoImapFolderPushersAndCallStart()
+            throws Exception {
+        when(imapStore.isNotifyUnavailable()).thenReturn(true);
         List<String> folderNames = Arrays.asList("Important", "Drafts");
 
         imapPusher.start(folderNames);
@@ -100,6 +114,44 @@ public class ImapPusherTest {
         verify(imapFolderPusher).stop();
     }
 
+    @Test
+    public void stop_afterStartWithTwoFolderNames_shouldStopImapNotifyPusher() throws Exception {
+        imapPusher.start(Arrays.asList("Important", "Drafts"));
+
+        imapPusher.stop();
+
+        ImapNotifyPusher imapNotifyPusher = imapPusher.getImapNotifyPushers().get(0);
+        verify(imapNotifyPusher).stop();
+    }
+
+    @Test
+    public void startFolderPushersInsteadOf_shouldCreateImapFolderPusherForEachFolder() throws Exception {
+        List<String> folderNames = Arrays.asList("Important", "Drafts");
+        imapPusher.start(folderNames);
+        ImapNotifyPusher imapNotifyPusher = imapPusher.getImapNotifyPushers().get(0);
+        when(imapNotifyPusher.getFolderIds()).thenReturn(folderNames);
+
+        imapPusher.startFolderPushersInsteadOf(imapNotifyPusher);
+
+        List<ImapFolderPusher> imapFolderPushers = imapPusher.getImapFolderPushers();
+        assertEquals(2, imapFolderPushers.size());
+        verify(imapFolderPushers.get(0)).start();
+        verify(imapFolderPushers.get(1)).start();
+    }
+
+    @Test
+    public void startFolderPushersInsteadOf_afterStop_shouldNotCreateImapFolderPushers() throws Exception {
+        List<String> folderNames = Arrays.asList("Important", "Drafts");
+        imapPusher.start(folderNames);
+        ImapNotifyPusher imapNotifyPusher = imapPusher.getImapNotifyPushers().get(0);
+        when(imapNotifyPusher.getFolderIds()).thenReturn(folderNames);
+        imapPusher.stop();
+
+        imapPusher.startFolderPushersInsteadOf(imapNotifyPusher);
+
+        assertEquals(0, imapPusher.getImapFolderPushers().size());
+    }
+
     @Test
     public void stop_withImapFolderPusherThrowing_shouldNotThrow() throws Exception {
         List<String> folderNames = Collections.singletonList("Archive");
@@ -157,6 +209,7 @@ public class ImapPusherTest {
 
 
         private final List<ImapFolderPusher> imapFolderPushers = new ArrayList<>();
+        private final List<ImapNotifyPusher> imapNotifyPushers = new ArrayList<>();
 
 
         public TestImapPusher(ImapStore store, PushReceiver receiver) {
@@ -174,6 +227,17 @@ public class ImapPusherTest {
             return imapFolderPushers;
         }
 
+        @Override
+        ImapNotifyPusher createImapNotifyPusher(List<String> folderNames) {
+            ImapNotifyPusher imapNotifyPusher = mock(ImapNotifyPusher.class);
+            imapNotifyPushers.add(imapNotifyPusher);
+            return imapNotifyPusher;
+        }
+
+        public List<ImapNotifyPusher> getImapNotifyPushers() {
+            return imapNotifyPushers;
+        }
+
         @Override
         long currentTimeMillis() {
             return CURRENT_TIME_MILLIS;
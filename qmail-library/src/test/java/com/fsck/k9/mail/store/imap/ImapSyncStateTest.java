@@ -0,0 +1,61 @@
+package com.fsck.k9.mail.store.imap;
+
+
+import com.fsck.k9.mail.K9LibRobolectricTestRunner;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+
+@RunWith(K9LibRobolectricTestRunner.class)
+public class ImapSyncStateTest {
+    @Test
+    public void parse_withValidArgument() throws Exception {
+        ImapSyncState result = ImapSyncState.parse("uidValidity=1125022061;highestModSeq=715194045007");
+
+        assertNotNull(result);
+        assertEquals(1125022061L, result.uidValidity);
+        assertEquals(715194045007L, result.highestModSeq);
+    }
+
+    @Test
+    public void parse_withNullArgument_shouldReturnNull() throws Exception {
+        ImapSyncState result = ImapSyncState.parse(null);
+
+        assertNull(result);
+    }
+
+    @Test
+    public void parse_withEmptyArgument_shouldReturnNull() throws Exception {
+        ImapSyncState result = ImapSyncState.parse("");
+
+        assertNull(result);
+    }
+
+    @Test
+    public void parse_withMissingHighestModSeq_shouldReturnNull() throws Exception {
+        ImapSyncState result = ImapSyncState.parse("uidValidity=42");
+
+        assertNull(result);
+    }
+
+    @Test
+    public void parse_withoutIntegerAsHighestModSeq_shouldReturnNull() throws Exception {
+        ImapSyncState result = ImapSyncState.parse("uidValidity=42;highestModSeq=xyz");
+
+        assertNull(result);
+    }
+
+    @Test
+    public void toString_shouldReturnExpectedResult() throws Exception {
+        ImapSyncState imapSyncState = new ImapSyncState(42L, 23L);
+
+        String result = imapSyncState.toString();
+
+        assertEquals("uidValidity=42;highestModSeq=23", result);
+    }
+}
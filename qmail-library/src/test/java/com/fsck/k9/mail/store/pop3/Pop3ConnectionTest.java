@@ -20,7 +20,9 @@ import javax.net.ssl.SSLException;
 import org.junit.Before;
 import org.junit.Test;
 
+import static java.util.Arrays.asList;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -189,6 +191,40 @@ public class Pop3ConnectionTest {
         server.verifyInteractionCompleted();
     }
 
+    @Test
+    public void withPipeliningCapability_sendsPipelinedCommandsTogether() throws Exception {
+        settings.setAuthType(AuthType.PLAIN);
+
+        MockPop3Server server = new MockPop3Server();
+        server.output("+OK POP3 server greeting");
+        server.expect("AUTH");
+        server.output("+OK Listing of supported mechanisms follows");
+        server.output("PLAIN");
+        server.output(".");
+        server.expect("CAPA");
+        server.output("+OK Capability list follows");
+        server.output("UIDL");
+        server.output("PIPELINING");
+        server.output(".");
+        server.expect("AUTH PLAIN");
+        server.output("+OK");
+        server.expect(new String(Base64.encodeBase64(("\000"+username+"\000"+password).getBytes())));
+        server.output("+OK");
+        server.expect("UIDL 1");
+        server.expect("UIDL 2");
+        server.output("+OK 1 abc");
+        server.output("+OK 2 def");
+        Pop3Connection connection = startServerAndCreateConnection(server);
+
+        assertTrue(connection.supportsPipelining());
+        connection.sendPipelinedCommands(asList("UIDL 1", "UIDL 2"));
+        assertEquals("+OK 1 abc", connection.executeSimpleCommand(null));
+        assertEquals("+OK 2 def", connection.executeSimpleCommand(null));
+
+        server.verifyConnectionStillOpen();
+        server.verifyInteractionCompleted();
+    }
+
     @Test
     public void withAuthTypePlainAndPlainAuthCapabilityAndInvalidPasswordResponse_throwsException() throws Exception {
         settings.setAuthType(AuthType.PLAIN);
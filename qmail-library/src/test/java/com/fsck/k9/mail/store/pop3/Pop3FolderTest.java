@@ -6,10 +6,15 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import com.fsck.k9.mail.FetchProfile;
 import com.fsck.k9.mail.FetchProfile.Item;
+import com.fsck.k9.mail.Flag;
 import com.fsck.k9.mail.Folder;
 import com.fsck.k9.mail.Folder.FolderType;
 import com.fsck.k9.mail.MessageRetrievalListener;
@@ -18,15 +23,21 @@ import com.fsck.k9.mail.internet.BinaryTempFileBody;
 import com.fsck.k9.mail.store.StoreConfig;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.mockito.stubbing.OngoingStubbing;
 
+import static java.util.Arrays.asList;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.calls;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
@@ -325,6 +336,207 @@ public class Pop3FolderTest {
         assertEquals("this is some test text.", new String(bodyData.toByteArray(), "UTF-8"));
     }
 
+    @Test
+    public void fetch_withBodyProfileAndPipelining_shouldSendAllRetrCommandsBeforeReadingResponses()
+            throws Exception {
+        folder.open(Folder.OPEN_MODE_RW);
+        List<Pop3Message> messageList = setupMessagesFromServer(2);
+        when(mockConnection.supportsPipelining()).thenReturn(true);
+        when(mockConnection.executeSimpleCommand(null)).thenReturn("+OK");
+        when(mockConnection.getInputStream()).thenReturn(createBodiesInputStream(2));
+        FetchProfile fetchProfile = new FetchProfile();
+        fetchProfile.add(Item.BODY);
+
+        folder.fetch(messageList, fetchProfile, mockListener);
+
+        InOrder inOrder = inOrder(mockConnection, mockListener);
+        inOrder.verify(mockConnection).sendPipelinedCommands(asList("RETR 1", "RETR 2"));
+        inOrder.verify(mockConnection).executeSimpleCommand(null);
+        inOrder.verify(mockConnection).getInputStream();
+        inOrder.verify(mockListener).messageFinished(messageList.get(0), 0, 2);
+        inOrder.verify(mockConnection).executeSimpleCommand(null);
+        inOrder.verify(mockConnection).getInputStream();
+        inOrder.verify(mockListener).messageFinished(messageList.get(1), 1, 2);
+        assertEquals("Body of message 1\r\n", getBodyText(messageList.get(0)));
+        assertEquals("Body of message 2\r\n", getBodyText(messageList.get(1)));
+        assertTrue(messageList.get(1).isSet(Flag.X_DOWNLOADED_FULL));
+        verify(mockConnection, never()).close();
+    }
+
+    @Test
+    public void fetch_withBodySaneProfileAndPipeliningAndTop_shouldSendTopCommands() throws Exception {
+        folder.open(Folder.OPEN_MODE_RW);
+        List<Pop3Message> messageList = setupMessagesFromServer(2);
+        when(mockConnection.supportsPipelining()).thenReturn(true);
+        when(mockConnection.supportsTop()).thenReturn(true);
+        when(mockStoreConfig.getMaximumAutoDownloadMessageSize()).thenReturn(7600);
+        when(mockConnection.executeSimpleCommand(null)).thenReturn("+OK");
+        when(mockConnection.getInputStream()).thenReturn(createBodiesInputStream(2));
+        FetchProfile fetchProfile = new FetchProfile();
+        fetchProfile.add(Item.BODY_SANE);
+
+        folder.fetch(messageList, fetchProfile, mockListener);
+
+        verify(mockConnection).sendPipelinedCommands(asList("TOP 1 100", "TOP 2 100"));
+        assertEquals("Body of message 2\r\n", getBodyText(messageList.get(1)));
+        assertFalse(messageList.get(1).isSet(Flag.X_DOWNLOADED_FULL));
+    }
+
+    @Test
+    public void fetch_withPipeliningAndMoreMessagesThanPipelineWindow_shouldSendNextWindowAfterReadingResponses()
+            throws Exception {
+        when(mockConnection.executeSimpleCommand(Pop3Commands.STAT_COMMAND)).thenReturn("+OK 60 0");
+        folder.open(Folder.OPEN_MODE_RW);
+        List<Pop3Message> messageList = setupMessagesFromServer(51);
+        when(mockConnection.supportsPipelining()).thenReturn(true);
+        when(mockConnection.executeSimpleCommand(null)).thenReturn("+OK");
+        when(mockConnection.getInputStream()).thenReturn(createBodiesInputStream(51));
+        FetchProfile fetchProfile = new FetchProfile();
+        fetchProfile.add(Item.BODY);
+
+        folder.fetch(messageList, fetchProfile, mockListener);
+
+        List<String> firstWindow = new ArrayList<>();
+        for (int i = 1; i <= 50; i++) {
+            firstWindow.add("RETR " + i);
+        }
+        InOrder inOrder = inOrder(mockConnection);
+        inOrder.verify(mockConnection).sendPipelinedCommands(firstWindow);
+        inOrder.verify(mockConnection, calls(50)).executeSimpleCommand(null);
+        inOrder.verify(mockConnection).sendPipelinedCommands(Collections.singletonList("RETR 51"));
+        inOrder.verify(mockConnection).executeSimpleCommand(null);
+        assertEquals("Body of message 51\r\n", getBodyText(messageList.get(50)));
+    }
+
+    @Test
+    public void fetch_withPipeliningAndErrorResponse_shouldCloseConnectionAndThrow() throws Exception {
+        folder.open(Folder.OPEN_MODE_RW);
+        List<Pop3Message> messageList = setupMessagesFromServer(2);
+        when(mockConnection.supportsPipelining()).thenReturn(true);
+        when(mockConnection.executeSimpleCommand(null))
+                .thenReturn("+OK")
+                .thenThrow(new Pop3ErrorResponse("-ERR no such message"));
+        when(mockConnection.getInputStream()).thenReturn(createBodiesInputStream(1));
+        FetchProfile fetchProfile = new FetchProfile();
+        fetchProfile.add(Item.BODY);
+
+        try {
+            folder.fetch(messageList, fetchProfile, mockListener);
+            fail("Expected exception");
+        } catch (Pop3ErrorResponse e) {
+            assertEquals("-ERR no such message", e.getMessage());
+        }
+
+        verify(mockConnection).close();
+        verify(mockListener).messageFinished(messageList.get(0), 0, 2);
+        verify(mockListener, never()).messageFinished(messageList.get(1), 1, 2);
+    }
+
+    @Test
+    public void fetch_withPipeliningAndConnectionDroppedWhileReadingBody_shouldCloseConnectionAndThrow()
+            throws Exception {
+        folder.open(Folder.OPEN_MODE_RW);
+        List<Pop3Message> messageList = setupMessagesFromServer(2);
+        when(mockConnection.supportsPipelining()).thenReturn(true);
+        when(mockConnection.executeSimpleCommand(null)).thenReturn("+OK");
+        InputStream droppedConnectionInputStream = new SequenceInputStream(createBodiesInputStream(1),
+                new InputStream() {
+                    @Override
+                    public int read() throws IOException {
+                        throw new SocketException("Connection reset");
+                    }
+                });
+        when(mockConnection.getInputStream()).thenReturn(droppedConnectionInputStream);
+        FetchProfile fetchProfile = new FetchProfile();
+        fetchProfile.add(Item.BODY);
+
+        try {
+            folder.fetch(messageList, fetchProfile, mockListener);
+            fail("Expected exception");
+        } catch (MessagingException expected) {
+        }
+
+        verify(mockConnection).close();
+        assertEquals("Body of message 1\r\n", getBodyText(messageList.get(0)));
+        verify(mockListener, never()).messageFinished(messageList.get(1), 1, 2);
+    }
+
+    @Test
+    public void getMessages_withValidSavedUidIndex_shouldNotRequestFullListing() throws Exception {
+        setupSavedUidIndex("abc", "def", "ghi");
+        when(mockConnection.executeSimpleCommand("UIDL 3")).thenReturn("+OK 3 ghi");
+        folder.open(Folder.OPEN_MODE_RW);
+
+        List<Pop3Message> result = folder.getMessages(1, 3, null, mockListener);
+
+        assertEquals(3, result.size());
+        assertEquals("def", result.get(1).getUid());
+        verify(mockConnection, never()).executeSimpleCommand(Pop3Commands.UIDL_COMMAND);
+    }
+
+    @Test
+    public void getMessages_withOutdatedSavedUidIndex_shouldRequestFullListing() throws Exception {
+        setupSavedUidIndex("abc", "def", "ghi");
+        when(mockConnection.executeSimpleCommand("UIDL 3")).thenReturn("+OK 3 jkl");
+        when(mockConnection.readLine()).thenReturn("1 abc").thenReturn("2 ghi").thenReturn("3 jkl").thenReturn(".");
+        folder.open(Folder.OPEN_MODE_RW);
+
+        List<Pop3Message> result = folder.getMessages(1, 3, null, mockListener);
+
+        assertEquals("jkl", result.get(2).getUid());
+        verify(mockConnection).executeSimpleCommand(Pop3Commands.UIDL_COMMAND);
+    }
+
+    @Test
+    public void close_afterDeletingMessage_shouldSaveUidIndexWithoutDeletedMessage() throws Exception {
+        Pop3UidIndex uidIndex = setupSavedUidIndex("abc", "def", "ghi");
+        when(mockConnection.executeSimpleCommand("UIDL 3")).thenReturn("+OK 3 ghi");
+        when(mockConnection.isOpen()).thenReturn(true);
+        folder.open(Folder.OPEN_MODE_RW);
+        List<Pop3Message> messages = folder.getMessages(1, 3, null, mockListener);
+
+        folder.setFlags(messages.subList(1, 2), Collections.singleton(Flag.DELETED), true);
+        folder.close();
+
+        verify(mockConnection).executeSimpleCommand("DELE 2");
+        verify(uidIndex).save(asList("abc", "ghi"));
+    }
+
+    private Pop3UidIndex setupSavedUidIndex(String... uids) {
+        Pop3UidIndex uidIndex = mock(Pop3UidIndex.class);
+        when(uidIndex.load()).thenReturn(asList(uids));
+        when(mockStore.getUidIndex()).thenReturn(uidIndex);
+        return uidIndex;
+    }
+
+    private List<Pop3Message> setupMessagesFromServer(int count) throws IOException, MessagingException {
+        OngoingStubbing<String> readLineStubbing = when(mockConnection.readLine());
+        for (int i = 1; i <= count; i++) {
+            readLineStubbing = readLineStubbing.thenReturn(i + " uid" + i);
+        }
+        readLineStubbing.thenReturn(".");
+        return folder.getMessages(1, count, null, mockListener);
+    }
+
+    private static InputStream createBodiesInputStream(int count) throws IOException {
+        StringBuilder responses = new StringBuilder();
+        for (int i = 1; i <= count; i++) {
+            responses.append("From: <adam@example.org>\r\n" +
+                    "Subject: Message ").append(i).append("\r\n" +
+                    "Content-Type: text/plain\r\n" +
+                    "\r\n" +
+                    "Body of message ").append(i).append("\r\n" +
+                    ".\r\n");
+        }
+        return new ByteArrayInputStream(responses.toString().getBytes("US-ASCII"));
+    }
+
+    private static String getBodyText(Pop3Message message) throws Exception {
+        ByteArrayOutputStream bodyData = new ByteArrayOutputStream();
+        message.getBody().writeTo(bodyData);
+        return new String(bodyData.toByteArray(), "US-ASCII");
+    }
+
     private List<Pop3Message> setupMessageFromServer() throws IOException, MessagingException {
         when(mockConnection.readLine()).thenReturn("1 abcd").thenReturn(".");
         return folder.getMessages(1, 1, null, mockListener);
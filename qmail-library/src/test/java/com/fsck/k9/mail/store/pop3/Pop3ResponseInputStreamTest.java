@@ -0,0 +1,59 @@
+package com.fsck.k9.mail.store.pop3;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+
+public class Pop3ResponseInputStreamTest {
+    @Test
+    public void read_shouldEndAtTerminationLine() throws IOException {
+        InputStream in = createInputStream("line 1\r\nline 2\r\n.\r\nnext response\r\n");
+
+        String response = IOUtils.toString(new Pop3ResponseInputStream(in), "US-ASCII");
+
+        assertEquals("line 1\r\nline 2\r\n", response);
+        assertEquals("next response\r\n", IOUtils.toString(in, "US-ASCII"));
+    }
+
+    @Test
+    public void read_withDotStuffedLine_shouldRemoveLeadingDot() throws IOException {
+        InputStream in = createInputStream("..hidden\r\n.\r\n");
+
+        String response = IOUtils.toString(new Pop3ResponseInputStream(in), "US-ASCII");
+
+        assertEquals(".hidden\r\n", response);
+    }
+
+    @Test
+    public void skipRemaining_afterPartialRead_shouldSkipToNextResponse() throws IOException {
+        InputStream in = createInputStream("line 1\r\nline 2\r\n.\r\nnext response\r\n");
+        Pop3ResponseInputStream responseInputStream = new Pop3ResponseInputStream(in);
+        responseInputStream.read();
+
+        responseInputStream.skipRemaining();
+
+        assertEquals(-1, responseInputStream.read());
+        assertEquals("next response\r\n", IOUtils.toString(in, "US-ASCII"));
+    }
+
+    @Test
+    public void skipRemaining_withTruncatedResponse_shouldStopAtEndOfStream() throws IOException {
+        InputStream in = createInputStream("line 1\r\nli");
+        Pop3ResponseInputStream responseInputStream = new Pop3ResponseInputStream(in);
+
+        responseInputStream.skipRemaining();
+
+        assertEquals(-1, in.read());
+    }
+
+    private static InputStream createInputStream(String data) throws IOException {
+        return new ByteArrayInputStream(data.getBytes("US-ASCII"));
+    }
+}
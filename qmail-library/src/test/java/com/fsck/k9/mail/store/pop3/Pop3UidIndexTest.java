@@ -0,0 +1,77 @@
+package com.fsck.k9.mail.store.pop3;
+
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class Pop3UidIndexTest {
+    private File file;
+    private Pop3UidIndex uidIndex;
+
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("pop3-uidl", null);
+        assertTrue(file.delete());
+        uidIndex = new Pop3UidIndex(file);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        file.delete();
+    }
+
+    @Test
+    public void load_withoutFile_shouldReturnEmptyList() throws Exception {
+        List<String> uids = uidIndex.load();
+
+        assertTrue(uids.isEmpty());
+    }
+
+    @Test
+    public void load_afterSave_shouldReturnSavedUids() throws Exception {
+        uidIndex.save(asList("abc", "def", "ghi"));
+
+        List<String> uids = new Pop3UidIndex(file).load();
+
+        assertEquals(asList("abc", "def", "ghi"), uids);
+    }
+
+    @Test
+    public void save_shouldReplacePreviousUids() throws Exception {
+        uidIndex.save(asList("abc", "def", "ghi"));
+
+        uidIndex.save(asList("def"));
+
+        assertEquals(asList("def"), uidIndex.load());
+    }
+
+    @Test
+    public void load_withUnknownFormat_shouldReturnEmptyList() throws Exception {
+        writeFile("something else\nabc\n");
+
+        List<String> uids = uidIndex.load();
+
+        assertTrue(uids.isEmpty());
+    }
+
+    private void writeFile(String content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -2,14 +2,17 @@ package com.fsck.k9.mail.transport.smtp;
 
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.InetAddress;
 
+import com.fsck.k9.mail.Address;
 import com.fsck.k9.mail.AuthType;
 import com.fsck.k9.mail.AuthenticationFailedException;
 import com.fsck.k9.mail.CertificateValidationException;
 import com.fsck.k9.mail.ConnectionSecurity;
 import com.fsck.k9.mail.K9LibRobolectricTestRunner;
 import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.Message.RecipientType;
 import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.ServerSettings;
 import com.fsck.k9.mail.ServerSettings.Type;
@@ -45,6 +48,8 @@ public class SmtpTransportTest {
     private static final String USERNAME = "user";
     private static final String PASSWORD = "password";
     private static final String CLIENT_CERTIFICATE_ALIAS = null;
+    private static final String FIRST_CHUNK_LINE = new String(new char[510]).replace('\0', 'a');
+    private static final int FIRST_CHUNK_LINE_COUNT = 128;
 
     
     private TrustedSocketFactory socketFactory;
@@ -660,6 +665,157 @@ public class SmtpTransportTest {
         //server.verifyConnectionClosed();
     }
 
+    @Test
+    public void sendMessage_withMessageExceedingSizeLimitWhileSending_shouldThrow() throws Exception {
+        MockSmtpServer server = createServerAndSetupForPlainAuthentication("SIZE 10");
+        server.expect("MAIL FROM:<user@localhost>");
+        server.output("250 OK");
+        server.expect("RCPT TO:<user2@localhost>");
+        server.output("250 OK");
+        server.expect("DATA");
+        server.output("354 End data with <CR><LF>.<CR><LF>");
+        server.closeConnection();
+        SmtpTransport transport = startServerAndCreateSmtpTransport(server);
+
+        try {
+            transport.sendMessage(getDefaultMessage());
+            fail("Expected message too large error");
+        } catch (MessagingException e) {
+            assertTrue(e.isPermanentFailure());
+            assertEquals("Message too large for server", e.getMessage());
+        }
+
+        server.verifyConnectionClosed();
+        server.verifyInteractionCompleted();
+    }
+
+    @Test
+    public void sendMessage_withChunking_shouldUseBdat() throws Exception {
+        Message message = getDefaultMessage();
+        MockSmtpServer server = createServerAndSetupForPlainAuthentication("CHUNKING");
+        server.expect("MAIL FROM:<user@localhost>");
+        server.output("250 OK");
+        server.expect("RCPT TO:<user2@localhost>");
+        server.output("250 OK");
+        server.expect("BDAT 16 LAST");
+        server.expect("[message data]");
+        server.output("250 OK: queued as 12345");
+        server.expect("QUIT");
+        server.output("221 BYE");
+        server.closeConnection();
+        SmtpTransport transport = startServerAndCreateSmtpTransport(server);
+
+        transport.sendMessage(message);
+
+        server.verifyConnectionClosed();
+        server.verifyInteractionCompleted();
+    }
+
+    @Test
+    public void sendMessage_withChunkingAndNegativeReply_shouldThrow() throws Exception {
+        Message message = getDefaultMessage();
+        MockSmtpServer server = createServerAndSetupForPlainAuthentication("CHUNKING");
+        server.expect("MAIL FROM:<user@localhost>");
+        server.output("250 OK");
+        server.expect("RCPT TO:<user2@localhost>");
+        server.output("250 OK");
+        server.expect("BDAT 16 LAST");
+        server.expect("[message data]");
+        server.output("554 Transaction failed");
+        server.expect("QUIT");
+        server.output("221 BYE");
+        server.closeConnection();
+        SmtpTransport transport = startServerAndCreateSmtpTransport(server);
+
+        try {
+            transport.sendMessage(message);
+            fail("Expected exception");
+        } catch (NegativeSmtpReplyException e) {
+            assertEquals(554, e.getReplyCode());
+            assertEquals("Transaction failed", e.getReplyText());
+        }
+
+        server.verifyConnectionClosed();
+        server.verifyInteractionCompleted();
+    }
+
+    @Test
+    public void sendMessage_withChunkingAndMultipleChunks_shouldWaitForReplyToEachChunk() throws Exception {
+        Message message = getMessageFillingFirstBdatChunk();
+        MockSmtpServer server = createServerAndSetupForPlainAuthentication("CHUNKING");
+        server.expect("MAIL FROM:<user@localhost>");
+        server.output("250 OK");
+        server.expect("RCPT TO:<user2@localhost>");
+        server.output("250 OK");
+        expectFirstBdatChunk(server);
+        server.output("250 OK: chunk received");
+        server.expect("BDAT 16 LAST");
+        server.expect("[message data]");
+        server.output("250 OK: queued as 12345");
+        server.expect("QUIT");
+        server.output("221 BYE");
+        server.closeConnection();
+        SmtpTransport transport = startServerAndCreateSmtpTransport(server);
+
+        transport.sendMessage(message);
+
+        server.verifyConnectionClosed();
+        server.verifyInteractionCompleted();
+    }
+
+    @Test
+    public void sendMessage_withChunkingAndPipelining_shouldSendChunksWithoutWaitingForReplies() throws Exception {
+        Message message = getMessageFillingFirstBdatChunk();
+        MockSmtpServer server = createServerAndSetupForPlainAuthentication("PIPELINING", "CHUNKING");
+        server.expect("MAIL FROM:<user@localhost>");
+        server.expect("RCPT TO:<user2@localhost>");
+        server.output("250 OK");
+        server.output("250 OK");
+        expectFirstBdatChunk(server);
+        server.expect("BDAT 16 LAST");
+        server.expect("[message data]");
+        server.output("250 OK: chunk received");
+        server.output("250 OK: queued as 12345");
+        server.expect("QUIT");
+        server.output("221 BYE");
+        server.closeConnection();
+        SmtpTransport transport = startServerAndCreateSmtpTransport(server);
+
+        transport.sendMessage(message);
+
+        server.verifyConnectionClosed();
+        server.verifyInteractionCompleted();
+    }
+
+    @Test
+    public void sendMessage_withChunkingAndPipeliningAndRejectedFirstChunk_shouldThrow() throws Exception {
+        Message message = getMessageFillingFirstBdatChunk();
+        MockSmtpServer server = createServerAndSetupForPlainAuthentication("PIPELINING", "CHUNKING");
+        server.expect("MAIL FROM:<user@localhost>");
+        server.expect("RCPT TO:<user2@localhost>");
+        server.output("250 OK");
+        server.output("250 OK");
+        expectFirstBdatChunk(server);
+        server.expect("BDAT 16 LAST");
+        server.expect("[message data]");
+        server.output("552 Message size exceeds storage allocation");
+        server.output("503 Bad sequence of commands");
+        server.expect("QUIT");
+        server.output("221 BYE");
+        server.closeConnection();
+        SmtpTransport transport = startServerAndCreateSmtpTransport(server);
+
+        try {
+            transport.sendMessage(message);
+            fail("Expected exception");
+        } catch (NegativeSmtpReplyException e) {
+            assertEquals(552, e.getReplyCode());
+        }
+
+        server.verifyConnectionClosed();
+        server.verifyInteractionCompleted();
+    }
+
     @Test
     public void sendMessage_withNegativeReply_shouldThrow() throws Exception {
         Message message = getDefaultMessage();
@@ -858,6 +1014,64 @@ public class SmtpTransportTest {
     }
 
 
+    @Test
+    public void sendMessage_withinSession_shouldReuseConnection() throws Exception {
+        MockSmtpServer server = createServerAndSetupForPlainAuthentication();
+        expectSingleRecipientTransaction(server);
+        server.expect("RSET");
+        server.output("250 OK");
+        expectSingleRecipientTransaction(server);
+        server.expect("QUIT");
+        server.output("221 BYE");
+        server.closeConnection();
+        SmtpTransport transport = startServerAndCreateSmtpTransport(server);
+
+        transport.beginSession();
+        transport.sendMessage(getDefaultMessage());
+        transport.sendMessage(getDefaultMessage());
+        transport.endSession();
+
+        assertEquals(1, transport.getSavedHandshakeCount());
+        server.verifyConnectionClosed();
+        server.verifyInteractionCompleted();
+    }
+
+    @Test
+    public void sendMessage_withinSessionAndFailingReset_shouldReconnect() throws Exception {
+        MockSmtpServer server = createServerAndSetupForPlainAuthentication();
+        expectSingleRecipientTransaction(server);
+        server.expect("RSET");
+        server.output("421 Service not available, closing transmission channel");
+        server.expect("QUIT");
+        server.closeConnection();
+        SmtpTransport transport = startServerAndCreateSmtpTransport(server);
+
+        transport.beginSession();
+        transport.sendMessage(getDefaultMessage());
+        try {
+            transport.sendMessage(getDefaultMessage());
+            fail("Expected exception");
+        } catch (MessagingException e) {
+            // The mock server only accepts a single connection, so reconnecting fails
+        }
+
+        assertEquals(0, transport.getSavedHandshakeCount());
+        server.verifyConnectionClosed();
+        server.verifyInteractionCompleted();
+    }
+
+    private void expectSingleRecipientTransaction(MockSmtpServer server) {
+        server.expect("MAIL FROM:<user@localhost>");
+        server.output("250 OK");
+        server.expect("RCPT TO:<user2@localhost>");
+        server.output("250 OK");
+        server.expect("DATA");
+        server.output("354 End data with <CR><LF>.<CR><LF>");
+        server.expect("[message data]");
+        server.expect(".");
+        server.output("250 OK: queued as 12345");
+    }
+
     private SmtpTransport startServerAndCreateSmtpTransport(MockSmtpServer server) throws IOException,
             MessagingException {
         return startServerAndCreateSmtpTransport(server, AuthType.PLAIN, ConnectionSecurity.NONE);
@@ -917,6 +1131,33 @@ public class SmtpTransportTest {
                 .build();
     }
 
+    /**
+     * @return A message whose data fills exactly one 64 KiB {@code BDAT} chunk with lines of 510 characters,
+     * followed by the line {@code [message data]}.
+     */
+    private Message getMessageFillingFirstBdatChunk() throws MessagingException {
+        MimeMessage message = new MimeMessage() {
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                byte[] line = (FIRST_CHUNK_LINE + "\r\n").getBytes();
+                for (int i = 0; i < FIRST_CHUNK_LINE_COUNT; i++) {
+                    out.write(line);
+                }
+                out.write("[message data]".getBytes());
+            }
+        };
+        message.setFrom(new Address("user@localhost"));
+        message.setRecipients(RecipientType.TO, new Address[] { new Address("user2@localhost") });
+        return message;
+    }
+
+    private void expectFirstBdatChunk(MockSmtpServer server) {
+        server.expect("BDAT 65536");
+        for (int i = 0; i < FIRST_CHUNK_LINE_COUNT; i++) {
+            server.expect(FIRST_CHUNK_LINE);
+        }
+    }
+
     private MockSmtpServer createServerAndSetupForPlainAuthentication(String... extensions) {
         MockSmtpServer server = new MockSmtpServer();
         
@@ -1,9 +1,11 @@
 package com.fsck.k9.provider;
 
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.GregorianCalendar;
+import java.util.List;
 
 import android.database.Cursor;
 import android.database.SQLException;
@@ -14,9 +16,12 @@ import android.test.ProviderTestCase2;
 
 import com.fsck.k9.Account;
 import com.fsck.k9.Preferences;
+import com.fsck.k9.mail.Flag;
+import com.fsck.k9.mail.Folder;
 import com.fsck.k9.mail.Message;
 import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.internet.MimeMessage;
+import com.fsck.k9.mailstore.LocalFolder;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -200,6 +205,43 @@ public class EmailProviderTest extends ProviderTestCase2<EmailProvider> {
         assertEquals(message.getSubject(), cursor.getString(3));
     }
 
+    @Test
+    public void query_forMessagesWithPageParameters_returnsNextPage() throws MessagingException {
+        Account account = Preferences.getPreferences(getContext()).newAccount();
+        account.getUuid();
+        account.getLocalStore().getFolder("Inbox").appendMessages(Arrays.asList(message, laterMessage));
+        Uri messagesUri = Uri.parse("content://" + EmailProvider.AUTHORITY + "/account/" + account.getUuid() +
+                "/messages");
+        String[] projection = {
+                EmailProvider.MessageColumns.ID,
+                EmailProvider.MessageColumns.DATE,
+                EmailProvider.MessageColumns.SUBJECT
+        };
+        String sortOrder = EmailProvider.MessageColumns.DATE + " DESC, " + EmailProvider.MessageColumns.ID + " DESC";
+
+        Cursor firstPage = getProvider().query(
+                messagesUri.buildUpon().appendQueryParameter(EmailProvider.QUERY_PARAMETER_PAGE_SIZE, "1").build(),
+                projection, "", new String[] {}, sortOrder);
+
+        assertNotNull(firstPage);
+        assertEquals(1, firstPage.getCount());
+        assertTrue(firstPage.moveToFirst());
+        assertEquals(laterMessage.getSubject(), firstPage.getString(2));
+
+        Cursor secondPage = getProvider().query(
+                messagesUri.buildUpon()
+                        .appendQueryParameter(EmailProvider.QUERY_PARAMETER_PAGE_SIZE, "1")
+                        .appendQueryParameter(EmailProvider.QUERY_PARAMETER_BEFORE_DATE, firstPage.getString(1))
+                        .appendQueryParameter(EmailProvider.QUERY_PARAMETER_BEFORE_ID, firstPage.getString(0))
+                        .build(),
+                projection, "", new String[] {}, sortOrder);
+
+        assertNotNull(secondPage);
+        assertEquals(1, secondPage.getCount());
+        assertTrue(secondPage.moveToFirst());
+        assertEquals(message.getSubject(), secondPage.getString(2));
+    }
+
     @Test
     public void query_forThreadedMessages_sortsCorrectly() throws MessagingException {
         Account account = Preferences.getPreferences(getContext()).newAccount();
@@ -282,6 +324,160 @@ public class EmailProviderTest extends ProviderTestCase2<EmailProvider> {
         assertFalse(cursor.moveToNext());
     }
 
+    @Test
+    public void query_forThreadedMessages_aggregatesFlagsOfThread() throws MessagingException {
+        Account account = Preferences.getPreferences(getContext()).newAccount();
+        LocalFolder folder = account.getLocalStore().getFolder("Inbox");
+        folder.appendMessages(Collections.singletonList(message));
+        folder.appendMessages(Collections.singletonList(reply));
+        folder.open(Folder.OPEN_MODE_RW);
+        folder.getMessage(reply.getUid()).setFlag(Flag.SEEN, true);
+
+        Cursor unreadThread = queryThreadedMessagesReadColumn(account);
+        assertTrue(unreadThread.moveToFirst());
+        assertEquals(0, unreadThread.getInt(0));
+
+        folder.getMessage(message.getUid()).setFlag(Flag.SEEN, true);
+
+        Cursor readThread = queryThreadedMessagesReadColumn(account);
+        assertTrue(readThread.moveToFirst());
+        assertEquals(1, readThread.getInt(0));
+        assertFalse(readThread.moveToNext());
+    }
+
+    @Test
+    public void query_forThreadedMessagesOfFolder_aggregatesThreadAcrossFolders() throws MessagingException {
+        Account account = Preferences.getPreferences(getContext()).newAccount();
+        LocalFolder inbox = account.getLocalStore().getFolder("Inbox");
+        LocalFolder sent = account.getLocalStore().getFolder("Sent");
+        inbox.appendMessages(Collections.singletonList(message));
+        sent.appendMessages(Collections.singletonList(reply));
+        inbox.open(Folder.OPEN_MODE_RW);
+        inbox.getMessage(message.getUid()).setFlag(Flag.SEEN, true);
+
+        Cursor cursor = getProvider().query(
+                Uri.parse("content://" + EmailProvider.AUTHORITY + "/account/" + account.getUuid() +
+                        "/messages/threaded"),
+                new String[] {
+                        EmailProvider.MessageColumns.ID,
+                        EmailProvider.MessageColumns.FOLDER_ID,
+                        EmailProvider.ThreadColumns.ROOT,
+                        EmailProvider.MessageColumns.SUBJECT,
+                        EmailProvider.MessageColumns.READ,
+                        EmailProvider.SpecialColumns.THREAD_COUNT
+                },
+                EmailProvider.MessageColumns.FOLDER_ID + " = ?",
+                new String[] { Long.toString(inbox.getDatabaseId()) },
+                EmailProvider.MessageColumns.DATE + " DESC");
+
+        assertNotNull(cursor);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(inbox.getDatabaseId(), cursor.getLong(1));
+        assertEquals(message.getSubject(), cursor.getString(3));
+        assertEquals(0, cursor.getInt(4));
+        assertEquals(2, cursor.getInt(5));
+        assertFalse(cursor.moveToNext());
+    }
+
+    @Test
+    public void query_forThreadedMessagesOfFolder_sortsThreadAcrossFoldersLikeAggregationQuery()
+            throws MessagingException {
+        Account account = Preferences.getPreferences(getContext()).newAccount();
+        LocalFolder inbox = account.getLocalStore().getFolder("Inbox");
+        LocalFolder sent = account.getLocalStore().getFolder("Sent");
+        MimeMessage messageInBetween = new MimeMessage();
+        messageInBetween.setSubject("Test Subject3");
+        messageInBetween.setSentDate(new GregorianCalendar(2016, 1, 2, 12, 0).getTime(), false);
+        inbox.appendMessages(Arrays.asList(message, messageInBetween));
+        sent.appendMessages(Collections.singletonList(reply));
+        inbox.open(Folder.OPEN_MODE_RO);
+        String[] selectionArgs = { Long.toString(inbox.getDatabaseId()) };
+
+        // "folder_id = ?" is served from the thread summaries, "m.folder_id = ?" by aggregating the messages
+        List<Long> summaryIds = queryThreadedMessageIds(account,
+                EmailProvider.MessageColumns.FOLDER_ID + " = ?", selectionArgs);
+        List<Long> aggregatedIds = queryThreadedMessageIds(account,
+                "m." + EmailProvider.MessageColumns.FOLDER_ID + " = ?", selectionArgs);
+
+        List<Long> expectedIds = Arrays.asList(
+                inbox.getMessage(messageInBetween.getUid()).getDatabaseId(),
+                inbox.getMessage(message.getUid()).getDatabaseId());
+        assertEquals(expectedIds, summaryIds);
+        assertEquals(expectedIds, aggregatedIds);
+    }
+
+    @Test
+    public void query_forStats_countsUnreadAndFlaggedMessagesOfFolder() throws MessagingException {
+        Account account = Preferences.getPreferences(getContext()).newAccount();
+        LocalFolder folder = account.getLocalStore().getFolder("Inbox");
+        folder.appendMessages(Arrays.asList(message, laterMessage, reply));
+        folder.open(Folder.OPEN_MODE_RW);
+        folder.getMessage(message.getUid()).setFlag(Flag.SEEN, true);
+        folder.getMessage(reply.getUid()).setFlag(Flag.FLAGGED, true);
+
+        Cursor stats = queryStats(account, folder);
+        assertTrue(stats.moveToFirst());
+        assertEquals(2, stats.getInt(0));
+        assertEquals(1, stats.getInt(1));
+
+        folder.getMessage(reply.getUid()).destroy();
+
+        Cursor statsAfterDestroy = queryStats(account, folder);
+        assertTrue(statsAfterDestroy.moveToFirst());
+        assertEquals(1, statsAfterDestroy.getInt(0));
+        assertEquals(0, statsAfterDestroy.getInt(1));
+    }
+
+    private Cursor queryStats(Account account, LocalFolder folder) {
+        return getProvider().query(
+                Uri.parse("content://" + EmailProvider.AUTHORITY + "/account/" + account.getUuid() + "/stats"),
+                new String[] {
+                        EmailProvider.StatsColumns.UNREAD_COUNT,
+                        EmailProvider.StatsColumns.FLAGGED_COUNT
+                },
+                EmailProvider.MessageColumns.FOLDER_ID + " = ?",
+                new String[] { Long.toString(folder.getDatabaseId()) },
+                null);
+    }
+
+    private List<Long> queryThreadedMessageIds(Account account, String selection, String[] selectionArgs) {
+        Cursor cursor = getProvider().query(
+                Uri.parse("content://" + EmailProvider.AUTHORITY + "/account/" + account.getUuid() +
+                        "/messages/threaded"),
+                new String[] {
+                        EmailProvider.MessageColumns.ID,
+                        EmailProvider.MessageColumns.FOLDER_ID,
+                        EmailProvider.ThreadColumns.ROOT,
+                        EmailProvider.MessageColumns.DATE
+                },
+                selection,
+                selectionArgs,
+                EmailProvider.MessageColumns.DATE + " DESC");
+        assertNotNull(cursor);
+
+        List<Long> ids = new ArrayList<>();
+        while (cursor.moveToNext()) {
+            ids.add(cursor.getLong(0));
+        }
+        cursor.close();
+
+        return ids;
+    }
+
+    private Cursor queryThreadedMessagesReadColumn(Account account) {
+        return getProvider().query(
+                Uri.parse("content://" + EmailProvider.AUTHORITY + "/account/" + account.getUuid() +
+                        "/messages/threaded"),
+                new String[] {
+                        EmailProvider.MessageColumns.READ,
+                        EmailProvider.MessageColumns.ID,
+                        EmailProvider.SpecialColumns.THREAD_COUNT
+                },
+                "",
+                new String[] {},
+                EmailProvider.MessageColumns.DATE + " DESC");
+    }
+
     @Test
     public void query_forAThreadOfMessages_returnsMessage() throws MessagingException {
         Account account = Preferences.getPreferences(getContext()).newAccount();
@@ -106,6 +106,9 @@ public class Account implements BaseAccount, StoreConfig {
     public static final boolean DEFAULT_REPLY_AFTER_QUOTE = false;
     public static final boolean DEFAULT_STRIP_SIGNATURE = true;
     public static final int DEFAULT_REMOTE_SEARCH_NUM_RESULTS = 25;
+    public static final int DEFAULT_MAX_CONNECTIONS = 5;
+    public static final int DEFAULT_CONNECTION_VALIDATION_IDLE_SECONDS = 30;
+    public static final int DEFAULT_CONNECTION_MAX_IDLE_SECONDS = 5 * 60;
 
     public static final String ACCOUNT_DESCRIPTION_KEY = "description";
     public static final String STORE_URI_KEY = "storeUri";
@@ -201,6 +204,9 @@ public class Account implements BaseAccount, StoreConfig {
     private Expunge expungePolicy = Expunge.EXPUNGE_IMMEDIATELY;
     private int maxPushFolders;
     private int idleRefreshMinutes;
+    private int maxConnections;
+    private int connectionValidationIdleSeconds;
+    private int connectionMaxIdleSeconds;
     private boolean goToUnreadMessageSearch;
     private final Map<NetworkType, Boolean> compressionMap = new ConcurrentHashMap<>();
     private Searchable searchableFolders;
@@ -280,6 +286,9 @@ public class Account implements BaseAccount, StoreConfig {
         localStorageProviderId = StorageManager.getInstance(context).getDefaultProviderId();
         automaticCheckIntervalMinutes = -1;
         idleRefreshMinutes = 24;
+        maxConnections = DEFAULT_MAX_CONNECTIONS;
+        connectionValidationIdleSeconds = DEFAULT_CONNECTION_VALIDATION_IDLE_SECONDS;
+        connectionMaxIdleSeconds = DEFAULT_CONNECTION_MAX_IDLE_SECONDS;
         pushPollOnConnect = true;
         displayCount = QMail.DEFAULT_VISIBLE_LIMIT;
         accountNumber = -1;
@@ -385,6 +394,11 @@ public class Account implements BaseAccount, StoreConfig {
         alwaysBcc = storage.getString(accountUuid + ".alwaysBcc", alwaysBcc);
         automaticCheckIntervalMinutes = storage.getInt(accountUuid + ".automaticCheckIntervalMinutes", -1);
         idleRefreshMinutes = storage.getInt(accountUuid + ".idleRefreshMinutes", 24);
+        maxConnections = storage.getInt(accountUuid + ".maxConnections", DEFAULT_MAX_CONNECTIONS);
+        connectionValidationIdleSeconds = storage.getInt(accountUuid + ".connectionValidationIdleSeconds",
+                DEFAULT_CONNECTION_VALIDATION_IDLE_SECONDS);
+        connectionMaxIdleSeconds = storage.getInt(accountUuid + ".connectionMaxIdleSeconds",
+                DEFAULT_CONNECTION_MAX_IDLE_SECONDS);
         pushPollOnConnect = storage.getBoolean(accountUuid + ".pushPollOnConnect", true);
         displayCount = storage.getInt(accountUuid + ".displayCount", QMail.DEFAULT_VISIBLE_LIMIT);
         if (displayCount < 0) {
@@ -511,6 +525,9 @@ public class Account implements BaseAccount, StoreConfig {
         editor.remove(accountUuid + ".automaticCheckIntervalMinutes");
         editor.remove(accountUuid + ".pushPollOnConnect");
         editor.remove(accountUuid + ".idleRefreshMinutes");
+        editor.remove(accountUuid + ".maxConnections");
+        editor.remove(accountUuid + ".connectionValidationIdleSeconds");
+        editor.remove(accountUuid + ".connectionMaxIdleSeconds");
         editor.remove(accountUuid + ".lastAutomaticCheckTime");
         editor.remove(accountUuid + ".latestOldMessageSeenTime");
         editor.remove(accountUuid + ".notifyNewMail");
@@ -679,6 +696,9 @@ public class Account implements BaseAccount, StoreConfig {
         editor.putString(accountUuid + ".alwaysBcc", alwaysBcc);
         editor.putInt(accountUuid + ".automaticCheckIntervalMinutes", automaticCheckIntervalMinutes);
         editor.putInt(accountUuid + ".idleRefreshMinutes", idleRefreshMinutes);
+        editor.putInt(accountUuid + ".maxConnections", maxConnections);
+        editor.putInt(accountUuid + ".connectionValidationIdleSeconds", connectionValidationIdleSeconds);
+        editor.putInt(accountUuid + ".connectionMaxIdleSeconds", connectionMaxIdleSeconds);
         editor.putBoolean(accountUuid + ".pushPollOnConnect", pushPollOnConnect);
         editor.putInt(accountUuid + ".displayCount", displayCount);
         editor.putLong(accountUuid + ".latestOldMessageSeenTime", latestOldMessageSeenTime);
@@ -766,6 +786,14 @@ public class Account implements BaseAccount, StoreConfig {
 
     }
 
+    private void resetMoreMessages() {
+        try {
+            getLocalStore().resetMoreMessages();
+        } catch (MessagingException e) {
+            Timber.e(e, "Unable to reset more messages");
+        }
+    }
+
     /**
      * @return <code>null</code> if not available
      * @throws MessagingException
@@ -1005,6 +1033,15 @@ public class Account implements BaseAccount, StoreConfig {
         this.latestOldMessageSeenTime = latestOldMessageSeenTime;
     }
 
+    /**
+     * Saves only the value of {@link #getLatestOldMessageSeenTime()}, which is updated by every sync of the account.
+     */
+    public synchronized void saveLatestOldMessageSeenTime(Preferences preferences) {
+        StorageEditor editor = preferences.getStorage().edit();
+        editor.putLong(accountUuid + ".latestOldMessageSeenTime", latestOldMessageSeenTime);
+        editor.commit();
+    }
+
     public synchronized boolean isNotifyNewMail() {
         return notifyNewMail;
     }
@@ -1441,6 +1478,33 @@ public class Account implements BaseAccount, StoreConfig {
         this.idleRefreshMinutes = idleRefreshMinutes;
     }
 
+    @Override
+    public synchronized int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public synchronized void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    @Override
+    public synchronized int getConnectionValidationIdleSeconds() {
+        return connectionValidationIdleSeconds;
+    }
+
+    public synchronized void setConnectionValidationIdleSeconds(int connectionValidationIdleSeconds) {
+        this.connectionValidationIdleSeconds = connectionValidationIdleSeconds;
+    }
+
+    @Override
+    public synchronized int getConnectionMaxIdleSeconds() {
+        return connectionMaxIdleSeconds;
+    }
+
+    public synchronized void setConnectionMaxIdleSeconds(int connectionMaxIdleSeconds) {
+        this.connectionMaxIdleSeconds = connectionMaxIdleSeconds;
+    }
+
     public synchronized boolean isPushPollOnConnect() {
         return pushPollOnConnect;
     }
@@ -1486,7 +1550,10 @@ public class Account implements BaseAccount, StoreConfig {
     }
 
     public synchronized void setMaximumPolledMessageAge(int maximumPolledMessageAge) {
-        this.maximumPolledMessageAge = maximumPolledMessageAge;
+        if (this.maximumPolledMessageAge != maximumPolledMessageAge) {
+            this.maximumPolledMessageAge = maximumPolledMessageAge;
+            resetMoreMessages();
+        }
     }
 
     public synchronized int getMaximumAutoDownloadMessageSize() {
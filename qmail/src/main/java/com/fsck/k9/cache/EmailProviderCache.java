@@ -1,8 +1,11 @@
 package com.fsck.k9.cache;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.content.Context;
 import android.content.Intent;
@@ -10,6 +13,7 @@ import android.net.Uri;
 import android.support.v4.content.LocalBroadcastManager;
 
 import com.fsck.k9.fragment.MessageListFragment;
+import com.fsck.k9.helper.Utility;
 import com.fsck.k9.mail.Message;
 import com.fsck.k9.mailstore.LocalFolder;
 import com.fsck.k9.mailstore.LocalMessage;
@@ -17,13 +21,28 @@ import com.fsck.k9.provider.EmailProvider;
 
 /**
  * Cache to bridge the time needed to write (user-initiated) changes to the database.
+ * <p>
+ * All methods may be called from any thread. Entries are keyed by the primitive message or thread root ID and spread
+ * over {@link #STRIPE_COUNT} independently locked stripes. Cached column values are stored in a small array indexed by
+ * column, shared by all accounts. Each map is bounded by {@link #MAX_ENTRIES}; entries only live until the database
+ * write completes, so dropping one early merely shows the old value a bit longer.
+ * </p>
  */
 public class EmailProviderCache {
     public static final String ACTION_CACHE_UPDATED = "EmailProviderCache.ACTION_CACHE_UPDATED";
 
+    /**
+     * Changes within this many milliseconds are reported with a single notification.
+     */
+    static final long NOTIFY_DELAY_MILLIS = 100;
+
+    private static final int STRIPE_COUNT = 16;
+    private static final int MAX_ENTRIES = 16 * 1024;
+
     private static Context sContext;
     private static Map<String, EmailProviderCache> sInstances =
             new HashMap<String, EmailProviderCache>();
+    private static final Map<String, Integer> sColumnIndexes = new ConcurrentHashMap<String, Integer>();
 
     public static synchronized EmailProviderCache getCache(String accountUuid, Context context) {
 
@@ -40,11 +59,47 @@ public class EmailProviderCache {
         return instance;
     }
 
+    private static int getColumnIndex(String columnName) {
+        Integer columnIndex = sColumnIndexes.get(columnName);
+        if (columnIndex != null) {
+            return columnIndex;
+        }
+
+        synchronized (sColumnIndexes) {
+            columnIndex = sColumnIndexes.get(columnName);
+            if (columnIndex == null) {
+                columnIndex = sColumnIndexes.size();
+                sColumnIndexes.put(columnName, columnIndex);
+            }
+            return columnIndex;
+        }
+    }
+
+    /**
+     * @return The index of {@code columnName}, or {@code -1} if no value was ever cached for this column.
+     */
+    private static int peekColumnIndex(String columnName) {
+        Integer columnIndex = sColumnIndexes.get(columnName);
+        return (columnIndex == null) ? -1 : columnIndex;
+    }
+
+    private static String getColumnValue(String[] values, int columnIndex) {
+        return (values == null || columnIndex < 0 || columnIndex >= values.length) ? null : values[columnIndex];
+    }
+
 
     private String mAccountUuid;
-    private final Map<Long, Map<String, String>> mMessageCache = new HashMap<Long, Map<String, String>>();
-    private final Map<Long, Map<String, String>> mThreadCache = new HashMap<Long, Map<String, String>>();
-    private final Map<Long, Long> mHiddenMessageCache = new HashMap<Long, Long>();
+    private final StripedLongMap<String[]> mMessageCache = new StripedLongMap<String[]>(STRIPE_COUNT, MAX_ENTRIES);
+    private final StripedLongMap<String[]> mThreadCache = new StripedLongMap<String[]>(STRIPE_COUNT, MAX_ENTRIES);
+    private final StripedLongMap<Long> mHiddenMessageCache = new StripedLongMap<Long>(STRIPE_COUNT, MAX_ENTRIES);
+    private final AtomicBoolean mNotificationPending = new AtomicBoolean();
+    private final Runnable mNotifyRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mNotificationPending.set(false);
+            sendChangeNotification();
+        }
+    };
 
 
     private EmailProviderCache(String accountUuid) {
@@ -52,107 +107,121 @@ public class EmailProviderCache {
     }
 
     public String getValueForMessage(Long messageId, String columnName) {
-        synchronized (mMessageCache) {
-            Map<String, String> map = mMessageCache.get(messageId);
-            return (map == null) ? null : map.get(columnName);
-        }
+        return getColumnValue(mMessageCache.get(messageId), peekColumnIndex(columnName));
     }
 
     public String getValueForThread(Long threadRootId, String columnName) {
-        synchronized (mThreadCache) {
-            Map<String, String> map = mThreadCache.get(threadRootId);
-            return (map == null) ? null : map.get(columnName);
-        }
+        return getColumnValue(mThreadCache.get(threadRootId), peekColumnIndex(columnName));
     }
 
     public void setValueForMessages(List<Long> messageIds, String columnName, String value) {
-        synchronized (mMessageCache) {
-            for (Long messageId : messageIds) {
-                Map<String, String> map = mMessageCache.get(messageId);
-                if (map == null) {
-                    map = new HashMap<String, String>();
-                    mMessageCache.put(messageId, map);
-                }
-                map.put(columnName, value);
-            }
-        }
+        setValues(mMessageCache, messageIds, columnName, value);
 
         notifyChange();
     }
 
     public void setValueForThreads(List<Long> threadRootIds, String columnName, String value) {
-        synchronized (mThreadCache) {
-            for (Long threadRootId : threadRootIds) {
-                Map<String, String> map = mThreadCache.get(threadRootId);
-                if (map == null) {
-                    map = new HashMap<String, String>();
-                    mThreadCache.put(threadRootId, map);
-                }
-                map.put(columnName, value);
-            }
-        }
+        setValues(mThreadCache, threadRootIds, columnName, value);
 
         notifyChange();
     }
 
     public void removeValueForMessages(List<Long> messageIds, String columnName) {
-        synchronized (mMessageCache) {
-            for (Long messageId : messageIds) {
-                Map<String, String> map = mMessageCache.get(messageId);
-                if (map != null) {
-                    map.remove(columnName);
-                    if (map.isEmpty()) {
-                        mMessageCache.remove(messageId);
-                    }
-                }
-            }
-        }
+        removeValues(mMessageCache, messageIds, columnName);
     }
 
     public void removeValueForThreads(List<Long> threadRootIds, String columnName) {
-        synchronized (mThreadCache) {
-            for (Long threadRootId : threadRootIds) {
-                Map<String, String> map = mThreadCache.get(threadRootId);
-                if (map != null) {
-                    map.remove(columnName);
-                    if (map.isEmpty()) {
-                        mThreadCache.remove(threadRootId);
-                    }
-                }
-            }
-        }
+        removeValues(mThreadCache, threadRootIds, columnName);
     }
 
     public void hideMessages(List<LocalMessage> messages) {
-        synchronized (mHiddenMessageCache) {
-            for (LocalMessage message : messages) {
-                long messageId = message.getDatabaseId();
-                mHiddenMessageCache.put(messageId, message.getFolder().getDatabaseId());
-            }
+        for (LocalMessage message : messages) {
+            long messageId = message.getDatabaseId();
+            mHiddenMessageCache.put(messageId, message.getFolder().getDatabaseId());
         }
 
         notifyChange();
     }
 
     public boolean isMessageHidden(Long messageId, long folderId) {
-        synchronized (mHiddenMessageCache) {
-            Long hiddenInFolder = mHiddenMessageCache.get(messageId);
-            return (hiddenInFolder != null && hiddenInFolder.longValue() == folderId);
-        }
+        Long hiddenInFolder = mHiddenMessageCache.get(messageId);
+        return (hiddenInFolder != null && hiddenInFolder.longValue() == folderId);
     }
 
     public void unhideMessages(List<? extends Message> messages) {
-        synchronized (mHiddenMessageCache) {
-            for (Message message : messages) {
-                LocalMessage localMessage = (LocalMessage) message;
-                long messageId = localMessage.getDatabaseId();
-                long folderId = ((LocalFolder) localMessage.getFolder()).getDatabaseId();
-                Long hiddenInFolder = mHiddenMessageCache.get(messageId);
-
-                if (hiddenInFolder != null && hiddenInFolder.longValue() == folderId) {
-                    mHiddenMessageCache.remove(messageId);
+        for (Message message : messages) {
+            LocalMessage localMessage = (LocalMessage) message;
+            long messageId = localMessage.getDatabaseId();
+            final long folderId = ((LocalFolder) localMessage.getFolder()).getDatabaseId();
+
+            mHiddenMessageCache.update(messageId, new StripedLongMap.Updater<Long>() {
+                @Override
+                public Long update(long key, Long hiddenInFolder) {
+                    boolean hiddenInThisFolder = (hiddenInFolder != null && hiddenInFolder.longValue() == folderId);
+                    return hiddenInThisFolder ? null : hiddenInFolder;
                 }
+            });
+        }
+    }
+
+    private static void setValues(StripedLongMap<String[]> cache, List<Long> ids, String columnName,
+            final String value) {
+        final int columnIndex = getColumnIndex(columnName);
+        StripedLongMap.Updater<String[]> updater = new StripedLongMap.Updater<String[]>() {
+            @Override
+            public String[] update(long key, String[] values) {
+                // Values are never modified in place, so readers can use them without holding the stripe lock
+                String[] newValues = (values == null) ? new String[columnIndex + 1] :
+                        Arrays.copyOf(values, Math.max(values.length, columnIndex + 1));
+                newValues[columnIndex] = value;
+                return newValues;
             }
+        };
+
+        for (Long id : ids) {
+            cache.update(id, updater);
+        }
+    }
+
+    private static void removeValues(StripedLongMap<String[]> cache, List<Long> ids, String columnName) {
+        final int columnIndex = peekColumnIndex(columnName);
+        if (columnIndex < 0) {
+            return;
+        }
+
+        StripedLongMap.Updater<String[]> updater = new StripedLongMap.Updater<String[]>() {
+            @Override
+            public String[] update(long key, String[] values) {
+                if (getColumnValue(values, columnIndex) == null) {
+                    return values;
+                }
+
+                String[] newValues = values.clone();
+                newValues[columnIndex] = null;
+                for (String remainingValue : newValues) {
+                    if (remainingValue != null) {
+                        return newValues;
+                    }
+                }
+                return null;
+            }
+        };
+
+        for (Long id : ids) {
+            cache.update(id, updater);
+        }
+    }
+
+    /**
+     * Schedules a change notification unless one is already pending.
+     * <p>
+     * Bulk operations, e.g. marking thousands of messages as read, update the cache many times in quick succession.
+     * Coalescing the notifications makes sure the message list is only refreshed once.
+     * </p>
+     */
+    private void notifyChange() {
+        if (mNotificationPending.compareAndSet(false, true)) {
+            Utility.getMainThreadHandler().postDelayed(mNotifyRunnable, NOTIFY_DELAY_MILLIS);
         }
     }
 
@@ -167,7 +236,7 @@ public class EmailProviderCache {
      * {@code MessageListFragment} can update the view without reloading the cursor.
      * </p>
      */
-    private void notifyChange() {
+    private void sendChangeNotification() {
         LocalBroadcastManager.getInstance(sContext).sendBroadcast(new Intent(ACTION_CACHE_UPDATED));
 
         Uri uri = Uri.withAppendedPath(EmailProvider.CONTENT_URI, "account/" + mAccountUuid +
@@ -0,0 +1,102 @@
+package com.fsck.k9.cache;
+
+
+import android.support.v4.util.LongSparseArray;
+
+
+/**
+ * A thread-safe map with primitive {@code long} keys and a bounded number of entries.
+ * <p>
+ * Keys are spread over a fixed number of stripes that are locked independently, so threads updating different
+ * messages rarely contend. Each stripe holds at most {@code maxEntries / stripes} entries. When a stripe is full the
+ * entry with the lowest key, i.e. the oldest message, is dropped to make room.
+ * </p>
+ */
+class StripedLongMap<V> {
+    interface Updater<V> {
+        /**
+         * @return The new value for {@code key}, or {@code null} to remove the entry.
+         */
+        V update(long key, V value);
+    }
+
+
+    private final LongSparseArray<V>[] stripes;
+    private final int maxEntriesPerStripe;
+
+
+    @SuppressWarnings("unchecked")
+    StripedLongMap(int stripeCount, int maxEntries) {
+        if (Integer.bitCount(stripeCount) != 1) {
+            throw new IllegalArgumentException("stripeCount must be a power of two");
+        }
+
+        stripes = new LongSparseArray[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new LongSparseArray<>();
+        }
+        maxEntriesPerStripe = Math.max(1, maxEntries / stripeCount);
+    }
+
+    V get(long key) {
+        LongSparseArray<V> stripe = getStripe(key);
+        synchronized (stripe) {
+            return stripe.get(key);
+        }
+    }
+
+    void put(long key, V value) {
+        LongSparseArray<V> stripe = getStripe(key);
+        synchronized (stripe) {
+            putLocked(stripe, key, value);
+        }
+    }
+
+    void remove(long key) {
+        LongSparseArray<V> stripe = getStripe(key);
+        synchronized (stripe) {
+            stripe.remove(key);
+        }
+    }
+
+    /**
+     * Atomically replaces the value for {@code key} with the value returned by {@code updater}.
+     */
+    void update(long key, Updater<V> updater) {
+        LongSparseArray<V> stripe = getStripe(key);
+        synchronized (stripe) {
+            V value = stripe.get(key);
+            V newValue = updater.update(key, value);
+            if (newValue == null) {
+                if (value != null) {
+                    stripe.remove(key);
+                }
+            } else if (newValue != value) {
+                putLocked(stripe, key, newValue);
+            }
+        }
+    }
+
+    int size() {
+        int size = 0;
+        for (LongSparseArray<V> stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    private void putLocked(LongSparseArray<V> stripe, long key, V value) {
+        if (stripe.size() >= maxEntriesPerStripe && stripe.indexOfKey(key) < 0) {
+            stripe.removeAt(0);
+        }
+        stripe.put(key, value);
+    }
+
+    private LongSparseArray<V> getStripe(long key) {
+        int hash = (int) (key ^ (key >>> 32));
+        hash ^= (hash >>> 16);
+        return stripes[hash & (stripes.length - 1)];
+    }
+}
@@ -0,0 +1,161 @@
+package com.fsck.k9.controller;
+
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import timber.log.Timber;
+
+
+/**
+ * Runs folder synchronizations of different accounts, and of different folders of the same account, concurrently.
+ * <p>
+ * Every account has its own lane. At most {@code maxConcurrentSyncs} synchronizations of an account run at the same
+ * time, and a folder is never synchronized twice at the same time. Tasks are started in the order they were scheduled.
+ * Tasks added with {@link #runAfterSyncs(String, Runnable)} act as a barrier: they run after all synchronizations
+ * scheduled before them for that account have finished, and synchronizations scheduled later wait for them.
+ */
+class FolderSyncScheduler {
+    private final Executor executor;
+    private final Map<String, AccountLane> lanes = new HashMap<>();
+
+
+    FolderSyncScheduler(Executor executor) {
+        this.executor = executor;
+    }
+
+    synchronized void scheduleSync(String accountUuid, String folderId, int maxConcurrentSyncs, Runnable sync) {
+        AccountLane lane = getOrCreateLane(accountUuid);
+        lane.maxConcurrentSyncs = Math.max(1, maxConcurrentSyncs);
+        lane.queue.add(new Task(folderId, sync));
+
+        dispatch(lane);
+    }
+
+    synchronized void runAfterSyncs(String accountUuid, Runnable runnable) {
+        AccountLane lane = getOrCreateLane(accountUuid);
+        lane.queue.add(new Task(null, runnable));
+
+        dispatch(lane);
+    }
+
+    /**
+     * Runs {@code runnable} once all synchronizations scheduled so far, for any account, have finished.
+     */
+    synchronized void runAfterAllSyncs(final Runnable runnable) {
+        List<String> accountUuids = new ArrayList<>(lanes.keySet());
+        if (accountUuids.isEmpty()) {
+            executor.execute(runnable);
+            return;
+        }
+
+        final AtomicInteger pendingLanes = new AtomicInteger(accountUuids.size());
+        for (String accountUuid : accountUuids) {
+            runAfterSyncs(accountUuid, new Runnable() {
+                @Override
+                public void run() {
+                    if (pendingLanes.decrementAndGet() == 0) {
+                        runnable.run();
+                    }
+                }
+            });
+        }
+    }
+
+    private AccountLane getOrCreateLane(String accountUuid) {
+        AccountLane lane = lanes.get(accountUuid);
+        if (lane == null) {
+            lane = new AccountLane(accountUuid);
+            lanes.put(accountUuid, lane);
+        }
+
+        return lane;
+    }
+
+    private void dispatch(AccountLane lane) {
+        while (!lane.queue.isEmpty() && !lane.barrierRunning) {
+            Task task = lane.queue.peek();
+            if (task.isBarrier()) {
+                if (lane.runningTasks > 0) {
+                    return;
+                }
+
+                lane.barrierRunning = true;
+            } else if (lane.runningTasks >= lane.maxConcurrentSyncs || lane.runningFolders.contains(task.folderId)) {
+                return;
+            } else {
+                lane.runningFolders.add(task.folderId);
+            }
+
+            lane.queue.poll();
+            lane.runningTasks++;
+            start(lane, task);
+        }
+    }
+
+    private void start(final AccountLane lane, final Task task) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.runnable.run();
+                } catch (Exception e) {
+                    Timber.e(e, "Error running sync task for account %s", lane.accountUuid);
+                } finally {
+                    taskFinished(lane, task);
+                }
+            }
+        });
+    }
+
+    private synchronized void taskFinished(AccountLane lane, Task task) {
+        lane.runningTasks--;
+        if (task.isBarrier()) {
+            lane.barrierRunning = false;
+        } else {
+            lane.runningFolders.remove(task.folderId);
+        }
+
+        dispatch(lane);
+
+        if (lane.runningTasks == 0 && lane.queue.isEmpty()) {
+            lanes.remove(lane.accountUuid);
+        }
+    }
+
+
+    private static class AccountLane {
+        final String accountUuid;
+        final Deque<Task> queue = new ArrayDeque<>();
+        final Set<String> runningFolders = new HashSet<>();
+        int maxConcurrentSyncs = 1;
+        int runningTasks;
+        boolean barrierRunning;
+
+        AccountLane(String accountUuid) {
+            this.accountUuid = accountUuid;
+        }
+    }
+
+    private static class Task {
+        final String folderId;
+        final Runnable runnable;
+
+        Task(String folderId, Runnable runnable) {
+            this.folderId = folderId;
+            this.runnable = runnable;
+        }
+
+        boolean isBarrier() {
+            return folderId == null;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.fsck.k9.controller;
+
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.MessagingException;
+
+
+/**
+ * Accumulates downloaded messages and hands them to a {@link Callback} in chunks.
+ * <p>
+ * A chunk is committed once it holds {@code maxMessages} messages or once the sizes of its messages add up to at least
+ * {@code maxBytes}, whichever comes first. Call {@link #flush()} to commit the remaining messages.
+ * </p>
+ */
+class MessageBatcher<T extends Message> {
+    interface Callback<T> {
+        void commit(List<T> messages) throws MessagingException;
+    }
+
+
+    private final int maxMessages;
+    private final long maxBytes;
+    private final Callback<T> callback;
+    private List<T> messages;
+    private long bytes;
+
+
+    MessageBatcher(int maxMessages, long maxBytes, Callback<T> callback) {
+        if (maxMessages < 1) {
+            throw new IllegalArgumentException("maxMessages must be at least 1");
+        }
+
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.callback = callback;
+        messages = new ArrayList<>(maxMessages);
+    }
+
+    void add(T message) throws MessagingException {
+        messages.add(message);
+        bytes += Math.max(0, message.getSize());
+
+        if (messages.size() >= maxMessages || bytes >= maxBytes) {
+            flush();
+        }
+    }
+
+    void flush() throws MessagingException {
+        if (messages.isEmpty()) {
+            return;
+        }
+
+        List<T> chunk = messages;
+        messages = new ArrayList<>(maxMessages);
+        bytes = 0;
+
+        callback.commit(chunk);
+    }
+}
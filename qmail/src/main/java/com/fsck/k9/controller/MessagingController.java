@@ -24,6 +24,7 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import android.annotation.SuppressLint;
@@ -70,6 +71,7 @@ import com.fsck.k9.mail.FetchProfile.Item;
 import com.fsck.k9.mail.Flag;
 import com.fsck.k9.mail.Folder;
 import com.fsck.k9.mail.Folder.FolderType;
+import com.fsck.k9.mail.FolderChanges;
 import com.fsck.k9.mail.Message;
 import com.fsck.k9.mail.Message.RecipientType;
 import com.fsck.k9.mail.MessageRetrievalListener;
@@ -84,6 +86,7 @@ import com.fsck.k9.mail.internet.MessageExtractor;
 import com.fsck.k9.mail.internet.MimeUtility;
 import com.fsck.k9.mail.power.TracingPowerManager;
 import com.fsck.k9.mail.power.TracingPowerManager.TracingWakeLock;
+import com.fsck.k9.mail.store.imap.ImapStore;
 import com.fsck.k9.mail.store.pop3.Pop3Store;
 import com.fsck.k9.mailstore.LocalFolder;
 import com.fsck.k9.mailstore.LocalFolder.MoreMessages;
@@ -124,6 +127,10 @@ public class MessagingController {
     private static final Set<Flag> SYNC_FLAGS = EnumSet.of(Flag.SEEN, Flag.FLAGGED, Flag.ANSWERED, Flag.FORWARDED);
 
 
+    private static final int MAX_CONCURRENT_FOLDER_SYNCS = 4;
+    private static final int SMALL_MESSAGE_BATCH_SIZE = 100;
+    private static final long SMALL_MESSAGE_BATCH_BYTES = 2 * 1024 * 1024;
+
     private static MessagingController inst = null;
 
 
@@ -138,6 +145,24 @@ public class MessagingController {
     private final ConcurrentHashMap<String, AtomicInteger> sendCount = new ConcurrentHashMap<>();
     private final ConcurrentHashMap<Account, Pusher> pushers = new ConcurrentHashMap<>();
     private final ExecutorService threadPool = Executors.newCachedThreadPool();
+    private final FolderSyncScheduler folderSyncScheduler = new FolderSyncScheduler(
+            Executors.newFixedThreadPool(MAX_CONCURRENT_FOLDER_SYNCS, new ThreadFactory() {
+                private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+                @Override
+                public Thread newThread(@NonNull final Runnable runnable) {
+                    Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            runnable.run();
+                        }
+                    });
+                    thread.setName("FolderSync-" + threadNumber.getAndIncrement());
+                    return thread;
+                }
+            }));
+    private final ConcurrentHashMap<String, Object> pendingCommandLocks = new ConcurrentHashMap<>();
     private final MemorizingMessagingListener memorizingMessagingListener = new MemorizingMessagingListener();
     private final TransportProvider transportProvider;
 
@@ -780,12 +805,22 @@ public class MessagingController {
      */
     public void synchronizeMailbox(final Account account, final String folderId, final String folderName, final MessagingListener listener,
             final Folder providedRemoteFolder) {
-        putBackground("synchronizeMailbox", listener, new Runnable() {
-            @Override
-            public void run() {
-                synchronizeMailboxSynchronous(account, folderId, folderName, listener, providedRemoteFolder);
-            }
-        });
+        folderSyncScheduler.scheduleSync(account.getUuid(), folderId, getMaxConcurrentFolderSyncs(account),
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronizeMailboxSynchronous(account, folderId, folderName, listener, providedRemoteFolder);
+                    }
+                });
+    }
+
+    private int getMaxConcurrentFolderSyncs(Account account) {
+        try {
+            return account.getRemoteStore().getMaxConcurrentFolderSyncs();
+        } catch (MessagingException e) {
+            Timber.w(e, "Unable to get remote store of account %s", account.getDescription());
+            return 1;
+        }
     }
 
     /**
@@ -906,8 +941,37 @@ public class MessagingController {
             long earliestTimestamp = earliestDate != null ? earliestDate.getTime() : 0L;
 
 
+            /*
+             * If the remote folder can tell us what changed since the last sync, only those messages are processed.
+             * This requires the sync window to be the same as during the last sync. When the visible limit or the
+             * earliest poll date setting change, or the last sync didn't finish, it's not known whether more messages
+             * are available. In that case all messages in the window are listed again.
+             */
+            FolderChanges<? extends Message> folderChanges = remoteFolder.getChangesSince(localFolder.getSyncState());
+            if (folderChanges != null && localFolder.getMoreMessages() == MoreMessages.UNKNOWN) {
+                Timber.v("SYNC: Sync window of folder %s changed, listing all messages", folderId);
+                folderChanges = null;
+            }
+
             int remoteStart = 1;
-            if (remoteMessageCount > 0) {
+            if (folderChanges != null) {
+                if (remoteMessageCount > 0 && visibleLimit > 0) {
+                    remoteStart = Math.max(0, remoteMessageCount - visibleLimit) + 1;
+                }
+
+                Timber.v("SYNC: Got %d changed and %d removed messages for folder %s",
+                        folderChanges.getChangedMessages().size(), folderChanges.getRemovedUids().size(), folderId);
+
+                for (Message thisMess : folderChanges.getChangedMessages()) {
+                    Long localMessageTimestamp = localUidMap.get(thisMess.getUid());
+                    boolean inSyncWindow = (localMessageTimestamp != null) ?
+                            localMessageTimestamp >= earliestTimestamp : !thisMess.olderThan(earliestDate);
+                    if (inSyncWindow) {
+                        remoteMessages.add(thisMess);
+                        remoteUidMap.put(thisMess.getUid(), thisMess);
+                    }
+                }
+            } else if (remoteMessageCount > 0) {
                 /* Message numbers start at 1.  */
                 if (visibleLimit > 0) {
                     remoteStart = Math.max(0, remoteMessageCount - visibleLimit) + 1;
@@ -957,9 +1021,24 @@ public class MessagingController {
             MoreMessages moreMessages = localFolder.getMoreMessages();
             if (account.syncRemoteDeletions()) {
                 List<String> destroyMessageUids = new ArrayList<>();
-                for (String localMessageUid : localUidMap.keySet()) {
-                    if (remoteUidMap.get(localMessageUid) == null) {
-                        destroyMessageUids.add(localMessageUid);
+                if (folderChanges != null) {
+                    for (String removedUid : folderChanges.getRemovedUids()) {
+                        if (localUidMap.containsKey(removedUid)) {
+                            destroyMessageUids.add(removedUid);
+                        }
+                    }
+                    // Like a full listing, drop local messages that are now older than the earliest poll date
+                    for (Map.Entry<String, Long> localMessage : localUidMap.entrySet()) {
+                        if (localMessage.getValue() < earliestTimestamp &&
+                                !destroyMessageUids.contains(localMessage.getKey())) {
+                            destroyMessageUids.add(localMessage.getKey());
+                        }
+                    }
+                } else {
+                    for (String localMessageUid : localUidMap.keySet()) {
+                        if (remoteUidMap.get(localMessageUid) == null) {
+                            destroyMessageUids.add(localMessageUid);
+                        }
                     }
                 }
 
@@ -988,6 +1067,12 @@ public class MessagingController {
              */
             int newMessages = downloadMessages(account, remoteFolder, localFolder, remoteMessages, false, true);
 
+            /*
+             * All flags in the sync window are now up to date. Remember the remote folder's state so the next sync
+             * only needs to fetch flags that changed in the meantime.
+             */
+            localFolder.setSyncState(remoteFolder.getSyncState());
+
             int unreadMessageCount = localFolder.getUnreadMessageCount();
             for (MessagingListener l : getListeners()) {
                 l.folderStatusChanged(account, folderId, folderName, unreadMessageCount);
@@ -1003,6 +1088,7 @@ public class MessagingController {
                     folderId,
                     System.currentTimeMillis(),
                     newMessages);
+            logConnectionPoolStats(account);
 
             for (MessagingListener l : getListeners(listener)) {
                 l.synchronizeMailboxFinished(account, folderId, folderName, remoteMessageCount, newMessages);
@@ -1269,7 +1355,7 @@ public class MessagingController {
             if (oldestExtantMessage.before(downloadStarted) &&
                     oldestExtantMessage.after(new Date(account.getLatestOldMessageSeenTime()))) {
                 account.setLatestOldMessageSeenTime(oldestExtantMessage.getTime());
-                account.save(Preferences.getPreferences(context));
+                account.saveLatestOldMessageSeenTime(Preferences.getPreferences(context));
             }
 
         }
@@ -1416,64 +1502,129 @@ public class MessagingController {
 
         Timber.d("SYNC: Fetching %d small messages for folder %s", smallMessages.size(), folderId);
 
-        remoteFolder.fetch(smallMessages,
-                fp, new MessageRetrievalListener<T>() {
+        final MessageBatcher<T> batcher = new MessageBatcher<>(SMALL_MESSAGE_BATCH_SIZE, SMALL_MESSAGE_BATCH_BYTES,
+                new MessageBatcher.Callback<T>() {
                     @Override
-                    public void messageFinished(final T message, int number, int ofTotal) {
-                        try {
+                    public void commit(List<T> messages) throws MessagingException {
+                        storeSmallMessages(account, remoteFolder, localFolder, messages, progress,
+                                unreadBeforeStart, newMessages, todo);
+                    }
+                });
 
+        try {
+            remoteFolder.fetch(smallMessages,
+                    fp, new MessageRetrievalListener<T>() {
+                        @Override
+                        public void messageFinished(final T message, int number, int ofTotal) {
                             if (!shouldImportMessage(account, message, earliestDate)) {
                                 progress.incrementAndGet();
 
                                 return;
                             }
 
-                            // Store the updated message locally
-                            final LocalMessage localMessage = localFolder.storeSmallMessage(message, new Runnable() {
-                                @Override
-                                public void run() {
-                                    progress.incrementAndGet();
-                                }
-                            });
-
-                            // Increment the number of "new messages" if the newly downloaded message is
-                            // not marked as read.
-                            if (!localMessage.isSet(Flag.SEEN)) {
-                                newMessages.incrementAndGet();
+                            try {
+                                batcher.add(message);
+                            } catch (MessagingException me) {
+                                Timber.e(me, "SYNC: fetch small messages");
                             }
+                        }
 
-                            Timber.v("About to notify listeners that we got a new small message %s:%s:%s",
-                                    account, folderId, message.getUid());
+                        @Override
+                        public void messageStarted(String uid, int number, int ofTotal) {
+                        }
 
-                            // Update the listener with what we've found
-                            for (MessagingListener l : getListeners()) {
-                                l.synchronizeMailboxProgress(account, folderId, remoteFolder.getName(), progress.get(), todo);
-                                if (!localMessage.isSet(Flag.SEEN)) {
-                                    l.synchronizeMailboxNewMessage(account, folderId, remoteFolder.getName(), localMessage);
-                                }
-                            }
-                            // Send a notification of this message
+                        @Override
+                        public void messagesFinished(int total) {
+                        }
+                    });
+        } finally {
+            // Store the messages downloaded so far even if the fetch failed part way through
+            try {
+                batcher.flush();
+            } catch (MessagingException me) {
+                Timber.e(me, "SYNC: fetch small messages");
+            }
+        }
 
-                            if (shouldNotifyForMessage(account, localFolder, message)) {
-                                // Notify with the localMessage so that we don't have to recalculate the content preview.
-                                notificationController.addNewMailNotification(account, localMessage, unreadBeforeStart);
-                            }
+        Timber.d("SYNC: Done fetching small messages for folder %s", folderId);
+    }
 
-                        } catch (MessagingException me) {
-                            Timber.e(me, "SYNC: fetch small messages");
-                        }
-                    }
+    /**
+     * Stores a chunk of downloaded small messages using a single transaction, then updates listeners and
+     * notifications once for the whole chunk.
+     * <p>
+     * If the chunk can't be stored, its messages are stored one at a time so that a single bad message only causes
+     * that message to be skipped.
+     * </p>
+     */
+    private <T extends Message> void storeSmallMessages(Account account, Folder<T> remoteFolder,
+            LocalFolder localFolder, List<T> messages, AtomicInteger progress, int unreadBeforeStart,
+            AtomicInteger newMessages, int todo) throws MessagingException {
+        String folderId = remoteFolder.getId();
+
+        // Store the updated messages locally
+        List<T> storedMessages = messages;
+        List<LocalMessage> localMessages;
+        try {
+            localMessages = localFolder.storeSmallMessages(messages);
+        } catch (MessagingException e) {
+            storedMessages = new ArrayList<>(messages.size());
+            localMessages = new ArrayList<>(messages.size());
+            if (messages.size() == 1) {
+                Timber.e(e, "SYNC: Unable to store small message %s, skipping", messages.get(0).getUid());
+            } else {
+                Timber.w(e, "SYNC: Unable to store %d small messages at once, storing them one at a time",
+                        messages.size());
+                storeSmallMessagesOneAtATime(localFolder, messages, storedMessages, localMessages);
+            }
+        }
 
-                    @Override
-                    public void messageStarted(String uid, int number, int ofTotal) {
-                    }
+        // Skipped messages count as progress, too. Otherwise the progress would never reach the total.
+        progress.addAndGet(messages.size());
 
-                    @Override
-                    public void messagesFinished(int total) {
-                    }
-                });
+        Timber.v("About to notify listeners that we got %d new small messages %s:%s",
+                localMessages.size(), account, folderId);
 
-        Timber.d("SYNC: Done fetching small messages for folder %s", folderId);
+        List<LocalMessage> unreadMessages = new ArrayList<>();
+        List<LocalMessage> messagesToNotify = new ArrayList<>();
+        for (int i = 0, size = localMessages.size(); i < size; i++) {
+            LocalMessage localMessage = localMessages.get(i);
+
+            // Increment the number of "new messages" if the newly downloaded message is
+            // not marked as read.
+            if (!localMessage.isSet(Flag.SEEN)) {
+                newMessages.incrementAndGet();
+                unreadMessages.add(localMessage);
+            }
+
+            if (shouldNotifyForMessage(account, localFolder, storedMessages.get(i))) {
+                messagesToNotify.add(localMessage);
+            }
+        }
+
+        // Update the listener with what we've found
+        for (MessagingListener l : getListeners()) {
+            l.synchronizeMailboxProgress(account, folderId, remoteFolder.getName(), progress.get(), todo);
+            for (LocalMessage unreadMessage : unreadMessages) {
+                l.synchronizeMailboxNewMessage(account, folderId, remoteFolder.getName(), unreadMessage);
+            }
+        }
+
+        // Send a notification of these messages
+        // Notify with the localMessages so that we don't have to recalculate the content preview.
+        notificationController.addNewMailNotifications(account, messagesToNotify, unreadBeforeStart);
+    }
+
+    private <T extends Message> void storeSmallMessagesOneAtATime(LocalFolder localFolder, List<T> messages,
+            List<T> storedMessages, List<LocalMessage> localMessages) {
+        for (T message : messages) {
+            try {
+                localMessages.addAll(localFolder.storeSmallMessages(Collections.singletonList(message)));
+                storedMessages.add(message);
+            } catch (MessagingException e) {
+                Timber.e(e, "SYNC: Unable to store small message %s, skipping", message.getUid());
+            }
+        }
     }
 
     private <T extends Message> void downloadLargeMessages(final Account account, final Folder<T> remoteFolder,
@@ -1628,9 +1779,35 @@ public class MessagingController {
                 }
             }
 
-            remoteFolder.fetch(undeletedMessages, fp, null);
+            final Set<String> changedUids = new HashSet<>();
+            boolean incrementalFlagSync = !undeletedMessages.isEmpty() && remoteFolder.fetchChangedFlags(
+                    undeletedMessages, localFolder.getSyncState(), new MessageRetrievalListener<Message>() {
+                        @Override
+                        public void messageStarted(String uid, int number, int ofTotal) {
+                        }
+
+                        @Override
+                        public void messageFinished(Message message, int number, int ofTotal) {
+                            changedUids.add(message.getUid());
+                        }
+
+                        @Override
+                        public void messagesFinished(int total) {
+                        }
+                    });
+
+            if (incrementalFlagSync) {
+                Timber.d("SYNC: Flags of %d messages changed since last sync of folder %s", changedUids.size(),
+                        folderId);
+            } else {
+                remoteFolder.fetch(undeletedMessages, fp, null);
+            }
+
             for (Message remoteMessage : syncFlagMessages) {
-                LocalMessage localMessage = localFolder.getMessage(remoteMessage.getUid());
+                boolean flagsUnchanged = incrementalFlagSync && !remoteMessage.isSet(Flag.DELETED) &&
+                        !changedUids.contains(remoteMessage.getUid());
+
+                LocalMessage localMessage = flagsUnchanged ? null : localFolder.getMessage(remoteMessage.getUid());
                 boolean messageChanged = syncFlags(localMessage, remoteMessage);
                 if (messageChanged) {
                     boolean shouldBeNotifiedOf = false;
@@ -1731,6 +1908,18 @@ public class MessagingController {
     }
 
     private void processPendingCommandsSynchronous(Account account) throws MessagingException {
+        /*
+         * Folders of an account may be synchronized concurrently and each synchronization starts by processing the
+         * pending commands. Only one thread at a time may do that so commands are executed once and in order.
+         */
+        Object lock = new Object();
+        Object existingLock = pendingCommandLocks.putIfAbsent(account.getUuid(), lock);
+        synchronized (existingLock != null ? existingLock : lock) {
+            processPendingCommandsLocked(account);
+        }
+    }
+
+    private void processPendingCommandsLocked(Account account) throws MessagingException {
         LocalStore localStore = account.getLocalStore();
         List<PendingCommand> commands = localStore.getPendingCommands();
 
@@ -2640,6 +2829,7 @@ public class MessagingController {
     @VisibleForTesting
     protected void sendPendingMessagesSynchronous(final Account account) {
         LocalFolder localOutboxFolder = null;
+        Transport transport = null;
         Exception lastFailure = null;
         boolean wasPermanentFailure = false;
         try {
@@ -2675,7 +2865,8 @@ public class MessagingController {
             Timber.i("Scanning folder '%s' (%d) for messages to send",
                     account.getOutboxFolderId(), localOutboxFolder.getDatabaseId());
 
-            Transport transport = transportProvider.getTransport(QMail.app, account);
+            transport = transportProvider.getTransport(QMail.app, account);
+            transport.beginSession();
 
             for (LocalMessage message : localMessages) {
                 if (message.isSet(Flag.DELETED)) {
@@ -2771,6 +2962,9 @@ public class MessagingController {
                 l.sendPendingMessagesFailed(account);
             }
         } finally {
+            if (transport != null) {
+                transport.endSession();
+            }
             if (lastFailure == null) {
                 notificationController.clearSendFailedNotification(account);
             }
@@ -3369,7 +3563,7 @@ public class MessagingController {
         return uids;
     }
 
-    void processPendingEmptyTrash(Account account) throws MessagingException {
+    void processPendingEmptyTrash(final Account account) throws MessagingException {
         Store remoteStore = account.getRemoteStore();
 
         Folder remoteFolder = remoteStore.getFolder(account.getTrashFolderId());
@@ -3383,9 +3577,15 @@ public class MessagingController {
 
                 // When we empty trash, we need to actually synchronize the folder
                 // or local deletes will never get cleaned up
-                synchronizeFolder(account, remoteFolder, true, 0, null);
-                compact(account, null);
+                synchronizeFolder(account, remoteFolder, true, 0, remoteStore.getMaxConcurrentFolderSyncs(), null);
 
+                // Compact once the sync has removed the deleted messages from the local store
+                folderSyncScheduler.runAfterSyncs(account.getUuid(), new Runnable() {
+                    @Override
+                    public void run() {
+                        compact(account, null);
+                    }
+                });
 
             }
         } finally {
@@ -3460,6 +3660,14 @@ public class MessagingController {
     }
 
 
+    private void logConnectionPoolStats(Account account) throws MessagingException {
+        Store remoteStore = account.getRemoteStore();
+        if (remoteStore instanceof ImapStore) {
+            Timber.d("IMAP connections of %s: %s", account.getDescription(),
+                    ((ImapStore) remoteStore).getConnectionPoolStats());
+        }
+    }
+
     /**
      * Find out whether the account type only supports a local Trash folder.
      * <p>
@@ -3568,22 +3776,27 @@ public class MessagingController {
                 } catch (Exception e) {
                     Timber.e(e, "Unable to synchronize mail");
                 }
-                putBackground("finalize sync", null, new Runnable() {
-                            @Override
-                            public void run() {
+                folderSyncScheduler.runAfterAllSyncs(new Runnable() {
+                    @Override
+                    public void run() {
+                        putBackground("finalize sync", null, new Runnable() {
+                                    @Override
+                                    public void run() {
 
-                                Timber.i("Finished mail sync");
+                                        Timber.i("Finished mail sync");
 
-                                if (wakeLock != null) {
-                                    wakeLock.release();
-                                }
-                                for (MessagingListener l : getListeners()) {
-                                    l.checkMailFinished(context, account);
-                                }
+                                        if (wakeLock != null) {
+                                            wakeLock.release();
+                                        }
+                                        for (MessagingListener l : getListeners()) {
+                                            l.checkMailFinished(context, account);
+                                        }
 
-                            }
-                        }
-                );
+                                    }
+                                }
+                        );
+                    }
+                });
             }
         });
     }
@@ -3612,6 +3825,8 @@ public class MessagingController {
             Account.FolderMode aDisplayMode = account.getFolderDisplayMode();
             Account.FolderMode aSyncMode = account.getFolderSyncMode();
 
+            int maxConcurrentSyncs = getMaxConcurrentFolderSyncs(account);
+
             Store localStore = account.getLocalStore();
             for (final Folder folder : localStore.getFolders(false)) {
                 folder.open(Folder.OPEN_MODE_RW);
@@ -3642,28 +3857,34 @@ public class MessagingController {
 
                     continue;
                 }
-                synchronizeFolder(account, folder, ignoreLastCheckedTime, accountInterval, listener);
+                synchronizeFolder(account, folder, ignoreLastCheckedTime, accountInterval, maxConcurrentSyncs,
+                        listener);
             }
         } catch (MessagingException e) {
             Timber.e(e, "Unable to synchronize account %s", account.getName());
         } finally {
-            putBackground("clear notification flag for " + account.getDescription(), null, new Runnable() {
-                        @Override
-                        public void run() {
-                            Timber.v("Clearing notification flag for %s", account.getDescription());
-
-                            account.setRingNotified(false);
-                            try {
-                                AccountStats stats = account.getStats(context);
-                                if (stats == null || stats.unreadMessageCount == 0) {
-                                    notificationController.clearNewMailNotifications(account);
+            folderSyncScheduler.runAfterSyncs(account.getUuid(), new Runnable() {
+                @Override
+                public void run() {
+                    putBackground("clear notification flag for " + account.getDescription(), null, new Runnable() {
+                                @Override
+                                public void run() {
+                                    Timber.v("Clearing notification flag for %s", account.getDescription());
+
+                                    account.setRingNotified(false);
+                                    try {
+                                        AccountStats stats = account.getStats(context);
+                                        if (stats == null || stats.unreadMessageCount == 0) {
+                                            notificationController.clearNewMailNotifications(account);
+                                        }
+                                    } catch (MessagingException e) {
+                                        Timber.e(e, "Unable to getUnreadMessageCount for account: %s", account);
+                                    }
                                 }
-                            } catch (MessagingException e) {
-                                Timber.e(e, "Unable to getUnreadMessageCount for account: %s", account);
                             }
-                        }
-                    }
-            );
+                    );
+                }
+            });
         }
 
 
@@ -3675,6 +3896,7 @@ public class MessagingController {
             final Folder folder,
             final boolean ignoreLastCheckedTime,
             final long accountInterval,
+            final int maxConcurrentSyncs,
             final MessagingListener listener) {
 
         Timber.v("Folder %s was last synced @ %tc", folder.getId(), folder.getLastChecked());
@@ -3685,7 +3907,7 @@ public class MessagingController {
             return;
         }
 
-        putBackground("sync" + folder.getId(), null, new Runnable() {
+        folderSyncScheduler.scheduleSync(account.getUuid(), folder.getId(), maxConcurrentSyncs, new Runnable() {
                     @Override
                     public void run() {
                         LocalFolder tLocalFolder = null;
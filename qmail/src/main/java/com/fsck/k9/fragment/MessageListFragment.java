@@ -43,6 +43,8 @@ import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.Window;
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
 import android.widget.AdapterView;
 import android.widget.AdapterView.AdapterContextMenuInfo;
 import android.widget.AdapterView.OnItemClickListener;
@@ -95,6 +97,7 @@ import com.fsck.k9.search.SearchSpecification.SearchField;
 import com.fsck.k9.search.SqlQueryBuilder;
 
 import static com.fsck.k9.fragment.MLFProjectionInfo.ACCOUNT_UUID_COLUMN;
+import static com.fsck.k9.fragment.MLFProjectionInfo.DATE_COLUMN;
 import static com.fsck.k9.fragment.MLFProjectionInfo.FLAGGED_COLUMN;
 import static com.fsck.k9.fragment.MLFProjectionInfo.FOLDER_REMOTE_ID_COLUMN;
 import static com.fsck.k9.fragment.MLFProjectionInfo.FOLDER_NAME_COLUMN;
@@ -133,6 +136,7 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
     private static final String STATE_ACTIVE_MESSAGE = "activeMessage";
     private static final String STATE_REMOTE_SEARCH_PERFORMED = "remoteSearchPerformed";
     private static final String STATE_MESSAGE_LIST = "listState";
+    private static final String STATE_PAGE_COUNT = "pageCount";
 
     /**
      * Maps a {@link SortType} to a {@link Comparator} implementation.
@@ -176,6 +180,10 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
     private Cursor[] cursors;
     private boolean[] cursorValid;
     int uniqueIdColumn;
+    /**
+     * The number of pages to load when (re)creating a {@link PagedMessageListLoader}.
+     */
+    private int pageCount = 1;
 
     /**
      * Stores the id of the folder that we want to open as soon as possible after load.
@@ -504,6 +512,7 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
         saveListState(outState);
 
         outState.putBoolean(STATE_REMOTE_SEARCH_PERFORMED, remoteSearchPerformed);
+        outState.putInt(STATE_PAGE_COUNT, pageCount);
         if (activeMessage != null) {
             outState.putString(STATE_ACTIVE_MESSAGE, activeMessage.toIdentityString());
         }
@@ -523,6 +532,7 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
 
         remoteSearchPerformed = savedInstanceState.getBoolean(STATE_REMOTE_SEARCH_PERFORMED);
         savedListState = savedInstanceState.getParcelable(STATE_MESSAGE_LIST);
+        pageCount = savedInstanceState.getInt(STATE_PAGE_COUNT, 1);
         String messageReferenceString = savedInstanceState.getString(STATE_ACTIVE_MESSAGE);
         activeMessage = MessageReference.parse(messageReferenceString);
     }
@@ -760,10 +770,69 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
         listView.setFastScrollEnabled(true);
         listView.setScrollingCacheEnabled(false);
         listView.setOnItemClickListener(this);
+        listView.setOnScrollListener(new OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+                // Do nothing
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+                int remainingItemCount = totalItemCount - (firstVisibleItem + visibleItemCount);
+                if (totalItemCount > 0 && remainingItemCount < PagedMessageListLoader.PAGE_SIZE / 2) {
+                    loadNextPage();
+                }
+            }
+        });
 
         registerForContextMenu(listView);
     }
 
+    /**
+     * Extends the message list of the accounts whose last loaded message is the newest. The merged list ends there,
+     * see {@link #getLastLoadedDate()}.
+     */
+    private void loadNextPage() {
+        if (!isLoadFinished()) {
+            return;
+        }
+
+        long lastLoadedDate = getLastLoadedDate();
+        LoaderManager loaderManager = getLoaderManager();
+        for (int i = 0; i < accountUuids.length; i++) {
+            Loader<Cursor> loader = loaderManager.getLoader(i);
+            if (loader instanceof PagedMessageListLoader) {
+                PagedMessageListLoader pagedLoader = (PagedMessageListLoader) loader;
+                if (pagedLoader.hasMorePages() && pagedLoader.getLastLoadedDate() == lastLoadedDate) {
+                    pagedLoader.loadNextPage();
+                    pageCount = Math.max(pageCount, pagedLoader.getPageCount());
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the newest date of the last loaded message of all accounts that have more messages, or
+     * {@link PagedMessageListLoader#ALL_LOADED}. Older messages of other accounts are left out of the merged list,
+     * because messages that haven't been loaded yet may belong in between.
+     */
+    private long getLastLoadedDate() {
+        long lastLoadedDate = PagedMessageListLoader.ALL_LOADED;
+        LoaderManager loaderManager = getLoaderManager();
+        for (int i = 0; i < accountUuids.length; i++) {
+            Loader<Cursor> loader = loaderManager.getLoader(i);
+            if (loader instanceof PagedMessageListLoader) {
+                lastLoadedDate = Math.max(lastLoadedDate, ((PagedMessageListLoader) loader).getLastLoadedDate());
+            }
+        }
+
+        return lastLoadedDate;
+    }
+
+    private Cursor[] truncateToLastLoadedDate(Cursor[] cursors) {
+        return PagedMessageListLoader.truncateToDate(cursors, DATE_COLUMN, getLastLoadedDate());
+    }
+
     public void onCompose() {
         if (!singleAccountMode) {
             /*
@@ -2601,6 +2670,16 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
 
         String sortOrder = buildSortOrder();
 
+        if (threadId == null && sortType == SortType.SORT_DATE && !sortAscending) {
+            /*
+             * buildSortOrder() returns "date DESC, id DESC" here, the order PagedMessageListLoader relies on. With
+             * multiple accounts the merged list is cut at the newest last loaded message (see getLastLoadedDate()).
+             * Scrolling there loads the next page of the account it belongs to.
+             */
+            return new PagedMessageListLoader(getActivity(), uri, projection, selection, selectionArgs, sortOrder,
+                    ID_COLUMN, DATE_COLUMN, pageCount);
+        }
+
         return new CursorLoader(getActivity(), uri, projection, selection, selectionArgs,
                 sortOrder);
     }
@@ -2677,7 +2756,7 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
 
         Cursor cursor;
         if (cursors.length > 1) {
-            cursor = new MergeCursorWithUniqueId(cursors, getComparator());
+            cursor = new MergeCursorWithUniqueId(truncateToLastLoadedDate(cursors), getComparator());
             uniqueIdColumn = cursor.getColumnIndex("_id");
         } else {
             cursor = data;
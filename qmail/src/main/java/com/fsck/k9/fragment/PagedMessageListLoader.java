@@ -0,0 +1,380 @@
+package com.fsck.k9.fragment;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import android.content.Context;
+import android.content.CursorLoader;
+import android.database.AbstractCursor;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+
+import com.fsck.k9.helper.TruncatedCursor;
+import com.fsck.k9.provider.EmailProvider;
+
+
+/**
+ * A {@link CursorLoader} for message lists sorted by {@code date DESC, id DESC} that only reads the first pages of
+ * the list.
+ * <p>
+ * Every page is a separate query for {@link #PAGE_SIZE} rows that continues after the date and ID of the last row of
+ * the previous page (keyset pagination, see {@link EmailProvider#QUERY_PARAMETER_PAGE_SIZE}). The pages are combined
+ * into one cursor. Call {@link #loadNextPage()} when the user scrolls towards the end of the list. That only queries
+ * the new page and keeps the pages loaded before. All pages are queried again when the messages change.
+ * </p>
+ */
+class PagedMessageListLoader extends CursorLoader {
+    static final int PAGE_SIZE = 100;
+
+    /**
+     * Returned by {@link #getLastLoadedDate()} when all messages have been loaded.
+     */
+    static final long ALL_LOADED = Long.MIN_VALUE;
+
+
+    private final ContentObserver observer;
+    private final int idColumn;
+    private final int dateColumn;
+    private volatile int pageCount;
+    /**
+     * Set when the messages changed, so the next load can't reuse the pages loaded before.
+     */
+    private volatile boolean reloadAllPages = true;
+    /**
+     * The cursor delivered last. Only its pages are reused by the next load.
+     */
+    private volatile PagedCursor loadedCursor;
+    private boolean pageRequested;
+
+
+    PagedMessageListLoader(Context context, Uri uri, String[] projection, String selection, String[] selectionArgs,
+            String sortOrder, int idColumn, int dateColumn, int pageCount) {
+        super(context, uri, projection, selection, selectionArgs, sortOrder);
+        this.idColumn = idColumn;
+        this.dateColumn = dateColumn;
+        this.pageCount = Math.max(1, pageCount);
+
+        observer = new ContentObserver(new Handler()) {
+            @Override
+            public boolean deliverSelfNotifications() {
+                return true;
+            }
+
+            @Override
+            public void onChange(boolean selfChange) {
+                reloadAllPages = true;
+                onContentChanged();
+            }
+        };
+    }
+
+    @Override
+    public Cursor loadInBackground() {
+        PagedCursor previousCursor = reloadAllPages ? null : loadedCursor;
+        reloadAllPages = false;
+
+        int pageCount = this.pageCount;
+        List<Cursor> pages = new ArrayList<>(pageCount);
+        int[] pageEnds = new int[pageCount];
+        boolean morePages = true;
+        long lastDate = ALL_LOADED;
+        long lastId = 0;
+        if (previousCursor != null) {
+            pages.addAll(previousCursor.pages);
+            System.arraycopy(previousCursor.pageEnds, 0, pageEnds, 0, previousCursor.pages.size());
+            morePages = previousCursor.morePages;
+            lastDate = previousCursor.lastDate;
+            lastId = previousCursor.lastId;
+        }
+
+        int firstNewPage = pages.size();
+        try {
+            while (morePages && pages.size() < pageCount) {
+                Cursor page = queryPage(pages.isEmpty() ? null : Long.toString(lastDate), Long.toString(lastId));
+                if (page == null) {
+                    morePages = false;
+                    break;
+                }
+
+                int pageIndex = pages.size();
+                pages.add(page);
+                pageEnds[pageIndex] = (pageIndex == 0 ? 0 : pageEnds[pageIndex - 1]) + page.getCount();
+
+                morePages = page.getCount() >= PAGE_SIZE;
+                if (morePages) {
+                    page.moveToLast();
+                    lastDate = page.getLong(dateColumn);
+                    lastId = page.getLong(idColumn);
+                }
+            }
+        } catch (RuntimeException e) {
+            closePages(pages.subList(firstNewPage, pages.size()));
+            throw e;
+        }
+
+        if (pages.isEmpty()) {
+            return null;
+        }
+
+        if (firstNewPage == 0) {
+            // All pages use the same notification URI, so observing the first one is enough
+            pages.get(0).registerContentObserver(observer);
+        }
+
+        return new PagedCursor(pages, Arrays.copyOf(pageEnds, pages.size()), morePages,
+                morePages ? lastDate : ALL_LOADED, lastId);
+    }
+
+    private Cursor queryPage(String beforeDate, String beforeId) {
+        Uri.Builder builder = getUri().buildUpon()
+                .appendQueryParameter(EmailProvider.QUERY_PARAMETER_PAGE_SIZE, Integer.toString(PAGE_SIZE));
+        if (beforeDate != null) {
+            builder.appendQueryParameter(EmailProvider.QUERY_PARAMETER_BEFORE_DATE, beforeDate)
+                    .appendQueryParameter(EmailProvider.QUERY_PARAMETER_BEFORE_ID, beforeId);
+        }
+
+        Cursor cursor = getContext().getContentResolver().query(builder.build(), getProjection(), getSelection(),
+                getSelectionArgs(), getSortOrder());
+        if (cursor != null) {
+            // Make sure the rows are read here and not on the main thread
+            cursor.getCount();
+        }
+
+        return cursor;
+    }
+
+    /*
+     * The pages outlive the cursor they were delivered with, so CursorLoader closing that cursor doesn't close them.
+     * Pages are closed here once no delivered cursor uses them anymore.
+     */
+
+    @Override
+    public void deliverResult(Cursor cursor) {
+        PagedCursor previousCursor = loadedCursor;
+        PagedCursor pagedCursor = (PagedCursor) cursor;
+        if (!isReset()) {
+            loadedCursor = pagedCursor;
+            pageRequested = false;
+        }
+
+        super.deliverResult(cursor);
+
+        if (isReset()) {
+            closeUnusedPages(pagedCursor, null);
+        } else if (previousCursor != pagedCursor) {
+            closeUnusedPages(previousCursor, pagedCursor);
+        }
+    }
+
+    @Override
+    public void onCanceled(Cursor cursor) {
+        super.onCanceled(cursor);
+        closeUnusedPages((PagedCursor) cursor, loadedCursor);
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        closeUnusedPages(loadedCursor, null);
+        loadedCursor = null;
+        pageRequested = false;
+    }
+
+    private static void closeUnusedPages(PagedCursor cursor, PagedCursor usedCursor) {
+        if (cursor == null) {
+            return;
+        }
+
+        List<Cursor> usedPages = (usedCursor != null) ? usedCursor.pages : Collections.<Cursor>emptyList();
+        for (Cursor page : cursor.pages) {
+            if (!usedPages.contains(page)) {
+                page.close();
+            }
+        }
+    }
+
+    private static void closePages(List<Cursor> pages) {
+        for (Cursor page : pages) {
+            page.close();
+        }
+    }
+
+    boolean hasMorePages() {
+        PagedCursor cursor = loadedCursor;
+        return cursor != null && cursor.morePages && !pageRequested;
+    }
+
+    int getPageCount() {
+        return pageCount;
+    }
+
+    /**
+     * Returns the date of the last loaded message, or {@link #ALL_LOADED} if there are no more messages to load.
+     * <p>
+     * Messages of other accounts that are older than this can't be shown yet, because messages of this account that
+     * haven't been loaded may belong in between.
+     * </p>
+     */
+    long getLastLoadedDate() {
+        PagedCursor cursor = loadedCursor;
+        return (cursor != null) ? cursor.lastDate : ALL_LOADED;
+    }
+
+    /**
+     * Leaves out the rows of cursors sorted by date, newest first, that are older than {@code date}. Rows with exactly
+     * that date are kept.
+     *
+     * @return {@code cursors} if {@code date} is {@link #ALL_LOADED}.
+     */
+    static Cursor[] truncateToDate(Cursor[] cursors, int dateColumn, long date) {
+        if (date == ALL_LOADED) {
+            return cursors;
+        }
+
+        Cursor[] truncatedCursors = new Cursor[cursors.length];
+        for (int i = 0; i < cursors.length; i++) {
+            Cursor cursor = cursors[i];
+            if (cursor != null) {
+                truncatedCursors[i] = new TruncatedCursor(cursor, countRowsNotOlderThan(cursor, dateColumn, date));
+            }
+        }
+
+        return truncatedCursors;
+    }
+
+    private static int countRowsNotOlderThan(Cursor cursor, int dateColumn, long date) {
+        int low = 0;
+        int high = cursor.getCount();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            cursor.moveToPosition(middle);
+            if (cursor.getLong(dateColumn) >= date) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+
+    /**
+     * Loads one more page. Does nothing if the last load already returned all rows or a page is being loaded.
+     */
+    void loadNextPage() {
+        if (!hasMorePages()) {
+            return;
+        }
+
+        pageRequested = true;
+        pageCount++;
+        onContentChanged();
+    }
+
+
+    /**
+     * Combines the pages into one cursor.
+     * <p>
+     * Pages are shared with the cursor of the next load, so this cursor neither closes them nor relies on their
+     * position. Every move positions the page of the new row.
+     * </p>
+     */
+    static class PagedCursor extends AbstractCursor {
+        final List<Cursor> pages;
+        final int[] pageEnds;
+        final boolean morePages;
+        final long lastDate;
+        final long lastId;
+        private Cursor page;
+
+
+        PagedCursor(List<Cursor> pages, int[] pageEnds, boolean morePages, long lastDate, long lastId) {
+            this.pages = Collections.unmodifiableList(pages);
+            this.pageEnds = pageEnds;
+            this.morePages = morePages;
+            this.lastDate = lastDate;
+            this.lastId = lastId;
+        }
+
+        @Override
+        public int getCount() {
+            return pageEnds[pageEnds.length - 1];
+        }
+
+        @Override
+        public boolean onMove(int oldPosition, int newPosition) {
+            // Only the last page can be shorter than PAGE_SIZE, so an exact match is the first row of the next page
+            int pageIndex = Arrays.binarySearch(pageEnds, newPosition);
+            pageIndex = (pageIndex >= 0) ? pageIndex + 1 : -(pageIndex + 1);
+
+            page = pages.get(pageIndex);
+            int pageStart = (pageIndex == 0) ? 0 : pageEnds[pageIndex - 1];
+            return page.moveToPosition(newPosition - pageStart);
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return pages.get(0).getColumnNames();
+        }
+
+        @Override
+        public int getColumnIndex(String columnName) {
+            return pages.get(0).getColumnIndex(columnName);
+        }
+
+        @Override
+        public int getColumnIndexOrThrow(String columnName) {
+            return pages.get(0).getColumnIndexOrThrow(columnName);
+        }
+
+        @Override
+        public String getString(int column) {
+            return page.getString(column);
+        }
+
+        @Override
+        public short getShort(int column) {
+            return page.getShort(column);
+        }
+
+        @Override
+        public int getInt(int column) {
+            return page.getInt(column);
+        }
+
+        @Override
+        public long getLong(int column) {
+            return page.getLong(column);
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return page.getFloat(column);
+        }
+
+        @Override
+        public double getDouble(int column) {
+            return page.getDouble(column);
+        }
+
+        @Override
+        public byte[] getBlob(int column) {
+            return page.getBlob(column);
+        }
+
+        @Override
+        public int getType(int column) {
+            return page.getType(column);
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return page.isNull(column);
+        }
+    }
+}
@@ -66,6 +66,41 @@ public class MergeCursor implements Cursor {
      */
     private final Comparator<Cursor> mComparator;
 
+    /**
+     * Index into {@link #mCursors} for every merged position.
+     */
+    private short[] mMergedCursorIndexes;
+
+    /**
+     * Position in the cursor referenced by {@link #mMergedCursorIndexes} for every merged position.
+     */
+    private int[] mMergedRows;
+
+    /**
+     * Number of positions whose cursor and row are known.
+     */
+    private int mMergedCount;
+
+    /**
+     * Binary min-heap of the indexes of all cursors that still have rows left to merge. Every cursor in the heap is
+     * positioned on its next row (see {@link #mNextRows}), unless it was moved to read a merged position.
+     */
+    private int[] mHeap;
+
+    private int mHeapSize;
+
+    /**
+     * The next row of every cursor that hasn't been merged yet.
+     */
+    private int[] mNextRows;
+
+    /**
+     * Cursors that were moved away from their next row to read a merged position.
+     */
+    private boolean[] mMovedCursors;
+
+    private boolean mAnyCursorMoved;
+
 
     /**
      * Constructor
@@ -76,6 +111,10 @@ public class MergeCursor implements Cursor {
      *         A comparator that is used to decide in what order the individual cursors are merged.
      */
     public MergeCursor(Cursor[] cursors, Comparator<Cursor> comparator) {
+        if (cursors.length > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("This class only supports up to " + Short.MAX_VALUE + " cursors");
+        }
+
         mCursors = cursors.clone();
         mComparator = comparator;
 
@@ -86,6 +125,16 @@ public class MergeCursor implements Cursor {
         mActiveCursorIndex = -1;
         mActiveCursor = null;
         mPosition = -1;
+        mCount = -1;
+
+        mMergedCursorIndexes = null;
+        mMergedRows = null;
+        mMergedCount = 0;
+        mHeap = null;
+        mHeapSize = 0;
+        mNextRows = null;
+        mMovedCursors = null;
+        mAnyCursorMoved = false;
 
         for (int i = 0, len = mCursors.length; i < len; i++) {
             Cursor cursor = mCursors[i];
@@ -286,50 +335,7 @@ public class MergeCursor implements Cursor {
 
     @Override
     public boolean moveToNext() {
-        int count = getCount();
-        if (mPosition == count) {
-            return false;
-        }
-
-        if (mPosition == count - 1) {
-            mActiveCursor.moveToNext();
-            mPosition++;
-            return false;
-        }
-
-        int smallest = -1;
-        for (int i = 0, len = mCursors.length; i < len; i++) {
-            if (mCursors[i] == null || mCursors[i].getCount() == 0 || mCursors[i].isLast()) {
-                continue;
-            }
-
-            if (smallest == -1) {
-                smallest = i;
-                mCursors[smallest].moveToNext();
-                continue;
-            }
-
-            Cursor left = mCursors[smallest];
-            Cursor right = mCursors[i];
-
-            right.moveToNext();
-
-            int result = mComparator.compare(left, right);
-            if (result > 0) {
-                smallest = i;
-                left.moveToPrevious();
-            } else {
-                right.moveToPrevious();
-            }
-        }
-
-        mPosition++;
-        if (smallest != -1) {
-            mActiveCursorIndex = smallest;
-            mActiveCursor = mCursors[mActiveCursorIndex];
-        }
-
-        return true;
+        return moveToPosition(mPosition + 1);
     }
 
     @Override
@@ -352,63 +358,126 @@ public class MergeCursor implements Cursor {
             return true;
         }
 
-        if (position > mPosition) {
-            for (int i = 0, end = position - mPosition; i < end; i++) {
-                if (!moveToNext()) {
-                    return false;
-                }
-            }
-        } else {
-            for (int i = 0, end = mPosition - position; i < end; i++) {
-                if (!moveToPrevious()) {
-                    return false;
-                }
-            }
-        }
+        mergeUpTo(position);
+
+        mActiveCursorIndex = mMergedCursorIndexes[position];
+        mActiveCursor = mCursors[mActiveCursorIndex];
+        mActiveCursor.moveToPosition(mMergedRows[position]);
+        mMovedCursors[mActiveCursorIndex] = true;
+        mAnyCursorMoved = true;
+        mPosition = position;
 
         return true;
     }
 
     @Override
     public boolean moveToPrevious() {
-        if (mPosition < 0) {
-            return false;
+        return moveToPosition(mPosition - 1);
+    }
+
+    /**
+     * Extends the merged order until it includes {@code position}.
+     * <p>
+     * Positions are merged lazily with a k-way merge, so scrolling through the first screen of a merged list doesn't
+     * read all rows of all cursors. Every merged position is remembered, which makes moving back or jumping to a
+     * position that was merged before a simple array lookup.
+     * </p>
+     */
+    private void mergeUpTo(int position) {
+        if (position < mMergedCount) {
+            return;
+        }
+
+        if (mHeap == null) {
+            initializeMerge();
+        } else if (mAnyCursorMoved) {
+            for (int i = 0, len = mCursors.length; i < len; i++) {
+                if (mMovedCursors[i]) {
+                    mMovedCursors[i] = false;
+                    if (mNextRows[i] != -1) {
+                        mCursors[i].moveToPosition(mNextRows[i]);
+                    }
+                }
+            }
         }
+        mAnyCursorMoved = false;
 
-        mActiveCursor.moveToPrevious();
+        while (mMergedCount <= position && mHeapSize > 0) {
+            int cursorIndex = mHeap[0];
+            Cursor cursor = mCursors[cursorIndex];
 
-        if (mPosition == 0) {
-            mPosition = -1;
-            return false;
+            mMergedCursorIndexes[mMergedCount] = (short) cursorIndex;
+            mMergedRows[mMergedCount] = mNextRows[cursorIndex];
+            mMergedCount++;
+
+            if (cursor.moveToNext()) {
+                mNextRows[cursorIndex]++;
+            } else {
+                mNextRows[cursorIndex] = -1;
+                mHeapSize--;
+                mHeap[0] = mHeap[mHeapSize];
+            }
+
+            if (mHeapSize > 0) {
+                siftDown(0);
+            }
         }
+    }
+
+    private void initializeMerge() {
+        int count = getCount();
+        mMergedCursorIndexes = new short[count];
+        mMergedRows = new int[count];
+        mMergedCount = 0;
+
+        mHeap = new int[mCursors.length];
+        mHeapSize = 0;
+        mNextRows = new int[mCursors.length];
+        mMovedCursors = new boolean[mCursors.length];
 
-        int greatest = -1;
         for (int i = 0, len = mCursors.length; i < len; i++) {
-            if (mCursors[i] == null || mCursors[i].isBeforeFirst()) {
-                continue;
+            Cursor cursor = mCursors[i];
+            if (cursor != null && cursor.moveToFirst()) {
+                mNextRows[i] = 0;
+                mHeap[mHeapSize++] = i;
+            } else {
+                mNextRows[i] = -1;
             }
+        }
 
-            if (greatest == -1) {
-                greatest = i;
-                continue;
+        for (int i = mHeapSize / 2 - 1; i >= 0; i--) {
+            siftDown(i);
+        }
+    }
+
+    private void siftDown(int heapIndex) {
+        int cursorIndex = mHeap[heapIndex];
+        while (true) {
+            int child = 2 * heapIndex + 1;
+            if (child >= mHeapSize) {
+                break;
             }
 
-            Cursor left = mCursors[greatest];
-            Cursor right = mCursors[i];
+            if (child + 1 < mHeapSize && isBefore(mHeap[child + 1], mHeap[child])) {
+                child++;
+            }
 
-            int result = mComparator.compare(left, right);
-            if (result <= 0) {
-                greatest = i;
+            if (!isBefore(mHeap[child], cursorIndex)) {
+                break;
             }
-        }
 
-        mPosition--;
-        if (greatest != -1) {
-            mActiveCursorIndex = greatest;
-            mActiveCursor = mCursors[mActiveCursorIndex];
+            mHeap[heapIndex] = mHeap[child];
+            heapIndex = child;
         }
+        mHeap[heapIndex] = cursorIndex;
+    }
 
-        return true;
+    /**
+     * Rows that compare equal are taken from the cursor that comes first in {@link #mCursors}.
+     */
+    private boolean isBefore(int leftCursorIndex, int rightCursorIndex) {
+        int result = mComparator.compare(mCursors[leftCursorIndex], mCursors[rightCursorIndex]);
+        return result < 0 || (result == 0 && leftCursorIndex < rightCursorIndex);
     }
 
     @Override
@@ -433,6 +502,8 @@ public class MergeCursor implements Cursor {
             success &= cursor.requery();
         }
 
+        resetCursors();
+
         return success;
     }
 
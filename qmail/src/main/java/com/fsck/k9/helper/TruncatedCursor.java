@@ -0,0 +1,91 @@
+package com.fsck.k9.helper;
+
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+
+
+/**
+ * A {@link CursorWrapper} that only exposes the first rows of the wrapped cursor.
+ */
+public class TruncatedCursor extends CursorWrapper {
+    private final int count;
+    private int position = -1;
+
+
+    public TruncatedCursor(Cursor cursor, int count) {
+        super(cursor);
+        this.count = Math.max(0, Math.min(count, cursor.getCount()));
+    }
+
+    @Override
+    public int getCount() {
+        return count;
+    }
+
+    @Override
+    public int getPosition() {
+        return position;
+    }
+
+    @Override
+    public boolean move(int offset) {
+        return moveToPosition(position + offset);
+    }
+
+    @Override
+    public boolean moveToPosition(int position) {
+        if (position >= count) {
+            this.position = count;
+            return false;
+        }
+
+        if (position < 0) {
+            this.position = -1;
+            return false;
+        }
+
+        this.position = position;
+        return super.moveToPosition(position);
+    }
+
+    @Override
+    public boolean moveToFirst() {
+        return moveToPosition(0);
+    }
+
+    @Override
+    public boolean moveToLast() {
+        return moveToPosition(count - 1);
+    }
+
+    @Override
+    public boolean moveToNext() {
+        return moveToPosition(position + 1);
+    }
+
+    @Override
+    public boolean moveToPrevious() {
+        return moveToPosition(position - 1);
+    }
+
+    @Override
+    public boolean isFirst() {
+        return count != 0 && position == 0;
+    }
+
+    @Override
+    public boolean isLast() {
+        return count != 0 && position == count - 1;
+    }
+
+    @Override
+    public boolean isBeforeFirst() {
+        return count == 0 || position == -1;
+    }
+
+    @Override
+    public boolean isAfterLast() {
+        return count == 0 || position == count;
+    }
+}
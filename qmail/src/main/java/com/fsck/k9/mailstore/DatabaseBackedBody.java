@@ -0,0 +1,87 @@
+package com.fsck.k9.mailstore;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.fsck.k9.mail.Body;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.internet.RawDataBody;
+import com.fsck.k9.mail.internet.SizeAware;
+import com.fsck.k9.mailstore.LockableDatabase.DbCallback;
+import com.fsck.k9.mailstore.LockableDatabase.WrappedException;
+
+
+/**
+ * Body of a message part whose data is stored in the {@code message_parts} table.
+ * <p>
+ * The data is read from the database every time it is accessed instead of being kept in memory.
+ * </p>
+ */
+public class DatabaseBackedBody implements Body, SizeAware, RawDataBody {
+    private final LocalStore localStore;
+    private final long partId;
+    private final String encoding;
+    private final long size;
+
+    public DatabaseBackedBody(LocalStore localStore, long partId, String encoding, long size) {
+        this.localStore = localStore;
+        this.partId = partId;
+        this.encoding = encoding;
+        this.size = size;
+    }
+
+    @Override
+    public InputStream getInputStream() throws MessagingException {
+        return new ByteArrayInputStream(loadData());
+    }
+
+    @Override
+    public void setEncoding(String encoding) throws MessagingException {
+        throw new MessagingException("Cannot change the encoding of a message part stored in the database");
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException, MessagingException {
+        out.write(loadData());
+    }
+
+    @Override
+    public long getSize() {
+        return size;
+    }
+
+    @Override
+    public String getEncoding() {
+        return encoding;
+    }
+
+    private byte[] loadData() throws MessagingException {
+        try {
+            return localStore.getDatabase().execute(false, new DbCallback<byte[]>() {
+                @Override
+                public byte[] doDbWork(SQLiteDatabase db) throws WrappedException {
+                    Cursor cursor = db.query("message_parts", new String[] { "data" }, "id = ?",
+                            new String[] { Long.toString(partId) }, null, null, null);
+                    try {
+                        if (!cursor.moveToFirst()) {
+                            throw new WrappedException(new MessagingException("Message part not found"));
+                        }
+
+                        byte[] data = cursor.getBlob(0);
+                        return (data != null) ? data : new byte[0];
+                    } finally {
+                        cursor.close();
+                    }
+                }
+            });
+        } catch (WrappedException e) {
+            throw (MessagingException) e.getCause();
+        }
+    }
+}
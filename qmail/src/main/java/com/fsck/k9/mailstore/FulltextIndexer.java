@@ -0,0 +1,283 @@
+package com.fsck.k9.mailstore;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.fsck.k9.QMail;
+import com.fsck.k9.helper.Utility;
+import com.fsck.k9.mail.FetchProfile;
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mailstore.LockableDatabase.DbCallback;
+import com.fsck.k9.message.extractors.MessageFulltextCreator;
+import timber.log.Timber;
+
+
+/**
+ * Fills the {@code messages_fulltext} table in the background, so storing a message doesn't have to extract its text.
+ * <p>
+ * {@code fulltext_index.last_indexed_message_id} is the watermark: all messages with a database ID up to and including
+ * it have been indexed. New messages get a higher ID and are picked up by the indexer in batches. Messages at or
+ * below the watermark that are written again, e.g. a placeholder message that is replaced by the real message, are
+ * indexed right away using {@link #indexMessageIfBelowWatermark(long, Message)}.
+ * </p>
+ */
+class FulltextIndexer {
+    static final int BATCH_SIZE = 50;
+
+    private static final String GET_WATERMARK_SQL = "SELECT last_indexed_message_id FROM fulltext_index";
+    private static final String REPLACE_FULLTEXT_SQL =
+            "INSERT OR REPLACE INTO messages_fulltext (docid, fulltext) VALUES (?, ?)";
+
+
+    private final LocalStore localStore;
+    private final MessageFulltextCreator fulltextCreator;
+    private final Executor executor;
+    private final AtomicBoolean indexingScheduled = new AtomicBoolean();
+
+
+    FulltextIndexer(LocalStore localStore, MessageFulltextCreator fulltextCreator, Executor executor) {
+        this.localStore = localStore;
+        this.fulltextCreator = fulltextCreator;
+        this.executor = executor;
+    }
+
+    /**
+     * Makes sure the indexer runs soon. Calls made while indexing is already pending are coalesced.
+     */
+    void scheduleIndexing() {
+        if (!indexingScheduled.compareAndSet(false, true)) {
+            return;
+        }
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                indexingScheduled.set(false);
+                indexPendingMessages();
+            }
+        });
+    }
+
+    void indexPendingMessages() {
+        try {
+            int indexedMessages = 0;
+            int batchSize;
+            while ((batchSize = indexNextBatch()) > 0) {
+                indexedMessages += batchSize;
+            }
+
+            if (QMail.isDebug() && indexedMessages > 0) {
+                Timber.d("Indexed %d messages for full-text search in %s", indexedMessages,
+                        localStore.getAccount().getDescription());
+            }
+        } catch (MessagingException e) {
+            Timber.e(e, "Error while indexing messages for full-text search");
+        }
+    }
+
+    /**
+     * Indexes the next batch of messages above the watermark and moves the watermark past them.
+     * <p>
+     * Extracting the text of the messages is the expensive part, so it's done before the write transaction is
+     * started. If one of the messages is written again in the meantime, the watermark is only moved up to the message
+     * before it. The next batch then starts with the changed message.
+     * </p>
+     *
+     * @return The number of messages the watermark was moved past. {@code 0} if there's nothing left to index.
+     */
+    int indexNextBatch() throws MessagingException {
+        final LockableDatabase database = localStore.getDatabase();
+
+        final long watermark = database.execute(false, new DbCallback<Long>() {
+            @Override
+            public Long doDbWork(SQLiteDatabase db) {
+                return getWatermark();
+            }
+        });
+
+        final long[] batch = database.execute(false, new DbCallback<long[]>() {
+            @Override
+            public long[] doDbWork(SQLiteDatabase db) {
+                return getNextBatch(db, watermark);
+            }
+        });
+        if (batch.length == 0) {
+            return 0;
+        }
+
+        final long lastMessageId = batch[batch.length - 1];
+        final Map<Long, ExtractedFulltext> extractedFulltexts = new LinkedHashMap<>();
+        for (LocalMessage message : loadMessages(watermark, lastMessageId)) {
+            extractedFulltexts.put(message.getDatabaseId(),
+                    new ExtractedFulltext(message.getMessagePartId(), fulltextCreator.createFulltext(message)));
+        }
+
+        return database.execute(true, new DbCallback<Integer>() {
+            @Override
+            public Integer doDbWork(SQLiteDatabase db) {
+                Map<Long, Long> messagePartIds = getMessagePartIds(db, watermark, lastMessageId);
+
+                long newWatermark = lastMessageId;
+                for (Map.Entry<Long, Long> messagePartId : messagePartIds.entrySet()) {
+                    ExtractedFulltext extractedFulltext = extractedFulltexts.get(messagePartId.getKey());
+                    if (extractedFulltext == null || extractedFulltext.messagePartId != messagePartId.getValue()) {
+                        newWatermark = messagePartId.getKey() - 1;
+                        break;
+                    }
+                }
+
+                for (Map.Entry<Long, ExtractedFulltext> entry : extractedFulltexts.entrySet()) {
+                    long messageId = entry.getKey();
+                    String fulltext = entry.getValue().fulltext;
+                    if (messageId > newWatermark) {
+                        break;
+                    }
+
+                    // Messages deleted in the meantime don't need to be indexed anymore
+                    if (fulltext != null && messagePartIds.containsKey(messageId)) {
+                        database.getStatementCache().executeInsert(REPLACE_FULLTEXT_SQL, messageId, fulltext);
+                    }
+                }
+
+                if (newWatermark == watermark) {
+                    return 0;
+                }
+
+                ContentValues watermarkValues = new ContentValues();
+                watermarkValues.put("last_indexed_message_id", newWatermark);
+                db.update("fulltext_index", watermarkValues, null, null);
+
+                int indexedMessages = 0;
+                while (indexedMessages < batch.length && batch[indexedMessages] <= newWatermark) {
+                    indexedMessages++;
+                }
+                return indexedMessages;
+            }
+        });
+    }
+
+    /**
+     * @return The number of messages that still have to be indexed.
+     */
+    int getPendingMessageCount() throws MessagingException {
+        return localStore.getDatabase().execute(false, new DbCallback<Integer>() {
+            @Override
+            public Integer doDbWork(SQLiteDatabase db) {
+                Cursor cursor = db.rawQuery("SELECT COUNT(id) FROM messages " +
+                        "WHERE id > (" + GET_WATERMARK_SQL + ") AND empty = 0 AND deleted = 0", null);
+                try {
+                    return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+                } finally {
+                    Utility.closeQuietly(cursor);
+                }
+            }
+        });
+    }
+
+    /**
+     * Only to be used from within a {@link DbCallback} that also wrote the message.
+     */
+    void indexMessageIfBelowWatermark(long messageId, Message message) {
+        if (messageId <= getWatermark()) {
+            indexMessage(messageId, message);
+        }
+    }
+
+    private long getWatermark() {
+        return localStore.getDatabase().getStatementCache().simpleQueryForLong(GET_WATERMARK_SQL);
+    }
+
+    private void indexMessage(long messageId, Message message) {
+        String fulltext = fulltextCreator.createFulltext(message);
+        if (fulltext != null) {
+            localStore.getDatabase().getStatementCache().executeInsert(REPLACE_FULLTEXT_SQL, messageId, fulltext);
+        }
+    }
+
+    /**
+     * @return The message part IDs of the messages in the given range that are to be indexed, ordered by message ID.
+     */
+    private static Map<Long, Long> getMessagePartIds(SQLiteDatabase db, long watermark, long lastMessageId) {
+        Cursor cursor = db.rawQuery("SELECT id, message_part_id FROM messages " +
+                "WHERE id > ? AND id <= ? AND empty = 0 AND deleted = 0 ORDER BY id",
+                new String[] { Long.toString(watermark), Long.toString(lastMessageId) });
+        try {
+            Map<Long, Long> messagePartIds = new LinkedHashMap<>();
+            while (cursor.moveToNext()) {
+                messagePartIds.put(cursor.getLong(0), cursor.getLong(1));
+            }
+            return messagePartIds;
+        } finally {
+            Utility.closeQuietly(cursor);
+        }
+    }
+
+    private static long[] getNextBatch(SQLiteDatabase db, long watermark) {
+        Cursor cursor = db.rawQuery("SELECT id FROM messages WHERE id > ? ORDER BY id LIMIT " + BATCH_SIZE,
+                new String[] { Long.toString(watermark) });
+        try {
+            long[] messageIds = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                messageIds[i] = cursor.getLong(0);
+            }
+            return messageIds;
+        } finally {
+            Utility.closeQuietly(cursor);
+        }
+    }
+
+    private List<LocalMessage> loadMessages(long watermark, long lastMessageId) throws MessagingException {
+        String query = "SELECT " + LocalStore.GET_MESSAGES_COLS + "FROM messages " +
+                "LEFT JOIN threads ON (threads.message_id = messages.id) " +
+                "LEFT JOIN message_parts ON (message_parts.id = messages.message_part_id) " +
+                "WHERE messages.id > ? AND messages.id <= ? AND empty = 0 AND deleted = 0 " +
+                "ORDER BY messages.id";
+        String[] selectionArgs = { Long.toString(watermark), Long.toString(lastMessageId) };
+        List<LocalMessage> messages = localStore.getMessages(null, null, query, selectionArgs);
+        if (messages.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        // Every message comes with its own LocalFolder instance, so group them by the folder's database ID
+        Map<Long, List<LocalMessage>> messagesByFolder = new LinkedHashMap<>();
+        for (LocalMessage message : messages) {
+            long folderId = message.getFolder().getDatabaseId();
+            List<LocalMessage> folderMessages = messagesByFolder.get(folderId);
+            if (folderMessages == null) {
+                folderMessages = new ArrayList<>();
+                messagesByFolder.put(folderId, folderMessages);
+            }
+            folderMessages.add(message);
+        }
+
+        FetchProfile fp = new FetchProfile();
+        fp.add(FetchProfile.Item.BODY);
+        for (List<LocalMessage> folderMessages : messagesByFolder.values()) {
+            folderMessages.get(0).getFolder().fetch(folderMessages, fp, null);
+        }
+
+        return messages;
+    }
+
+
+    private static class ExtractedFulltext {
+        final long messagePartId;
+        final String fulltext;
+
+        ExtractedFulltext(long messagePartId, String fulltext) {
+            this.messagePartId = messagePartId;
+            this.fulltext = fulltext;
+        }
+    }
+}
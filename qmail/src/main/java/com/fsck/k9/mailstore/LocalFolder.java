@@ -46,6 +46,7 @@ import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.Multipart;
 import com.fsck.k9.mail.Part;
 import com.fsck.k9.mail.filter.CountingOutputStream;
+import com.fsck.k9.mail.filter.DecodedSizeCountingOutputStream;
 import com.fsck.k9.mail.internet.BinaryTempFileBody;
 import com.fsck.k9.mail.internet.MimeHeader;
 import com.fsck.k9.mail.internet.MimeMessage;
@@ -57,13 +58,13 @@ import com.fsck.k9.mailstore.LockableDatabase.DbCallback;
 import com.fsck.k9.mailstore.LockableDatabase.WrappedException;
 import com.fsck.k9.message.extractors.AttachmentCounter;
 import com.fsck.k9.message.extractors.AttachmentInfoExtractor;
-import com.fsck.k9.message.extractors.MessageFulltextCreator;
 import com.fsck.k9.message.extractors.MessagePreviewCreator;
 import com.fsck.k9.message.extractors.PreviewResult;
 import com.fsck.k9.message.extractors.PreviewResult.PreviewType;
 import com.fsck.k9.preferences.Storage;
 import com.fsck.k9.preferences.StorageEditor;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.TeeOutputStream;
 import org.apache.james.mime4j.util.MimeUtil;
 import timber.log.Timber;
 
@@ -82,6 +83,26 @@ public class LocalFolder extends Folder<LocalMessage> {
     private static final int MAX_BODY_SIZE_FOR_DATABASE = 16 * 1024;
     private static final long INVALID_MESSAGE_PART_ID = -1;
 
+    private static final String[] MESSAGE_COLUMNS = {
+            "message_part_id", "uid", "subject", "sender_list", "date", "flags", "deleted", "read", "flagged",
+            "answered", "forwarded", "folder_id", "to_list", "cc_list", "bcc_list", "reply_to_list",
+            "attachment_count", "internal_date", "mime_type", "empty", "preview_type", "preview", "message_id"
+    };
+    private static final String[] MESSAGE_PART_COLUMNS = {
+            "type", "root", "parent", "seq", "mime_type", "decoded_body_size", "display_name", "header", "encoding",
+            "charset", "data_location", "data", "preamble", "epilogue", "boundary", "content_id", "server_extra"
+    };
+    private static final String INSERT_MESSAGE_SQL =
+            StatementCache.buildInsertSql(null, "messages", MESSAGE_COLUMNS);
+    private static final String INSERT_MESSAGE_PART_SQL =
+            StatementCache.buildInsertSql(null, "message_parts", MESSAGE_PART_COLUMNS);
+    private static final String INSERT_EMPTY_MESSAGE_SQL =
+            "INSERT INTO messages (message_id, folder_id, empty) VALUES (?, ?, 1)";
+    private static final String INSERT_THREAD_SQL = "INSERT INTO threads (message_id, root, parent) VALUES (?, ?, ?)";
+    private static final String UPDATE_THREAD_ROOT_SQL = "UPDATE threads SET root = ? WHERE root = ?";
+    private static final String UPDATE_THREAD_ROOT_AND_PARENT_SQL =
+            "UPDATE threads SET root = ?, parent = ? WHERE id = ?";
+
 
     private final LocalStore localStore;
     private final AttachmentInfoExtractor attachmentInfoExtractor;
@@ -100,6 +121,7 @@ public class LocalFolder extends Folder<LocalMessage> {
     private FolderClass notifyClass = FolderClass.INHERITED;
 
     private String pushState = null;
+    private String syncState = null;
     private boolean isInTopGroup = false;
     private boolean isIntegrate = false;
 
@@ -208,6 +230,7 @@ public class LocalFolder extends Folder<LocalMessage> {
         name = cursor.getString(LocalStore.FOLDER_NAME_INDEX);
         visibleLimit = cursor.getInt(LocalStore.FOLDER_VISIBLE_LIMIT_INDEX);
         pushState = cursor.getString(LocalStore.FOLDER_PUSH_STATE_INDEX);
+        syncState = cursor.getString(LocalStore.FOLDER_SYNC_STATE_INDEX);
         super.setStatus(cursor.getString(LocalStore.FOLDER_STATUS_INDEX));
         // Only want to set the local variable stored in the super class.  This class
         // does a DB update on setLastChecked
@@ -352,8 +375,8 @@ public class LocalFolder extends Folder<LocalMessage> {
                 @Override
                 public Integer doDbWork(final SQLiteDatabase db) throws WrappedException {
                     int unreadMessageCount = 0;
-                    Cursor cursor = db.query("messages", new String[] { "COUNT(id)" },
-                            "folder_id = ? AND empty = 0 AND deleted = 0 AND read=0",
+                    // Kept up to date by triggers on the messages table
+                    Cursor cursor = db.query("folders", new String[] { "unread_count" }, "id = ?",
                             new String[] { Long.toString(databaseId) }, null, null, null);
 
                     try {
@@ -383,8 +406,8 @@ public class LocalFolder extends Folder<LocalMessage> {
                 @Override
                 public Integer doDbWork(final SQLiteDatabase db) throws WrappedException {
                     int flaggedMessageCount = 0;
-                    Cursor cursor = db.query("messages", new String[] { "COUNT(id)" },
-                            "folder_id = ? AND empty = 0 AND deleted = 0 AND flagged = 1",
+                    // Kept up to date by triggers on the messages table
+                    Cursor cursor = db.query("folders", new String[] { "flagged_count" }, "id = ?",
                             new String[] { Long.toString(databaseId) }, null, null, null);
 
                     try {
@@ -543,6 +566,21 @@ public class LocalFolder extends Folder<LocalMessage> {
         return pushState;
     }
 
+    /**
+     * @return The remote folder's sync state as of the last successful full synchronization.
+     *
+     * @see Folder#getSyncState()
+     */
+    @Override
+    public String getSyncState() {
+        return syncState;
+    }
+
+    public void setSyncState(final String syncState) throws MessagingException {
+        this.syncState = syncState;
+        updateFolderColumn("sync_state", syncState);
+    }
+
     @Override
     public FolderClass getDisplayClass() {
         return displayClass;
@@ -758,8 +796,15 @@ public class LocalFolder extends Folder<LocalMessage> {
         }
     }
 
+    /**
+     * Builds the part tree of {@code message} from the {@code message_parts} table.
+     * <p>
+     * Only the structure and the headers are loaded here. The data of each part is read when its body is accessed.
+     * </p>
+     */
     private void loadMessageParts(SQLiteDatabase db, LocalMessage message) throws MessagingException {
         Map<Long, Part> partById = new HashMap<>();
+        Map<Long, String> mimeTypeById = new HashMap<>();
 
         String[] columns = {
                 "id",                   // 0
@@ -772,7 +817,7 @@ public class LocalFolder extends Folder<LocalMessage> {
                 "encoding",             // 7
                 "charset",              // 8
                 "data_location",        // 9
-                "data",                 // 10
+                "length(data)",         // 10
                 "preamble",             // 11
                 "epilogue",             // 12
                 "boundary",             // 13
@@ -783,15 +828,15 @@ public class LocalFolder extends Folder<LocalMessage> {
                 new String[] { String.valueOf(message.getMessagePartId()) }, null, null, "seq");
         try {
             while (cursor.moveToNext()) {
-                loadMessagePart(message, partById, cursor);
+                loadMessagePart(message, partById, mimeTypeById, cursor);
             }
         } finally {
             cursor.close();
         }
     }
 
-    private void loadMessagePart(LocalMessage message, Map<Long, Part> partById, Cursor cursor)
-            throws MessagingException {
+    private void loadMessagePart(LocalMessage message, Map<Long, Part> partById, Map<Long, String> mimeTypeById,
+            Cursor cursor) throws MessagingException {
 
         long id = cursor.getLong(0);
         long parentId = cursor.getLong(2);
@@ -815,7 +860,7 @@ public class LocalFolder extends Folder<LocalMessage> {
                 throw new IllegalStateException("Parent part not found");
             }
 
-            String parentMimeType = parentPart.getMimeType();
+            String parentMimeType = mimeTypeById.get(parentId);
             if (MimeUtility.isMultipart(parentMimeType)) {
                 BodyPart bodyPart = new LocalBodyPart(getAccountUuid(), message, id, size);
                 ((Multipart) parentPart.getBody()).addBodyPart(bodyPart);
@@ -831,6 +876,7 @@ public class LocalFolder extends Folder<LocalMessage> {
             parseHeaderBytes(part, header);
         }
         partById.put(id, part);
+        mimeTypeById.put(id, mimeType);
         part.setServerExtra(serverExtra);
 
         if (MimeUtility.isMultipart(mimeType)) {
@@ -844,9 +890,9 @@ public class LocalFolder extends Folder<LocalMessage> {
             multipart.setEpilogue(epilogue);
         } else if (dataLocation == DataLocation.IN_DATABASE) {
             String encoding = cursor.getString(7);
-            byte[] data = cursor.getBlob(10);
+            long dataSize = cursor.getLong(10);
 
-            Body body = new BinaryMemoryBody(data, encoding);
+            Body body = new DatabaseBackedBody(localStore, id, encoding, dataSize);
             part.setBody(body);
         } else if (dataLocation == DataLocation.ON_DISK) {
             String encoding = cursor.getString(7);
@@ -1223,29 +1269,38 @@ public class LocalFolder extends Folder<LocalMessage> {
     }
 
     /**
-     * Convenience transaction wrapper for storing a message and set it as fully downloaded. Implemented mainly to speed up DB transaction commit.
+     * Convenience transaction wrapper for storing a batch of messages and setting them as fully downloaded.
+     * Implemented mainly to speed up DB transaction commit.
      *
-     * @param message Message to store. Never <code>null</code>.
-     * @param runnable What to do before setting {@link Flag#X_DOWNLOADED_FULL}. Never <code>null</code>.
-     * @return The local version of the message. Never <code>null</code>.
+     * @param messages Messages to store. Never <code>null</code>.
+     * @return The local versions of the messages, in the order of {@code messages}. Never <code>null</code>.
      */
-    public LocalMessage storeSmallMessage(final Message message, final Runnable runnable) throws MessagingException {
-        return this.localStore.getDatabase().execute(true, new DbCallback<LocalMessage>() {
-            @Override
-            public LocalMessage doDbWork(final SQLiteDatabase db) throws WrappedException, UnavailableStorageException {
-                try {
-                    appendMessages(Collections.singletonList(message));
-                    final String uid = message.getUid();
-                    final LocalMessage result = getMessage(uid);
-                    runnable.run();
-                    // Set a flag indicating this message has now be fully downloaded
-                    result.setFlag(Flag.X_DOWNLOADED_FULL, true);
-                    return result;
-                } catch (MessagingException e) {
-                    throw new WrappedException(e);
+    public List<LocalMessage> storeSmallMessages(final List<? extends Message> messages) throws MessagingException {
+        try {
+            return this.localStore.getDatabase().execute(true, new DbCallback<List<LocalMessage>>() {
+                @Override
+                public List<LocalMessage> doDbWork(final SQLiteDatabase db) throws WrappedException,
+                        UnavailableStorageException {
+                    try {
+                        appendMessages(messages);
+
+                        List<LocalMessage> result = new ArrayList<>(messages.size());
+                        for (Message message : messages) {
+                            LocalMessage localMessage = getMessage(message.getUid());
+                            // Set a flag indicating this message has now be fully downloaded
+                            localMessage.setFlag(Flag.X_DOWNLOADED_FULL, true);
+                            result.add(localMessage);
+                        }
+
+                        return result;
+                    } catch (MessagingException e) {
+                        throw new WrappedException(e);
+                    }
                 }
-            }
-        });
+            });
+        } catch (WrappedException e) {
+            throw (MessagingException) e.getCause();
+        }
     }
 
     /**
@@ -1349,6 +1404,7 @@ public class LocalFolder extends Folder<LocalMessage> {
             });
 
             this.localStore.notifyChange();
+            this.localStore.getFulltextIndexer().scheduleIndexing();
 
             return uidMap;
         } catch (WrappedException e) {
@@ -1407,9 +1463,6 @@ public class LocalFolder extends Folder<LocalMessage> {
             PreviewType previewType = previewResult.getPreviewType();
             DatabasePreviewType databasePreviewType = DatabasePreviewType.fromPreviewType(previewType);
 
-            MessageFulltextCreator fulltextCreator = localStore.getMessageFulltextCreator();
-            String fulltext = fulltextCreator.createFulltext(message);
-
             AttachmentCounter attachmentCounter = localStore.getAttachmentCounter();
             int attachmentCount = attachmentCounter.getAttachmentCount(message);
 
@@ -1451,32 +1504,20 @@ public class LocalFolder extends Folder<LocalMessage> {
                 cv.put("message_id", messageId);
             }
 
+            StatementCache statementCache = localStore.getDatabase().getStatementCache();
             if (oldMessageId == -1) {
-                msgId = db.insert("messages", "uid", cv);
+                msgId = statementCache.executeInsert(INSERT_MESSAGE_SQL,
+                        StatementCache.getBindArgs(cv, MESSAGE_COLUMNS));
 
                 // Create entry in 'threads' table
-                cv.clear();
-                cv.put("message_id", msgId);
-
-                if (rootId != -1) {
-                    cv.put("root", rootId);
-                }
-                if (parentId != -1) {
-                    cv.put("parent", parentId);
-                }
-
-                db.insert("threads", null, cv);
+                insertThread(statementCache, msgId, rootId, parentId);
             } else {
                 msgId = oldMessageId;
                 db.update("messages", cv, "id = ?", new String[] { Long.toString(oldMessageId) });
             }
 
-            if (fulltext != null) {
-                cv.clear();
-                cv.put("docid", msgId);
-                cv.put("fulltext", fulltext);
-                db.replace("messages_fulltext", null, cv);
-            }
+            // New messages are indexed in the background
+            localStore.getFulltextIndexer().indexMessageIfBelowWatermark(msgId, message);
         } catch (Exception e) {
             throw new MessagingException("Error appending message: " + message.getSubject(), e);
         }
@@ -1546,7 +1587,9 @@ public class LocalFolder extends Folder<LocalMessage> {
             messagePartId = existingMessagePartId;
             db.update("message_parts", cv, "id = ?", new String[] { Long.toString(messagePartId) });
         } else {
-            messagePartId = db.insertOrThrow("message_parts", null, cv);
+            StatementCache statementCache = localStore.getDatabase().getStatementCache();
+            messagePartId = statementCache.executeInsert(INSERT_MESSAGE_PART_SQL,
+                    StatementCache.getBindArgs(cv, MESSAGE_PART_COLUMNS));
         }
 
         if (file != null) {
@@ -1592,24 +1635,45 @@ public class LocalFolder extends Folder<LocalMessage> {
         SizeAware sizeAwareBody = (SizeAware) body;
         long fileSize = sizeAwareBody.getSize();
 
+        // Count the decoded size while the body data is written where possible. The written data only has to be
+        // decoded again for quoted-printable bodies and temp file bodies whose decoded size wasn't counted.
+        long decodedSize = BinaryTempFileBody.DECODED_SIZE_UNKNOWN;
+        DecodedSizeCountingOutputStream decodedSizeCounter = null;
+        if (body instanceof BinaryTempFileBody) {
+            decodedSize = ((BinaryTempFileBody) body).getDecodedSize();
+        } else if (DecodedSizeCountingOutputStream.canCount(encoding)) {
+            decodedSizeCounter = new DecodedSizeCountingOutputStream(encoding);
+        }
+
         File file = null;
         int dataLocation;
         if (fileSize > MAX_BODY_SIZE_FOR_DATABASE) {
             dataLocation = DataLocation.ON_DISK;
 
-            file = writeBodyToDiskIfNecessary(part);
+            if (body instanceof BinaryTempFileBody) {
+                file = ((BinaryTempFileBody) body).getFile();
+            } else {
+                file = writeBodyToDisk(body, decodedSizeCounter);
+            }
 
-            long size = decodeAndCountBytes(file, encoding, fileSize);
-            cv.put("decoded_body_size", size);
+            if (decodedSizeCounter != null) {
+                decodedSize = decodedSizeCounter.getCount();
+            } else if (decodedSize == BinaryTempFileBody.DECODED_SIZE_UNKNOWN) {
+                decodedSize = decodeAndCountBytes(file, encoding, fileSize);
+            }
         } else {
             dataLocation = DataLocation.IN_DATABASE;
 
-            byte[] bodyData = getBodyBytes(body);
+            byte[] bodyData = getBodyBytes(body, decodedSizeCounter);
             cv.put("data", bodyData);
 
-            long size = decodeAndCountBytes(bodyData, encoding, bodyData.length);
-            cv.put("decoded_body_size", size);
+            if (decodedSizeCounter != null) {
+                decodedSize = decodedSizeCounter.getCount();
+            } else if (decodedSize == BinaryTempFileBody.DECODED_SIZE_UNKNOWN) {
+                decodedSize = decodeAndCountBytes(bodyData, encoding, bodyData.length);
+            }
         }
+        cv.put("decoded_body_size", decodedSize);
         cv.put("data_location", dataLocation);
         cv.put("encoding", encoding);
         cv.put("content_id", part.getContentId());
@@ -1617,20 +1681,12 @@ public class LocalFolder extends Folder<LocalMessage> {
         return file;
     }
 
-    private File writeBodyToDiskIfNecessary(Part part) throws MessagingException, IOException {
-        Body body = part.getBody();
-        if (body instanceof BinaryTempFileBody) {
-            return ((BinaryTempFileBody) body).getFile();
-        } else {
-            return writeBodyToDisk(body);
-        }
-    }
-
-    private File writeBodyToDisk(Body body) throws IOException, MessagingException {
+    private File writeBodyToDisk(Body body, DecodedSizeCountingOutputStream decodedSizeCounter)
+            throws IOException, MessagingException {
         File file = File.createTempFile("body", null, BinaryTempFileBody.getTempDirectory());
         OutputStream out = new FileOutputStream(file);
         try {
-            body.writeTo(out);
+            body.writeTo(teeToDecodedSizeCounter(out, decodedSizeCounter));
         } finally {
             out.close();
         }
@@ -1677,12 +1733,18 @@ public class LocalFolder extends Folder<LocalMessage> {
         return output.toByteArray();
     }
 
-    private byte[] getBodyBytes(Body body) throws IOException, MessagingException {
+    private byte[] getBodyBytes(Body body, DecodedSizeCountingOutputStream decodedSizeCounter)
+            throws IOException, MessagingException {
         ByteArrayOutputStream output = new ByteArrayOutputStream();
-        body.writeTo(output);
+        body.writeTo(teeToDecodedSizeCounter(output, decodedSizeCounter));
         return output.toByteArray();
     }
 
+    private OutputStream teeToDecodedSizeCounter(OutputStream out,
+            DecodedSizeCountingOutputStream decodedSizeCounter) {
+        return (decodedSizeCounter != null) ? new TeeOutputStream(out, decodedSizeCounter) : out;
+    }
+
     private String getTransferEncoding(Part part) {
         String[] contentTransferEncoding = part.getHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING);
         if (contentTransferEncoding.length > 0) {
@@ -1872,6 +1934,7 @@ public class LocalFolder extends Folder<LocalMessage> {
         this.localStore.notifyChange();
 
         setPushState(null);
+        setSyncState(null);
         setLastPush(0);
         setLastChecked(0);
         setVisibleLimit(getAccount().getDisplayCount());
@@ -1942,7 +2005,9 @@ public class LocalFolder extends Folder<LocalMessage> {
                             cv.put("message_id", messageIdHeader);
                             cv.put("empty", 1);
 
-                            db.replace("messages", null, cv);
+                            // Delete and insert instead of REPLACE so the triggers see the old row go away
+                            db.delete("messages", "id = ?", new String[] { Long.toString(messageId) });
+                            db.insert("messages", null, cv);
 
                             // Nothing else to do
                             return null;
@@ -2088,6 +2153,11 @@ public class LocalFolder extends Folder<LocalMessage> {
     }
 
     private void deleteMessagePartsFromDisk(SQLiteDatabase db, long rootMessagePartId) {
+        File sanitizedHtmlFile = localStore.getSanitizedHtmlFile(rootMessagePartId);
+        if (sanitizedHtmlFile.exists() && !sanitizedHtmlFile.delete() && QMail.isDebug()) {
+            Timber.d("Couldn't delete sanitized HTML file: %s", sanitizedHtmlFile.getAbsolutePath());
+        }
+
         Cursor cursor = db.query("message_parts", new String[] { "id" },
                 "root = ? AND data_location = " + DataLocation.ON_DISK,
                 new String[] { Long.toString(rootMessagePartId) }, null, null, null);
@@ -2222,29 +2292,16 @@ public class LocalFolder extends Folder<LocalMessage> {
                     msgThreadInfo : new ThreadInfo(-1, -1, messageId, -1, -1);
         }
 
+        StatementCache statementCache = localStore.getDatabase().getStatementCache();
         for (String reference : messageIds) {
             ThreadInfo threadInfo = getThreadInfo(db, reference, false);
 
             if (threadInfo == null) {
                 // Create placeholder message in 'messages' table
-                ContentValues cv = new ContentValues();
-                cv.put("message_id", reference);
-                cv.put("folder_id", databaseId);
-                cv.put("empty", 1);
-
-                long newMsgId = db.insert("messages", null, cv);
+                long newMsgId = statementCache.executeInsert(INSERT_EMPTY_MESSAGE_SQL, reference, databaseId);
 
                 // Create entry in 'threads' table
-                cv.clear();
-                cv.put("message_id", newMsgId);
-                if (rootId != -1) {
-                    cv.put("root", rootId);
-                }
-                if (parentId != -1) {
-                    cv.put("parent", parentId);
-                }
-
-                parentId = db.insert("threads", null, cv);
+                parentId = insertThread(statementCache, newMsgId, rootId, parentId);
                 if (rootId == -1) {
                     rootId = parentId;
                 }
@@ -2255,15 +2312,11 @@ public class LocalFolder extends Folder<LocalMessage> {
                     // Connect it to the current parent.
 
                     // Let all children know who's the new root
-                    ContentValues cv = new ContentValues();
-                    cv.put("root", rootId);
-                    db.update("threads", cv, "root = ?",
-                            new String[] { Long.toString(threadInfo.threadId) });
+                    statementCache.executeUpdateDelete(UPDATE_THREAD_ROOT_SQL, rootId, threadInfo.threadId);
 
                     // Connect the message to the current parent
-                    cv.put("parent", parentId);
-                    db.update("threads", cv, "id = ?",
-                            new String[] { Long.toString(threadInfo.threadId) });
+                    statementCache.executeUpdateDelete(UPDATE_THREAD_ROOT_AND_PARENT_SQL, rootId, parentId,
+                            threadInfo.threadId);
                 } else {
                     rootId = (threadInfo.rootId == -1) ?
                             threadInfo.threadId : threadInfo.rootId;
@@ -2287,6 +2340,12 @@ public class LocalFolder extends Folder<LocalMessage> {
         return new ThreadInfo(threadId, msgId, messageId, rootId, parentId);
     }
 
+    private static long insertThread(StatementCache statementCache, long messageId, long rootId, long parentId) {
+        return statementCache.executeInsert(INSERT_THREAD_SQL, messageId,
+                (rootId != -1) ? rootId : null,
+                (parentId != -1) ? parentId : null);
+    }
+
     public List<Message> extractNewMessages(final List<Message> messages)
             throws MessagingException {
 
@@ -2,6 +2,7 @@ package com.fsck.k9.mailstore;
 
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.Date;
@@ -9,6 +10,7 @@ import java.util.Date;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
 
 import com.fsck.k9.Account;
@@ -144,6 +146,15 @@ public class LocalMessage extends MimeMessage {
         return messagePartId;
     }
 
+    /**
+     * @return The file the sanitized HTML of this message is cached in, or {@code null} if the message has no
+     *         contents yet.
+     */
+    @Nullable
+    public File getSanitizedHtmlFile() {
+        return (messagePartId > 0) ? localStore.getSanitizedHtmlFile(messagePartId) : null;
+    }
+
     @Override
     public String getMimeType() {
         return mimeType;
@@ -19,6 +19,9 @@ import java.util.Map;
 import java.util.Stack;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import android.content.ContentResolver;
 import android.content.ContentValues;
@@ -26,8 +29,10 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.Process;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
 import android.text.TextUtils;
 
 import com.fsck.k9.QMail;
@@ -61,6 +66,7 @@ import com.fsck.k9.message.extractors.MessagePreviewCreator;
 import com.fsck.k9.preferences.Storage;
 import com.fsck.k9.provider.EmailProvider;
 import com.fsck.k9.provider.EmailProvider.MessageColumns;
+import com.fsck.k9.search.ConditionsTreeNode;
 import com.fsck.k9.search.LocalSearch;
 import com.fsck.k9.search.SearchSpecification.Attribute;
 import com.fsck.k9.search.SearchSpecification.SearchField;
@@ -92,6 +98,30 @@ public class LocalStore extends Store {
      */
     private static ConcurrentMap<String, LocalStore> sLocalStores = new ConcurrentHashMap<>();
 
+    /**
+     * Runs the full-text indexers of all local stores, one batch at a time.
+     */
+    private static Executor sFulltextIndexExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(@NonNull final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "FulltextIndexer");
+        }
+    });
+
+    /**
+     * Replaces the executor used by the full-text indexers of local stores created afterwards.
+     */
+    @VisibleForTesting
+    static void setFulltextIndexExecutor(Executor executor) {
+        sFulltextIndexExecutor = executor;
+    }
+
     /*
      * a String containing the columns getMessages expects to work with
      * in the correct order.
@@ -131,7 +161,8 @@ public class LocalStore extends Store {
 
     static final String GET_FOLDER_COLS =
         "folders.id, folders.remoteId, folders.parentRemoteId, folders.name, folders.visible_limit, folders.last_updated, folders.status, folders.push_state, folders.last_pushed, " +
-        "folders.integrate, folders.top_group, folders.poll_class, folders.push_class, folders.display_class, folders.notify_class, folders.more_messages";
+        "folders.integrate, folders.top_group, folders.poll_class, folders.push_class, folders.display_class, folders.notify_class, folders.more_messages, " +
+        "folders.sync_state";
 
     static final int FOLDER_ID_INDEX = 0;
     static final int FOLDER_REMOTE_ID_INDEX = 1;
@@ -149,6 +180,7 @@ public class LocalStore extends Store {
     static final int FOLDER_DISPLAY_CLASS_INDEX = 13;
     static final int FOLDER_NOTIFY_CLASS_INDEX = 14;
     static final int MORE_MESSAGES_INDEX = 15;
+    static final int FOLDER_SYNC_STATE_INDEX = 16;
 
     static final String[] UID_CHECK_PROJECTION = { "uid" };
 
@@ -181,7 +213,7 @@ public class LocalStore extends Store {
      */
     private static final int THREAD_FLAG_UPDATE_BATCH_SIZE = 500;
 
-    public static final int DB_VERSION = 63;
+    public static final int DB_VERSION = 68;
 
     private final Context context;
     private final ContentResolver contentResolver;
@@ -190,6 +222,7 @@ public class LocalStore extends Store {
     private final AttachmentCounter attachmentCounter;
     private final PendingCommandSerializer pendingCommandSerializer;
     private final AttachmentInfoExtractor attachmentInfoExtractor;
+    private final FulltextIndexer fulltextIndexer;
 
     private final Account account;
     private final LockableDatabase database;
@@ -212,11 +245,16 @@ public class LocalStore extends Store {
         pendingCommandSerializer = PendingCommandSerializer.getInstance();
         attachmentInfoExtractor = AttachmentInfoExtractor.getInstance();
 
+        fulltextIndexer = new FulltextIndexer(this, messageFulltextCreator, sFulltextIndexExecutor);
+
         this.account = account;
 
         database = new LockableDatabase(context, account.getUuid(), new StoreSchemaDefinition(this));
         database.setStorageProviderId(account.getLocalStorageProviderId());
         database.open();
+
+        // Continue where the indexer left off, e.g. after the index has been rebuilt by a migration
+        fulltextIndexer.scheduleIndexing();
     }
 
     /**
@@ -553,6 +591,21 @@ public class LocalStore extends Store {
         });
     }
 
+    /**
+     * Forgets whether more messages are available in any folder, e.g. because the earliest poll date changed.
+     */
+    public void resetMoreMessages() throws MessagingException {
+        final ContentValues cv = new ContentValues();
+        cv.put("more_messages", MoreMessages.UNKNOWN.getDatabaseName());
+        database.execute(false, new DbCallback<Void>() {
+            @Override
+            public Void doDbWork(final SQLiteDatabase db) throws WrappedException {
+                db.update("folders", cv, null, null);
+                return null;
+            }
+        });
+    }
+
     public List<PendingCommand> getPendingCommands() throws MessagingException {
         return database.execute(false, new DbCallback<List<PendingCommand>>() {
             @Override
@@ -649,9 +702,26 @@ public class LocalStore extends Store {
 
         Timber.d("Query = %s", sqlQuery);
 
+        if (QMail.isDebug() && searchesMessageContents(search)) {
+            int fulltextIndexLag = getFulltextIndexLag();
+            if (fulltextIndexLag > 0) {
+                Timber.d("%d messages in %s aren't indexed for full-text search yet, results may be incomplete",
+                        fulltextIndexLag, account.getDescription());
+            }
+        }
+
         return getMessages(retrievalListener, null, sqlQuery, selectionArgs);
     }
 
+    private static boolean searchesMessageContents(LocalSearch search) {
+        for (ConditionsTreeNode node : search.getLeafSet()) {
+            if (node.getCondition().field == SearchField.MESSAGE_CONTENTS) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /*
      * Given a query string, actually do the query for the messages and
      * call the MessageRetrievalListener for each one
@@ -962,6 +1032,14 @@ public class LocalStore extends Store {
         return new File(attachmentDirectory, attachmentId);
     }
 
+    /**
+     * The cached result of sanitizing the HTML of a message is kept next to the files of its message parts, so it is
+     * removed together with them.
+     */
+    public File getSanitizedHtmlFile(long rootMessagePartId) {
+        return getAttachmentFile(rootMessagePartId + ".html");
+    }
+
     public static class AttachmentInfo {
         public String name;
         public long size;
@@ -1053,6 +1131,17 @@ public class LocalStore extends Store {
         return messageFulltextCreator;
     }
 
+    FulltextIndexer getFulltextIndexer() {
+        return fulltextIndexer;
+    }
+
+    /**
+     * @return The number of messages that haven't been indexed for full-text search yet.
+     */
+    public int getFulltextIndexLag() throws MessagingException {
+        return fulltextIndexer.getPendingMessageCount();
+    }
+
     AttachmentCounter getAttachmentCounter() {
         return attachmentCounter;
     }
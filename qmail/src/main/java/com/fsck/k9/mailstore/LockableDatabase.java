@@ -46,6 +46,9 @@ public class LockableDatabase {
         int getVersion();
 
         /**
+         * Called before write-ahead logging is enabled, i.e. upgrades run with a rollback journal and never have to
+         * compete with readers.
+         *
          * @param db Never <code>null</code>.
          */
         void doDbUpgrade(SQLiteDatabase db);
@@ -81,7 +84,7 @@ public class LockableDatabase {
             try {
                 lockWrite();
                 try {
-                    mDb.close();
+                    closeDb();
                 } finally {
                     unlockWrite();
                 }
@@ -109,6 +112,8 @@ public class LockableDatabase {
     private String mStorageProviderId;
 
     private SQLiteDatabase mDb;
+
+    private StatementCache mStatementCache;
     /**
      * Reentrant read lock
      */
@@ -139,6 +144,13 @@ public class LockableDatabase {
 
     private SchemaDefinition mSchemaDefinition;
 
+    /**
+     * <code>true</code> if the database is in WAL mode. Queries running outside of a transaction then use one of the
+     * pooled read connections, while all writes share the single primary connection. So readers, e.g. the message
+     * list, don't have to wait for long-running write transactions, e.g. the ones done while synchronizing.
+     */
+    private volatile boolean mWriteAheadLoggingEnabled;
+
     private String uUid;
 
     /**
@@ -269,7 +281,11 @@ public class LockableDatabase {
             final boolean debug = QMail.isDebug();
             if (doTransaction) {
                 inTransaction.set(Boolean.TRUE);
-                mDb.beginTransaction();
+                if (mWriteAheadLoggingEnabled) {
+                    mDb.beginTransactionNonExclusive();
+                } else {
+                    mDb.beginTransaction();
+                }
             }
             try {
                 final T result = callback.doDbWork(mDb);
@@ -319,7 +335,7 @@ public class LockableDatabase {
             lockWrite(newProviderId);
             try {
                 try {
-                    mDb.close();
+                    closeDb();
                 } catch (Exception e) {
                     Timber.i(e, "Unable to close DB on local store migration");
                 }
@@ -331,7 +347,10 @@ public class LockableDatabase {
                 prepareStorage(newProviderId);
 
                 // move all database files
-                FileHelper.moveRecursive(oldDatabase, storageManager.getDatabase(uUid, newProviderId));
+                File newDatabase = storageManager.getDatabase(uUid, newProviderId);
+                FileHelper.moveRecursive(oldDatabase, newDatabase);
+                FileHelper.moveRecursive(getWalFile(oldDatabase), getWalFile(newDatabase));
+                FileHelper.moveRecursive(getSharedMemoryFile(oldDatabase), getSharedMemoryFile(newDatabase));
                 // move all attachment files
                 FileHelper.moveRecursive(storageManager.getAttachmentDirectory(uUid, oldProviderId),
                         storageManager.getAttachmentDirectory(uUid, newProviderId));
@@ -382,12 +401,22 @@ public class LockableDatabase {
             if (mDb.getVersion() != mSchemaDefinition.getVersion()) {
                 mSchemaDefinition.doDbUpgrade(mDb);
             }
+            enableWriteAheadLogging();
         } finally {
             unlockWrite();
         }
     }
 
+    private void enableWriteAheadLogging() {
+        // the journal mode isn't persisted by Android, so we have to switch to WAL mode every time the DB is opened
+        mWriteAheadLoggingEnabled = mDb.enableWriteAheadLogging();
+        if (!mWriteAheadLoggingEnabled) {
+            Timber.w("LockableDatabase: Unable to enable write-ahead logging for DB %s", uUid);
+        }
+    }
+
     private void doOpenOrCreateDb(final File databaseFile) {
+        mWriteAheadLoggingEnabled = false;
         if (StorageManager.InternalStorageProvider.ID.equals(mStorageProviderId)) {
             // internal storage
             mDb = context.openOrCreateDatabase(databaseFile.getName(), Context.MODE_PRIVATE,
@@ -396,6 +425,21 @@ public class LockableDatabase {
             // external storage
             mDb = SQLiteDatabase.openOrCreateDatabase(databaseFile, null);
         }
+        mStatementCache = new StatementCache(mDb);
+    }
+
+    private void closeDb() {
+        mStatementCache.close();
+        mDb.close();
+    }
+
+    /**
+     * Only to be used from within a {@link DbCallback}.
+     *
+     * @return The compiled statement cache of the currently opened database. Never <code>null</code>.
+     */
+    StatementCache getStatementCache() {
+        return mStatementCache;
     }
 
     /**
@@ -458,7 +502,7 @@ public class LockableDatabase {
         lockWrite();
         try {
             try {
-                mDb.close();
+                closeDb();
             } catch (Exception e) {
                 Timber.d("Exception caught in DB close: %s", e.getMessage());
             }
@@ -508,9 +552,19 @@ public class LockableDatabase {
         } else {
             deleted = database.delete();
             deleted |= new File(database.getPath() + "-journal").delete();
+            deleted |= getWalFile(database).delete();
+            deleted |= getSharedMemoryFile(database).delete();
         }
         if (!deleted) {
             Timber.i("LockableDatabase: deleteDatabase(): No files deleted.");
         }
     }
+
+    private static File getWalFile(File database) {
+        return new File(database.getPath() + "-wal");
+    }
+
+    private static File getSharedMemoryFile(File database) {
+        return new File(database.getPath() + "-shm");
+    }
 }
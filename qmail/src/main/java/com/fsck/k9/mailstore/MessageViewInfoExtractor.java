@@ -118,7 +118,8 @@ public class MessageViewInfoExtractor {
 
         List<AttachmentViewInfo> extraAttachmentInfos = new ArrayList<>();
         List<ICalendarViewInfo> extraCalendarInfos = new ArrayList<>();
-        ViewableExtractedText extraViewable = extractViewableAndAttachments(extraParts, extraAttachmentInfos, extraCalendarInfos);
+        ViewableExtractedText extraViewable =
+                extractViewableAndAttachments(extraParts, extraAttachmentInfos, extraCalendarInfos, null);
 
         MessageViewInfo messageViewInfo = extractSimpleMessageForView(message, cryptoContentPart);
         return messageViewInfo.withCryptoData(cryptoContentPartAnnotation, extraViewable.text, extraAttachmentInfos, extraCalendarInfos);
@@ -127,8 +128,11 @@ public class MessageViewInfoExtractor {
     private MessageViewInfo extractSimpleMessageForView(Message message, Part contentPart) throws MessagingException {
         List<AttachmentViewInfo> attachmentInfos = new ArrayList<>();
         List<ICalendarViewInfo> iCalendarInfos = new ArrayList<>();
+        // Decrypted contents must not end up in the on-disk cache, so only plain messages are cached
+        LocalMessage cacheMessage = (contentPart == message && message instanceof LocalMessage) ?
+                (LocalMessage) message : null;
         ViewableExtractedText viewable = extractViewableAndAttachments(
-                Collections.singletonList(contentPart), attachmentInfos, iCalendarInfos);
+                Collections.singletonList(contentPart), attachmentInfos, iCalendarInfos, cacheMessage);
         AttachmentResolver attachmentResolver = AttachmentResolver.createFromPart(contentPart);
         boolean isMessageIncomplete =
                 !message.isSet(Flag.X_DOWNLOADED_FULL) || MessageExtractor.hasMissingParts(message);
@@ -139,8 +143,8 @@ public class MessageViewInfoExtractor {
     }
 
     private ViewableExtractedText extractViewableAndAttachments(List<Part> parts,
-            List<AttachmentViewInfo> attachmentInfos, List<ICalendarViewInfo> iCalendarViewInfos)
-            throws MessagingException {
+            List<AttachmentViewInfo> attachmentInfos, List<ICalendarViewInfo> iCalendarViewInfos,
+            @Nullable LocalMessage cacheMessage) throws MessagingException {
         ArrayList<Viewable> viewableParts = new ArrayList<>();
         ArrayList<Part> attachments = new ArrayList<>();
         ArrayList<ICalPart> iCalendars = new ArrayList<>();
@@ -151,7 +155,7 @@ public class MessageViewInfoExtractor {
 
         attachmentInfos.addAll(attachmentInfoExtractor.extractAttachmentInfoForView(attachments));
         iCalendarViewInfos.addAll(iCalendarInfoExtractor.extractICalendarInfoForView(iCalendars));
-        return extractTextFromViewables(viewableParts);
+        return extractTextFromViewables(viewableParts, cacheMessage);
     }
 
     /**
@@ -166,6 +170,15 @@ public class MessageViewInfoExtractor {
     @VisibleForTesting
     ViewableExtractedText extractTextFromViewables(List<Viewable> viewables)
             throws MessagingException {
+        return extractTextFromViewables(viewables, null);
+    }
+
+    /**
+     * @param cacheMessage
+     *         The message the viewables belong to if the sanitized HTML may be cached, {@code null} otherwise.
+     */
+    private ViewableExtractedText extractTextFromViewables(List<Viewable> viewables,
+            @Nullable LocalMessage cacheMessage) throws MessagingException {
         try {
             // Collect all viewable parts
 
@@ -229,7 +242,14 @@ public class MessageViewInfoExtractor {
                 }
             }
 
-            String sanitizedHtml = htmlProcessor.processForDisplay(html.toString());
+            String sanitizedHtml;
+            if (cacheMessage != null) {
+                String messageKey = cacheMessage.getAccount().getUuid() + ":" + cacheMessage.getDatabaseId();
+                sanitizedHtml = htmlProcessor.processForDisplay(html.toString(), messageKey,
+                        cacheMessage.getSanitizedHtmlFile());
+            } else {
+                sanitizedHtml = htmlProcessor.processForDisplay(html.toString());
+            }
 
             return new ViewableExtractedText(text.toString(), sanitizedHtml);
         } catch (Exception e) {
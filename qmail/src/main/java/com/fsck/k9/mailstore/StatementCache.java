@@ -0,0 +1,162 @@
+package com.fsck.k9.mailstore;
+
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+
+/**
+ * Keeps compiled {@link SQLiteStatement}s of a database around so the message store write path doesn't have to
+ * build and compile the same SQL for every row.
+ * <p>
+ * A statement is handed out to one thread at a time; if it is already in use by another thread a new one is compiled.
+ * No lock is held while a statement is executed, so a thread waiting for the database can't block threads that use
+ * other statements.
+ * </p>
+ */
+class StatementCache {
+    private static final int MAX_IDLE_STATEMENTS_PER_SQL = 4;
+
+
+    private final SQLiteDatabase db;
+    private final Map<String, Deque<SQLiteStatement>> idleStatements = new HashMap<>();
+    private boolean closed;
+
+
+    StatementCache(SQLiteDatabase db) {
+        this.db = db;
+    }
+
+    long executeInsert(String sql, Object... bindArgs) {
+        SQLiteStatement statement = acquire(sql);
+        try {
+            bind(statement, bindArgs);
+            return statement.executeInsert();
+        } finally {
+            release(sql, statement);
+        }
+    }
+
+    int executeUpdateDelete(String sql, Object... bindArgs) {
+        SQLiteStatement statement = acquire(sql);
+        try {
+            bind(statement, bindArgs);
+            return statement.executeUpdateDelete();
+        } finally {
+            release(sql, statement);
+        }
+    }
+
+    long simpleQueryForLong(String sql, Object... bindArgs) {
+        SQLiteStatement statement = acquire(sql);
+        try {
+            bind(statement, bindArgs);
+            return statement.simpleQueryForLong();
+        } finally {
+            release(sql, statement);
+        }
+    }
+
+    /**
+     * Closes all idle statements. Statements that are in use are closed when they are released.
+     */
+    void close() {
+        List<SQLiteStatement> statementsToClose = new ArrayList<>();
+        synchronized (idleStatements) {
+            closed = true;
+            for (Deque<SQLiteStatement> statements : idleStatements.values()) {
+                statementsToClose.addAll(statements);
+            }
+            idleStatements.clear();
+        }
+
+        for (SQLiteStatement statement : statementsToClose) {
+            statement.close();
+        }
+    }
+
+    /**
+     * @return The values of {@code columns} in {@code values}, in that order. Missing values are returned as
+     *         {@code null}.
+     */
+    static Object[] getBindArgs(ContentValues values, String[] columns) {
+        Object[] bindArgs = new Object[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            bindArgs[i] = values.get(columns[i]);
+        }
+
+        return bindArgs;
+    }
+
+    /**
+     * @return {@code INSERT INTO table (column, ...) VALUES (?, ...)}
+     */
+    static String buildInsertSql(String conflictClause, String table, String[] columns) {
+        StringBuilder sql = new StringBuilder();
+        sql.append("INSERT ");
+        if (conflictClause != null) {
+            sql.append(conflictClause).append(' ');
+        }
+        sql.append("INTO ").append(table).append(" (");
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) {
+                sql.append(", ");
+            }
+            sql.append(columns[i]);
+        }
+        sql.append(") VALUES (");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i > 0 ? ", ?" : "?");
+        }
+        sql.append(')');
+
+        return sql.toString();
+    }
+
+    private SQLiteStatement acquire(String sql) {
+        SQLiteStatement statement = null;
+        synchronized (idleStatements) {
+            Deque<SQLiteStatement> statements = idleStatements.get(sql);
+            if (statements != null) {
+                statement = statements.pollFirst();
+            }
+        }
+
+        return (statement != null) ? statement : db.compileStatement(sql);
+    }
+
+    private static void bind(SQLiteStatement statement, Object[] bindArgs) {
+        statement.clearBindings();
+        for (int i = 0; i < bindArgs.length; i++) {
+            DatabaseUtils.bindObjectToProgram(statement, i + 1, bindArgs[i]);
+        }
+    }
+
+    private void release(String sql, SQLiteStatement statement) {
+        synchronized (idleStatements) {
+            if (!closed) {
+                Deque<SQLiteStatement> statements = idleStatements.get(sql);
+                if (statements == null) {
+                    statements = new ArrayDeque<>();
+                    idleStatements.put(sql, statements);
+                }
+
+                if (statements.size() < MAX_IDLE_STATEMENTS_PER_SQL) {
+                    statements.addFirst(statement);
+                    return;
+                }
+            }
+        }
+
+        statement.close();
+    }
+}
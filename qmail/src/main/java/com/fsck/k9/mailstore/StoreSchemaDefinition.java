@@ -5,6 +5,7 @@ import java.util.List;
 
 import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
 import timber.log.Timber;
 
 import com.fsck.k9.Account;
@@ -20,6 +21,10 @@ import static java.lang.String.format;
 
 
 class StoreSchemaDefinition implements LockableDatabase.SchemaDefinition {
+    private static final String THREAD_SUMMARY_COLUMNS = "(root, folder_id, message_count, unread_count, " +
+            "flagged_count, unanswered_count, unforwarded_count, attachment_count, date, internal_date, " +
+            "newest_message_id)";
+
     private final LocalStore localStore;
 
 
@@ -93,7 +98,8 @@ class StoreSchemaDefinition implements LockableDatabase.SchemaDefinition {
                 "push_class TEXT, " +
                 "display_class TEXT, " +
                 "notify_class TEXT default '"+ Folder.FolderClass.INHERITED.name() + "', " +
-                "more_messages TEXT default \"unknown\"" +
+                "more_messages TEXT default \"unknown\", " +
+                "sync_state TEXT" +
                 ")");
 
         db.execSQL("CREATE INDEX IF NOT EXISTS folder_remoteId ON folders (remoteId)");
@@ -158,6 +164,7 @@ class StoreSchemaDefinition implements LockableDatabase.SchemaDefinition {
         db.execSQL("DROP INDEX IF EXISTS msg_folder_id");
         db.execSQL("DROP INDEX IF EXISTS msg_folder_id_date");
         db.execSQL("CREATE INDEX IF NOT EXISTS msg_folder_id_deleted_date ON messages (folder_id,deleted,internal_date)");
+        db.execSQL("CREATE INDEX IF NOT EXISTS msg_folder_id_deleted_sent_date ON messages (folder_id,deleted,date)");
 
         db.execSQL("DROP INDEX IF EXISTS msg_empty");
         db.execSQL("CREATE INDEX IF NOT EXISTS msg_empty ON messages (empty)");
@@ -211,10 +218,142 @@ class StoreSchemaDefinition implements LockableDatabase.SchemaDefinition {
                 "DELETE FROM messages_fulltext WHERE docid = OLD.id; " +
                 "END");
 
+        db.execSQL("DROP TABLE IF EXISTS thread_summary");
+        db.execSQL("CREATE TABLE thread_summary (" +
+                "root INTEGER NOT NULL, " +
+                "folder_id INTEGER NOT NULL, " +
+                "message_count INTEGER NOT NULL, " +
+                "unread_count INTEGER NOT NULL, " +
+                "flagged_count INTEGER NOT NULL, " +
+                "unanswered_count INTEGER NOT NULL, " +
+                "unforwarded_count INTEGER NOT NULL, " +
+                "attachment_count INTEGER, " +
+                "date INTEGER, " +
+                "internal_date INTEGER, " +
+                "newest_message_id INTEGER, " +
+                "PRIMARY KEY (root, folder_id)" +
+                ")");
+
+        db.execSQL("CREATE INDEX IF NOT EXISTS thread_summary_folder_id_date ON thread_summary (folder_id,date)");
+
+        db.execSQL("DROP TRIGGER IF EXISTS thread_summary_update_flags");
+        db.execSQL("CREATE TRIGGER thread_summary_update_flags " +
+                "AFTER UPDATE OF read, flagged, answered, forwarded ON messages " +
+                "WHEN OLD.empty = 0 AND OLD.deleted = 0 AND NEW.empty = 0 AND NEW.deleted = 0 " +
+                "AND OLD.folder_id IS NEW.folder_id AND OLD.date IS NEW.date " +
+                "AND OLD.internal_date IS NEW.internal_date AND OLD.attachment_count IS NEW.attachment_count " +
+                "BEGIN " +
+                "UPDATE thread_summary SET " +
+                "unread_count = unread_count + (NEW.read = 0) - (OLD.read = 0), " +
+                "flagged_count = flagged_count + (NEW.flagged != 0) - (OLD.flagged != 0), " +
+                "unanswered_count = unanswered_count + (NEW.answered = 0) - (OLD.answered = 0), " +
+                "unforwarded_count = unforwarded_count + (NEW.forwarded = 0) - (OLD.forwarded = 0) " +
+                "WHERE root IN (SELECT root FROM threads WHERE message_id = NEW.id) AND folder_id = NEW.folder_id; " +
+                "END");
+
+        db.execSQL("DROP TRIGGER IF EXISTS thread_summary_update_message");
+        db.execSQL("CREATE TRIGGER thread_summary_update_message " +
+                "AFTER UPDATE OF deleted, empty, folder_id, date, internal_date, attachment_count ON messages " +
+                "WHEN OLD.deleted IS NOT NEW.deleted OR OLD.empty IS NOT NEW.empty " +
+                "OR OLD.folder_id IS NOT NEW.folder_id OR OLD.date IS NOT NEW.date " +
+                "OR OLD.internal_date IS NOT NEW.internal_date OR OLD.attachment_count IS NOT NEW.attachment_count " +
+                "BEGIN " +
+                rebuildThreadSummary("IN (SELECT root FROM threads WHERE message_id = NEW.id)") +
+                "END");
+
+        db.execSQL("DROP TRIGGER IF EXISTS thread_summary_delete_message");
+        db.execSQL("CREATE TRIGGER thread_summary_delete_message " +
+                "AFTER DELETE ON messages " +
+                "BEGIN " +
+                rebuildThreadSummary("IN (SELECT root FROM threads WHERE message_id = OLD.id)") +
+                "END");
+
+        db.execSQL("DROP TRIGGER IF EXISTS thread_summary_insert_thread");
+        db.execSQL("CREATE TRIGGER thread_summary_insert_thread " +
+                "AFTER INSERT ON threads " +
+                "BEGIN " +
+                rebuildThreadSummary("= IFNULL(NEW.root, NEW.id)") +
+                "END");
+
+        db.execSQL("DROP TRIGGER IF EXISTS thread_summary_update_thread");
+        db.execSQL("CREATE TRIGGER thread_summary_update_thread " +
+                "AFTER UPDATE OF root, message_id ON threads " +
+                "BEGIN " +
+                rebuildThreadSummary("IN (OLD.root, NEW.root)") +
+                "END");
+
+        db.execSQL("DROP TRIGGER IF EXISTS thread_summary_delete_thread");
+        db.execSQL("CREATE TRIGGER thread_summary_delete_thread " +
+                "AFTER DELETE ON threads " +
+                "BEGIN " +
+                rebuildThreadSummary("= OLD.root") +
+                "END");
+
+        db.execSQL("DROP TRIGGER IF EXISTS folder_counts_insert_message");
+        db.execSQL("CREATE TRIGGER folder_counts_insert_message " +
+                "AFTER INSERT ON messages " +
+                "BEGIN " +
+                updateFolderCounts("NEW", "+") +
+                "END");
+
+        db.execSQL("DROP TRIGGER IF EXISTS folder_counts_update_message");
+        db.execSQL("CREATE TRIGGER folder_counts_update_message " +
+                "AFTER UPDATE OF read, flagged, empty, deleted, folder_id ON messages " +
+                "WHEN OLD.read IS NOT NEW.read OR OLD.flagged IS NOT NEW.flagged " +
+                "OR OLD.empty IS NOT NEW.empty OR OLD.deleted IS NOT NEW.deleted " +
+                "OR OLD.folder_id IS NOT NEW.folder_id " +
+                "BEGIN " +
+                updateFolderCounts("OLD", "-") +
+                updateFolderCounts("NEW", "+") +
+                "END");
+
+        db.execSQL("DROP TRIGGER IF EXISTS folder_counts_delete_message");
+        db.execSQL("CREATE TRIGGER folder_counts_delete_message " +
+                "AFTER DELETE ON messages " +
+                "BEGIN " +
+                updateFolderCounts("OLD", "-") +
+                "END");
+
         db.execSQL("DROP TABLE IF EXISTS messages_fulltext");
-        db.execSQL("CREATE VIRTUAL TABLE messages_fulltext USING fts4 (fulltext)");
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            db.execSQL("CREATE VIRTUAL TABLE messages_fulltext USING fts4 (fulltext, prefix=\"2,3\")");
+        } else {
+            // SQLite before 3.7.7 doesn't support prefix indexes
+            db.execSQL("CREATE VIRTUAL TABLE messages_fulltext USING fts4 (fulltext)");
+        }
+
+        db.execSQL("DROP TABLE IF EXISTS fulltext_index");
+        db.execSQL("CREATE TABLE fulltext_index (last_indexed_message_id INTEGER NOT NULL)");
+        db.execSQL("INSERT INTO fulltext_index VALUES (0)");
+    }
+
+
+    private static String updateFolderCounts(String row, String operator) {
+        String visible = row + ".empty IS 0 AND " + row + ".deleted IS 0";
+        String unread = "(" + visible + " AND " + row + ".read IS 0)";
+        String flagged = "(" + visible + " AND " + row + ".flagged IS 1)";
+        return "UPDATE folders SET " +
+                "unread_count = IFNULL(unread_count, 0) " + operator + " " + unread + ", " +
+                "flagged_count = IFNULL(flagged_count, 0) " + operator + " " + flagged + " " +
+                "WHERE id = " + row + ".folder_id; ";
     }
 
+    private static String rebuildThreadSummary(String rootCondition) {
+        return "DELETE FROM thread_summary WHERE root " + rootCondition + "; " +
+                "INSERT INTO thread_summary " + THREAD_SUMMARY_COLUMNS + " " +
+                selectThreadSummary("t.root " + rootCondition + " AND m.empty = 0 AND m.deleted = 0") + "; ";
+    }
+
+    private static String selectThreadSummary(String where) {
+        return "SELECT t.root, m.folder_id, COUNT(*), SUM(m.read = 0), SUM(m.flagged != 0), SUM(m.answered = 0), " +
+                "SUM(m.forwarded = 0), SUM(m.attachment_count), MAX(m.date), MAX(m.internal_date), " +
+                "(SELECT m2.id FROM threads t2 JOIN messages m2 ON (m2.id = t2.message_id) " +
+                "WHERE t2.root = t.root AND m2.folder_id = m.folder_id AND m2.empty = 0 AND m2.deleted = 0 " +
+                "ORDER BY m2.date DESC, m2.id DESC LIMIT 1) " +
+                "FROM threads t JOIN messages m ON (m.id = t.message_id) " +
+                "WHERE " + where + " " +
+                "GROUP BY t.root, m.folder_id";
+    }
 
     private static class RealMigrationsHelper implements MigrationsHelper {
         private final LocalStore localStore;
@@ -0,0 +1,11 @@
+package com.fsck.k9.mailstore.migrations;
+
+
+import android.database.sqlite.SQLiteDatabase;
+
+
+class MigrationTo64 {
+    static void addFolderSyncState(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE folders ADD sync_state TEXT");
+    }
+}
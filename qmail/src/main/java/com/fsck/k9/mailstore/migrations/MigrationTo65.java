@@ -0,0 +1,22 @@
+package com.fsck.k9.mailstore.migrations;
+
+
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+
+
+class MigrationTo65 {
+    static void createBackgroundFulltextIndex(SQLiteDatabase db) {
+        // Recreate the full-text index with prefix indexes. It is then filled in the background by FulltextIndexer.
+        db.execSQL("DROP TABLE IF EXISTS messages_fulltext");
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            db.execSQL("CREATE VIRTUAL TABLE messages_fulltext USING fts4 (fulltext, prefix=\"2,3\")");
+        } else {
+            db.execSQL("CREATE VIRTUAL TABLE messages_fulltext USING fts4 (fulltext)");
+        }
+
+        db.execSQL("DROP TABLE IF EXISTS fulltext_index");
+        db.execSQL("CREATE TABLE fulltext_index (last_indexed_message_id INTEGER NOT NULL)");
+        db.execSQL("INSERT INTO fulltext_index VALUES (0)");
+    }
+}
@@ -0,0 +1,12 @@
+package com.fsck.k9.mailstore.migrations;
+
+
+import android.database.sqlite.SQLiteDatabase;
+
+
+class MigrationTo66 {
+    static void addFolderDateIndex(SQLiteDatabase db) {
+        // Lets EmailProvider read a page of a folder sorted by date without sorting the whole folder first
+        db.execSQL("CREATE INDEX IF NOT EXISTS msg_folder_id_deleted_sent_date ON messages (folder_id,deleted,date)");
+    }
+}
@@ -0,0 +1,108 @@
+package com.fsck.k9.mailstore.migrations;
+
+
+import android.database.sqlite.SQLiteDatabase;
+
+
+/**
+ * Adds a per-thread, per-folder summary of the messages that are neither empty nor deleted. Triggers keep it up to
+ * date: flag changes adjust the counters, everything else rebuilds the rows of the affected thread.
+ */
+class MigrationTo67 {
+    private static final String THREAD_SUMMARY_COLUMNS = "(root, folder_id, message_count, unread_count, " +
+            "flagged_count, unanswered_count, unforwarded_count, attachment_count, date, internal_date, " +
+            "newest_message_id)";
+
+    static void createThreadSummaryTable(SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS thread_summary");
+        db.execSQL("CREATE TABLE thread_summary (" +
+                "root INTEGER NOT NULL, " +
+                "folder_id INTEGER NOT NULL, " +
+                "message_count INTEGER NOT NULL, " +
+                "unread_count INTEGER NOT NULL, " +
+                "flagged_count INTEGER NOT NULL, " +
+                "unanswered_count INTEGER NOT NULL, " +
+                "unforwarded_count INTEGER NOT NULL, " +
+                "attachment_count INTEGER, " +
+                "date INTEGER, " +
+                "internal_date INTEGER, " +
+                "newest_message_id INTEGER, " +
+                "PRIMARY KEY (root, folder_id)" +
+                ")");
+
+        db.execSQL("CREATE INDEX IF NOT EXISTS thread_summary_folder_id_date ON thread_summary (folder_id,date)");
+
+        db.execSQL("DROP TRIGGER IF EXISTS thread_summary_update_flags");
+        db.execSQL("CREATE TRIGGER thread_summary_update_flags " +
+                "AFTER UPDATE OF read, flagged, answered, forwarded ON messages " +
+                "WHEN OLD.empty = 0 AND OLD.deleted = 0 AND NEW.empty = 0 AND NEW.deleted = 0 " +
+                "AND OLD.folder_id IS NEW.folder_id AND OLD.date IS NEW.date " +
+                "AND OLD.internal_date IS NEW.internal_date AND OLD.attachment_count IS NEW.attachment_count " +
+                "BEGIN " +
+                "UPDATE thread_summary SET " +
+                "unread_count = unread_count + (NEW.read = 0) - (OLD.read = 0), " +
+                "flagged_count = flagged_count + (NEW.flagged != 0) - (OLD.flagged != 0), " +
+                "unanswered_count = unanswered_count + (NEW.answered = 0) - (OLD.answered = 0), " +
+                "unforwarded_count = unforwarded_count + (NEW.forwarded = 0) - (OLD.forwarded = 0) " +
+                "WHERE root IN (SELECT root FROM threads WHERE message_id = NEW.id) AND folder_id = NEW.folder_id; " +
+                "END");
+
+        db.execSQL("DROP TRIGGER IF EXISTS thread_summary_update_message");
+        db.execSQL("CREATE TRIGGER thread_summary_update_message " +
+                "AFTER UPDATE OF deleted, empty, folder_id, date, internal_date, attachment_count ON messages " +
+                "WHEN OLD.deleted IS NOT NEW.deleted OR OLD.empty IS NOT NEW.empty " +
+                "OR OLD.folder_id IS NOT NEW.folder_id OR OLD.date IS NOT NEW.date " +
+                "OR OLD.internal_date IS NOT NEW.internal_date OR OLD.attachment_count IS NOT NEW.attachment_count " +
+                "BEGIN " +
+                rebuildThreadSummary("IN (SELECT root FROM threads WHERE message_id = NEW.id)") +
+                "END");
+
+        db.execSQL("DROP TRIGGER IF EXISTS thread_summary_delete_message");
+        db.execSQL("CREATE TRIGGER thread_summary_delete_message " +
+                "AFTER DELETE ON messages " +
+                "BEGIN " +
+                rebuildThreadSummary("IN (SELECT root FROM threads WHERE message_id = OLD.id)") +
+                "END");
+
+        db.execSQL("DROP TRIGGER IF EXISTS thread_summary_insert_thread");
+        db.execSQL("CREATE TRIGGER thread_summary_insert_thread " +
+                "AFTER INSERT ON threads " +
+                "BEGIN " +
+                rebuildThreadSummary("= IFNULL(NEW.root, NEW.id)") +
+                "END");
+
+        db.execSQL("DROP TRIGGER IF EXISTS thread_summary_update_thread");
+        db.execSQL("CREATE TRIGGER thread_summary_update_thread " +
+                "AFTER UPDATE OF root, message_id ON threads " +
+                "BEGIN " +
+                rebuildThreadSummary("IN (OLD.root, NEW.root)") +
+                "END");
+
+        db.execSQL("DROP TRIGGER IF EXISTS thread_summary_delete_thread");
+        db.execSQL("CREATE TRIGGER thread_summary_delete_thread " +
+                "AFTER DELETE ON threads " +
+                "BEGIN " +
+                rebuildThreadSummary("= OLD.root") +
+                "END");
+
+        db.execSQL("INSERT INTO thread_summary " + THREAD_SUMMARY_COLUMNS + " " +
+                selectThreadSummary("m.empty = 0 AND m.deleted = 0"));
+    }
+
+    private static String rebuildThreadSummary(String rootCondition) {
+        return "DELETE FROM thread_summary WHERE root " + rootCondition + "; " +
+                "INSERT INTO thread_summary " + THREAD_SUMMARY_COLUMNS + " " +
+                selectThreadSummary("t.root " + rootCondition + " AND m.empty = 0 AND m.deleted = 0") + "; ";
+    }
+
+    private static String selectThreadSummary(String where) {
+        return "SELECT t.root, m.folder_id, COUNT(*), SUM(m.read = 0), SUM(m.flagged != 0), SUM(m.answered = 0), " +
+                "SUM(m.forwarded = 0), SUM(m.attachment_count), MAX(m.date), MAX(m.internal_date), " +
+                "(SELECT m2.id FROM threads t2 JOIN messages m2 ON (m2.id = t2.message_id) " +
+                "WHERE t2.root = t.root AND m2.folder_id = m.folder_id AND m2.empty = 0 AND m2.deleted = 0 " +
+                "ORDER BY m2.date DESC, m2.id DESC LIMIT 1) " +
+                "FROM threads t JOIN messages m ON (m.id = t.message_id) " +
+                "WHERE " + where + " " +
+                "GROUP BY t.root, m.folder_id";
+    }
+}
@@ -0,0 +1,54 @@
+package com.fsck.k9.mailstore.migrations;
+
+
+import android.database.sqlite.SQLiteDatabase;
+
+
+/**
+ * Keeps the number of unread and flagged messages of a folder in the {@code unread_count} and {@code flagged_count}
+ * columns of the {@code folders} table, so they don't have to be counted every time they are displayed.
+ */
+class MigrationTo68 {
+    static void addFolderCountTriggers(SQLiteDatabase db) {
+        db.execSQL("DROP TRIGGER IF EXISTS folder_counts_insert_message");
+        db.execSQL("CREATE TRIGGER folder_counts_insert_message " +
+                "AFTER INSERT ON messages " +
+                "BEGIN " +
+                updateFolderCounts("NEW", "+") +
+                "END");
+
+        db.execSQL("DROP TRIGGER IF EXISTS folder_counts_update_message");
+        db.execSQL("CREATE TRIGGER folder_counts_update_message " +
+                "AFTER UPDATE OF read, flagged, empty, deleted, folder_id ON messages " +
+                "WHEN OLD.read IS NOT NEW.read OR OLD.flagged IS NOT NEW.flagged " +
+                "OR OLD.empty IS NOT NEW.empty OR OLD.deleted IS NOT NEW.deleted " +
+                "OR OLD.folder_id IS NOT NEW.folder_id " +
+                "BEGIN " +
+                updateFolderCounts("OLD", "-") +
+                updateFolderCounts("NEW", "+") +
+                "END");
+
+        db.execSQL("DROP TRIGGER IF EXISTS folder_counts_delete_message");
+        db.execSQL("CREATE TRIGGER folder_counts_delete_message " +
+                "AFTER DELETE ON messages " +
+                "BEGIN " +
+                updateFolderCounts("OLD", "-") +
+                "END");
+
+        db.execSQL("UPDATE folders SET " +
+                "unread_count = (SELECT COUNT(*) FROM messages " +
+                "WHERE folder_id = folders.id AND empty = 0 AND deleted = 0 AND read = 0), " +
+                "flagged_count = (SELECT COUNT(*) FROM messages " +
+                "WHERE folder_id = folders.id AND empty = 0 AND deleted = 0 AND flagged = 1)");
+    }
+
+    private static String updateFolderCounts(String row, String operator) {
+        String visible = row + ".empty IS 0 AND " + row + ".deleted IS 0";
+        String unread = "(" + visible + " AND " + row + ".read IS 0)";
+        String flagged = "(" + visible + " AND " + row + ".flagged IS 1)";
+        return "UPDATE folders SET " +
+                "unread_count = IFNULL(unread_count, 0) " + operator + " " + unread + ", " +
+                "flagged_count = IFNULL(flagged_count, 0) " + operator + " " + flagged + " " +
+                "WHERE id = " + row + ".folder_id; ";
+    }
+}
@@ -79,8 +79,18 @@ public class Migrations {
                 MigrationTo61.addFolderRemoteId(db);
             case 61:
                 MigrationTo62.addFolderParentRemoteId(db);
-            case 63:
+            case 62:
                 MigrationTo63.removeErrorsFolder(db);
+            case 63:
+                MigrationTo64.addFolderSyncState(db);
+            case 64:
+                MigrationTo65.createBackgroundFulltextIndex(db);
+            case 65:
+                MigrationTo66.addFolderDateIndex(db);
+            case 66:
+                MigrationTo67.createThreadSummaryTable(db);
+            case 67:
+                MigrationTo68.addFolderCountTriggers(db);
         }
     }
 }
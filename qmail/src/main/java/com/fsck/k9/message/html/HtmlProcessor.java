@@ -1,33 +1,74 @@
 package com.fsck.k9.message.html;
 
 
+import java.io.File;
+
+import android.support.annotation.Nullable;
+
+import com.fsck.k9.QMail;
 import org.jsoup.nodes.Document;
+import timber.log.Timber;
 
 
 public class HtmlProcessor {
     private final HtmlSanitizer htmlSanitizer;
+    private final SanitizedHtmlCache sanitizedHtmlCache;
 
 
     public static HtmlProcessor newInstance() {
         HtmlSanitizer htmlSanitizer = new HtmlSanitizer();
-        return new HtmlProcessor(htmlSanitizer);
+        SanitizedHtmlCache sanitizedHtmlCache = SanitizedHtmlCache.getInstance();
+        return new HtmlProcessor(htmlSanitizer, sanitizedHtmlCache);
     }
 
-    private HtmlProcessor(HtmlSanitizer htmlSanitizer) {
+    private HtmlProcessor(HtmlSanitizer htmlSanitizer, SanitizedHtmlCache sanitizedHtmlCache) {
         this.htmlSanitizer = htmlSanitizer;
+        this.sanitizedHtmlCache = sanitizedHtmlCache;
     }
 
     public String processForDisplay(String html) {
+        return processForDisplay(html, getCustomHeadContents());
+    }
+
+    /**
+     * Same as {@link #processForDisplay(String)}, but returns the cached result if the same HTML was processed for the
+     * message identified by {@code messageKey} before.
+     *
+     * @param cacheFile
+     *         File to keep the result in after the message is gone from the memory cache, or {@code null}.
+     */
+    public String processForDisplay(String html, String messageKey, @Nullable File cacheFile) {
+        String headContents = getCustomHeadContents();
+        String contentHash = SanitizedHtmlCache.computeContentHash(html, headContents);
+
+        String processedHtml = sanitizedHtmlCache.get(messageKey, contentHash, cacheFile);
+        if (processedHtml == null) {
+            processedHtml = processForDisplay(html, headContents);
+            sanitizedHtmlCache.put(messageKey, contentHash, processedHtml, cacheFile);
+        }
+
+        return processedHtml;
+    }
+
+    private String processForDisplay(String html, String headContents) {
+        long start = System.nanoTime();
+
         Document document = htmlSanitizer.sanitize(html);
-        addCustomHeadContents(document);
+        document.head().append(headContents);
+        String processedHtml = toCompactString(document);
+
+        if (QMail.isDebug()) {
+            Timber.d("Sanitized %d characters of HTML in %d ms", html.length(),
+                    (System.nanoTime() - start) / 1000000);
+        }
 
-        return toCompactString(document);
+        return processedHtml;
     }
 
-    private void addCustomHeadContents(Document document) {
-        document.head().append("<meta name=\"viewport\" content=\"width=device-width\"/>" +
+    private static String getCustomHeadContents() {
+        return "<meta name=\"viewport\" content=\"width=device-width\"/>" +
                 HtmlConverter.cssStyleTheme() +
-                HtmlConverter.cssStylePre());
+                HtmlConverter.cssStylePre();
     }
 
     public static String toCompactString(Document document) {
@@ -0,0 +1,143 @@
+package com.fsck.k9.message.html;
+
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import android.support.annotation.Nullable;
+import android.support.v4.util.LruCache;
+
+import com.fsck.k9.mail.filter.Hex;
+import org.apache.commons.io.IOUtils;
+import timber.log.Timber;
+
+
+/**
+ * Remembers the HTML produced by {@link HtmlProcessor#processForDisplay(String)} for recently displayed messages.
+ * <p>
+ * Entries are stored under a message key together with a hash of the unsanitized HTML and everything else that
+ * influences the result, so a changed message or a changed display setting never returns stale HTML. Recently used
+ * entries are kept in memory. Callers may pass a file to also keep the HTML on disk, e.g. next to the message parts.
+ * </p>
+ */
+public class SanitizedHtmlCache {
+    private static final int MAX_MEMORY_CACHE_CHARS = 1024 * 1024;
+    private static final String CHARSET = "UTF-8";
+
+    private static SanitizedHtmlCache instance;
+
+
+    private final LruCache<String, String> memoryCache;
+
+
+    public static synchronized SanitizedHtmlCache getInstance() {
+        if (instance == null) {
+            instance = new SanitizedHtmlCache(MAX_MEMORY_CACHE_CHARS);
+        }
+        return instance;
+    }
+
+    SanitizedHtmlCache(int maxMemoryCacheChars) {
+        memoryCache = new LruCache<String, String>(maxMemoryCacheChars) {
+            @Override
+            protected int sizeOf(String key, String value) {
+                return value.length();
+            }
+        };
+    }
+
+    /**
+     * @return The hash identifying the result of sanitizing {@code html} and adding {@code headContents}.
+     */
+    static String computeContentHash(String html, String headContents) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(headContents.getBytes(CHARSET));
+            digest.update((byte) 0);
+            digest.update(html.getBytes(CHARSET));
+            return Hex.encodeHex(digest.digest());
+        } catch (NoSuchAlgorithmException | IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Nullable
+    public String get(String messageKey, String contentHash, @Nullable File cacheFile) {
+        String memoryKey = messageKey + ":" + contentHash;
+        String html = memoryCache.get(memoryKey);
+        if (html != null || cacheFile == null) {
+            return html;
+        }
+
+        html = readFromFile(cacheFile, contentHash);
+        if (html != null) {
+            memoryCache.put(memoryKey, html);
+        }
+        return html;
+    }
+
+    public void put(String messageKey, String contentHash, String html, @Nullable File cacheFile) {
+        memoryCache.put(messageKey + ":" + contentHash, html);
+
+        if (cacheFile != null) {
+            writeToFile(cacheFile, contentHash, html);
+        }
+    }
+
+    /**
+     * The file starts with the content hash, followed by a line break and the sanitized HTML.
+     */
+    @Nullable
+    private static String readFromFile(File cacheFile, String contentHash) {
+        if (!cacheFile.exists()) {
+            return null;
+        }
+
+        InputStream in = null;
+        try {
+            in = new FileInputStream(cacheFile);
+            String content = IOUtils.toString(in, CHARSET);
+
+            int lineEnd = content.indexOf('\n');
+            if (lineEnd == -1 || !contentHash.equals(content.substring(0, lineEnd))) {
+                return null;
+            }
+
+            return content.substring(lineEnd + 1);
+        } catch (IOException e) {
+            Timber.w(e, "Unable to read sanitized HTML from %s", cacheFile);
+            return null;
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    private static void writeToFile(File cacheFile, String contentHash, String html) {
+        File tempFile = new File(cacheFile.getPath() + ".tmp");
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(tempFile);
+            out.write(contentHash.getBytes(CHARSET));
+            out.write('\n');
+            out.write(html.getBytes(CHARSET));
+            out.close();
+            out = null;
+
+            if (!tempFile.renameTo(cacheFile)) {
+                throw new IOException("Unable to rename " + tempFile + " to " + cacheFile);
+            }
+        } catch (IOException e) {
+            Timber.w(e, "Unable to write sanitized HTML to %s", cacheFile);
+            IOUtils.closeQuietly(out);
+            if (tempFile.exists() && !tempFile.delete()) {
+                Timber.w("Unable to delete %s", tempFile);
+            }
+        }
+    }
+}
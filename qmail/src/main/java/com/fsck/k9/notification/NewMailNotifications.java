@@ -1,6 +1,10 @@
 package com.fsck.k9.notification;
 
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 import android.app.Notification;
 import android.support.v4.app.NotificationManagerCompat;
 import android.util.SparseArray;
@@ -49,18 +53,36 @@ class NewMailNotifications {
     }
 
     public void addNewMailNotification(Account account, LocalMessage message, int unreadMessageCount) {
-        NotificationContent content = contentCreator.createFromMessage(account, message);
+        addNewMailNotifications(account, Collections.singletonList(message), unreadMessageCount);
+    }
+
+    /**
+     * Adds notifications for a batch of new messages. The summary notification is only updated once for the whole
+     * batch.
+     */
+    public void addNewMailNotifications(Account account, List<LocalMessage> messages, int unreadMessageCount) {
+        if (messages.isEmpty()) {
+            return;
+        }
+
+        List<NotificationContent> contents = new ArrayList<>(messages.size());
+        for (LocalMessage message : messages) {
+            contents.add(contentCreator.createFromMessage(account, message));
+        }
 
         synchronized (lock) {
             NotificationData notificationData = getOrCreateNotificationData(account, unreadMessageCount);
-            AddNotificationResult result = notificationData.addNotificationContent(content);
+            for (NotificationContent content : contents) {
+                AddNotificationResult result = notificationData.addNotificationContent(content);
 
-            if (result.shouldCancelNotification()) {
-                int notificationId = result.getNotificationId();
-                cancelNotification(notificationId);
+                if (result.shouldCancelNotification()) {
+                    int notificationId = result.getNotificationId();
+                    cancelNotification(notificationId);
+                }
+
+                createStackedNotification(account, result.getNotificationHolder());
             }
 
-            createStackedNotification(account, result.getNotificationHolder());
             createSummaryNotification(account, notificationData, false);
         }
     }
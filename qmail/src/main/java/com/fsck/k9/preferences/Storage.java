@@ -2,9 +2,11 @@ package com.fsck.k9.preferences;
 
 
 import java.net.URI;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
@@ -14,26 +16,38 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteStatement;
 import android.os.SystemClock;
+import android.support.annotation.VisibleForTesting;
 
 import com.fsck.k9.helper.UrlEncodingHelper;
 import com.fsck.k9.helper.Utility;
 import com.fsck.k9.mail.filter.Base64;
 import timber.log.Timber;
 
+/**
+ * Keeps all preferences in memory and writes changes through to the {@code preferences_storage} database.
+ * <p>
+ * The in-memory copy is split into shards by the part of the key before the first dot, i.e. one shard per account
+ * (and everything below it, like folder and identity settings) and one shard for the global settings. Published shards
+ * are never modified. A transaction only copies the shards it writes to and replaces them when it succeeds, and it
+ * only writes keys whose value actually changed.
+ * </p>
+ */
 public class Storage {
+    private static final String GLOBAL_SHARD = "";
+
     private static ConcurrentMap<Context, Storage> storages =
         new ConcurrentHashMap<Context, Storage>();
 
-    private volatile ConcurrentMap<String, String> storage = new ConcurrentHashMap<String, String>();
+    private volatile Map<String, Map<String, String>> shards = new HashMap<String, Map<String, String>>();
 
     private int DB_VERSION = 2;
     private String DB_NAME = "preferences_storage";
 
-    private ThreadLocal<ConcurrentMap<String, String>> workingStorage
-    = new ThreadLocal<ConcurrentMap<String, String>>();
+    private ThreadLocal<Map<String, Map<String, String>>> workingShards =
+        new ThreadLocal<Map<String, Map<String, String>>>();
     private ThreadLocal<SQLiteDatabase> workingDB =
         new ThreadLocal<SQLiteDatabase>();
-    private ThreadLocal<List<String>> workingChangedKeys = new ThreadLocal<List<String>>();
+    private ThreadLocal<Set<String>> workingCopiedShards = new ThreadLocal<Set<String>>();
 
 
     private Context context = null;
@@ -161,6 +175,8 @@ public class Storage {
     private void loadValues() {
         long startTime = SystemClock.elapsedRealtime();
         Timber.i("Loading preferences from DB into Storage");
+        Map<String, Map<String, String>> loadedShards = new HashMap<String, Map<String, String>>();
+        int keyCount = 0;
         Cursor cursor = null;
         SQLiteDatabase mDb = null;
         try {
@@ -171,15 +187,25 @@ public class Storage {
                 String key = cursor.getString(0);
                 String value = cursor.getString(1);
                 Timber.d("Loading key '%s', value = '%s'", key, value);
-                storage.put(key, value);
+
+                String shardName = getShardName(key);
+                Map<String, String> shard = loadedShards.get(shardName);
+                if (shard == null) {
+                    shard = new HashMap<String, String>();
+                    loadedShards.put(shardName, shard);
+                }
+                shard.put(key, value);
+                keyCount++;
             }
         } finally {
             Utility.closeQuietly(cursor);
             if (mDb != null) {
                 mDb.close();
             }
+            shards = loadedShards;
             long endTime = SystemClock.elapsedRealtime();
-            Timber.i("Preferences load took %d ms", endTime - startTime);
+            Timber.i("Preferences load took %d ms for %d keys in %d shards", endTime - startTime, keyCount,
+                    loadedShards.size());
         }
     }
 
@@ -188,69 +214,108 @@ public class Storage {
         loadValues();
     }
 
-    private void keyChange(String key) {
-        List<String> changedKeys = workingChangedKeys.get();
-        if (!changedKeys.contains(key)) {
-            changedKeys.add(key);
+    static String getShardName(String key) {
+        int dotIndex = key.indexOf('.');
+        return (dotIndex == -1) ? GLOBAL_SHARD : key.substring(0, dotIndex);
+    }
+
+    private String get(String key) {
+        Map<String, String> shard = shards.get(getShardName(key));
+        return (shard == null) ? null : shard.get(key);
+    }
+
+    @VisibleForTesting
+    Map<String, String> getShard(String shardName) {
+        return shards.get(shardName);
+    }
+
+    private String getWorkingValue(String key) {
+        Map<String, String> shard = workingShards.get().get(getShardName(key));
+        return (shard == null) ? null : shard.get(key);
+    }
+
+    /**
+     * Returns the shard of the current transaction that the key belongs to, copying the published shard on the first
+     * write to it.
+     */
+    private Map<String, String> getWritableShard(String key) {
+        String shardName = getShardName(key);
+        Map<String, Map<String, String>> working = workingShards.get();
+        Map<String, String> shard = working.get(shardName);
+
+        if (workingCopiedShards.get().add(shardName)) {
+            shard = (shard == null) ? new HashMap<String, String>() : new HashMap<String, String>(shard);
+            working.put(shardName, shard);
         }
+
+        return shard;
     }
 
     void put(Map<String, String> insertables) {
-        String sql = "INSERT INTO preferences_storage (primkey, value) VALUES (?, ?)";
-        SQLiteStatement stmt = workingDB.get().compileStatement(sql);
+        SQLiteStatement stmt = null;
 
         for (Map.Entry<String, String> entry : insertables.entrySet()) {
             String key = entry.getKey();
             String value = entry.getValue();
+            if (value.equals(getWorkingValue(key))) {
+                continue;
+            }
+
+            if (stmt == null) {
+                String sql = "INSERT INTO preferences_storage (primkey, value) VALUES (?, ?)";
+                stmt = workingDB.get().compileStatement(sql);
+            }
             stmt.bindString(1, key);
             stmt.bindString(2, value);
             stmt.execute();
             stmt.clearBindings();
-            liveUpdate(key, value);
+            getWritableShard(key).put(key, value);
         }
-        stmt.close();
-    }
-
-    private void liveUpdate(String key, String value) {
-        workingStorage.get().put(key, value);
 
-        keyChange(key);
+        if (stmt != null) {
+            stmt.close();
+        }
     }
 
     void remove(String key) {
-        workingDB.get().delete("preferences_storage", "primkey = ?", new String[] { key });
-        workingStorage.get().remove(key);
+        if (getWorkingValue(key) == null) {
+            return;
+        }
 
-        keyChange(key);
+        workingDB.get().delete("preferences_storage", "primkey = ?", new String[] { key });
+        getWritableShard(key).remove(key);
     }
 
-    void doInTransaction(Runnable dbWork) {
-        ConcurrentMap<String, String> newStorage = new ConcurrentHashMap<String, String>();
-        newStorage.putAll(storage);
-        workingStorage.set(newStorage);
+    synchronized void doInTransaction(Runnable dbWork) {
+        Map<String, Map<String, String>> newShards = new HashMap<String, Map<String, String>>(shards);
+        workingShards.set(newShards);
 
         SQLiteDatabase mDb = openDB();
         workingDB.set(mDb);
 
-        List<String> changedKeys = new ArrayList<String>();
-        workingChangedKeys.set(changedKeys);
+        workingCopiedShards.set(new HashSet<String>());
 
         mDb.beginTransaction();
         try {
             dbWork.run();
             mDb.setTransactionSuccessful();
-            storage = newStorage;
+            shards = newShards;
         } finally {
             workingDB.remove();
-            workingStorage.remove();
-            workingChangedKeys.remove();
+            workingShards.remove();
+            workingCopiedShards.remove();
             mDb.endTransaction();
             mDb.close();
         }
     }
 
     public boolean isEmpty() {
-        return storage.isEmpty();
+        for (Map<String, String> shard : shards.values()) {
+            if (!shard.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
     }
 
     public boolean contains(String key) {
@@ -258,7 +323,7 @@ public class Storage {
         // actually containsValue. But looking at the usage of this method,
         // it's clear that containsKey is what's intended. Investigate if this
         // was a bug previously. Looks like it was only used once, when upgrading
-        return storage.containsKey(key);
+        return get(key) != null;
     }
 
     public StorageEditor edit() {
@@ -266,11 +331,15 @@ public class Storage {
     }
 
     public Map<String, String> getAll() {
-        return storage;
+        Map<String, String> all = new HashMap<String, String>();
+        for (Map<String, String> shard : shards.values()) {
+            all.putAll(shard);
+        }
+        return Collections.unmodifiableMap(all);
     }
 
     public boolean getBoolean(String key, boolean defValue) {
-        String val = storage.get(key);
+        String val = get(key);
         if (val == null) {
             return defValue;
         }
@@ -278,7 +347,7 @@ public class Storage {
     }
 
     public int getInt(String key, int defValue) {
-        String val = storage.get(key);
+        String val = get(key);
         if (val == null) {
             return defValue;
         }
@@ -291,7 +360,7 @@ public class Storage {
     }
 
     public long getLong(String key, long defValue) {
-        String val = storage.get(key);
+        String val = get(key);
         if (val == null) {
             return defValue;
         }
@@ -304,7 +373,7 @@ public class Storage {
     }
 
     public String getString(String key, String defValue) {
-        String val = storage.get(key);
+        String val = get(key);
         if (val == null) {
             return defValue;
         }
@@ -17,12 +17,9 @@ public class StorageEditor {
     private Map<String, String> changes = new HashMap<String, String>();
     private List<String> removals = new ArrayList<String>();
 
-    Map<String, String> snapshot = new HashMap<String, String>();
-
 
     StorageEditor(Storage storage) {
         this.storage = storage;
-        snapshot.putAll(storage.getAll());
     }
 
     public void copy(android.content.SharedPreferences input) {
@@ -54,19 +51,14 @@ public class StorageEditor {
         Timber.i("Committing preference changes");
         Runnable committer = new Runnable() {
             public void run() {
+                // Keys that are removed and then put again only need to be overwritten
                 for (String removeKey : removals) {
-                    storage.remove(removeKey);
-                }
-                Map<String, String> insertables = new HashMap<String, String>();
-                for (Entry<String, String> entry : changes.entrySet()) {
-                    String key = entry.getKey();
-                    String newValue = entry.getValue();
-                    String oldValue = snapshot.get(key);
-                    if (removals.contains(key) || !newValue.equals(oldValue)) {
-                        insertables.put(key, newValue);
+                    if (!changes.containsKey(removeKey)) {
+                        storage.remove(removeKey);
                     }
                 }
-                storage.put(insertables);
+                // Only values that differ from the stored ones are written
+                storage.put(changes);
             }
         };
         storage.doInTransaction(committer);
@@ -2,9 +2,14 @@ package com.fsck.k9.provider;
 
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import android.content.ContentProvider;
 import android.content.ContentResolver;
@@ -50,6 +55,18 @@ public class EmailProvider extends ContentProvider {
 
     public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY);
 
+    /**
+     * Query parameter for message and threaded message URIs that limits the number of returned rows.
+     * <p>
+     * Together with {@link #QUERY_PARAMETER_BEFORE_DATE} and {@link #QUERY_PARAMETER_BEFORE_ID} this allows keyset
+     * pagination of lists that are sorted by {@code date DESC, id DESC}. The next page is requested by passing the
+     * date and ID of the last row of the previous page.
+     * </p>
+     */
+    public static final String QUERY_PARAMETER_PAGE_SIZE = "page_size";
+    public static final String QUERY_PARAMETER_BEFORE_DATE = "before_date";
+    public static final String QUERY_PARAMETER_BEFORE_ID = "before_id";
+
 
     /*
      * Constants that are used for the URI matching.
@@ -111,6 +128,18 @@ public class EmailProvider extends ContentProvider {
 
     private static final String THREADS_TABLE = "threads";
 
+    private static final String THREAD_SUMMARY_TABLE = "thread_summary";
+
+    private static final String[] THREAD_SUMMARY_FOLDER_COLUMNS = {
+            MessageColumns.FOLDER_ID
+    };
+
+    private static final Pattern SELECTION_WORD_PATTERN = Pattern.compile("[A-Za-z_][A-Za-z0-9_.]*");
+
+    private static final Set<String> FOLDER_SELECTION_WORDS = new HashSet<String>(Arrays.asList(
+            MessageColumns.FOLDER_ID, FolderColumns.INTEGRATE, FolderColumns.DISPLAY_CLASS,
+            "AND", "OR", "NOT", "IN", "IS", "NULL"));
+
     static {
         UriMatcher matcher = URI_MATCHER;
 
@@ -235,11 +264,13 @@ public class EmailProvider extends ContentProvider {
                 }
 
                 String[] dbProjection = dbColumnNames.toArray(new String[0]);
+                Page page = Page.fromUri(uri);
 
                 if (match == MESSAGES) {
-                    cursor = getMessages(accountUuid, dbProjection, selection, selectionArgs, sortOrder);
+                    cursor = getMessages(accountUuid, dbProjection, selection, selectionArgs, sortOrder, page);
                 } else if (match == MESSAGES_THREADED) {
-                    cursor = getThreadedMessages(accountUuid, dbProjection, selection, selectionArgs, sortOrder);
+                    cursor = getThreadedMessages(accountUuid, dbProjection, selection, selectionArgs, sortOrder,
+                            page);
                 } else if (match == MESSAGES_THREAD) {
                     String threadId = segments.get(3);
                     cursor = getThread(accountUuid, dbProjection, threadId, sortOrder);
@@ -286,7 +317,7 @@ public class EmailProvider extends ContentProvider {
     }
 
     protected Cursor getMessages(String accountUuid, final String[] projection, final String selection,
-            final String[] selectionArgs, final String sortOrder) {
+            final String[] selectionArgs, final String sortOrder, final Page page) {
 
         Account account = getAccount(accountUuid);
         LockableDatabase database = getDatabase(account);
@@ -305,6 +336,12 @@ public class EmailProvider extends ContentProvider {
                                 InternalMessageColumns.DELETED + " = 0 AND " + InternalMessageColumns.EMPTY + " = 0";
                     }
 
+                    String[] whereArgs = selectionArgs;
+                    if (page != null && page.hasKey()) {
+                        where += " AND " + page.getKeyCondition("");
+                        whereArgs = page.appendKeyArgs(selectionArgs);
+                    }
+
                     final Cursor cursor;
                     if (Utility.arrayContainsAny(projection, (Object[]) FOLDERS_COLUMNS)) {
                         StringBuilder query = new StringBuilder();
@@ -334,10 +371,15 @@ public class EmailProvider extends ContentProvider {
                         query.append(SqlQueryBuilder.addPrefixToSelection(FIXUP_MESSAGES_COLUMNS, "m.", where));
                         query.append(" ORDER BY ");
                         query.append(SqlQueryBuilder.addPrefixToSelection(FIXUP_MESSAGES_COLUMNS, "m.", sortOrder));
+                        if (page != null) {
+                            query.append(" LIMIT ");
+                            query.append(page.size);
+                        }
 
-                        cursor = db.rawQuery(query.toString(), selectionArgs);
+                        cursor = db.rawQuery(query.toString(), whereArgs);
                     } else {
-                        cursor = db.query(MESSAGES_TABLE, projection, where, selectionArgs, null, null, sortOrder);
+                        String limit = (page != null) ? Integer.toString(page.size) : null;
+                        cursor = db.query(MESSAGES_TABLE, projection, where, whereArgs, null, null, sortOrder, limit);
                     }
 
                     return cursor;
@@ -351,7 +393,7 @@ public class EmailProvider extends ContentProvider {
     }
 
     protected Cursor getThreadedMessages(String accountUuid, final String[] projection, final String selection,
-            final String[] selectionArgs, final String sortOrder) {
+            final String[] selectionArgs, final String sortOrder, final Page page) {
 
         Account account = getAccount(accountUuid);
         LockableDatabase database = getDatabase(account);
@@ -362,6 +404,11 @@ public class EmailProvider extends ContentProvider {
                 public Cursor doDbWork(SQLiteDatabase db) throws WrappedException,
                         UnavailableStorageException {
 
+                    if (selectsByFolderOnly(selection)) {
+                        return getThreadedMessagesFromSummary(db, projection, selection, selectionArgs, sortOrder,
+                                page);
+                    }
+
                     StringBuilder query = new StringBuilder();
 
                     query.append("SELECT ");
@@ -407,6 +454,14 @@ public class EmailProvider extends ContentProvider {
                                 "ON (m." + MessageColumns.FOLDER_ID + " = f." + FolderColumns.ID + ") ");
                     }
 
+                    String[] queryArgs = selectionArgs;
+                    if (page != null && page.hasKey()) {
+                        // The date of a thread is the date of its newest message, i.e. the one we join here
+                        query.append(" WHERE ");
+                        query.append(page.getKeyCondition("m."));
+                        queryArgs = page.appendKeyArgs(selectionArgs);
+                    }
+
                     query.append(" GROUP BY " + ThreadColumns.ROOT);
 
                     if (!TextUtils.isEmpty(sortOrder)) {
@@ -415,7 +470,12 @@ public class EmailProvider extends ContentProvider {
                                 FIXUP_AGGREGATED_MESSAGES_COLUMNS, "a.", sortOrder));
                     }
 
-                    return db.rawQuery(query.toString(), selectionArgs);
+                    if (page != null) {
+                        query.append(" LIMIT ");
+                        query.append(page.size);
+                    }
+
+                    return db.rawQuery(query.toString(), queryArgs);
                 }
             });
         } catch (UnavailableStorageException e) {
@@ -425,6 +485,140 @@ public class EmailProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Tables with one row per folder (like {@code folders}) or per thread and folder (like {@code thread_summary}) can
+     * only stand in for the messages if the selection doesn't look at anything but the folder.
+     */
+    static boolean selectsByFolderOnly(String selection) {
+        if (TextUtils.isEmpty(selection)) {
+            return true;
+        }
+
+        if (selection.indexOf('\'') != -1 || selection.indexOf('"') != -1) {
+            return false;
+        }
+
+        Matcher matcher = SELECTION_WORD_PATTERN.matcher(selection);
+        while (matcher.find()) {
+            if (!FOLDER_SELECTION_WORDS.contains(matcher.group())) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Reads the threaded message list from the {@code thread_summary} table instead of aggregating all messages of
+     * the selected threads. Only the newest message of every thread is read from the {@code messages} table.
+     * <p>
+     * Threads are listed if they have a message in one of the selected folders. Like with the aggregation query used
+     * for other selections, a thread is dated, sorted and paged by its newest message in the selected folders, and
+     * that message is the one listed. So a reply in another folder, e.g. Sent, doesn't move the thread up in the
+     * Inbox, no matter which query serves the list. Different from the aggregation query, the counts and flags of a
+     * thread include its messages in other folders.
+     * </p>
+     */
+    private Cursor getThreadedMessagesFromSummary(SQLiteDatabase db, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder, Page page) {
+
+        String where = TextUtils.isEmpty(selection) ? "1" : selection;
+
+        StringBuilder query = new StringBuilder();
+
+        query.append("SELECT ");
+        boolean first = true;
+        for (String columnName : projection) {
+            if (!first) {
+                query.append(",");
+            } else {
+                first = false;
+            }
+
+            if (MessageColumns.ID.equals(columnName)) {
+                query.append("m." + MessageColumns.ID + " AS " + MessageColumns.ID);
+            } else if (MessageColumns.FOLDER_ID.equals(columnName)) {
+                query.append("m." + MessageColumns.FOLDER_ID + " AS " + MessageColumns.FOLDER_ID);
+            } else if (ThreadColumns.ROOT.equals(columnName)) {
+                query.append("t." + ThreadColumns.ROOT + " AS " + ThreadColumns.ROOT);
+            } else if (SpecialColumns.THREAD_COUNT.equals(columnName) ||
+                    THREAD_AGGREGATION_FUNCS.containsKey(columnName)) {
+                query.append("a.");
+                query.append(columnName);
+                query.append(" AS ");
+                query.append(columnName);
+            } else {
+                query.append(columnName);
+            }
+        }
+
+        // Counts and flags cover the messages of the thread in all folders. The date of the thread is the date of its
+        // newest message in one of the selected folders, because that's the message we list and page by.
+        query.append(" FROM (" +
+                "SELECT sel.thread_root AS thread_root, " +
+                "SUM(s.message_count) AS " + SpecialColumns.THREAD_COUNT + ", " +
+                "MAX(sel.date) AS " + MessageColumns.DATE + ", " +
+                "MAX(sel.internal_date) AS " + MessageColumns.INTERNAL_DATE + ", " +
+                "SUM(s.attachment_count) AS " + MessageColumns.ATTACHMENT_COUNT + ", " +
+                "SUM(s.unread_count) = 0 AS " + MessageColumns.READ + ", " +
+                "SUM(s.flagged_count) > 0 AS " + MessageColumns.FLAGGED + ", " +
+                "SUM(s.unanswered_count) = 0 AS " + MessageColumns.ANSWERED + ", " +
+                "SUM(s.unforwarded_count) = 0 AS " + MessageColumns.FORWARDED + " " +
+                "FROM (" +
+                "SELECT s.root AS thread_root, MAX(s.date) AS date, MAX(s.internal_date) AS internal_date " +
+                "FROM " + THREAD_SUMMARY_TABLE + " s " +
+                "JOIN " + FOLDERS_TABLE + " f ON (f." + FolderColumns.ID + " = s.folder_id) " +
+                "WHERE (");
+        query.append(where);
+        query.append(") GROUP BY s.root) sel " +
+                "JOIN " + THREAD_SUMMARY_TABLE + " s ON (s.root = sel.thread_root) " +
+                "GROUP BY sel.thread_root) a ");
+
+        // The newest message of the thread in one of the selected folders
+        query.append("JOIN " + THREAD_SUMMARY_TABLE + " s " +
+                "ON (s.root = a.thread_root AND s.date = a." + MessageColumns.DATE + ") " +
+                "JOIN " + FOLDERS_TABLE + " f ON (f." + FolderColumns.ID + " = s.folder_id) " +
+                "JOIN " + MESSAGES_TABLE + " m ON (m." + MessageColumns.ID + " = s.newest_message_id) " +
+                "JOIN " + THREADS_TABLE + " t ON (t." + ThreadColumns.MESSAGE_ID + " = m." + MessageColumns.ID + ") ");
+
+        query.append("WHERE (");
+        query.append(SqlQueryBuilder.addPrefixToSelection(THREAD_SUMMARY_FOLDER_COLUMNS, "s.", where));
+        query.append(")");
+
+        String[] queryArgs = concat(selectionArgs, selectionArgs);
+        if (page != null && page.hasKey()) {
+            query.append(" AND ");
+            query.append(page.getKeyCondition("m."));
+            queryArgs = page.appendKeyArgs(queryArgs);
+        }
+
+        query.append(" GROUP BY a.thread_root");
+
+        if (!TextUtils.isEmpty(sortOrder)) {
+            query.append(" ORDER BY ");
+            query.append(SqlQueryBuilder.addPrefixToSelection(
+                    FIXUP_AGGREGATED_MESSAGES_COLUMNS, "a.", sortOrder));
+        }
+
+        if (page != null) {
+            query.append(" LIMIT ");
+            query.append(page.size);
+        }
+
+        return db.rawQuery(query.toString(), queryArgs);
+    }
+
+    private static String[] concat(String[] first, String[] second) {
+        if (first == null || second == null) {
+            return (first == null) ? second : first;
+        }
+
+        String[] result = new String[first.length + second.length];
+        System.arraycopy(first, 0, result, 0, first.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
     private void createThreadedSubQuery(String[] projection, String selection, StringBuilder query) {
         query.append("SELECT t." + ThreadColumns.ROOT + " AS thread_root");
         for (String columnName : projection) {
@@ -540,6 +734,9 @@ public class EmailProvider extends ContentProvider {
         // Use default projection if none was given
         String[] sourceProjection = (columns == null) ? STATS_DEFAULT_PROJECTION : columns;
 
+        // The folders table keeps per-folder counts that are maintained by triggers on the messages table
+        boolean useFolderCounts = selectsByFolderOnly(selection);
+
         // Create SQL query string
         final StringBuilder sql = new StringBuilder();
         sql.append("SELECT ");
@@ -555,27 +752,52 @@ public class EmailProvider extends ContentProvider {
             }
 
             if (StatsColumns.UNREAD_COUNT.equals(columnName)) {
-                sql.append("SUM(" + MessageColumns.READ + "=0) AS " + StatsColumns.UNREAD_COUNT);
+                if (useFolderCounts) {
+                    sql.append("SUM(" + FolderColumns.UNREAD_COUNT + ") AS " + StatsColumns.UNREAD_COUNT);
+                } else {
+                    sql.append("SUM(" + MessageColumns.READ + "=0) AS " + StatsColumns.UNREAD_COUNT);
+                }
             } else if (StatsColumns.FLAGGED_COUNT.equals(columnName)) {
-                sql.append("SUM(" + MessageColumns.FLAGGED + ") AS " + StatsColumns.FLAGGED_COUNT);
+                if (useFolderCounts) {
+                    sql.append("SUM(" + FolderColumns.FLAGGED_COUNT + ") AS " + StatsColumns.FLAGGED_COUNT);
+                } else {
+                    sql.append("SUM(" + MessageColumns.FLAGGED + ") AS " + StatsColumns.FLAGGED_COUNT);
+                }
             } else {
                 throw new IllegalArgumentException("Column name not allowed: " + columnName);
             }
         }
 
-        // Table selection
-        sql.append(" FROM messages");
+        if (useFolderCounts) {
+            // Expose the folder ID under the name the selection uses for messages
+            sql.append(" FROM (SELECT " +
+                    FolderColumns.ID + " AS " + MessageColumns.FOLDER_ID + ", " +
+                    FolderColumns.INTEGRATE + ", " +
+                    FolderColumns.DISPLAY_CLASS + ", " +
+                    FolderColumns.UNREAD_COUNT + ", " +
+                    FolderColumns.FLAGGED_COUNT + " " +
+                    "FROM " + FOLDERS_TABLE + ")");
+
+            if (!TextUtils.isEmpty(selection)) {
+                sql.append(" WHERE (");
+                sql.append(selection);
+                sql.append(")");
+            }
+        } else {
+            // Table selection
+            sql.append(" FROM messages");
 
-        if (containsAny(selection, FOLDERS_COLUMNS)) {
-            sql.append(" JOIN folders ON (folders.id = messages.folder_id)");
-        }
+            if (containsAny(selection, FOLDERS_COLUMNS)) {
+                sql.append(" JOIN folders ON (folders.id = messages.folder_id)");
+            }
 
-        // WHERE clause
-        sql.append(" WHERE (deleted = 0 AND empty = 0)");
-        if (!TextUtils.isEmpty(selection)) {
-            sql.append(" AND (");
-            sql.append(selection);
-            sql.append(")");
+            // WHERE clause
+            sql.append(" WHERE (deleted = 0 AND empty = 0)");
+            if (!TextUtils.isEmpty(selection)) {
+                sql.append(" AND (");
+                sql.append(selection);
+                sql.append(")");
+            }
         }
 
         // Query the database and return the result cursor
@@ -620,6 +842,79 @@ public class EmailProvider extends ContentProvider {
         return localStore.getDatabase();
     }
 
+    /**
+     * The page requested via {@link #QUERY_PARAMETER_PAGE_SIZE}, {@link #QUERY_PARAMETER_BEFORE_DATE} and
+     * {@link #QUERY_PARAMETER_BEFORE_ID}.
+     */
+    static class Page {
+        final int size;
+        final String beforeDate;
+        final String beforeId;
+
+
+        Page(int size, String beforeDate, String beforeId) {
+            this.size = size;
+            this.beforeDate = beforeDate;
+            this.beforeId = beforeId;
+        }
+
+        /**
+         * @return {@code null} if the URI doesn't ask for a page.
+         */
+        static Page fromUri(Uri uri) {
+            String pageSize = uri.getQueryParameter(QUERY_PARAMETER_PAGE_SIZE);
+            if (pageSize == null) {
+                return null;
+            }
+
+            String beforeDate = uri.getQueryParameter(QUERY_PARAMETER_BEFORE_DATE);
+            String beforeId = uri.getQueryParameter(QUERY_PARAMETER_BEFORE_ID);
+            try {
+                int size = Integer.parseInt(pageSize);
+                if (size < 1) {
+                    throw new IllegalArgumentException("Invalid page size: " + pageSize);
+                }
+                if ((beforeDate == null) != (beforeId == null)) {
+                    throw new IllegalArgumentException("Page key needs both date and ID");
+                }
+                if (beforeDate != null) {
+                    Long.parseLong(beforeDate);
+                    Long.parseLong(beforeId);
+                }
+
+                return new Page(size, beforeDate, beforeId);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid page parameters: " + uri, e);
+            }
+        }
+
+        boolean hasKey() {
+            return beforeDate != null;
+        }
+
+        /**
+         * Selects the rows that come after the page key when sorting by {@code date DESC, id DESC}. SQLite can
+         * answer this from the {@code msg_folder_id_deleted_sent_date} index instead of skipping over the rows of
+         * all previous pages.
+         */
+        String getKeyCondition(String prefix) {
+            return "(" + prefix + MessageColumns.DATE + " < ? OR (" +
+                    prefix + MessageColumns.DATE + " = ? AND " + prefix + MessageColumns.ID + " < ?))";
+        }
+
+        String[] appendKeyArgs(String[] selectionArgs) {
+            int length = (selectionArgs != null) ? selectionArgs.length : 0;
+            String[] args = new String[length + 3];
+            if (length > 0) {
+                System.arraycopy(selectionArgs, 0, args, 0, length);
+            }
+            args[length] = beforeDate;
+            args[length + 1] = beforeDate;
+            args[length + 2] = beforeId;
+            return args;
+        }
+    }
+
     /**
      * This class is needed to make {@link android.support.v4.widget.CursorAdapter} work with our database schema.
      *
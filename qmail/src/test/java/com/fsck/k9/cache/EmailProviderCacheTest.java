@@ -11,8 +11,17 @@ import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowLooper;
 
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.support.v4.content.LocalBroadcastManager;
+
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.UUID;
 
 import static org.junit.Assert.assertEquals;
@@ -139,4 +148,34 @@ public class EmailProviderCacheTest {
         assertFalse(result);
     }
 
+    @Test
+    public void getValueForMessage_returnsValuesForDifferentColumns() {
+        cache.setValueForMessages(Collections.singletonList(1L), "read", "1");
+        cache.setValueForMessages(Collections.singletonList(1L), "flagged", "0");
+        cache.removeValueForMessages(Collections.singletonList(1L), "read");
+
+        assertNull(cache.getValueForMessage(1L, "read"));
+        assertEquals("0", cache.getValueForMessage(1L, "flagged"));
+    }
+
+    @Test
+    public void setValueForMessages_withManyUpdates_shouldBroadcastOnce() {
+        final List<Intent> broadcasts = new ArrayList<>();
+        BroadcastReceiver receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                broadcasts.add(intent);
+            }
+        };
+        LocalBroadcastManager broadcastManager = LocalBroadcastManager.getInstance(RuntimeEnvironment.application);
+        broadcastManager.registerReceiver(receiver, new IntentFilter(EmailProviderCache.ACTION_CACHE_UPDATED));
+
+        for (long messageId = 1; messageId <= 5000; messageId++) {
+            cache.setValueForMessages(Collections.singletonList(messageId), "read", "1");
+        }
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+
+        broadcastManager.unregisterReceiver(receiver);
+        assertEquals(1, broadcasts.size());
+    }
 }
@@ -0,0 +1,58 @@
+package com.fsck.k9.cache;
+
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+
+public class StripedLongMapTest {
+
+    @Test
+    public void put_beyondMaxEntries_shouldEvictLowestKey() {
+        StripedLongMap<String> map = new StripedLongMap<>(1, 2);
+
+        map.put(3L, "three");
+        map.put(1L, "one");
+        map.put(2L, "two");
+
+        assertEquals(2, map.size());
+        assertNull(map.get(1L));
+        assertEquals("two", map.get(2L));
+        assertEquals("three", map.get(3L));
+    }
+
+    @Test
+    public void put_withExistingKey_shouldNotEvict() {
+        StripedLongMap<String> map = new StripedLongMap<>(1, 2);
+        map.put(1L, "one");
+        map.put(2L, "two");
+
+        map.put(1L, "uno");
+
+        assertEquals("uno", map.get(1L));
+        assertEquals("two", map.get(2L));
+    }
+
+    @Test
+    public void update_returningNull_shouldRemoveEntry() {
+        StripedLongMap<String> map = new StripedLongMap<>(4, 100);
+        map.put(42L, "value");
+
+        map.update(42L, new StripedLongMap.Updater<String>() {
+            @Override
+            public String update(long key, String value) {
+                return null;
+            }
+        });
+
+        assertNull(map.get(42L));
+        assertEquals(0, map.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_withStripeCountNotPowerOfTwo_shouldThrow() {
+        new StripedLongMap<String>(3, 100);
+    }
+}
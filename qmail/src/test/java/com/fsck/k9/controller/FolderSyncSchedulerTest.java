@@ -0,0 +1,152 @@
+package com.fsck.k9.controller;
+
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class FolderSyncSchedulerTest {
+    private static final String ACCOUNT_1 = "account1";
+    private static final String ACCOUNT_2 = "account2";
+
+
+    private QueueExecutor executor;
+    private FolderSyncScheduler scheduler;
+    private List<String> log;
+
+
+    @Before
+    public void setUp() throws Exception {
+        executor = new QueueExecutor();
+        scheduler = new FolderSyncScheduler(executor);
+        log = new ArrayList<>();
+    }
+
+    @Test
+    public void scheduleSync_withDifferentAccounts_shouldRunConcurrently() throws Exception {
+        scheduler.scheduleSync(ACCOUNT_1, "INBOX", 1, logging("1:INBOX"));
+        scheduler.scheduleSync(ACCOUNT_2, "INBOX", 1, logging("2:INBOX"));
+
+        assertEquals(2, executor.size());
+    }
+
+    @Test
+    public void scheduleSync_shouldRespectMaxConcurrentSyncsOfAccount() throws Exception {
+        scheduler.scheduleSync(ACCOUNT_1, "INBOX", 2, logging("INBOX"));
+        scheduler.scheduleSync(ACCOUNT_1, "Sent", 2, logging("Sent"));
+        scheduler.scheduleSync(ACCOUNT_1, "Drafts", 2, logging("Drafts"));
+
+        assertEquals(2, executor.size());
+
+        executor.runNext();
+
+        assertEquals(2, executor.size());
+        assertEquals(asList("INBOX"), log);
+    }
+
+    @Test
+    public void scheduleSync_withSameFolder_shouldNotRunConcurrently() throws Exception {
+        scheduler.scheduleSync(ACCOUNT_1, "INBOX", 3, logging("first"));
+        scheduler.scheduleSync(ACCOUNT_1, "INBOX", 3, logging("second"));
+
+        assertEquals(1, executor.size());
+
+        executor.runAll();
+
+        assertEquals(asList("first", "second"), log);
+    }
+
+    @Test
+    public void runAfterSyncs_shouldWaitForEarlierSyncsAndBlockLaterOnes() throws Exception {
+        scheduler.scheduleSync(ACCOUNT_1, "INBOX", 3, logging("INBOX"));
+        scheduler.scheduleSync(ACCOUNT_1, "Sent", 3, logging("Sent"));
+        scheduler.runAfterSyncs(ACCOUNT_1, logging("barrier"));
+        scheduler.scheduleSync(ACCOUNT_1, "Drafts", 3, logging("Drafts"));
+
+        assertEquals(2, executor.size());
+
+        executor.runAll();
+
+        assertEquals(asList("INBOX", "Sent", "barrier", "Drafts"), log);
+    }
+
+    @Test
+    public void runAfterAllSyncs_shouldRunAfterSyncsOfAllAccounts() throws Exception {
+        scheduler.scheduleSync(ACCOUNT_1, "INBOX", 1, logging("1:INBOX"));
+        scheduler.scheduleSync(ACCOUNT_2, "INBOX", 1, logging("2:INBOX"));
+        scheduler.runAfterAllSyncs(logging("finished"));
+
+        executor.runAll();
+
+        assertEquals(3, log.size());
+        assertEquals("finished", log.get(2));
+    }
+
+    @Test
+    public void runAfterAllSyncs_withoutSyncs_shouldRunImmediately() throws Exception {
+        scheduler.runAfterAllSyncs(logging("finished"));
+
+        executor.runAll();
+
+        assertEquals(asList("finished"), log);
+    }
+
+    @Test
+    public void scheduleSync_withFailingSync_shouldContinueWithNextTask() throws Exception {
+        scheduler.scheduleSync(ACCOUNT_1, "INBOX", 1, new Runnable() {
+            @Override
+            public void run() {
+                throw new RuntimeException("sync failed");
+            }
+        });
+        scheduler.scheduleSync(ACCOUNT_1, "Sent", 1, logging("Sent"));
+
+        executor.runAll();
+
+        assertTrue(log.contains("Sent"));
+    }
+
+    private Runnable logging(final String entry) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                log.add(entry);
+            }
+        };
+    }
+
+
+    private static class QueueExecutor implements Executor {
+        private final LinkedList<Runnable> runnables = new LinkedList<>();
+
+        @Override
+        public void execute(@NonNull Runnable runnable) {
+            runnables.add(runnable);
+        }
+
+        int size() {
+            return runnables.size();
+        }
+
+        void runNext() {
+            runnables.removeFirst().run();
+        }
+
+        void runAll() {
+            while (!runnables.isEmpty()) {
+                runNext();
+            }
+        }
+    }
+}
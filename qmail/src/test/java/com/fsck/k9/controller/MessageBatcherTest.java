@@ -0,0 +1,94 @@
+package com.fsck.k9.controller;
+
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fsck.k9.mail.Message;
+import org.junit.Before;
+import org.junit.Test;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+
+public class MessageBatcherTest {
+    private List<List<Message>> chunks;
+    private MessageBatcher.Callback<Message> callback;
+
+
+    @Before
+    public void setUp() throws Exception {
+        chunks = new ArrayList<>();
+        callback = new MessageBatcher.Callback<Message>() {
+            @Override
+            public void commit(List<Message> messages) {
+                chunks.add(messages);
+            }
+        };
+    }
+
+    @Test
+    public void add_shouldCommitWhenMaxMessagesIsReached() throws Exception {
+        MessageBatcher<Message> batcher = new MessageBatcher<>(2, Long.MAX_VALUE, callback);
+        Message one = createMessage(10);
+        Message two = createMessage(10);
+        Message three = createMessage(10);
+
+        batcher.add(one);
+        batcher.add(two);
+        batcher.add(three);
+
+        assertEquals(1, chunks.size());
+        assertEquals(asList(one, two), chunks.get(0));
+    }
+
+    @Test
+    public void add_shouldCommitWhenMaxBytesIsReached() throws Exception {
+        MessageBatcher<Message> batcher = new MessageBatcher<>(100, 1000, callback);
+        Message small = createMessage(100);
+        Message large = createMessage(900);
+
+        batcher.add(small);
+        assertTrue(chunks.isEmpty());
+
+        batcher.add(large);
+
+        assertEquals(1, chunks.size());
+        assertEquals(asList(small, large), chunks.get(0));
+    }
+
+    @Test
+    public void flush_shouldCommitRemainingMessages() throws Exception {
+        MessageBatcher<Message> batcher = new MessageBatcher<>(2, Long.MAX_VALUE, callback);
+        Message one = createMessage(10);
+        Message two = createMessage(10);
+        Message three = createMessage(10);
+        batcher.add(one);
+        batcher.add(two);
+        batcher.add(three);
+
+        batcher.flush();
+
+        assertEquals(2, chunks.size());
+        assertEquals(asList(three), chunks.get(1));
+    }
+
+    @Test
+    public void flush_withoutMessages_shouldNotCommit() throws Exception {
+        MessageBatcher<Message> batcher = new MessageBatcher<>(2, Long.MAX_VALUE, callback);
+
+        batcher.flush();
+
+        assertTrue(chunks.isEmpty());
+    }
+
+    private Message createMessage(long size) {
+        Message message = mock(Message.class);
+        when(message.getSize()).thenReturn(size);
+        return message;
+    }
+}
@@ -3,8 +3,10 @@ package com.fsck.k9.controller;
 
 import java.lang.reflect.Field;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -22,6 +24,7 @@ import com.fsck.k9.mail.CertificateValidationException;
 import com.fsck.k9.mail.FetchProfile;
 import com.fsck.k9.mail.Flag;
 import com.fsck.k9.mail.Folder;
+import com.fsck.k9.mail.FolderChanges;
 import com.fsck.k9.mail.Message;
 import com.fsck.k9.mail.MessageRetrievalListener;
 import com.fsck.k9.mail.MessagingException;
@@ -29,6 +32,7 @@ import com.fsck.k9.mail.Store;
 import com.fsck.k9.mail.Transport;
 import com.fsck.k9.mail.TransportProvider;
 import com.fsck.k9.mailstore.LocalFolder;
+import com.fsck.k9.mailstore.LocalFolder.MoreMessages;
 import com.fsck.k9.mailstore.LocalMessage;
 import com.fsck.k9.mailstore.LocalStore;
 import com.fsck.k9.mailstore.UnavailableStorageException;
@@ -59,6 +63,7 @@ import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.atLeast;
 import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
@@ -546,6 +551,18 @@ public class MessagingControllerTest {
         verify(transport).sendMessage(localMessageToSend1);
     }
 
+    @Test
+    public void sendPendingMessagesSynchronous_shouldSendMessagesWithinOneTransportSession() throws MessagingException {
+        setupAccountWithMessageToSend();
+
+        controller.sendPendingMessagesSynchronous(account);
+
+        InOrder ordering = inOrder(transport);
+        ordering.verify(transport).beginSession();
+        ordering.verify(transport).sendMessage(localMessageToSend1);
+        ordering.verify(transport).endSession();
+    }
+
     @Test
     public void sendPendingMessagesSynchronous_shouldSetAndRemoveSendInProgressFlag() throws MessagingException {
         setupAccountWithMessageToSend();
@@ -759,6 +776,83 @@ public class MessagingControllerTest {
         assertEquals(localMessage, messageListCaptor.getValue().get(0));
     }
 
+    @Test
+    public void synchronizeMailboxSynchronous_withFolderChanges_shouldOnlyDeleteRemovedMessages() throws Exception {
+        messageCountInRemoteFolder(2);
+        Map<String, Long> localUids = new HashMap<>();
+        localUids.put(MESSAGE_UID1, 0L);
+        localUids.put("unchanged", 0L);
+        when(account.syncRemoteDeletions()).thenReturn(true);
+        when(localFolder.getSyncState()).thenReturn("syncState");
+        when(localFolder.getMoreMessages()).thenReturn(MoreMessages.FALSE);
+        when(localFolder.getAllMessagesAndEffectiveDates()).thenReturn(localUids);
+        when(remoteFolder.getChangesSince("syncState")).thenReturn(new FolderChanges<>(
+                Collections.<Message>emptyList(), Collections.singletonList(MESSAGE_UID1)));
+
+        controller.synchronizeMailboxSynchronous(account, FOLDER_ID, FOLDER_NAME, listener, remoteFolder);
+
+        verify(localFolder).getMessagesByUids(Collections.singletonList(MESSAGE_UID1));
+        verify(remoteFolder, never()).getMessages(anyInt(), anyInt(), any(Date.class),
+                any(MessageRetrievalListener.class));
+    }
+
+    @Test
+    public void synchronizeMailboxSynchronous_withFolderChangesAndChangedSyncWindow_shouldListAllMessages()
+            throws Exception {
+        messageCountInRemoteFolder(1);
+        hasUnsyncedRemoteMessage();
+        when(localFolder.getSyncState()).thenReturn("syncState");
+        when(localFolder.getMoreMessages()).thenReturn(MoreMessages.UNKNOWN);
+        when(remoteFolder.getChangesSince("syncState")).thenReturn(new FolderChanges<>(
+                Collections.<Message>emptyList(), Collections.<String>emptyList()));
+
+        controller.synchronizeMailboxSynchronous(account, FOLDER_ID, FOLDER_NAME, listener, remoteFolder);
+
+        verify(remoteFolder).getMessages(anyInt(), anyInt(), any(Date.class), any(MessageRetrievalListener.class));
+    }
+
+    @Test
+    public void synchronizeMailboxSynchronous_withFolderChanges_shouldIgnoreChangedMessagesOutsideSyncWindow()
+            throws Exception {
+        messageCountInRemoteFolder(3);
+        Date dateOfEarliestPoll = new Date(1000L);
+        when(account.getEarliestPollDate()).thenReturn(dateOfEarliestPoll);
+        when(localFolder.getSyncState()).thenReturn("syncState");
+        when(localFolder.getMoreMessages()).thenReturn(MoreMessages.FALSE);
+        when(localFolder.getAllMessagesAndEffectiveDates()).thenReturn(Collections.singletonMap("oldLocal", 0L));
+        Message oldLocalMessage = changedRemoteMessage("oldLocal", true);
+        Message oldNewMessage = changedRemoteMessage("oldNew", true);
+        Message recentMessage = changedRemoteMessage("recent", false);
+        when(remoteFolder.getChangesSince("syncState")).thenReturn(new FolderChanges<>(
+                Arrays.asList(oldLocalMessage, oldNewMessage, recentMessage),
+                Collections.<String>emptyList()));
+
+        controller.synchronizeMailboxSynchronous(account, FOLDER_ID, FOLDER_NAME, listener, remoteFolder);
+
+        verify(localFolder, never()).getMessage("oldLocal");
+        verify(localFolder, never()).getMessage("oldNew");
+        verify(localFolder).getMessage("recent");
+    }
+
+    @Test
+    public void synchronizeMailboxSynchronous_withFolderChangesAndRemovedMessage_shouldCheckForMoreMessages()
+            throws Exception {
+        messageCountInRemoteFolder(30);
+        when(localFolder.getVisibleLimit()).thenReturn(25);
+        when(account.syncRemoteDeletions()).thenReturn(true);
+        when(localFolder.getSyncState()).thenReturn("syncState");
+        when(localFolder.getMoreMessages()).thenReturn(MoreMessages.FALSE);
+        when(localFolder.getAllMessagesAndEffectiveDates()).thenReturn(Collections.singletonMap(MESSAGE_UID1, 0L));
+        when(remoteFolder.getChangesSince("syncState")).thenReturn(new FolderChanges<>(
+                Collections.<Message>emptyList(), Collections.singletonList(MESSAGE_UID1)));
+        when(remoteFolder.areMoreMessagesAvailable(eq(6), any(Date.class))).thenReturn(true);
+
+        controller.synchronizeMailboxSynchronous(account, FOLDER_ID, FOLDER_NAME, listener, remoteFolder);
+
+        verify(localFolder).setMoreMessages(MoreMessages.TRUE);
+        verify(localFolder, never()).setMoreMessages(MoreMessages.FALSE);
+    }
+
     @Test
     public void synchronizeMailboxSynchronous_withAccountSetNotToSyncRemoteDeletions_shouldNotDeleteLocalCopiesOfMessages()
             throws Exception {
@@ -840,6 +934,52 @@ public class MessagingControllerTest {
         assertEquals(FetchProfile.Item.BODY_SANE, fetchProfileCaptor.getAllValues().get(3).get(0));
     }
 
+    @Test
+    public void synchronizeMailboxSynchronous_withBadMessageInChunkOfSmallMessages_shouldStoreOtherMessages()
+            throws Exception {
+        Message message1 = buildSmallNewMessage("1");
+        Message badMessage = buildSmallNewMessage("2");
+        Message message3 = buildSmallNewMessage("3");
+        List<Message> remoteMessages = Arrays.asList(message1, badMessage, message3);
+        messageCountInRemoteFolder(3);
+        when(remoteFolder.getMessages(anyInt(), anyInt(), any(Date.class), any(MessageRetrievalListener.class)))
+                .thenReturn(remoteMessages);
+        respondToFetchWithRequestedMessages();
+        when(localFolder.storeSmallMessages(any(List.class))).thenThrow(new MessagingException("chunk"));
+        doReturn(Collections.singletonList(mock(LocalMessage.class)))
+                .when(localFolder).storeSmallMessages(Collections.singletonList(message1));
+        doReturn(Collections.singletonList(mock(LocalMessage.class)))
+                .when(localFolder).storeSmallMessages(Collections.singletonList(message3));
+        controller.addListener(listener);
+
+        controller.synchronizeMailboxSynchronous(account, FOLDER_ID, FOLDER_NAME, listener, remoteFolder);
+
+        verify(localFolder).storeSmallMessages(Collections.singletonList(message1));
+        verify(localFolder).storeSmallMessages(Collections.singletonList(badMessage));
+        verify(localFolder).storeSmallMessages(Collections.singletonList(message3));
+        verify(listener, atLeastOnce()).synchronizeMailboxProgress(eq(account), anyString(), anyString(), eq(3),
+                eq(3));
+    }
+
+    @Test
+    public void synchronizeMailboxSynchronous_withFetchFailingAfterSomeSmallMessages_shouldStoreDownloadedMessages()
+            throws Exception {
+        Message message1 = buildSmallNewMessage("1");
+        Message message2 = buildSmallNewMessage("2");
+        Message message3 = buildSmallNewMessage("3");
+        List<Message> remoteMessages = Arrays.asList(message1, message2, message3);
+        messageCountInRemoteFolder(3);
+        when(remoteFolder.getMessages(anyInt(), anyInt(), any(Date.class), any(MessageRetrievalListener.class)))
+                .thenReturn(remoteMessages);
+        respondToFetchWithRequestedMessagesAndFailBodyFetchAfter(2);
+
+        controller.synchronizeMailboxSynchronous(account, FOLDER_ID, FOLDER_NAME, listener, remoteFolder);
+
+        verify(localFolder).storeSmallMessages(messageListCaptor.capture());
+        assertEquals(2, messageListCaptor.getValue().size());
+        verify(listener).synchronizeMailboxFailed(eq(account), eq(FOLDER_ID), eq(FOLDER_NAME), anyString());
+    }
+
     private void setupAccountWithMessageToSend() throws MessagingException {
         when(account.getOutboxFolderId()).thenReturn(FOLDER_ID);
         when(account.hasSentFolder()).thenReturn(true);
@@ -873,6 +1013,50 @@ public class MessagingControllerTest {
         }).when(remoteFolder).fetch(any(List.class), any(FetchProfile.class), any(MessageRetrievalListener.class));
     }
 
+    private void respondToFetchWithRequestedMessages() throws MessagingException {
+        doAnswer(new Answer() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                List<Message> messages = (List<Message>) invocation.getArguments()[0];
+                MessageRetrievalListener listener = (MessageRetrievalListener) invocation.getArguments()[2];
+                if (listener != null) {
+                    for (int i = 0, size = messages.size(); i < size; i++) {
+                        listener.messageFinished(messages.get(i), i, size);
+                    }
+                }
+                return null;
+            }
+        }).when(remoteFolder).fetch(any(List.class), any(FetchProfile.class), any(MessageRetrievalListener.class));
+    }
+
+    private void respondToFetchWithRequestedMessagesAndFailBodyFetchAfter(final int messageCount)
+            throws MessagingException {
+        doAnswer(new Answer() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                List<Message> messages = (List<Message>) invocation.getArguments()[0];
+                FetchProfile fetchProfile = (FetchProfile) invocation.getArguments()[1];
+                MessageRetrievalListener listener = (MessageRetrievalListener) invocation.getArguments()[2];
+                boolean bodyFetch = fetchProfile.contains(FetchProfile.Item.BODY);
+                if (listener != null) {
+                    for (int i = 0, size = messages.size(); i < size; i++) {
+                        if (bodyFetch && i == messageCount) {
+                            throw new MessagingException("Connection lost");
+                        }
+                        listener.messageFinished(messages.get(i), i, size);
+                    }
+                }
+                return null;
+            }
+        }).when(remoteFolder).fetch(any(List.class), any(FetchProfile.class), any(MessageRetrievalListener.class));
+    }
+
+    private Message buildSmallNewMessage(String uid) {
+        Message message = buildSmallNewMessage();
+        when(message.getUid()).thenReturn(uid);
+        return message;
+    }
+
     private Message buildSmallNewMessage() {
         Message message = mock(Message.class);
         when(message.olderThan(any(Date.class))).thenReturn(false);
@@ -903,6 +1087,13 @@ public class MessagingControllerTest {
         return localMessage;
     }
 
+    private Message changedRemoteMessage(String uid, boolean olderThanEarliestPollDate) {
+        Message message = mock(Message.class);
+        when(message.getUid()).thenReturn(uid);
+        when(message.olderThan(any(Date.class))).thenReturn(olderThanEarliestPollDate);
+        return message;
+    }
+
     private void hasUnsyncedRemoteMessage() throws MessagingException {
         String messageUid = "UID";
         Message remoteMessage = mock(Message.class);
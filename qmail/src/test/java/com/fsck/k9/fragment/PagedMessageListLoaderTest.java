@@ -0,0 +1,315 @@
+package com.fsck.k9.fragment;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Loader;
+import android.content.Loader.OnLoadCompleteListener;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+
+import com.fsck.k9.K9RobolectricTestRunner;
+import com.fsck.k9.provider.EmailProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowContentResolver;
+import org.robolectric.shadows.ShadowLooper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+@RunWith(K9RobolectricTestRunner.class)
+public class PagedMessageListLoaderTest {
+    private static final String AUTHORITY = "com.fsck.k9.test.messages";
+    private static final Uri MESSAGES_URI = Uri.parse("content://" + AUTHORITY + "/messages");
+    private static final String[] PROJECTION = { "id", "date" };
+    private static final int ID_COLUMN = 0;
+    private static final int DATE_COLUMN = 1;
+
+
+    private MessagesProvider provider;
+    private PagedMessageListLoader loader;
+    private Cursor loadedCursor;
+
+
+    @Before
+    public void setUp() {
+        provider = new MessagesProvider();
+        ShadowContentResolver.registerProviderInternal(AUTHORITY, provider);
+    }
+
+    @After
+    public void tearDown() {
+        if (loader != null) {
+            loader.reset();
+        }
+    }
+
+    @Test
+    public void startLoading_shouldLoadFirstPage() {
+        provider.addMessages(1, PagedMessageListLoader.PAGE_SIZE + 50, 1000);
+
+        startLoading(1);
+
+        assertEquals(PagedMessageListLoader.PAGE_SIZE, loadedCursor.getCount());
+        assertTrue(loader.hasMorePages());
+        assertEquals(1, provider.queries.size());
+        assertNull(provider.queries.get(0).getQueryParameter(EmailProvider.QUERY_PARAMETER_BEFORE_DATE));
+    }
+
+    @Test
+    public void loadNextPage_shouldAppendNextPageAndOnlyQueryIt() {
+        provider.addMessages(1, 2 * PagedMessageListLoader.PAGE_SIZE + 50, 1000);
+        startLoading(1);
+        Cursor firstPage = ((PagedMessageListLoader.PagedCursor) loadedCursor).pages.get(0);
+
+        loadNextPage();
+
+        assertEquals(2 * PagedMessageListLoader.PAGE_SIZE, loadedCursor.getCount());
+        assertEquals(2, provider.queries.size());
+        assertSame(firstPage, ((PagedMessageListLoader.PagedCursor) loadedCursor).pages.get(0));
+        assertFalse(firstPage.isClosed());
+        assertEquals(2, loader.getPageCount());
+        assertTrue(loader.hasMorePages());
+        assertRowsInSortOrder(loadedCursor, provider.getSortedMessages(), 2 * PagedMessageListLoader.PAGE_SIZE);
+    }
+
+    @Test
+    public void loadNextPage_withPageKeyOfLastRow_shouldContinueAfterIt() {
+        provider.addMessages(1, 2 * PagedMessageListLoader.PAGE_SIZE, 1000);
+        startLoading(1);
+        loadedCursor.moveToLast();
+        long lastDate = loadedCursor.getLong(DATE_COLUMN);
+        long lastId = loadedCursor.getLong(ID_COLUMN);
+
+        loadNextPage();
+
+        Uri secondQuery = provider.queries.get(1);
+        assertEquals(Long.toString(lastDate),
+                secondQuery.getQueryParameter(EmailProvider.QUERY_PARAMETER_BEFORE_DATE));
+        assertEquals(Long.toString(lastId), secondQuery.getQueryParameter(EmailProvider.QUERY_PARAMETER_BEFORE_ID));
+    }
+
+    @Test
+    public void loadNextPage_withTiesOnDateAcrossPageBoundary_shouldNotSkipOrRepeatMessages() {
+        provider.addMessages(1, 2 * PagedMessageListLoader.PAGE_SIZE + 10, 1000);
+        // The rows around the end of the first page all have the same date
+        provider.makeDatesEqual(PagedMessageListLoader.PAGE_SIZE - 20, PagedMessageListLoader.PAGE_SIZE + 30);
+        startLoading(1);
+
+        loadNextPage();
+
+        assertEquals(2 * PagedMessageListLoader.PAGE_SIZE, loadedCursor.getCount());
+        assertRowsInSortOrder(loadedCursor, provider.getSortedMessages(), 2 * PagedMessageListLoader.PAGE_SIZE);
+    }
+
+    @Test
+    public void loadNextPage_withLastPage_shouldReportAllLoaded() {
+        provider.addMessages(1, PagedMessageListLoader.PAGE_SIZE + 50, 1000);
+        startLoading(1);
+        assertEquals(provider.getSortedMessages().get(PagedMessageListLoader.PAGE_SIZE - 1)[1],
+                loader.getLastLoadedDate());
+
+        loadNextPage();
+
+        assertEquals(PagedMessageListLoader.PAGE_SIZE + 50, loadedCursor.getCount());
+        assertFalse(loader.hasMorePages());
+        assertEquals(PagedMessageListLoader.ALL_LOADED, loader.getLastLoadedDate());
+    }
+
+    @Test
+    public void startLoading_withMorePagesThanMessages_shouldStopAfterShortPage() {
+        provider.addMessages(1, 10, 1000);
+
+        startLoading(3);
+
+        assertEquals(10, loadedCursor.getCount());
+        assertEquals(1, provider.queries.size());
+        assertFalse(loader.hasMorePages());
+    }
+
+    @Test
+    public void truncateToDate_shouldCutAtNewestLoadedDateAndKeepTies() {
+        Cursor[] cursors = {
+                createCursor(900, 800, 700, 700, 600),
+                createCursor(750, 700, 650),
+                null
+        };
+
+        Cursor[] truncatedCursors = PagedMessageListLoader.truncateToDate(cursors, DATE_COLUMN, 700);
+
+        assertEquals(4, truncatedCursors[0].getCount());
+        assertEquals(2, truncatedCursors[1].getCount());
+        assertNull(truncatedCursors[2]);
+        assertTrue(truncatedCursors[0].moveToLast());
+        assertEquals(700, truncatedCursors[0].getLong(DATE_COLUMN));
+    }
+
+    @Test
+    public void truncateToDate_withDateOlderThanAllRows_shouldKeepAllRows() {
+        Cursor[] cursors = { createCursor(900, 800) };
+
+        Cursor[] truncatedCursors = PagedMessageListLoader.truncateToDate(cursors, DATE_COLUMN, 100);
+
+        assertEquals(2, truncatedCursors[0].getCount());
+    }
+
+    @Test
+    public void truncateToDate_withAllLoaded_shouldReturnCursors() {
+        Cursor[] cursors = { createCursor(900, 800) };
+
+        Cursor[] truncatedCursors = PagedMessageListLoader.truncateToDate(cursors, DATE_COLUMN,
+                PagedMessageListLoader.ALL_LOADED);
+
+        assertSame(cursors, truncatedCursors);
+    }
+
+    private void startLoading(int pageCount) {
+        loader = new PagedMessageListLoader(RuntimeEnvironment.application, MESSAGES_URI, PROJECTION, null, null,
+                "date DESC, id DESC", ID_COLUMN, DATE_COLUMN, pageCount);
+        loader.registerListener(0, new OnLoadCompleteListener<Cursor>() {
+            @Override
+            public void onLoadComplete(Loader<Cursor> loader, Cursor cursor) {
+                loadedCursor = cursor;
+            }
+        });
+        loader.startLoading();
+        runPendingTasks();
+    }
+
+    private void loadNextPage() {
+        loader.loadNextPage();
+        runPendingTasks();
+    }
+
+    private static void runPendingTasks() {
+        Robolectric.flushBackgroundThreadScheduler();
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+    }
+
+    private static void assertRowsInSortOrder(Cursor cursor, List<long[]> expectedRows, int count) {
+        assertEquals(count, cursor.getCount());
+        for (int i = 0; i < count; i++) {
+            assertTrue(cursor.moveToPosition(i));
+            assertEquals("date of row " + i, expectedRows.get(i)[1], cursor.getLong(DATE_COLUMN));
+            assertEquals("id of row " + i, expectedRows.get(i)[0], cursor.getLong(ID_COLUMN));
+        }
+    }
+
+    private static MatrixCursor createCursor(long... dates) {
+        MatrixCursor cursor = new MatrixCursor(PROJECTION);
+        long id = dates.length;
+        for (long date : dates) {
+            cursor.addRow(new Object[] { id--, date });
+        }
+        return cursor;
+    }
+
+
+    /**
+     * Answers page queries like {@link EmailProvider} does for lists sorted by {@code date DESC, id DESC}.
+     */
+    static class MessagesProvider extends ContentProvider {
+        final List<Uri> queries = new ArrayList<>();
+        private final List<long[]> messages = new ArrayList<>();
+
+
+        /**
+         * Adds messages with the IDs {@code first} to {@code last}. Newer messages get higher IDs.
+         */
+        void addMessages(int first, int last, long newestDate) {
+            for (int id = first; id <= last; id++) {
+                messages.add(new long[] { id, newestDate - (last - id) });
+            }
+        }
+
+        /**
+         * Gives the messages at the given positions of the sorted list the date of the last one. This doesn't change
+         * their position.
+         */
+        void makeDatesEqual(int firstPosition, int lastPosition) {
+            List<long[]> sortedMessages = getSortedMessages();
+            long date = sortedMessages.get(lastPosition)[1];
+            for (int i = firstPosition; i <= lastPosition; i++) {
+                sortedMessages.get(i)[1] = date;
+            }
+        }
+
+        List<long[]> getSortedMessages() {
+            List<long[]> sortedMessages = new ArrayList<>(messages);
+            Collections.sort(sortedMessages, new Comparator<long[]>() {
+                @Override
+                public int compare(long[] left, long[] right) {
+                    int dateComparison = Long.compare(right[1], left[1]);
+                    return (dateComparison != 0) ? dateComparison : Long.compare(right[0], left[0]);
+                }
+            });
+            return sortedMessages;
+        }
+
+        @Override
+        public boolean onCreate() {
+            return true;
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                String sortOrder) {
+            queries.add(uri);
+
+            int pageSize = Integer.parseInt(uri.getQueryParameter(EmailProvider.QUERY_PARAMETER_PAGE_SIZE));
+            String beforeDate = uri.getQueryParameter(EmailProvider.QUERY_PARAMETER_BEFORE_DATE);
+            String beforeId = uri.getQueryParameter(EmailProvider.QUERY_PARAMETER_BEFORE_ID);
+
+            MatrixCursor cursor = new MatrixCursor(projection);
+            for (long[] message : getSortedMessages()) {
+                if (cursor.getCount() == pageSize) {
+                    break;
+                }
+                if (beforeDate != null && !isBefore(message, Long.parseLong(beforeDate), Long.parseLong(beforeId))) {
+                    continue;
+                }
+                cursor.addRow(new Object[] { message[0], message[1] });
+            }
+            return cursor;
+        }
+
+        private static boolean isBefore(long[] message, long date, long id) {
+            return message[1] < date || (message[1] == date && message[0] < id);
+        }
+
+        @Override
+        public String getType(Uri uri) {
+            return null;
+        }
+
+        @Override
+        public Uri insert(Uri uri, ContentValues values) {
+            return null;
+        }
+
+        @Override
+        public int delete(Uri uri, String selection, String[] selectionArgs) {
+            return 0;
+        }
+
+        @Override
+        public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.fsck.k9.helper;
+
+
+import java.util.Comparator;
+import java.util.Random;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.util.Log;
+
+import com.fsck.k9.K9RobolectricTestRunner;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.shadows.ShadowLog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Measures sequential and random access of a {@link MergeCursor} combining the message lists of 15 accounts, like
+ * the unified inbox does.
+ * <p>
+ * Excluded from the unit tests by the build. Run it with
+ * {@code ./gradlew :qmail:testDebugUnitTest -PrunBenchmarks
+ * --tests com.fsck.k9.helper.MergeCursorBenchmarkTest}.
+ * </p>
+ */
+@RunWith(K9RobolectricTestRunner.class)
+public class MergeCursorBenchmarkTest {
+    private static final String LOG_TAG = "MergeCursorBenchmark";
+    private static final int ACCOUNT_COUNT = 15;
+    private static final int MESSAGES_PER_ACCOUNT = 2000;
+    private static final int RANDOM_MOVES = 100000;
+
+    private static final Comparator<Cursor> DATE_DESC_COMPARATOR = new Comparator<Cursor>() {
+        @Override
+        public int compare(Cursor left, Cursor right) {
+            long leftDate = left.getLong(0);
+            long rightDate = right.getLong(0);
+            return (leftDate > rightDate) ? -1 : ((leftDate < rightDate) ? 1 : 0);
+        }
+    };
+
+
+    @Before
+    public void setUp() throws Exception {
+        ShadowLog.stream = System.out;
+    }
+
+    @Test
+    public void moveToPosition_with15Accounts() throws Exception {
+        Random random = new Random(42);
+        MergeCursor cursor = new MergeCursor(createAccountCursors(random), DATE_DESC_COMPARATOR);
+        int count = cursor.getCount();
+
+        long start = System.nanoTime();
+        long previousDate = Long.MAX_VALUE;
+        while (cursor.moveToNext()) {
+            long date = cursor.getLong(0);
+            assertTrue(date <= previousDate);
+            previousDate = date;
+        }
+        long sequentialMillis = (System.nanoTime() - start) / 1000000;
+
+        start = System.nanoTime();
+        for (int i = 0; i < RANDOM_MOVES; i++) {
+            assertTrue(cursor.moveToPosition(random.nextInt(count)));
+        }
+        long randomMillis = (System.nanoTime() - start) / 1000000;
+
+        Log.i(LOG_TAG, "Merged " + count + " rows of " + ACCOUNT_COUNT + " cursors in " + sequentialMillis +
+                " ms, " + RANDOM_MOVES + " random moves took " + randomMillis + " ms");
+        assertEquals(ACCOUNT_COUNT * MESSAGES_PER_ACCOUNT, count);
+    }
+
+    private static Cursor[] createAccountCursors(Random random) {
+        Cursor[] cursors = new Cursor[ACCOUNT_COUNT];
+        for (int i = 0; i < ACCOUNT_COUNT; i++) {
+            MatrixCursor cursor = new MatrixCursor(new String[] { "date" }, MESSAGES_PER_ACCOUNT);
+            long date = System.currentTimeMillis();
+            for (int j = 0; j < MESSAGES_PER_ACCOUNT; j++) {
+                date -= random.nextInt(3600000);
+                cursor.addRow(new Object[] { date });
+            }
+            cursors[i] = cursor;
+        }
+        return cursors;
+    }
+}
@@ -0,0 +1,123 @@
+package com.fsck.k9.helper;
+
+
+import java.util.Comparator;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+import com.fsck.k9.K9RobolectricTestRunner;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+@RunWith(K9RobolectricTestRunner.class)
+public class MergeCursorTest {
+    private static final Comparator<Cursor> DATE_DESC_COMPARATOR = new Comparator<Cursor>() {
+        @Override
+        public int compare(Cursor left, Cursor right) {
+            long leftDate = left.getLong(1);
+            long rightDate = right.getLong(1);
+            return (leftDate > rightDate) ? -1 : ((leftDate < rightDate) ? 1 : 0);
+        }
+    };
+
+
+    @Test
+    public void moveToNext_shouldReturnRowsInMergedOrder() {
+        MergeCursor cursor = new MergeCursor(new Cursor[] {
+                createCursor("a", 9, 5, 1),
+                createCursor("b", 8, 7, 2),
+                createCursor("c", 6)
+        }, DATE_DESC_COMPARATOR);
+
+        assertEquals(7, cursor.getCount());
+        assertEquals("a9 b8 b7 c6 a5 b2 a1", readForward(cursor));
+        assertTrue(cursor.isAfterLast());
+    }
+
+    @Test
+    public void moveToPrevious_shouldReturnRowsInReverseMergedOrder() {
+        MergeCursor cursor = new MergeCursor(new Cursor[] {
+                createCursor("a", 9, 5, 1),
+                createCursor("b", 8, 7, 2)
+        }, DATE_DESC_COMPARATOR);
+
+        assertTrue(cursor.moveToLast());
+        StringBuilder rows = new StringBuilder(currentRow(cursor));
+        while (cursor.moveToPrevious()) {
+            rows.append(' ').append(currentRow(cursor));
+        }
+
+        assertEquals("a1 b2 a5 b7 b8 a9", rows.toString());
+        assertTrue(cursor.isBeforeFirst());
+    }
+
+    @Test
+    public void moveToPosition_shouldSupportRandomAccess() {
+        MergeCursor cursor = new MergeCursor(new Cursor[] {
+                createCursor("a", 9, 5, 1),
+                createCursor("b", 8, 7, 2)
+        }, DATE_DESC_COMPARATOR);
+
+        assertTrue(cursor.moveToPosition(4));
+        assertEquals("b2", currentRow(cursor));
+        assertTrue(cursor.moveToPosition(1));
+        assertEquals("b8", currentRow(cursor));
+        assertTrue(cursor.moveToPosition(5));
+        assertEquals("a1", currentRow(cursor));
+        assertTrue(cursor.moveToPosition(2));
+        assertEquals("b7", currentRow(cursor));
+        assertFalse(cursor.moveToPosition(6));
+        assertTrue(cursor.isAfterLast());
+    }
+
+    @Test
+    public void moveToNext_withEqualRows_shouldPreferEarlierCursor() {
+        MergeCursor cursor = new MergeCursor(new Cursor[] {
+                createCursor("a", 5, 3),
+                createCursor("b", 5, 3)
+        }, DATE_DESC_COMPARATOR);
+
+        assertEquals("a5 b5 a3 b3", readForward(cursor));
+    }
+
+    @Test
+    public void moveToNext_withNullAndEmptyCursors_shouldSkipThem() {
+        MergeCursor cursor = new MergeCursor(new Cursor[] {
+                null,
+                createCursor("a"),
+                createCursor("b", 4, 2)
+        }, DATE_DESC_COMPARATOR);
+
+        assertEquals(2, cursor.getCount());
+        assertEquals("b4 b2", readForward(cursor));
+    }
+
+    private static String readForward(Cursor cursor) {
+        StringBuilder rows = new StringBuilder();
+        while (cursor.moveToNext()) {
+            if (rows.length() > 0) {
+                rows.append(' ');
+            }
+            rows.append(currentRow(cursor));
+        }
+        return rows.toString();
+    }
+
+    private static String currentRow(Cursor cursor) {
+        return cursor.getString(0) + cursor.getLong(1);
+    }
+
+    private static MatrixCursor createCursor(String name, long... dates) {
+        MatrixCursor cursor = new MatrixCursor(new String[] { "name", "date" });
+        for (long date : dates) {
+            cursor.addRow(new Object[] { name, date });
+        }
+        return cursor;
+    }
+}
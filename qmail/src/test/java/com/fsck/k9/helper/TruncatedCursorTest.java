@@ -0,0 +1,80 @@
+package com.fsck.k9.helper;
+
+
+import java.util.Comparator;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+import com.fsck.k9.K9RobolectricTestRunner;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+@RunWith(K9RobolectricTestRunner.class)
+public class TruncatedCursorTest {
+    @Test
+    public void moveToNext_shouldStopAfterCount() {
+        TruncatedCursor cursor = new TruncatedCursor(createCursor(9, 5, 1), 2);
+
+        assertEquals(2, cursor.getCount());
+        assertTrue(cursor.moveToNext());
+        assertEquals(9, cursor.getLong(0));
+        assertTrue(cursor.moveToNext());
+        assertEquals(5, cursor.getLong(0));
+        assertTrue(cursor.isLast());
+        assertFalse(cursor.moveToNext());
+        assertTrue(cursor.isAfterLast());
+    }
+
+    @Test
+    public void moveToLast_shouldMoveToLastIncludedRow() {
+        TruncatedCursor cursor = new TruncatedCursor(createCursor(9, 5, 1), 2);
+
+        assertTrue(cursor.moveToLast());
+        assertEquals(5, cursor.getLong(0));
+        assertEquals(1, cursor.getPosition());
+        assertTrue(cursor.moveToPrevious());
+        assertFalse(cursor.moveToPrevious());
+        assertTrue(cursor.isBeforeFirst());
+    }
+
+    @Test
+    public void constructor_withCountLargerThanCursor_shouldExposeAllRows() {
+        TruncatedCursor cursor = new TruncatedCursor(createCursor(9, 5), 10);
+
+        assertEquals(2, cursor.getCount());
+        assertFalse(cursor.moveToPosition(2));
+    }
+
+    @Test
+    public void mergeCursor_withTruncatedCursor_shouldOnlyMergeIncludedRows() {
+        MergeCursor cursor = new MergeCursor(new Cursor[] {
+                new TruncatedCursor(createCursor(9, 5, 1), 1),
+                createCursor(8, 7)
+        }, new Comparator<Cursor>() {
+            @Override
+            public int compare(Cursor left, Cursor right) {
+                long leftDate = left.getLong(0);
+                long rightDate = right.getLong(0);
+                return (leftDate > rightDate) ? -1 : ((leftDate < rightDate) ? 1 : 0);
+            }
+        });
+
+        assertEquals(3, cursor.getCount());
+        assertTrue(cursor.moveToLast());
+        assertEquals(7, cursor.getLong(0));
+    }
+
+    private static MatrixCursor createCursor(long... dates) {
+        MatrixCursor cursor = new MatrixCursor(new String[] { "date" });
+        for (long date : dates) {
+            cursor.addRow(new Object[] { date });
+        }
+        return cursor;
+    }
+}
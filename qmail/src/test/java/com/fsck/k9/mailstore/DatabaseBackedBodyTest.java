@@ -0,0 +1,194 @@
+package com.fsck.k9.mailstore;
+
+
+import java.io.File;
+import java.util.Collections;
+import java.util.concurrent.Executor;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.fsck.k9.Account;
+import com.fsck.k9.K9RobolectricTestRunner;
+import com.fsck.k9.Preferences;
+import com.fsck.k9.mail.FetchProfile;
+import com.fsck.k9.mail.Folder;
+import com.fsck.k9.mail.Folder.FolderType;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.internet.MimeMessage;
+import com.fsck.k9.mail.internet.MimeMessageHelper;
+import com.fsck.k9.mail.internet.TextBody;
+import com.fsck.k9.mailstore.LockableDatabase.DbCallback;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.ByteArrayOutputStream;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowSQLiteConnection;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+@RunWith(K9RobolectricTestRunner.class)
+public class DatabaseBackedBodyTest {
+    private static final byte[] CHANGED_DATA = "changed data".getBytes();
+
+
+    private LocalStore localStore;
+    private LocalFolder folder;
+
+
+    @Before
+    public void setUp() throws Exception {
+        ShadowSQLiteConnection.reset();
+
+        // The full-text indexer isn't needed here, keep it from reading messages in the background
+        LocalStore.setFulltextIndexExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+            }
+        });
+
+        Preferences preferences = Preferences.getPreferences(RuntimeEnvironment.application);
+        Account account = preferences.newAccount();
+
+        StorageManager storageManager = StorageManager.getInstance(RuntimeEnvironment.application);
+        File databaseFile = storageManager.getDatabase(account.getUuid(), account.getLocalStorageProviderId());
+        assertTrue(databaseFile.getParentFile().isDirectory() || databaseFile.getParentFile().mkdirs());
+
+        localStore = LocalStore.getInstance(account, RuntimeEnvironment.application);
+        folder = localStore.getFolder("body");
+        folder.create(FolderType.HOLDS_MESSAGES);
+        folder.open(Folder.OPEN_MODE_RW);
+    }
+
+    @Test
+    public void fetch_withBodyStoredInDatabase_shouldReturnDatabaseBackedBody() throws Exception {
+        LocalMessage message = appendAndFetchMessage("Body text");
+
+        assertTrue(message.getBody() instanceof DatabaseBackedBody);
+    }
+
+    @Test
+    public void getSize_shouldReturnLengthOfStoredData() throws Exception {
+        LocalMessage message = appendAndFetchMessage("Body text");
+        DatabaseBackedBody body = (DatabaseBackedBody) message.getBody();
+
+        long size = body.getSize();
+
+        assertEquals(getStoredData(message.getMessagePartId()).length, size);
+    }
+
+    @Test
+    public void writeTo_shouldWriteStoredData() throws Exception {
+        LocalMessage message = appendAndFetchMessage("Body text");
+        DatabaseBackedBody body = (DatabaseBackedBody) message.getBody();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        body.writeTo(out);
+
+        assertArrayEquals(getStoredData(message.getMessagePartId()), out.toByteArray());
+    }
+
+    @Test
+    public void writeTo_afterDataChanged_shouldReadDataFromDatabaseAgain() throws Exception {
+        LocalMessage message = appendAndFetchMessage("Body text");
+        DatabaseBackedBody body = (DatabaseBackedBody) message.getBody();
+        body.writeTo(new ByteArrayOutputStream());
+        setStoredData(message.getMessagePartId(), CHANGED_DATA);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        body.writeTo(out);
+
+        assertArrayEquals(CHANGED_DATA, out.toByteArray());
+    }
+
+    @Test
+    public void getInputStream_afterDataChanged_shouldReadDataFromDatabaseAgain() throws Exception {
+        LocalMessage message = appendAndFetchMessage("Body text");
+        DatabaseBackedBody body = (DatabaseBackedBody) message.getBody();
+        setStoredData(message.getMessagePartId(), CHANGED_DATA);
+
+        byte[] data = IOUtils.toByteArray(body.getInputStream());
+
+        assertArrayEquals(CHANGED_DATA, data);
+    }
+
+    @Test
+    public void getInputStream_withMissingMessagePart_shouldThrowMessagingException() throws Exception {
+        DatabaseBackedBody body = new DatabaseBackedBody(localStore, 12345L, "8bit", 10);
+
+        try {
+            body.getInputStream();
+            fail("Expected exception");
+        } catch (MessagingException e) {
+            assertEquals("Message part not found", e.getMessage());
+        }
+    }
+
+    @Test
+    public void writeTo_withMissingMessagePart_shouldThrowMessagingException() throws Exception {
+        DatabaseBackedBody body = new DatabaseBackedBody(localStore, 12345L, "8bit", 10);
+
+        try {
+            body.writeTo(new ByteArrayOutputStream());
+            fail("Expected exception");
+        } catch (MessagingException e) {
+            assertEquals("Message part not found", e.getMessage());
+        }
+    }
+
+    @Test(expected = MessagingException.class)
+    public void setEncoding_shouldThrowMessagingException() throws Exception {
+        DatabaseBackedBody body = new DatabaseBackedBody(localStore, 12345L, "8bit", 10);
+
+        body.setEncoding("base64");
+    }
+
+    private LocalMessage appendAndFetchMessage(String text) throws Exception {
+        MimeMessage message = new MimeMessage();
+        message.setUid("1");
+        message.setSubject("Subject");
+        MimeMessageHelper.setBody(message, new TextBody(text));
+        folder.appendMessages(Collections.singletonList(message));
+
+        LocalMessage localMessage = folder.getMessage("1");
+        FetchProfile fetchProfile = new FetchProfile();
+        fetchProfile.add(FetchProfile.Item.BODY);
+        folder.fetch(Collections.singletonList(localMessage), fetchProfile, null);
+        return localMessage;
+    }
+
+    private byte[] getStoredData(final long partId) throws MessagingException {
+        return localStore.getDatabase().execute(false, new DbCallback<byte[]>() {
+            @Override
+            public byte[] doDbWork(SQLiteDatabase db) {
+                Cursor cursor = db.rawQuery("SELECT data FROM message_parts WHERE id = ?",
+                        new String[] { Long.toString(partId) });
+                try {
+                    assertTrue(cursor.moveToFirst());
+                    return cursor.getBlob(0);
+                } finally {
+                    cursor.close();
+                }
+            }
+        });
+    }
+
+    private void setStoredData(final long partId, final byte[] data) throws MessagingException {
+        localStore.getDatabase().execute(true, new DbCallback<Void>() {
+            @Override
+            public Void doDbWork(SQLiteDatabase db) {
+                ContentValues values = new ContentValues();
+                values.put("data", data);
+                db.update("message_parts", values, "id = ?", new String[] { Long.toString(partId) });
+                return null;
+            }
+        });
+    }
+}
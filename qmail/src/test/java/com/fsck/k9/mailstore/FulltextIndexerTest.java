@@ -0,0 +1,276 @@
+package com.fsck.k9.mailstore;
+
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.fsck.k9.Account;
+import com.fsck.k9.K9RobolectricTestRunner;
+import com.fsck.k9.Preferences;
+import com.fsck.k9.mail.Folder;
+import com.fsck.k9.mail.Folder.FolderType;
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.internet.MimeMessage;
+import com.fsck.k9.mail.internet.MimeMessageHelper;
+import com.fsck.k9.mail.internet.TextBody;
+import com.fsck.k9.mailstore.LockableDatabase.DbCallback;
+import com.fsck.k9.message.extractors.MessageFulltextCreator;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowSQLiteConnection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+
+@RunWith(K9RobolectricTestRunner.class)
+public class FulltextIndexerTest {
+    private LocalStore localStore;
+    private LocalFolder folder;
+    private MessageFulltextCreator fulltextCreator;
+    private FulltextIndexer fulltextIndexer;
+
+
+    @Before
+    public void setUp() throws Exception {
+        ShadowSQLiteConnection.reset();
+
+        // Keep the local store's own indexer from running, so only the indexer under test touches the watermark
+        LocalStore.setFulltextIndexExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+            }
+        });
+
+        Preferences preferences = Preferences.getPreferences(RuntimeEnvironment.application);
+        Account account = preferences.newAccount();
+
+        StorageManager storageManager = StorageManager.getInstance(RuntimeEnvironment.application);
+        File databaseFile = storageManager.getDatabase(account.getUuid(), account.getLocalStorageProviderId());
+        assertTrue(databaseFile.getParentFile().isDirectory() || databaseFile.getParentFile().mkdirs());
+
+        localStore = LocalStore.getInstance(account, RuntimeEnvironment.application);
+        folder = localStore.getFolder("fulltext");
+        folder.create(FolderType.HOLDS_MESSAGES);
+        folder.open(Folder.OPEN_MODE_RW);
+
+        fulltextCreator = mock(MessageFulltextCreator.class);
+        when(fulltextCreator.createFulltext(any(Message.class))).thenAnswer(new Answer<String>() {
+            @Override
+            public String answer(InvocationOnMock invocation) throws Throwable {
+                return "fulltext of " + ((Message) invocation.getArguments()[0]).getSubject();
+            }
+        });
+        fulltextIndexer = new FulltextIndexer(localStore, fulltextCreator, null);
+    }
+
+    @Test
+    public void indexNextBatch_withoutNewMessages_shouldReturnZero() throws Exception {
+        int indexedMessages = fulltextIndexer.indexNextBatch();
+
+        assertEquals(0, indexedMessages);
+        assertEquals(0, getWatermark());
+    }
+
+    @Test
+    public void indexNextBatch_shouldIndexOneBatchAndMoveWatermark() throws Exception {
+        appendMessages(1, FulltextIndexer.BATCH_SIZE + 1);
+
+        int indexedMessages = fulltextIndexer.indexNextBatch();
+
+        assertEquals(FulltextIndexer.BATCH_SIZE, indexedMessages);
+        assertEquals(getMessageId(FulltextIndexer.BATCH_SIZE), getWatermark());
+        assertEquals("fulltext of Message 1", getFulltext(getMessageId(1)));
+        assertNull(getFulltext(getMessageId(FulltextIndexer.BATCH_SIZE + 1)));
+        verify(fulltextCreator, times(FulltextIndexer.BATCH_SIZE)).createFulltext(any(Message.class));
+    }
+
+    @Test
+    public void indexNextBatch_calledRepeatedly_shouldIndexRemainingMessages() throws Exception {
+        appendMessages(1, FulltextIndexer.BATCH_SIZE + 1);
+        fulltextIndexer.indexNextBatch();
+
+        int indexedMessages = fulltextIndexer.indexNextBatch();
+
+        assertEquals(1, indexedMessages);
+        assertEquals(getMessageId(FulltextIndexer.BATCH_SIZE + 1), getWatermark());
+        assertEquals("fulltext of Message " + (FulltextIndexer.BATCH_SIZE + 1),
+                getFulltext(getMessageId(FulltextIndexer.BATCH_SIZE + 1)));
+        assertEquals(0, fulltextIndexer.indexNextBatch());
+    }
+
+    @Test
+    public void indexNextBatch_withMessageWrittenAgainWhileExtractingText_shouldStopWatermarkBeforeIt()
+            throws Exception {
+        appendMessages(1, 3);
+        when(fulltextCreator.createFulltext(any(Message.class))).thenAnswer(new Answer<String>() {
+            @Override
+            public String answer(InvocationOnMock invocation) throws Throwable {
+                Message message = (Message) invocation.getArguments()[0];
+                if ("3".equals(message.getUid())) {
+                    folder.appendMessages(Collections.singletonList(createMessage(2, "Changed message")));
+                }
+                return "fulltext of " + message.getSubject();
+            }
+        });
+
+        int indexedMessages = fulltextIndexer.indexNextBatch();
+
+        assertEquals(1, indexedMessages);
+        assertEquals(getMessageId(1), getWatermark());
+        assertNull(getFulltext(getMessageId(2)));
+    }
+
+    @Test
+    public void indexNextBatch_afterMessageWasWrittenAgain_shouldIndexNewVersion() throws Exception {
+        appendMessages(1, 3);
+        final long messageId = getMessageId(2);
+        when(fulltextCreator.createFulltext(any(Message.class))).thenAnswer(new Answer<String>() {
+            private boolean changed;
+
+            @Override
+            public String answer(InvocationOnMock invocation) throws Throwable {
+                Message message = (Message) invocation.getArguments()[0];
+                if (!changed && "3".equals(message.getUid())) {
+                    changed = true;
+                    folder.appendMessages(Collections.singletonList(createMessage(2, "Changed message")));
+                }
+                return "fulltext of " + message.getSubject();
+            }
+        });
+        fulltextIndexer.indexNextBatch();
+
+        int indexedMessages = fulltextIndexer.indexNextBatch();
+
+        assertEquals(2, indexedMessages);
+        assertEquals(getMessageId(3), getWatermark());
+        assertEquals("fulltext of Changed message", getFulltext(messageId));
+    }
+
+    @Test
+    public void getPendingMessageCount_withMessagesAboveWatermark_shouldCountThem() throws Exception {
+        appendMessages(1, FulltextIndexer.BATCH_SIZE + 1);
+
+        int pendingMessages = fulltextIndexer.getPendingMessageCount();
+
+        assertEquals(FulltextIndexer.BATCH_SIZE + 1, pendingMessages);
+    }
+
+    @Test
+    public void getPendingMessageCount_afterIndexingOneBatch_shouldCountRemainingMessages() throws Exception {
+        appendMessages(1, FulltextIndexer.BATCH_SIZE + 1);
+        fulltextIndexer.indexNextBatch();
+
+        int pendingMessages = fulltextIndexer.getPendingMessageCount();
+
+        assertEquals(1, pendingMessages);
+    }
+
+    @Test
+    public void getFulltextIndexLag_afterIndexingAllMessages_shouldReturnZero() throws Exception {
+        appendMessages(1, 3);
+        fulltextIndexer.indexPendingMessages();
+
+        int fulltextIndexLag = localStore.getFulltextIndexLag();
+
+        assertEquals(0, fulltextIndexLag);
+    }
+
+    @Test
+    public void indexMessageIfBelowWatermark_withMessageAboveWatermark_shouldNotIndexMessage() throws Exception {
+        appendMessages(1, 1);
+        Message message = folder.getMessage("1");
+
+        indexMessageIfBelowWatermark(getMessageId(1), message);
+
+        assertNull(getFulltext(getMessageId(1)));
+    }
+
+    @Test
+    public void indexMessageIfBelowWatermark_withMessageBelowWatermark_shouldIndexMessage() throws Exception {
+        appendMessages(1, 1);
+        fulltextIndexer.indexNextBatch();
+        Message changedMessage = createMessage(1, "Changed message");
+
+        indexMessageIfBelowWatermark(getMessageId(1), changedMessage);
+
+        assertEquals("fulltext of Changed message", getFulltext(getMessageId(1)));
+    }
+
+    private void appendMessages(int first, int last) throws Exception {
+        List<Message> messages = new ArrayList<>();
+        for (int i = first; i <= last; i++) {
+            messages.add(createMessage(i, "Message " + i));
+        }
+        folder.appendMessages(messages);
+    }
+
+    private static MimeMessage createMessage(int uid, String subject) throws Exception {
+        MimeMessage message = new MimeMessage();
+        message.setUid(Integer.toString(uid));
+        message.setSubject(subject);
+        MimeMessageHelper.setBody(message, new TextBody("Body of " + subject));
+        return message;
+    }
+
+    private long getMessageId(int uid) throws MessagingException {
+        return folder.getMessage(Integer.toString(uid)).getDatabaseId();
+    }
+
+    private void indexMessageIfBelowWatermark(final long messageId, final Message message) throws Exception {
+        localStore.getDatabase().execute(true, new DbCallback<Void>() {
+            @Override
+            public Void doDbWork(SQLiteDatabase db) {
+                fulltextIndexer.indexMessageIfBelowWatermark(messageId, message);
+                return null;
+            }
+        });
+    }
+
+    private long getWatermark() throws MessagingException {
+        return localStore.getDatabase().execute(false, new DbCallback<Long>() {
+            @Override
+            public Long doDbWork(SQLiteDatabase db) {
+                Cursor cursor = db.rawQuery("SELECT last_indexed_message_id FROM fulltext_index", null);
+                try {
+                    assertTrue(cursor.moveToFirst());
+                    return cursor.getLong(0);
+                } finally {
+                    cursor.close();
+                }
+            }
+        });
+    }
+
+    private String getFulltext(final long messageId) throws MessagingException {
+        return localStore.getDatabase().execute(false, new DbCallback<String>() {
+            @Override
+            public String doDbWork(SQLiteDatabase db) {
+                Cursor cursor = db.rawQuery("SELECT fulltext FROM messages_fulltext WHERE docid = ?",
+                        new String[] { Long.toString(messageId) });
+                try {
+                    return cursor.moveToFirst() ? cursor.getString(0) : null;
+                } finally {
+                    cursor.close();
+                }
+            }
+        });
+    }
+}
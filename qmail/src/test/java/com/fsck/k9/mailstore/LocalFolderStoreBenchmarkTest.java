@@ -0,0 +1,108 @@
+package com.fsck.k9.mailstore;
+
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import android.util.Log;
+
+import com.fsck.k9.Account;
+import com.fsck.k9.K9RobolectricTestRunner;
+import com.fsck.k9.Preferences;
+import com.fsck.k9.QMail;
+import com.fsck.k9.mail.Address;
+import com.fsck.k9.mail.Folder.FolderType;
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.internet.MimeMessage;
+import com.fsck.k9.mail.internet.MimeMessageHelper;
+import com.fsck.k9.mail.internet.TextBody;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowLog;
+import org.robolectric.shadows.ShadowSQLiteConnection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Measures how many messages per second {@link LocalFolder#appendMessages(List)} stores for a 10k message batch.
+ * <p>
+ * Excluded from the unit tests by the build. Run it with
+ * {@code ./gradlew :qmail:testDebugUnitTest -PrunBenchmarks
+ * --tests com.fsck.k9.mailstore.LocalFolderStoreBenchmarkTest}.
+ * </p>
+ */
+@RunWith(K9RobolectricTestRunner.class)
+public class LocalFolderStoreBenchmarkTest {
+    private static final String LOG_TAG = "LocalFolderStoreBenchmark";
+    private static final int MESSAGE_COUNT = 10000;
+    private static final int MESSAGES_PER_APPEND = 100;
+    private static final int MESSAGES_PER_THREAD = 5;
+
+
+    private LocalFolder folder;
+
+
+    @Before
+    public void setUp() throws Exception {
+        ShadowLog.stream = System.out;
+        QMail.setDebug(false);
+        ShadowSQLiteConnection.reset();
+
+        Preferences preferences = Preferences.getPreferences(RuntimeEnvironment.application);
+        Account account = preferences.newAccount();
+
+        StorageManager storageManager = StorageManager.getInstance(RuntimeEnvironment.application);
+        File databaseFile = storageManager.getDatabase(account.getUuid(), account.getLocalStorageProviderId());
+        assertTrue(databaseFile.getParentFile().isDirectory() || databaseFile.getParentFile().mkdirs());
+
+        LocalStore localStore = LocalStore.getInstance(account, RuntimeEnvironment.application);
+        folder = localStore.getFolder("benchmark");
+        folder.create(FolderType.HOLDS_MESSAGES);
+    }
+
+    @Test
+    public void appendMessages_with10kMessages() throws Exception {
+        List<Message> messages = new ArrayList<>(MESSAGE_COUNT);
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            messages.add(createMessage(i));
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < MESSAGE_COUNT; i += MESSAGES_PER_APPEND) {
+            folder.appendMessages(messages.subList(i, Math.min(i + MESSAGES_PER_APPEND, MESSAGE_COUNT)));
+        }
+        long elapsedMillis = Math.max(1, (System.nanoTime() - start) / 1000000);
+
+        Log.i(LOG_TAG, "Stored " + MESSAGE_COUNT + " messages in " + elapsedMillis + " ms: " +
+                (MESSAGE_COUNT * 1000L / elapsedMillis) + " messages/s");
+        assertEquals(MESSAGE_COUNT, folder.getMessageCount());
+    }
+
+    private static MimeMessage createMessage(int index) throws Exception {
+        MimeMessage message = new MimeMessage();
+        message.setUid(Integer.toString(index + 1));
+        message.setSubject("Message " + index);
+        message.setFrom(new Address("sender" + (index % 50) + "@example.org"));
+        message.setSentDate(new Date(1500000000000L + index * 60000L), false);
+        message.setMessageId(getMessageId(index));
+
+        int threadStart = index - (index % MESSAGES_PER_THREAD);
+        if (index != threadStart) {
+            message.setInReplyTo(getMessageId(index - 1));
+            message.setReferences(getMessageId(threadStart));
+        }
+
+        MimeMessageHelper.setBody(message, new TextBody("Body of message " + index));
+        return message;
+    }
+
+    private static String getMessageId(int index) {
+        return "<message" + index + "@example.org>";
+    }
+}
@@ -177,7 +177,7 @@ public class MigrationTest {
         Assert.assertEquals("utf-8",
                 MimeUtility.getHeaderParameter(msg.getHeader(MimeHeader.HEADER_CONTENT_TYPE)[0], "charset"));
 
-        Assert.assertTrue(msg.getBody() instanceof BinaryMemoryBody);
+        Assert.assertTrue(msg.getBody() instanceof DatabaseBackedBody);
 
         String msgTextContent = MessageExtractor.getTextFromPart(msg);
         Assert.assertEquals("nothing special here.\r\n", msgTextContent);
@@ -484,7 +484,7 @@ public class MigrationTest {
         Assert.assertEquals(12, msg.getHeaderNames().size());
         Assert.assertEquals("text/plain", msg.getMimeType());
         Assert.assertEquals(0, msg.getAttachmentCount());
-        Assert.assertTrue(msg.getBody() instanceof BinaryMemoryBody);
+        Assert.assertTrue(msg.getBody() instanceof DatabaseBackedBody);
 
         String msgTextContent = MessageExtractor.getTextFromPart(msg);
         Assert.assertEquals(OpenPgpUtils.PARSE_RESULT_MESSAGE, OpenPgpUtils.parseMessage(msgTextContent));
@@ -571,7 +571,7 @@ public class MigrationTest {
         Assert.assertEquals(12, msg.getHeaderNames().size());
         Assert.assertEquals("text/plain", msg.getMimeType());
         Assert.assertEquals(0, msg.getAttachmentCount());
-        Assert.assertTrue(msg.getBody() instanceof BinaryMemoryBody);
+        Assert.assertTrue(msg.getBody() instanceof DatabaseBackedBody);
 
         String msgTextContent = MessageExtractor.getTextFromPart(msg);
         Assert.assertEquals(OpenPgpUtils.PARSE_RESULT_SIGNED_MESSAGE, OpenPgpUtils.parseMessage(msgTextContent));
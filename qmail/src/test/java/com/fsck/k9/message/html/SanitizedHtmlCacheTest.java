@@ -0,0 +1,72 @@
+package com.fsck.k9.message.html;
+
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+public class SanitizedHtmlCacheTest {
+    private static final String MESSAGE_KEY = "account:1";
+    private static final String HTML = "<html><head></head><body>Hello</body></html>";
+
+
+    private File cacheFile;
+
+
+    @Before
+    public void setUp() throws Exception {
+        cacheFile = File.createTempFile("sanitized", ".html");
+        assertTrue(cacheFile.delete());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        cacheFile.delete();
+    }
+
+    @Test
+    public void get_afterPut_shouldReturnHtml() {
+        SanitizedHtmlCache cache = new SanitizedHtmlCache(1024);
+        String contentHash = SanitizedHtmlCache.computeContentHash("<b>Hello", "");
+
+        cache.put(MESSAGE_KEY, contentHash, HTML, null);
+
+        assertEquals(HTML, cache.get(MESSAGE_KEY, contentHash, null));
+    }
+
+    @Test
+    public void get_withDifferentContentHash_shouldReturnNull() {
+        SanitizedHtmlCache cache = new SanitizedHtmlCache(1024);
+        cache.put(MESSAGE_KEY, SanitizedHtmlCache.computeContentHash("<b>Hello", ""), HTML, cacheFile);
+
+        String html = cache.get(MESSAGE_KEY, SanitizedHtmlCache.computeContentHash("<b>Hello!", ""), cacheFile);
+
+        assertNull(html);
+    }
+
+    @Test
+    public void get_afterEvictionFromMemory_shouldReadHtmlFromFile() {
+        String contentHash = SanitizedHtmlCache.computeContentHash("<b>Hello", "");
+        new SanitizedHtmlCache(1024).put(MESSAGE_KEY, contentHash, HTML, cacheFile);
+
+        String html = new SanitizedHtmlCache(1024).get(MESSAGE_KEY, contentHash, cacheFile);
+
+        assertEquals(HTML, html);
+    }
+
+    @Test
+    public void computeContentHash_shouldDependOnHeadContents() {
+        String lightThemeHash = SanitizedHtmlCache.computeContentHash("<b>Hello", "");
+        String darkThemeHash = SanitizedHtmlCache.computeContentHash("<b>Hello", "<style>* { color: white }</style>");
+
+        assertNotEquals(lightThemeHash, darkThemeHash);
+    }
+}
@@ -1,6 +1,8 @@
 package com.fsck.k9.notification;
 
 
+import java.util.Arrays;
+
 import android.app.Notification;
 import android.support.v4.app.NotificationManagerCompat;
 
@@ -146,6 +148,37 @@ public class NewMailNotificationsTest {
         verify(notificationManager, times(2)).notify(summaryNotificationId, summaryNotification);
     }
 
+    @Test
+    public void testAddNewMailNotificationsShouldUpdateSummaryNotificationOnce() throws Exception {
+        int notificationIndexOne = 0;
+        int notificationIndexTwo = 1;
+        LocalMessage messageOne = createLocalMessage();
+        LocalMessage messageTwo = createLocalMessage();
+        NotificationContent contentOne = createNotificationContent();
+        NotificationContent contentTwo = createNotificationContent();
+        NotificationHolder holderOne = createNotificationHolder(contentOne, notificationIndexOne);
+        NotificationHolder holderTwo = createNotificationHolder(contentTwo, notificationIndexTwo);
+        addToNotificationContentCreator(messageOne, contentOne);
+        addToNotificationContentCreator(messageTwo, contentTwo);
+        whenAddingContentReturn(contentOne, AddNotificationResult.newNotification(holderOne));
+        whenAddingContentReturn(contentTwo, AddNotificationResult.newNotification(holderTwo));
+        Notification wearNotificationOne = createNotification();
+        Notification wearNotificationTwo = createNotification();
+        Notification summaryNotification = createNotification();
+        addToWearNotifications(holderOne, wearNotificationOne);
+        addToWearNotifications(holderTwo, wearNotificationTwo);
+        addToDeviceNotifications(summaryNotification);
+
+        newMailNotifications.addNewMailNotifications(account, Arrays.asList(messageOne, messageTwo), 42);
+
+        int wearNotificationIdOne = NotificationIds.getNewMailStackedNotificationId(account, notificationIndexOne);
+        int wearNotificationIdTwo = NotificationIds.getNewMailStackedNotificationId(account, notificationIndexTwo);
+        int summaryNotificationId = NotificationIds.getNewMailSummaryNotificationId(account);
+        verify(notificationManager).notify(wearNotificationIdOne, wearNotificationOne);
+        verify(notificationManager).notify(wearNotificationIdTwo, wearNotificationTwo);
+        verify(notificationManager, times(1)).notify(summaryNotificationId, summaryNotification);
+    }
+
     @Test
     public void testRemoveNewMailNotificationWithoutNotificationData() throws Exception {
         MessageReference messageReference = createMessageReference(1);
@@ -0,0 +1,183 @@
+package com.fsck.k9.preferences;
+
+
+import java.util.Map;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.fsck.k9.K9RobolectricTestRunner;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+@RunWith(K9RobolectricTestRunner.class)
+public class StorageTest {
+    private static final String ACCOUNT_UUID = "c3ba9b1a-1d4b-4b3b-8b9a-0e5cd3d4b1f2";
+    private static final String OTHER_ACCOUNT_UUID = "0d8a3a44-5e0f-4a3c-9f3d-6d3b4c7b2a11";
+
+
+    private Storage storage;
+
+
+    @Before
+    public void setUp() throws Exception {
+        storage = Storage.getStorage(RuntimeEnvironment.application);
+    }
+
+    @Test
+    public void getShardName_withAccountKey_shouldReturnAccountUuid() {
+        String shardName = Storage.getShardName(ACCOUNT_UUID + ".Inbox.displayMode");
+
+        assertEquals(ACCOUNT_UUID, shardName);
+    }
+
+    @Test
+    public void getShardName_withGlobalKey_shouldReturnGlobalShard() {
+        String shardName = Storage.getShardName("accountUuids");
+
+        assertEquals("", shardName);
+    }
+
+    @Test
+    public void commit_shouldStoreValues() {
+        storage.edit()
+                .putString("accountUuids", ACCOUNT_UUID)
+                .putInt(ACCOUNT_UUID + ".displayCount", 25)
+                .putBoolean(OTHER_ACCOUNT_UUID + ".notifyNewMail", true)
+                .commit();
+
+        assertEquals(ACCOUNT_UUID, storage.getString("accountUuids", null));
+        assertEquals(25, storage.getInt(ACCOUNT_UUID + ".displayCount", 0));
+        assertTrue(storage.getBoolean(OTHER_ACCOUNT_UUID + ".notifyNewMail", false));
+    }
+
+    @Test
+    public void commit_withRemoval_shouldRemoveValueFromItsShardOnly() {
+        storage.edit()
+                .putString(ACCOUNT_UUID + ".description", "Work")
+                .putString(OTHER_ACCOUNT_UUID + ".description", "Home")
+                .commit();
+
+        storage.edit().remove(ACCOUNT_UUID + ".description").commit();
+
+        assertFalse(storage.contains(ACCOUNT_UUID + ".description"));
+        assertEquals("Home", storage.getString(OTHER_ACCOUNT_UUID + ".description", null));
+    }
+
+    @Test
+    public void commit_withRemovalAndPutOfSameKey_shouldNotWriteRow() {
+        storage.edit().putString(ACCOUNT_UUID + ".name.0", "Alice").commit();
+        Map<String, String> shard = storage.getShard(ACCOUNT_UUID);
+        startCountingWrites();
+
+        storage.edit()
+                .remove(ACCOUNT_UUID + ".name.0")
+                .putString(ACCOUNT_UUID + ".name.0", "Alice")
+                .commit();
+
+        assertEquals("Alice", storage.getString(ACCOUNT_UUID + ".name.0", null));
+        assertEquals(0, getWriteCount());
+        assertSame(shard, storage.getShard(ACCOUNT_UUID));
+    }
+
+    @Test
+    public void commit_withUnchangedValue_shouldNotWriteRow() {
+        storage.edit().putLong(ACCOUNT_UUID + ".latestOldMessageSeenTime", 42L).commit();
+        Map<String, String> shard = storage.getShard(ACCOUNT_UUID);
+        startCountingWrites();
+
+        storage.edit().putLong(ACCOUNT_UUID + ".latestOldMessageSeenTime", 42L).commit();
+
+        assertEquals(42L, storage.getLong(ACCOUNT_UUID + ".latestOldMessageSeenTime", 0L));
+        assertEquals(0, getWriteCount());
+        assertSame(shard, storage.getShard(ACCOUNT_UUID));
+    }
+
+    @Test
+    public void commit_withChangedValue_shouldOnlyWriteChangedKeyAndReplaceItsShard() {
+        storage.edit()
+                .putString("accountUuids", ACCOUNT_UUID)
+                .putString(ACCOUNT_UUID + ".description", "Work")
+                .putString(OTHER_ACCOUNT_UUID + ".description", "Home")
+                .commit();
+        Map<String, String> globalShard = storage.getShard("");
+        Map<String, String> accountShard = storage.getShard(ACCOUNT_UUID);
+        Map<String, String> otherAccountShard = storage.getShard(OTHER_ACCOUNT_UUID);
+        startCountingWrites();
+
+        storage.edit()
+                .putString(ACCOUNT_UUID + ".description", "Office")
+                .putString(OTHER_ACCOUNT_UUID + ".description", "Home")
+                .commit();
+
+        assertEquals("Office", storage.getString(ACCOUNT_UUID + ".description", null));
+        assertEquals(1, getWriteCount());
+        assertNotSame(accountShard, storage.getShard(ACCOUNT_UUID));
+        assertSame(globalShard, storage.getShard(""));
+        assertSame(otherAccountShard, storage.getShard(OTHER_ACCOUNT_UUID));
+    }
+
+    @Test
+    public void getAll_shouldContainValuesOfAllShards() {
+        storage.edit()
+                .putString("accountUuids", ACCOUNT_UUID + "," + OTHER_ACCOUNT_UUID)
+                .putString(ACCOUNT_UUID + ".description", "Work")
+                .putString(OTHER_ACCOUNT_UUID + ".description", "Home")
+                .commit();
+
+        Map<String, String> all = storage.getAll();
+
+        assertEquals(ACCOUNT_UUID + "," + OTHER_ACCOUNT_UUID, all.get("accountUuids"));
+        assertEquals("Work", all.get(ACCOUNT_UUID + ".description"));
+        assertEquals("Home", all.get(OTHER_ACCOUNT_UUID + ".description"));
+        assertNull(all.get(ACCOUNT_UUID + ".alwaysBcc"));
+    }
+
+    /**
+     * Counts the inserts, updates and deletes on {@code preferences_storage} from now on. Replacing a row by inserting
+     * a row with the same key counts as a write, too.
+     */
+    private void startCountingWrites() {
+        SQLiteDatabase database = openDatabase();
+        try {
+            database.execSQL("CREATE TABLE write_count (count INTEGER)");
+            database.execSQL("INSERT INTO write_count VALUES (0)");
+            for (String operation : new String[] { "INSERT", "UPDATE", "DELETE" }) {
+                database.execSQL("CREATE TRIGGER count_" + operation + " AFTER " + operation +
+                        " ON preferences_storage BEGIN UPDATE write_count SET count = count + 1; END");
+            }
+        } finally {
+            database.close();
+        }
+    }
+
+    private int getWriteCount() {
+        SQLiteDatabase database = openDatabase();
+        try {
+            Cursor cursor = database.rawQuery("SELECT count FROM write_count", null);
+            try {
+                assertTrue(cursor.moveToFirst());
+                return cursor.getInt(0);
+            } finally {
+                cursor.close();
+            }
+        } finally {
+            database.close();
+        }
+    }
+
+    private SQLiteDatabase openDatabase() {
+        return RuntimeEnvironment.application.openOrCreateDatabase("preferences_storage", Context.MODE_PRIVATE, null);
+    }
+}